@@ -0,0 +1,83 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.UnitOfWork;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of small dao lookups against an in-memory H2 database, with and
+ * without a UnitOfWork. Each invocation does a batch of getById calls, as an SR
+ * metric does when it decorates its results.
+ *
+ * Without a unit of work every call checks a connection out of the pool, resets it,
+ * builds a DSLContext, commits and returns it. With one, the calls share a single
+ * connection and its cached prepared statements.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DaoCallBenchmark {
+    private static final Language LANG = Language.getByLangCode("simple");
+
+    @Param({"10000"})
+    public int numPages;
+
+    @Param({"100"})
+    public int callsPerBatch;
+
+    @Param({"false", "true"})
+    public boolean unitOfWork;
+
+    private WpDataSource wpDs;
+    private LocalPageSqlDao dao;
+    private Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        wpDs = TestDaoUtil.getWpDataSource();
+        dao = new LocalPageSqlDao(wpDs);
+        dao.beginLoad();
+        for (int i = 1; i <= numPages; i++) {
+            dao.save(new LocalPage(LANG, i, new Title("Page " + i, LANG), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        wpDs.close();
+    }
+
+    @Benchmark
+    public int batchOfLookups() throws DaoException {
+        UnitOfWork unit = unitOfWork ? wpDs.beginUnitOfWork() : null;
+        try {
+            int found = 0;
+            for (int i = 0; i < callsPerBatch; i++) {
+                if (dao.getById(LANG, random.nextInt(numPages) + 1) != null) {
+                    found++;
+                }
+            }
+            return found;
+        } finally {
+            if (unit != null) {
+                unit.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.matrix.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scans that score every row of a dense matrix against a query,
+ * as in brute force mostSimilar, for the float and int8 formats.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DenseMatrixBenchmark {
+    @Param({"100000"})
+    public int numRows;
+
+    @Param({"200"})
+    public int numCols;
+
+    private DenseMatrix dense;
+    private QuantizedDenseMatrix quantized;
+    private float query[];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dense = SyntheticMatrices.createDense(numRows, numCols, 42);
+        quantized = SyntheticMatrices.quantize(dense);
+        query = SyntheticMatrices.randomVector(new Random(7), numCols);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dense.close();
+        quantized.close();
+    }
+
+    @Benchmark
+    public double denseRows() {
+        double best = Double.NEGATIVE_INFINITY;
+        for (DenseMatrixRow row : dense) {
+            best = Math.max(best, row.dot(query));
+        }
+        return best;
+    }
+
+    @Benchmark
+    public double denseCursor() throws IOException {
+        DenseMatrixCursor cursor = dense.cursor();
+        double best = Double.NEGATIVE_INFINITY;
+        for (int id : dense.getRowIds()) {
+            cursor.moveTo(id);
+            best = Math.max(best, cursor.dot(query));
+        }
+        return best;
+    }
+
+    @Benchmark
+    public double quantizedCursor() throws IOException {
+        QuantizedDenseMatrixRow q = quantized.quantize(query);
+        QuantizedDenseMatrixCursor cursor = quantized.cursor();
+        double best = Double.NEGATIVE_INFINITY;
+        for (int id : quantized.getRowIds()) {
+            cursor.moveTo(id);
+            best = Math.max(best, cursor.cosine(q));
+        }
+        return best;
+    }
+}
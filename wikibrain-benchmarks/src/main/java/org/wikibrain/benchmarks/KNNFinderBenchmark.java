@@ -0,0 +1,83 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.knn.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of each KNNFinder on a clustered synthetic matrix.
+ * Index construction happens once per trial and is not measured.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KNNFinderBenchmark {
+    @Param({"bruteforce", "randomprojection", "kmeans", "lshforest", "hnsw"})
+    public String finderType;
+
+    @Param({"50000"})
+    public int numRows;
+
+    @Param({"100"})
+    public int numCols;
+
+    @Param({"500"})
+    public int maxTraversal;
+
+    private DenseMatrix matrix;
+    private KNNFinder finder;
+    private float queries[][];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        matrix = SyntheticMatrices.createDense(numRows, numCols, 42);
+        finder = createFinder();
+        finder.build();
+        Random random = new Random(7);
+        queries = new float[1000][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = SyntheticMatrices.randomVector(random, numCols);
+        }
+    }
+
+    private KNNFinder createFinder() throws IOException {
+        if (finderType.equals("bruteforce")) {
+            return new BruteForceKNNFinder(matrix);
+        } else if (finderType.equals("randomprojection")) {
+            return new RandomProjectionKNNFinder(matrix);
+        } else if (finderType.equals("kmeans")) {
+            return new KmeansKNNFinder(matrix);
+        } else if (finderType.equals("lshforest")) {
+            return new LSHForestKNNFinder(matrix);
+        } else if (finderType.equals("hnsw")) {
+            return new HnswKNNFinder(matrix);
+        } else {
+            throw new IllegalArgumentException("Unknown finder type: " + finderType);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matrix.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Queries {
+        int next = 0;
+    }
+
+    @Benchmark
+    public Neighborhood query(Queries q) {
+        float [] vector = queries[q.next++ % queries.length];
+        return finder.query(vector, 10, maxTraversal, null);
+    }
+}
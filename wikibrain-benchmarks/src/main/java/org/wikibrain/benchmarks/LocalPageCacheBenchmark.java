@@ -0,0 +1,97 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.core.dao.cache.LocalPageCache;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent page lookups with a Zipfian popularity distribution, as in wikify
+ * and mostSimilar decoration, against a LocalPageCache. A miss builds the page
+ * (standing in for the database query) and caches it.
+ *
+ * Compare segment counts to see lock contention, and cache sizes to see the
+ * effect of eviction on the hit rate. Hits and misses are reported as auxiliary
+ * counters next to the lookup throughput.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LocalPageCacheBenchmark {
+    private static final Language LANG = Language.getByLangCode("simple");
+
+    @Param({"1000000"})
+    public int numPages;
+
+    @Param({"1.0"})
+    public double zipfExponent;
+
+    @Param({"1", "16"})
+    public int segments;
+
+    @Param({"8", "64"})
+    public int megabytes;
+
+    private LocalPageCache cache;
+    private double cumulative[];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new LocalPageCache(megabytes * 1024L * 1024L, segments);
+        cumulative = new double[numPages];
+        double sum = 0.0;
+        for (int i = 0; i < numPages; i++) {
+            sum += 1.0 / Math.pow(i + 1, zipfExponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < numPages; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sampler {
+        private final Random random = new Random(Thread.currentThread().getId());
+
+        // lookups answered from the cache, and those that had to build the page
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+
+        int next(double cumulative[]) {
+            int i = java.util.Arrays.binarySearch(cumulative, random.nextDouble());
+            return (i < 0) ? -i - 1 : i;
+        }
+    }
+
+    @Benchmark
+    public LocalPage zipfianLookup(Sampler sampler) {
+        int id = sampler.next(cumulative) + 1;
+        LocalPage page = cache.get(LANG, id);
+        if (page != null) {
+            sampler.hits++;
+        } else {
+            sampler.misses++;
+            page = new LocalPage(LANG, id, new Title("Synthetic page " + id, LANG), NameSpace.ARTICLE);
+            cache.put(LANG, id, page);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,80 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.sr.normalize.LoessNormalizer;
+import org.wikibrain.sr.normalize.Normalizer;
+import org.wikibrain.sr.normalize.PercentileNormalizer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the percentile and loess normalizers' lookups with 1, 4 and 8 threads.
+ * The lookups read immutable tables and take no locks, so throughput should scale with
+ * the number of threads up to the number of cores.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NormalizerBenchmark {
+    @Param({"percentile", "loess"})
+    public String normalizer;
+
+    @Param({"10000"})
+    public int numObservations;
+
+    private Normalizer n;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        if (normalizer.equals("percentile")) {
+            PercentileNormalizer percentile = new PercentileNormalizer();
+            for (int i = 0; i < numObservations; i++) {
+                percentile.observe(random.nextDouble());
+            }
+            n = percentile;
+        } else {
+            LoessNormalizer loess = new LoessNormalizer();
+            for (int i = 0; i < numObservations; i++) {
+                double x = random.nextDouble();
+                loess.observe(x, Math.sqrt(x) + 0.05 * random.nextGaussian());
+            }
+            n = loess;
+        }
+        n.observationsFinished();
+        n.normalize(0.5);   // builds any lazily computed tables
+    }
+
+    @State(Scope.Thread)
+    public static class Input {
+        private final Random random = new Random(Thread.currentThread().getId());
+
+        double next() {
+            return random.nextDouble() * 1.2 - 0.1;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public double normalize1Thread(Input input) {
+        return n.normalize(input.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double normalize4Threads(Input input) {
+        return n.normalize(input.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public double normalize8Threads(Input input) {
+        return n.normalize(input.next());
+    }
+}
@@ -0,0 +1,88 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.vector.CosineSimilarity;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of the sparse vector SR metrics: cosine similarity between two rows,
+ * cosine mostSimilar through the transposed feature matrix, and Leaderboard ranking.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SRBenchmark {
+    @Param({"50000"})
+    public int numRows;
+
+    private SparseMatrix features;
+    private SparseMatrix transpose;
+    private CosineSimilarity cosine;
+    private double scores[];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        features = SyntheticMatrices.createSparse(numRows, 50, numRows, 42, false);
+        transpose = SyntheticMatrices.transpose(features);
+        cosine = new CosineSimilarity();
+        cosine.setMatrices(features, transpose, WpIOUtils.createTempDirectory("srbenchmark"));
+        Random random = new Random(7);
+        scores = new double[numRows];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random.nextDouble();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        features.close();
+        transpose.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        Random random = new Random();
+        SparseMatrixCursor cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(SRBenchmark b) {
+            cursor = b.features.cursor();
+        }
+    }
+
+    @Benchmark
+    public double cosineSimilarity(Reader reader) throws IOException {
+        SparseMatrixRow r1 = features.getRow(1 + reader.random.nextInt(numRows));
+        SparseMatrixRow r2 = features.getRow(1 + reader.random.nextInt(numRows));
+        return cosine.similarity(r1, r2);
+    }
+
+    @Benchmark
+    public SRResultList cosineMostSimilar(Reader reader) throws IOException {
+        reader.cursor.moveTo(1 + reader.random.nextInt(numRows));
+        return cosine.mostSimilar(reader.cursor, 100, null);
+    }
+
+    @Benchmark
+    public SRResultList leaderboard() {
+        Leaderboard board = new Leaderboard(100);
+        for (int i = 0; i < scores.length; i++) {
+            board.tallyScore(i, scores[i]);
+        }
+        return board.getTop();
+    }
+}
@@ -0,0 +1,79 @@
+package org.wikibrain.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
+import org.wikibrain.matrix.SparseMatrixRow;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random row lookups in a memory mapped sparse matrix, through getRow and through a cursor.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SparseMatrixBenchmark {
+    @Param({"100000"})
+    public int numRows;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private SparseMatrix matrix;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        matrix = SyntheticMatrices.createSparse(numRows, 50, numRows, 42, compress);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        matrix.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        Random random = new Random();
+        SparseMatrixCursor cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(SparseMatrixBenchmark b) {
+            cursor = b.matrix.cursor();
+        }
+    }
+
+    @Benchmark
+    public double getRow(Reader reader) throws IOException {
+        SparseMatrixRow row = matrix.getRow(1 + reader.random.nextInt(numRows));
+        double sum = 0.0;
+        for (int i = 0; i < row.getNumCols(); i++) {
+            sum += row.getColValue(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double cursor(Reader reader) throws IOException {
+        SparseMatrixCursor cursor = reader.cursor;
+        cursor.moveTo(1 + reader.random.nextInt(numRows));
+        double sum = 0.0;
+        for (int i = 0; i < cursor.getNumCols(); i++) {
+            sum += cursor.getColValue(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public double cursorConcurrent(Reader reader) throws IOException {
+        return cursor(reader);
+    }
+}
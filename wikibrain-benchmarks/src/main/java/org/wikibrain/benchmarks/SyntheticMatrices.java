@@ -0,0 +1,113 @@
+package org.wikibrain.benchmarks;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.wikibrain.matrix.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates reproducible matrices for benchmarks, so that they run without any Wikipedia data.
+ *
+ * @author Shilad Sen
+ */
+public class SyntheticMatrices {
+
+    /**
+     * Creates a sparse matrix with row ids 1..numRows.
+     * Column ids are drawn from a skewed distribution over 1..numCols, so that some columns
+     * are much more popular than others, as with links and words in Wikipedia.
+     */
+    public static SparseMatrix createSparse(int numRows, int colsPerRow, int numCols, long seed, boolean compress) throws IOException {
+        Random random = new Random(seed);
+        File path = tempFile("sparse");
+        SparseMatrixWriter writer = new SparseMatrixWriter(path, new ValueConf(), compress);
+        for (int id = 1; id <= numRows; id++) {
+            TIntFloatMap row = new TIntFloatHashMap();
+            int n = 1 + random.nextInt(2 * colsPerRow);
+            for (int i = 0; i < n; i++) {
+                double r = random.nextDouble();
+                int col = 1 + (int) (numCols * r * r);
+                row.put(col, random.nextFloat());
+            }
+            writer.writeRow(new SparseMatrixRow(new ValueConf(), id, row));
+        }
+        writer.finish();
+        return new SparseMatrix(path);
+    }
+
+    /**
+     * Transposes a sparse matrix into a temporary file.
+     */
+    public static SparseMatrix transpose(SparseMatrix matrix) throws IOException {
+        File path = tempFile("transpose");
+        new SparseMatrixTransposer(matrix, path).transpose();
+        return new SparseMatrix(path);
+    }
+
+    /**
+     * Creates a dense matrix with row ids 1..numRows whose rows are noisy copies of
+     * a number of random cluster centers.
+     */
+    public static DenseMatrix createDense(int numRows, int numCols, long seed) throws IOException {
+        Random random = new Random(seed);
+        int colIds[] = new int[numCols];
+        for (int i = 0; i < numCols; i++) {
+            colIds[i] = i;
+        }
+        float centers[][] = new float[Math.max(1, numRows / 100)][];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = randomVector(random, numCols);
+        }
+        File path = tempFile("dense");
+        DenseMatrixWriter writer = new DenseMatrixWriter(path, new ValueConf());
+        for (int id = 1; id <= numRows; id++) {
+            float center[] = centers[random.nextInt(centers.length)];
+            float v[] = new float[numCols];
+            for (int i = 0; i < numCols; i++) {
+                v[i] = clamp(center[i] + (float) (random.nextGaussian() * 0.05));
+            }
+            writer.writeRow(new DenseMatrixRow(new ValueConf(), id, colIds, v));
+        }
+        writer.finish();
+        return new DenseMatrix(path);
+    }
+
+    /**
+     * Creates the int8 quantized copy of a dense matrix.
+     */
+    public static QuantizedDenseMatrix quantize(DenseMatrix matrix) throws IOException {
+        File path = tempFile("quantized");
+        QuantizedDenseMatrixWriter.write(matrix, path);
+        return new QuantizedDenseMatrix(path);
+    }
+
+    /**
+     * @return A random vector with unit length.
+     */
+    public static float[] randomVector(Random random, int numCols) {
+        float v[] = new float[numCols];
+        double norm = 0.0;
+        for (int i = 0; i < numCols; i++) {
+            v[i] = (float) random.nextGaussian();
+            norm += v[i] * v[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < numCols; i++) {
+            v[i] /= norm;
+        }
+        return v;
+    }
+
+    private static float clamp(float x) {
+        return Math.max(-1.0f, Math.min(1.0f, x));
+    }
+
+    private static File tempFile(String prefix) throws IOException {
+        File f = File.createTempFile(prefix, ".matrix");
+        f.deleteOnExit();
+        return f;
+    }
+}
@@ -0,0 +1,95 @@
+package org.wikibrain.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.word2vec.Word2VecTrainer;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Word2Vec training throughput on a synthetic Zipfian corpus, reported in words per second.
+ * Run with -t 1, 2, 4, ... to measure scaling; divide the score by the thread count for
+ * words per second per thread.
+ *
+ * @author Shilad Sen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Word2VecBenchmark {
+    private static final int WORDS_PER_SENTENCE = 100;
+    private static final int NUM_SENTENCES = 1000;
+
+    @Param({"100000"})
+    public int vocabularySize;
+
+    /**
+     * Number of negative samples; zero trains with hierarchical softmax instead.
+     */
+    @Param({"0", "5"})
+    public int negative;
+
+    private File dir;
+    private Word2VecTrainer trainer;
+    private String sentences[];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DaoException {
+        Random random = new Random(42);
+        int counts[] = new int[vocabularySize];
+        sentences = new String[NUM_SENTENCES];
+        for (int i = 0; i < sentences.length; i++) {
+            StringBuilder sentence = new StringBuilder();
+            for (int j = 0; j < WORDS_PER_SENTENCE; j++) {
+                // roughly Zipfian: rank is exponential in a uniform random variable
+                int w = (int) Math.pow(vocabularySize, random.nextDouble()) - 1;
+                counts[w]++;
+                sentence.append(j == 0 ? "" : " ").append("w").append(w);
+            }
+            sentences[i] = sentence.toString();
+        }
+
+        dir = WpIOUtils.createTempDirectory("word2vecbenchmark");
+        BufferedWriter writer = WpIOUtils.openWriter(new File(dir, "dictionary.txt"));
+        writer.write("t " + (NUM_SENTENCES * WORDS_PER_SENTENCE) + " _\n");
+        for (int w = 0; w < vocabularySize; w++) {
+            writer.write("w " + (counts[w] + 1) + " w" + w + "\n");
+        }
+        writer.close();
+
+        trainer = new Word2VecTrainer(null, Language.SIMPLE);
+        trainer.setMinWordFrequency(1);
+        trainer.setMaxWords(vocabularySize);
+        trainer.setHierarchicalSoftmax(negative == 0);
+        trainer.setNegative(negative);
+        trainer.setSample(1E-3);
+        trainer.initialize(new File(dir, "dictionary.txt"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        int next = new Random().nextInt(NUM_SENTENCES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS_PER_SENTENCE)
+    public int trainSentence(Reader reader) {
+        reader.next = (reader.next + 1) % NUM_SENTENCES;
+        return trainer.trainSentence(sentences[reader.next]);
+    }
+}
@@ -0,0 +1,250 @@
+package org.wikibrain.core.dao.cache;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.MetaInfo;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.util.*;
+
+/**
+ * A LocalPageDao that caches lookups by id from another LocalPageDao in a {@link LocalPageCache}.
+ * All other methods are passed through to the delegate.
+ *
+ * The cache is cleared when pages are loaded through this dao, when redirect following
+ * changes, and when the MetaInfo for LocalPage shows that pages were reloaded elsewhere.
+ * MetaInfo is checked at most once per check interval.
+ *
+ * @author Shilad Sen
+ */
+public class CachedLocalPageDao implements LocalPageDao {
+    private static final Logger LOG = LoggerFactory.getLogger(CachedLocalPageDao.class);
+
+    private final LocalPageDao delegate;
+    private final MetaInfoDao metaDao;
+    private final LocalPageCache cache;
+    private final long checkIntervalMillis;
+
+    private volatile long nextCheck = 0;
+    private Date lastUpdated = null;
+
+    /**
+     * @param delegate Dao that is cached.
+     * @param metaDao Dao used to detect reloaded pages, or null to never check.
+     * @param cache Cache of pages.
+     * @param checkIntervalMillis Minimum time between checks of the MetaInfo.
+     */
+    public CachedLocalPageDao(LocalPageDao delegate, MetaInfoDao metaDao, LocalPageCache cache, long checkIntervalMillis) {
+        this.delegate = delegate;
+        this.metaDao = metaDao;
+        this.cache = cache;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    @Override
+    public LocalPage getById(Language language, int pageId) throws DaoException {
+        checkFreshness();
+        LocalPage page = cache.get(language, pageId);
+        if (page == LocalPageCache.NOT_FOUND) {
+            return null;
+        } else if (page != null) {
+            return page;
+        }
+        page = delegate.getById(language, pageId);
+        cache.put(language, pageId, page);
+        return page;
+    }
+
+    @Override
+    public LocalPage getById(LocalId localId) throws DaoException {
+        return getById(localId.getLanguage(), localId.getId());
+    }
+
+    /**
+     * Pages that are not cached are fetched with a single call to the delegate.
+     */
+    @Override
+    public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException {
+        if (pageIds == null || pageIds.isEmpty()) {
+            return null;
+        }
+        checkFreshness();
+        Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer pageId : pageIds) {
+            LocalPage page = cache.get(language, pageId);
+            if (page == LocalPageCache.NOT_FOUND) {
+                map.put(pageId, null);
+            } else if (page != null) {
+                map.put(pageId, page);
+            } else {
+                missing.add(pageId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Integer, LocalPage> fetched = delegate.getByIds(language, missing);
+            for (Integer pageId : missing) {
+                LocalPage page = (fetched == null) ? null : fetched.get(pageId);
+                cache.put(language, pageId, page);
+                map.put(pageId, page);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Clears the cache if the pages were reloaded since the last check.
+     */
+    private void checkFreshness() {
+        if (metaDao == null || System.currentTimeMillis() < nextCheck) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() < nextCheck) {
+                return;
+            }
+            try {
+                MetaInfo info = metaDao.getInfo(LocalPage.class);
+                Date updated = (info == null) ? null : info.getLastUpdated();
+                if (updated != null && !updated.equals(lastUpdated)) {
+                    if (lastUpdated != null) {
+                        LOG.info("local pages were updated at " + updated + "; clearing page cache");
+                    }
+                    cache.clear();
+                    lastUpdated = updated;
+                }
+            } catch (DaoException e) {
+                LOG.warn("checking for updated local pages failed", e);
+            }
+            nextCheck = System.currentTimeMillis() + checkIntervalMillis;
+        }
+    }
+
+    public LocalPageCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void setFollowRedirects(boolean followRedirects) throws DaoException {
+        delegate.setFollowRedirects(followRedirects);
+        cache.clear();
+    }
+
+    @Override
+    public LocalPage getByTitle(Title title, NameSpace ns) throws DaoException {
+        return delegate.getByTitle(title, ns);
+    }
+
+    @Override
+    public LocalPage getByTitle(Language language, NameSpace ns, String title) throws DaoException {
+        return delegate.getByTitle(language, ns, title);
+    }
+
+    @Override
+    public LocalPage getByTitle(Language lang, String title) throws DaoException {
+        return delegate.getByTitle(lang, title);
+    }
+
+    @Override
+    public Map<Title, LocalPage> getByTitles(Language language, Collection<Title> titles, NameSpace ns) throws DaoException {
+        return delegate.getByTitles(language, titles, ns);
+    }
+
+    @Override
+    public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
+        return delegate.getIdByTitle(title, language, nameSpace);
+    }
+
+    @Override
+    public int getIdByTitle(Title title) throws DaoException {
+        return delegate.getIdByTitle(title);
+    }
+
+    @Override
+    public Iterable<LocalPage> get(DaoFilter daoFilter) throws DaoException {
+        return delegate.get(daoFilter);
+    }
+
+    @Override
+    public Set<LocalId> getIds(DaoFilter daoFilter) throws DaoException {
+        return delegate.getIds(daoFilter);
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        return delegate.getCount(daoFilter);
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return delegate.getLoadedLanguages();
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        delegate.clear();
+        cache.clear();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        delegate.beginLoad();
+        cache.clear();
+    }
+
+    @Override
+    public void save(LocalPage page) throws DaoException {
+        delegate.save(page);
+        cache.invalidate(page.getLanguage(), page.getLocalId());
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        delegate.endLoad();
+        cache.clear();
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<LocalPageDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return LocalPageDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.localPage";
+        }
+
+        @Override
+        public LocalPageDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("cached")) {
+                return null;
+            }
+            LocalPageCache cache = new LocalPageCache(
+                    config.getLong("maxMegabytes") * 1024 * 1024,
+                    config.getInt("segments"));
+            return new CachedLocalPageDao(
+                    getConfigurator().get(LocalPageDao.class, config.getString("delegate")),
+                    getConfigurator().get(MetaInfoDao.class, config.getString("metaInfo")),
+                    cache,
+                    config.getLong("checkInterval") * 1000);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.wikibrain.core.dao.cache;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, in-process cache of local pages keyed by language and page id.
+ *
+ * The cache is split into segments, each with its own lock. A segment stores encoded
+ * pages (page id, namespace, flags, and UTF-8 title) in a direct byte buffer used as a
+ * circular log, so page data lives off the java heap. When the log is full the oldest
+ * entries are overwritten. Only a small index from key to log offset lives on the heap.
+ *
+ * Pages that do not exist can be cached too, and are returned as {@link #NOT_FOUND}.
+ *
+ * @author Shilad Sen
+ */
+public class LocalPageCache {
+    /**
+     * Returned by get() for pages that were cached as missing.
+     */
+    public static final LocalPage NOT_FOUND = new LocalPage(Language.EN, -1, "not found");
+
+    // key (8), entry size (4), page id (4), namespace (2), flags (1)
+    private static final int HEADER_SIZE = 19;
+
+    private static final byte FLAG_REDIRECT = 1;
+    private static final byte FLAG_DISAMBIG = 2;
+    private static final byte FLAG_NOT_FOUND = 4;
+
+    private final Segment segments[];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes Total size of the logs in all segments.
+     * @param numSegments Number of independently locked segments.
+     */
+    public LocalPageCache(long maxBytes, int numSegments) {
+        if (numSegments <= 0 || maxBytes < numSegments * 1024L) {
+            throw new IllegalArgumentException("invalid cache size " + maxBytes + " for " + numSegments + " segments");
+        }
+        int segmentBytes = (int) Math.min(Integer.MAX_VALUE, maxBytes / numSegments);
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(segmentBytes);
+        }
+    }
+
+    /**
+     * @return The cached page, NOT_FOUND if the page was cached as missing,
+     * or null if the page is not in the cache.
+     */
+    public LocalPage get(Language language, int pageId) {
+        long key = key(language, pageId);
+        LocalPage page = getSegment(key).get(key, language);
+        if (page == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return page;
+    }
+
+    /**
+     * Caches the page returned for a page id. The page may be null if the id does not
+     * exist, or a different page if the dao resolved a redirect.
+     */
+    public void put(Language language, int pageId, LocalPage page) {
+        long key = key(language, pageId);
+        getSegment(key).put(key, encode(page));
+    }
+
+    public void invalidate(Language language, int pageId) {
+        long key = key(language, pageId);
+        getSegment(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    /**
+     * @return The number of cached pages, including those that may have been replaced.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static long key(Language language, int pageId) {
+        return ((long) language.getId() << 32) | (pageId & 0xffffffffL);
+    }
+
+    private Segment getSegment(long key) {
+        // mix the bits so consecutive page ids spread over the segments
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return segments[(int) ((h & Long.MAX_VALUE) % segments.length)];
+    }
+
+    private static byte[] encode(LocalPage page) {
+        try {
+            if (page == null) {
+                return encode(-1, (short) 0, FLAG_NOT_FOUND, new byte[0]);
+            }
+            byte flags = 0;
+            if (page.isRedirect()) flags |= FLAG_REDIRECT;
+            if (page.isDisambig()) flags |= FLAG_DISAMBIG;
+            return encode(
+                    page.getLocalId(),
+                    page.getNameSpace().getArbitraryId(),
+                    flags,
+                    page.getTitle().getCanonicalTitle().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The entry without its key and size, which the segment fills in.
+     */
+    private static byte[] encode(int pageId, short nameSpace, byte flags, byte title[]) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE - 12 + title.length);
+        buffer.putInt(pageId);
+        buffer.putShort(nameSpace);
+        buffer.put(flags);
+        buffer.put(title);
+        return buffer.array();
+    }
+
+    private static final class Segment {
+        private final ByteBuffer log;
+        private final TLongIntHashMap offsets = new TLongIntHashMap(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1L, -1);
+
+        // Live entries are in [tail, head) or, after the log wraps, in [tail, limit) and [0, head).
+        private int head = 0;
+        private int tail = 0;
+        private int limit = 0;
+        private boolean wrapped = false;
+
+        Segment(int capacity) {
+            log = ByteBuffer.allocateDirect(capacity);
+        }
+
+        synchronized LocalPage get(long key, Language language) {
+            int offset = offsets.get(key);
+            if (offset < 0) {
+                return null;
+            }
+            int size = log.getInt(offset + 8);
+            int pageId = log.getInt(offset + 12);
+            short nameSpace = log.getShort(offset + 16);
+            byte flags = log.get(offset + 18);
+            if ((flags & FLAG_NOT_FOUND) != 0) {
+                return NOT_FOUND;
+            }
+            byte title[] = new byte[size - HEADER_SIZE];
+            for (int i = 0; i < title.length; i++) {
+                title[i] = log.get(offset + HEADER_SIZE + i);
+            }
+            try {
+                return new LocalPage(
+                        language,
+                        pageId,
+                        new Title(new String(title, "UTF-8"), true, LanguageInfo.getByLanguage(language)),
+                        NameSpace.getNameSpaceByArbitraryId(nameSpace),
+                        (flags & FLAG_REDIRECT) != 0,
+                        (flags & FLAG_DISAMBIG) != 0);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        synchronized void put(long key, byte entry[]) {
+            int size = 12 + entry.length;
+            if (size > log.capacity() / 4) {
+                return;     // absurdly long title; not worth evicting for
+            }
+            makeRoom(size);
+            log.putLong(head, key);
+            log.putInt(head + 8, size);
+            for (int i = 0; i < entry.length; i++) {
+                log.put(head + 12 + i, entry[i]);
+            }
+            offsets.put(key, head);
+            head += size;
+        }
+
+        synchronized void remove(long key) {
+            offsets.remove(key);
+        }
+
+        synchronized void clear() {
+            offsets.clear();
+            head = tail = limit = 0;
+            wrapped = false;
+        }
+
+        synchronized int size() {
+            return offsets.size();
+        }
+
+        /**
+         * Evicts the oldest entries until size bytes are free at the head of the log.
+         */
+        private void makeRoom(int size) {
+            while (true) {
+                if (!wrapped) {
+                    if (head + size <= log.capacity()) {
+                        return;
+                    }
+                    limit = head;
+                    head = 0;
+                    wrapped = true;
+                    if (tail == limit) {    // the log is empty
+                        tail = 0;
+                        wrapped = false;
+                    }
+                } else {
+                    if (head + size <= tail) {
+                        return;
+                    }
+                    long key = log.getLong(tail);
+                    if (offsets.get(key) == tail) {
+                        offsets.remove(key);
+                    }
+                    tail += log.getInt(tail + 8);
+                    if (tail == limit) {
+                        tail = 0;
+                        wrapped = false;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The number of inbound and outbound links of every page in the link matrix.
+ *
+ * Degrees are stored in parallel arrays sorted by packed local id (see {@link LocalId#toInt()}).
+ * The index is immutable, so lookups are lock-free.
+ *
+ * @author Shilad Sen
+ */
+public class LinkDegreeIndex {
+    private static final int FILE_HEADER = 0x6c6b6467;
+
+    private final int packedIds[];
+    private final int inDegrees[];
+    private final int outDegrees[];
+
+    private LinkDegreeIndex(int packedIds[], int inDegrees[], int outDegrees[]) {
+        this.packedIds = packedIds;
+        this.inDegrees = inDegrees;
+        this.outDegrees = outDegrees;
+    }
+
+    /**
+     * Computes degrees with one pass over the link matrix and one over its transpose.
+     * Only the row headers are read, not the links themselves.
+     *
+     * @param matrix Adjacency matrix, with one row of destinations per source.
+     * @param transpose Transpose of the adjacency matrix.
+     */
+    public static LinkDegreeIndex build(SparseMatrix matrix, SparseMatrix transpose) throws IOException {
+        TIntSet ids = new TIntHashSet(matrix.getRowIds());
+        ids.addAll(transpose.getRowIds());
+        int packedIds[] = ids.toArray();
+        Arrays.sort(packedIds);
+
+        int outDegrees[] = new int[packedIds.length];
+        int inDegrees[] = new int[packedIds.length];
+        fillDegrees(matrix, packedIds, outDegrees);
+        fillDegrees(transpose, packedIds, inDegrees);
+        return new LinkDegreeIndex(packedIds, inDegrees, outDegrees);
+    }
+
+    private static void fillDegrees(SparseMatrix matrix, int packedIds[], int degrees[]) throws IOException {
+        SparseMatrixCursor cursor = matrix.cursor();
+        for (int id : matrix.getRowIds()) {
+            if (cursor.moveTo(id)) {
+                degrees[Arrays.binarySearch(packedIds, id)] = cursor.getNumCols();
+            }
+        }
+    }
+
+    /**
+     * @return The number of links to a page, 0 if it has none, or -1 if the
+     * page id is too large to be stored in the link matrix.
+     */
+    public int getInDegree(Language language, int localId) {
+        return lookup(inDegrees, language, localId);
+    }
+
+    /**
+     * @return The number of links from a page, 0 if it has none, or -1 if the
+     * page id is too large to be stored in the link matrix.
+     */
+    public int getOutDegree(Language language, int localId) {
+        return lookup(outDegrees, language, localId);
+    }
+
+    private int lookup(int degrees[], Language language, int localId) {
+        LocalId id = new LocalId(language, localId);
+        if (!id.canPackInInt()) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(packedIds, id.toInt());
+        return (i < 0) ? 0 : degrees[i];
+    }
+
+    /**
+     * @return The number of pages with at least one inbound or outbound link.
+     */
+    public int size() {
+        return packedIds.length;
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(packedIds.length);
+            for (int[] array : new int[][] { packedIds, inDegrees, outDegrees }) {
+                for (int x : array) {
+                    out.writeInt(x);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("renaming " + tmp + " to " + file + " failed");
+        }
+    }
+
+    public static LinkDegreeIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            IntBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asIntBuffer();
+            if (buffer.get() != FILE_HEADER) {
+                throw new IOException("invalid link degree file: " + file);
+            }
+            int n = buffer.get();
+            int packedIds[] = new int[n];
+            int inDegrees[] = new int[n];
+            int outDegrees[] = new int[n];
+            buffer.get(packedIds);
+            buffer.get(inDegrees);
+            buffer.get(outDegrees);
+            return new LinkDegreeIndex(packedIds, inDegrees, outDegrees);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -1,16 +1,10 @@
 package org.wikibrain.core.dao.matrix;
 
-import com.google.code.externalsorting.ExternalSort;
 import com.typesafe.config.Config;
-import gnu.trove.function.TDoubleFunction;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.TIntDoubleMap;
-import gnu.trove.map.hash.TIntDoubleHashMap;
-import gnu.trove.procedure.TIntProcedure;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.wikibrain.conf.Configuration;
@@ -27,9 +21,7 @@ import org.wikibrain.matrix.*;
 import org.wikibrain.utils.*;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +36,7 @@ import org.slf4j.LoggerFactory;
  * 3. count() for the same requirements as 2.
  * 4. PageRank values (beware that PageRank estimates are lazily calculated
  * the first time a pagerank value is requested.)
+ * 5. In and out degrees of all pages through {@link #getDegreeIndex()}.
  * </p>
  *
  * <p>
@@ -60,12 +53,10 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     private LocalLinkDao delegate;
     private SparseMatrix matrix = null;
     private SparseMatrix transpose = null;
-    private Map<Language, TIntDoubleMap> pageRanks = null;
+    private volatile PageRanks pageRanks = null;
+    private volatile LinkDegreeIndex degrees = null;
 
-    private Set<File> allWriterFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
-    private Set<BufferedWriter> allWriters = Collections.newSetFromMap(
-            new ConcurrentHashMap<BufferedWriter, Boolean>());
-    private ThreadLocal<BufferedWriter> writers = new ThreadLocal<BufferedWriter>();
+    private volatile LongIntPairSorter sorter = null;
 
 
     public MatrixLocalLinkDao(LocalLinkDao delegate, File dir) throws DaoException {
@@ -107,6 +98,8 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         transpose = null;
         FileUtils.deleteQuietly(getMatrixFile());
         FileUtils.deleteQuietly(getTransposeFile());
+        FileUtils.deleteQuietly(getDegreesFile());
+        degrees = null;
 
         beginLoad();
         ParallelForEach.iterate(tmp.get(new DaoFilter()).iterator(), new Procedure<LocalLink>() {
@@ -130,7 +123,10 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             transpose = new SparseMatrix(getTransposeFile());
         }
         if (getPageRanksFile().isFile() && getPageRanksFile().lastModified() > getMatrixFile().lastModified()) {
-            pageRanks = (Map<Language, TIntDoubleMap>) WpIOUtils.readObjectFromFile(getPageRanksFile());
+            pageRanks = PageRanks.read(getPageRanksFile());
+        }
+        if (matrix != null && getDegreesFile().isFile() && getDegreesFile().lastModified() >= getTransposeFile().lastModified()) {
+            degrees = LinkDegreeIndex.read(getDegreesFile());
         }
     }
 
@@ -141,16 +137,16 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
     @Override
     public void beginLoad() throws DaoException {
-        allWriters.clear();
+        closeSorter();
         if (delegate != null) delegate.beginLoad();
         // Initialize object database with existing links
         if (matrix != null) {
             ParallelForEach.iterate(matrix.iterator(), new Procedure<SparseMatrixRow>() {
                 @Override
                 public void call(SparseMatrixRow row) throws Exception {
-                    BufferedWriter writer = getSortingWriter();
+                    LongIntPairSorter sorter = getSorter();
                     for (int i = 0; i < row.getNumCols(); i++) {
-                        writer.write(row.getRowIndex() + " " + row.getColIndex(i) + "\n");
+                        sorter.add(row.getRowIndex(), row.getColIndex(i));
                     }
                 }
             });
@@ -170,24 +166,21 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
      */
     @Override
     public double getPageRank(Language language, int pageId) {
-        if (pageRanks == null) {
+        PageRanks ranks = pageRanks;
+        if (ranks == null) {
             synchronized (this) {
                 if (pageRanks == null) {
-                    pageRanks = computePageRanks();
                     try {
-                        WpIOUtils.writeObjectToFile(getPageRanksFile(), pageRanks);
+                        pageRanks = computePageRanks();
+                        pageRanks.write(getPageRanksFile());
                     } catch (IOException e) {
                         throw new IllegalStateException("Unexpected exception:", e);
                     }
                 }
+                ranks = pageRanks;
             }
         }
-        TIntDoubleMap langRanks = pageRanks.get(language);
-        if (langRanks != null && langRanks.containsKey(pageId)) {
-            return langRanks.get(pageId);
-        } else {
-            return 0.0;
-        }
+        return ranks.get(language, pageId);
     }
 
     /**
@@ -205,93 +198,72 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         return getPageRank(localId.getLanguage(), localId.getId());
     }
 
-    private BufferedWriter getSortingWriter() throws IOException {
-        if (writers.get() == null) {
-            File file = File.createTempFile("links-sorter", ".txt");
-            file.deleteOnExit();
-            file.delete();
-            writers.set(WpIOUtils.openWriter(file));
-            allWriters.add(writers.get());
-            allWriterFiles.add(file);
-        }
-        return writers.get();
-    }
-
-
-    private static final double DAMPING_FACTOR = 0.85;
-
-
-    private static class LangRanks {
-        TIntDoubleMap pageSums = new TIntDoubleHashMap();
-        TIntDoubleMap nextSums = new TIntDoubleHashMap();
-    }
-    private Map<Language, TIntDoubleMap> computePageRanks() {
-        Map<Language, LangRanks> ranks = new HashMap<Language, LangRanks>();
-
-        // Set initial weights
-        for (SparseMatrixRow row : matrix) {
-            LocalId src = LocalId.fromInt(row.getRowIndex());
-            LangRanks lr = ranks.get(src.getLanguage());
-            if (lr == null) {
-                lr = new LangRanks();
-                ranks.put(src.getLanguage(), lr);
+    /**
+     * Returns the in and out degrees of every page in the link matrix.
+     * The index is computed when links are loaded (or lazily, for older matrices)
+     * and persisted alongside the matrices. Lookups do not lock.
+     *
+     * @return The index, or null if the matrices are not available.
+     */
+    public LinkDegreeIndex getDegreeIndex() throws DaoException {
+        if (degrees == null && matrix != null && transpose != null) {
+            synchronized (this) {
+                if (degrees == null) {
+                    buildDegreeIndex();
+                }
             }
-            lr.pageSums.put(src.getId(), 1.0);
         }
+        return degrees;
+    }
 
-        // normalize (divide by num pages)
-        for (final LangRanks lr : ranks.values()) {
-            final int n = lr.pageSums.size();
-            lr.pageSums.transformValues(new TDoubleFunction() {
-                @Override
-                public double execute(double v) {
-                    return 1.0 / n;
-                }
-            });
+    private synchronized void buildDegreeIndex() throws DaoException {
+        try {
+            LOG.info("computing link degrees");
+            LinkDegreeIndex index = LinkDegreeIndex.build(matrix, transpose);
+            index.write(getDegreesFile());
+            LOG.info("computed link degrees for " + index.size() + " pages");
+            degrees = index;
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
+    }
 
-        // perform iterations
-        for (int i = 0;i < 20; i++) {
-            for (SparseMatrixRow row : matrix) {
-                int ncols = row.getNumCols();
-                if (ncols == 0) continue;
-                LocalId src = LocalId.fromInt(row.getRowIndex());
-                LangRanks lr = ranks.get(src.getLanguage());
-                double w = lr.pageSums.get(src.getId()) / ncols;
-                for (int j = 0; j < ncols; j++) {
-                    LocalId dest = LocalId.fromInt(row.getColIndex(j));
-                    if (dest.getLanguage() == src.getLanguage()) {
-                        lr.nextSums.adjustOrPutValue(dest.getId(), w, w);
-                    }
+    /**
+     * Returns the sorter that collects (packed source, packed dest) pairs during a load.
+     */
+    private LongIntPairSorter getSorter() throws IOException {
+        if (sorter == null) {
+            synchronized (this) {
+                if (sorter == null) {
+                    sorter = new LongIntPairSorter(SORT_MEMORY_PAIRS);
                 }
             }
+        }
+        return sorter;
+    }
 
-            // update values, measure change
-            final double[] delta = {0.0};
-            for (final LangRanks lr : ranks.values()) {
-                final int n = lr.nextSums.size();
-                lr.nextSums.forEachKey(new TIntProcedure() {
-                    @Override
-                    public boolean execute(int id) {
-                        double ps = lr.pageSums.get(id);
-                        double ns = (1.0 - DAMPING_FACTOR) / n + DAMPING_FACTOR * lr.nextSums.get(id);
-                        delta[0] += Math.abs(ps - ns);
-                        lr.nextSums.put(id, 0);
-                        lr.pageSums.put(id, ns);
-                        return true;
-
-                    }
-                });
-            }
-            LOG.info("change in pageranks at iteration {} is {}.", i, delta);
+    private synchronized void closeSorter() {
+        if (sorter != null) {
+            IOUtils.closeQuietly(sorter);
+            sorter = null;
         }
+    }
 
 
-        Map<Language, TIntDoubleMap> result = new HashMap<Language, TIntDoubleMap>();
-        for (Language lang : ranks.keySet()) {
-            result.put(lang, ranks.get(lang).pageSums);
+    /**
+     * Computes PageRank over the adjacency matrix. If ranks computed before the links
+     * last changed are still on disk, they seed the computation.
+     */
+    private PageRanks computePageRanks() throws IOException {
+        PageRanks previous = null;
+        if (getPageRanksFile().isFile()) {
+            previous = PageRanks.read(getPageRanksFile());
+        }
+        PageRankEngine engine = PageRankEngine.build(matrix);
+        if (previous != null) {
+            LOG.info("warm-starting pagerank from " + previous.size() + " previous values");
         }
-        return result;
+        return engine.compute(previous);
     }
 
     @Override
@@ -307,8 +279,7 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             return;
         }
         try {
-            BufferedWriter writer = getSortingWriter();
-            writer.write(src.toInt() + " " + dest.toInt() + "\n");
+            getSorter().add(src.toInt(), dest.toInt());
         } catch (IOException e) {
            throw new DaoException(e);
         }
@@ -326,64 +297,25 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         return new File(dir, "links-transpose.matrix");
     }
 
+    public File getDegreesFile() {
+        return new File(dir, "link-degrees.bin");
+    }
+
     @Override
     public void clear() throws DaoException {
         delegate.clear();
         FileUtils.deleteQuietly(getMatrixFile());
         FileUtils.deleteQuietly(getTransposeFile());
+        FileUtils.deleteQuietly(getDegreesFile());
+        degrees = null;
     }
 
 
 
-    private static final int MAX_SORT_THREADS = 4;
-    private File sortFiles() throws IOException {
-        for (BufferedWriter writer : allWriters) {
-            writer.close();
-        }
-        ParallelForEach.iterate(allWriterFiles.iterator(), MAX_SORT_THREADS, 10, new Procedure<File>() {
-            @Override
-            public void call(File file) throws Exception {
-                sort(file, MAX_SORT_THREADS);
-            }
-        }, 10);
-
-        File file = File.createTempFile("local-links-sorted.", ".txt");
-        file.deleteOnExit();
-        Comparator<String> comparator = new Comparator<String>() {
-            public int compare(String r1, String r2){
-                return r1.compareTo(r2);}};
-        LOG.info("merging all sorted files to " + file);
-        ExternalSort.mergeSortedFiles(new ArrayList<File>(allWriterFiles), file, comparator, Charset.forName("utf-8"));
-        return file;
-    }
-
-    private static final int SORT_FILES_MAX = 100;
-    private static final long SORT_MEMORY_MAX = (Runtime.getRuntime().maxMemory() / MAX_SORT_THREADS / 5);
-
-    private void sort(File file, long concurrentThreads) throws IOException {
-        long maxMemory = SORT_MEMORY_MAX / concurrentThreads;
-        int maxFiles = (int) Math.max(
-                SORT_FILES_MAX / concurrentThreads,
-                (int)(file.length() / (maxMemory / 2)));
-        LOG.info("sorting " + file + " using max of " + maxFiles);
-        Comparator<String> comparator = new Comparator<String>() {
-            public int compare(String r1, String r2){
-                return r1.compareTo(r2);}};
-        List<File> l = ExternalSort.sortInBatch(
-                WpIOUtils.openBufferedReader(file),
-                file.length(),
-                comparator,
-                maxFiles,
-                maxMemory,
-                Charset.forName("utf-8"),
-                null,
-                true,
-                0,
-                false);
-        LOG.info("merging " + file);
-        ExternalSort.mergeSortedFiles(l, file, comparator, Charset.forName("utf-8"));
-        LOG.info("finished sorting" + file);
-    }
+    // Links buffered in memory (12 bytes each) before sorted runs are spilled to disk.
+    // The sorter's buffers are shared by all loading threads and use about a fifth of the heap.
+    private static final int SORT_MEMORY_PAIRS = (int) Math.max(100000, Math.min(Integer.MAX_VALUE,
+            Runtime.getRuntime().maxMemory() / 5 / 12));
 
     @Override
     public void endLoad() throws DaoException {
@@ -394,60 +326,37 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             LOG.info("closing existing matrix and transpose.");
             if (matrix != null) IOUtils.closeQuietly(matrix);
             if (transpose != null) IOUtils.closeQuietly(transpose);
-
-            LOG.info("sorting files");
-            File file = sortFiles();
-
-            LOG.info("writing adjacency matrix rows");
-            ValueConf vconf = new ValueConf();   // unused because there are no values.
-            SparseMatrixWriter writer = new SparseMatrixWriter(getMatrixFile(), vconf);
-
-            BufferedReader reader = WpIOUtils.openBufferedReader(file);
-            TIntList packedDest = new TIntArrayList();
-
-            int cellCount = 0;
-            int rowCount = 0;
-            LocalId lastSrc = null;
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                String tokens[] = line.trim().split(" ");
-                if (tokens.length == 2){
-                    cellCount++;
-                    LocalId src = LocalId.fromInt(Integer.valueOf(tokens[0]));
-                    LocalId dest = LocalId.fromInt(Integer.valueOf(tokens[1]));
-                    if (lastSrc != null && !src.equals(lastSrc)) {
-                        if (++rowCount % 100000 == 0) {
-                            LOG.info("writing adjacency matrix row " + rowCount
-                                    + ", found " + cellCount + " links");
+            degrees = null;
+            pageRanks = null;
+            FileUtils.deleteQuietly(getDegreesFile());
+
+            LOG.info("sorting links and writing adjacency matrix rows");
+            final ValueConf vconf = new ValueConf();   // unused because there are no values.
+            final SparseMatrixWriter writer = new SparseMatrixWriter(getMatrixFile(), vconf);
+            final TIntList packedDest = new TIntArrayList();
+            final int counts[] = new int[2];    // rows, cells
+            final long lastSrc[] = new long[1];
+
+            getSorter().merge(new LongIntPairSorter.PairHandler() {
+                @Override
+                public void handle(long src, int dest) throws IOException {
+                    if (packedDest.size() > 0 && src != lastSrc[0]) {
+                        if (++counts[0] % 100000 == 0) {
+                            LOG.info("writing adjacency matrix row " + counts[0]
+                                    + ", found " + counts[1] + " links");
                         }
-                        SparseMatrixRow row = new SparseMatrixRow(
-                                vconf,
-                                lastSrc.toInt(),
-                                packedDest.toArray(),
-                                new short[packedDest.size()]
-                        );
-                        writer.writeRow(row);
-                        packedDest.clear();
+                        writeRow(writer, vconf, (int) lastSrc[0], packedDest);
                     }
-                    packedDest.add(dest.toInt());
-                    lastSrc = src;
-                } else {
-                    LOG.info("Invalid line: '" + StringEscapeUtils.escapeJava(line) + "'");
+                    counts[1]++;
+                    packedDest.add(dest);
+                    lastSrc[0] = src;
                 }
-            }
-
+            }, true);
             if (packedDest.size() > 0) {
-                SparseMatrixRow row = new SparseMatrixRow(
-                        vconf,
-                        lastSrc.toInt(),
-                        packedDest.toArray(),
-                        new short[packedDest.size()]
-                );
-                writer.writeRow(row);
+                writeRow(writer, vconf, (int) lastSrc[0], packedDest);
             }
+            closeSorter();
+
             LOG.info("finalizing adjacency matrix");
             writer.finish();
 
@@ -460,11 +369,24 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
             LOG.info("loading transpose of adjacency matrix");
             transpose = new SparseMatrix(getTransposeFile());
+
+            buildDegreeIndex();
         } catch (IOException e) {
             throw new DaoException(e);
         }
     }
 
+    private static void writeRow(SparseMatrixWriter writer, ValueConf vconf, int packedSrc, TIntList packedDest) throws IOException {
+        SparseMatrixRow row = new SparseMatrixRow(
+                vconf,
+                packedSrc,
+                packedDest.toArray(),
+                new short[packedDest.size()]
+        );
+        writer.writeRow(row);
+        packedDest.clear();
+    }
+
     @Override
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks, boolean isParseable, LocalLink.LocationType locationType) throws DaoException {
         return delegate.getLinks(language, localId, outlinks, isParseable, locationType);
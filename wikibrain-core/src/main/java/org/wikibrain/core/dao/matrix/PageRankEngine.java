@@ -0,0 +1,306 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Computes PageRank over the links in an adjacency matrix whose row and column ids
+ * are packed local ids (see {@link org.wikibrain.core.lang.LocalId#toInt()}).
+ *
+ * Each language is ranked separately; links between languages are ignored. Pages are
+ * remapped to dense ids and the in-links are packed into compressed sparse row (CSR)
+ * arrays, so an iteration is a sequential pull over int and double arrays that is split
+ * across threads by blocks of pages. The rank of pages without out-links is spread
+ * evenly over their language, so the ranks of each language sum to 1.0.
+ *
+ * Iteration stops when the L1 change in ranks falls below the tolerance. Computations
+ * can warm-start from the ranks of an earlier version of the graph, which converges in
+ * a few iterations after incremental link changes.
+ *
+ * @author Shilad Sen
+ */
+public class PageRankEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(PageRankEngine.class);
+
+    private static final int LANG_SHIFT = 26;
+    private static final int MIN_BLOCK_SIZE = 10000;
+
+    private double dampingFactor = 0.85;
+    private double tolerance = 1E-8;
+    private int maxIterations = 100;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    private final int packedIds[];      // sorted packed ids; the index of an id is its dense id
+    private final int groups[];         // language group of each page
+    private final int groupSizes[];     // number of pages in each language group
+    private final int inOffsets[];      // in-links of page v are inSources[inOffsets[v]] ... inSources[inOffsets[v+1]-1]
+    private final int inSources[];
+    private final int outDegrees[];
+
+    private PageRankEngine(int packedIds[], int groups[], int groupSizes[], int inOffsets[], int inSources[], int outDegrees[]) {
+        this.packedIds = packedIds;
+        this.groups = groups;
+        this.groupSizes = groupSizes;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.outDegrees = outDegrees;
+    }
+
+    /**
+     * Packs the links in the matrix into CSR form with three sequential passes over its rows.
+     */
+    public static PageRankEngine build(SparseMatrix matrix) throws IOException {
+        int rowIds[] = matrix.getRowIds();
+        SparseMatrixCursor cursor = matrix.cursor();
+
+        // pass 1: collect pages
+        TIntSet ids = new TIntHashSet(rowIds);
+        for (int src : rowIds) {
+            cursor.moveTo(src);
+            for (int i = 0; i < cursor.getNumCols(); i++) {
+                int dest = cursor.getColIndex(i);
+                if (sameLanguage(src, dest)) {
+                    ids.add(dest);
+                }
+            }
+        }
+        int packedIds[] = ids.toArray();
+        Arrays.sort(packedIds);
+        int n = packedIds.length;
+
+        TIntArrayList languages = new TIntArrayList();
+        TIntArrayList sizes = new TIntArrayList();
+        int groups[] = new int[n];
+        for (int v = 0; v < n; v++) {
+            int lang = packedIds[v] >>> LANG_SHIFT;
+            if (languages.isEmpty() || languages.get(languages.size() - 1) != lang) {
+                languages.add(lang);
+                sizes.add(0);
+            }
+            groups[v] = languages.size() - 1;
+            sizes.set(groups[v], sizes.get(groups[v]) + 1);
+        }
+
+        // pass 2: count degrees
+        int outDegrees[] = new int[n];
+        int inOffsets[] = new int[n + 1];
+        for (int src : rowIds) {
+            cursor.moveTo(src);
+            int u = Arrays.binarySearch(packedIds, src);
+            for (int i = 0; i < cursor.getNumCols(); i++) {
+                int dest = cursor.getColIndex(i);
+                if (sameLanguage(src, dest)) {
+                    outDegrees[u]++;
+                    inOffsets[Arrays.binarySearch(packedIds, dest) + 1]++;
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            inOffsets[v + 1] += inOffsets[v];
+        }
+
+        // pass 3: fill in-links
+        int inSources[] = new int[inOffsets[n]];
+        int fill[] = Arrays.copyOf(inOffsets, n);
+        for (int src : rowIds) {
+            cursor.moveTo(src);
+            int u = Arrays.binarySearch(packedIds, src);
+            for (int i = 0; i < cursor.getNumCols(); i++) {
+                int dest = cursor.getColIndex(i);
+                if (sameLanguage(src, dest)) {
+                    inSources[fill[Arrays.binarySearch(packedIds, dest)]++] = u;
+                }
+            }
+        }
+        LOG.info("packed " + inSources.length + " links between " + n + " pages in " + languages.size() + " languages");
+        return new PageRankEngine(packedIds, groups, sizes.toArray(), inOffsets, inSources, outDegrees);
+    }
+
+    private static boolean sameLanguage(int packed1, int packed2) {
+        return (packed1 >>> LANG_SHIFT) == (packed2 >>> LANG_SHIFT);
+    }
+
+    /**
+     * Computes PageRank from a uniform starting vector.
+     */
+    public PageRanks compute() {
+        return compute(null);
+    }
+
+    /**
+     * Computes PageRank, starting from previously computed ranks if they are available.
+     * Pages that are new since the previous ranks start at the uniform value.
+     *
+     * @param previous Earlier ranks, or null.
+     */
+    public PageRanks compute(PageRanks previous) {
+        int n = packedIds.length;
+        final double ranks[] = new double[n];
+        for (int v = 0; v < n; v++) {
+            double r = (previous == null) ? 0.0 : previous.get(packedIds[v]);
+            ranks[v] = (r > 0) ? r : 1.0 / groupSizes[groups[v]];
+        }
+        normalize(ranks);
+
+        final double next[] = new double[n];
+        final double contributions[] = new double[n];
+        int threads = Math.max(1, Math.min(numThreads, n / MIN_BLOCK_SIZE));
+        ExecutorService executor = (threads > 1) ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pagerank");
+                t.setDaemon(true);
+                return t;
+            }
+        }) : null;
+        try {
+            for (int iteration = 0; iteration < maxIterations; iteration++) {
+                // phase 1: each page's outgoing share, and the rank of dangling pages in each language
+                List<double[]> dangling = runBlocks(executor, threads, new Block() {
+                    @Override
+                    public double[] run(int from, int to) {
+                        double sums[] = new double[groupSizes.length];
+                        for (int u = from; u < to; u++) {
+                            if (outDegrees[u] == 0) {
+                                contributions[u] = 0.0;
+                                sums[groups[u]] += ranks[u];
+                            } else {
+                                contributions[u] = ranks[u] / outDegrees[u];
+                            }
+                        }
+                        return sums;
+                    }
+                });
+                final double base[] = new double[groupSizes.length];
+                for (int g = 0; g < base.length; g++) {
+                    double d = 0.0;
+                    for (double sums[] : dangling) {
+                        d += sums[g];
+                    }
+                    base[g] = ((1.0 - dampingFactor) + dampingFactor * d) / groupSizes[g];
+                }
+
+                // phase 2: each page pulls rank from its in-links
+                List<double[]> deltas = runBlocks(executor, threads, new Block() {
+                    @Override
+                    public double[] run(int from, int to) {
+                        double delta = 0.0;
+                        for (int v = from; v < to; v++) {
+                            double sum = 0.0;
+                            for (int i = inOffsets[v]; i < inOffsets[v + 1]; i++) {
+                                sum += contributions[inSources[i]];
+                            }
+                            next[v] = base[groups[v]] + dampingFactor * sum;
+                            delta += Math.abs(next[v] - ranks[v]);
+                        }
+                        return new double[] { delta };
+                    }
+                });
+                double delta = 0.0;
+                for (double d[] : deltas) {
+                    delta += d[0];
+                }
+                System.arraycopy(next, 0, ranks, 0, n);
+                LOG.info("change in pageranks at iteration {} is {}.", iteration, delta);
+                if (delta < tolerance) {
+                    break;
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        return new PageRanks(packedIds.clone(), ranks);
+    }
+
+    /**
+     * Rescales ranks so that those of each language sum to 1.0.
+     */
+    private void normalize(double ranks[]) {
+        double sums[] = new double[groupSizes.length];
+        for (int v = 0; v < ranks.length; v++) {
+            sums[groups[v]] += ranks[v];
+        }
+        for (int v = 0; v < ranks.length; v++) {
+            ranks[v] /= sums[groups[v]];
+        }
+    }
+
+    private interface Block {
+        double[] run(int from, int to);
+    }
+
+    private List<double[]> runBlocks(ExecutorService executor, int numBlocks, final Block block) {
+        final int n = packedIds.length;
+        List<double[]> results = new ArrayList<double[]>();
+        if (executor == null) {
+            results.add(block.run(0, n));
+            return results;
+        }
+        List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+        for (int b = 0; b < numBlocks; b++) {
+            final int from = (int) ((long) n * b / numBlocks);
+            final int to = (int) ((long) n * (b + 1) / numBlocks);
+            futures.add(executor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() {
+                    return block.run(from, to);
+                }
+            }));
+        }
+        try {
+            for (Future<double[]> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    public int getNumPages() {
+        return packedIds.length;
+    }
+
+    public int getNumLinks() {
+        return inSources.length;
+    }
+
+    public void setDampingFactor(double dampingFactor) {
+        this.dampingFactor = dampingFactor;
+    }
+
+    /**
+     * @param tolerance Iteration stops once the L1 change in ranks is below this value.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+}
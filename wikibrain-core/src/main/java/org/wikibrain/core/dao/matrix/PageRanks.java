@@ -0,0 +1,103 @@
+package org.wikibrain.core.dao.matrix;
+
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * PageRank values of the pages in a link matrix, computed by {@link PageRankEngine}.
+ *
+ * Values are stored in parallel arrays sorted by packed local id (see {@link LocalId#toInt()}).
+ * The object is immutable, so lookups are lock-free.
+ *
+ * @author Shilad Sen
+ */
+public class PageRanks {
+    private static final int FILE_HEADER = 0x70726e6b;
+
+    private final int packedIds[];
+    private final double ranks[];
+
+    /**
+     * @param packedIds Packed local ids in strictly increasing order.
+     * @param ranks PageRank of each page.
+     */
+    public PageRanks(int packedIds[], double ranks[]) {
+        if (packedIds.length != ranks.length) {
+            throw new IllegalArgumentException();
+        }
+        this.packedIds = packedIds;
+        this.ranks = ranks;
+    }
+
+    /**
+     * @return The PageRank of a page, or 0.0 if it is unknown.
+     */
+    public double get(Language language, int localId) {
+        LocalId id = new LocalId(language, localId);
+        return id.canPackInInt() ? get(id.toInt()) : 0.0;
+    }
+
+    /**
+     * @return The PageRank of a page with a packed local id, or 0.0 if it is unknown.
+     */
+    public double get(int packedId) {
+        int i = Arrays.binarySearch(packedIds, packedId);
+        return (i < 0) ? 0.0 : ranks[i];
+    }
+
+    public int size() {
+        return packedIds.length;
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(packedIds.length);
+            for (int id : packedIds) {
+                out.writeInt(id);
+            }
+            for (double r : ranks) {
+                out.writeDouble(r);
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("renaming " + tmp + " to " + file + " failed");
+        }
+    }
+
+    /**
+     * @return The ranks stored in a file, or null if the file is not in this format
+     * (for example, the serialized maps written by earlier versions).
+     */
+    public static PageRanks read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 8) {
+                return null;
+            }
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != FILE_HEADER) {
+                return null;
+            }
+            int n = buffer.getInt();
+            int packedIds[] = new int[n];
+            double ranks[] = new double[n];
+            buffer.asIntBuffer().get(packedIds);
+            buffer.position(8 + 4 * n);
+            buffer.asDoubleBuffer().get(ranks);
+            return new PageRanks(packedIds, ranks);
+        } finally {
+            raf.close();
+        }
+    }
+}
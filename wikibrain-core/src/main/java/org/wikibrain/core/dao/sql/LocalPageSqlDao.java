@@ -30,8 +30,12 @@ import org.slf4j.LoggerFactory;
 /**
  */
 public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalPageDao {
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int MAX_REDIRECT_HOPS = 5;
+
     private volatile TLongIntHashMap titlesToIds = null;
     private RedirectSqlDao redirectSqlDao;
+    private File cacheDir = null;
 
     public LocalPageSqlDao(WpDataSource dataSource) throws DaoException {
         this(dataSource, true);
@@ -190,12 +194,27 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
     public void setFollowRedirects(boolean followRedirects) throws DaoException {
         if (followRedirects){
             redirectSqlDao = new RedirectSqlDao(wpDs);
+            if (cacheDir != null) {
+                redirectSqlDao.useCache(cacheDir);
+            }
         } else {
             redirectSqlDao = null;
         }
         titlesToIds = null;
     }
 
+    /**
+     * Also lets the redirect dao store its redirect indexes in the cache directory.
+     */
+    @Override
+    public void useCache(File dir) throws DaoException {
+        super.useCache(dir);
+        cacheDir = dir;
+        if (redirectSqlDao != null) {
+            redirectSqlDao.useCache(dir);
+        }
+    }
+
     @Override
     public LocalPage getByTitle(Title title, NameSpace nameSpace) throws DaoException {
         DSLContext context = getJooq();
@@ -218,28 +237,165 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         return getByTitle(new Title(title, language), ns);
     }
 
+    /**
+     * Fetches pages with IN-list queries of at most MAX_BATCH_SIZE ids. Each query is joined
+     * with the redirect table, so redirects are resolved with one more batch query per hop
+     * rather than one query per page. Ids that do not exist map to null.
+     */
     @Override
     public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException {
         if (pageIds == null || pageIds.isEmpty()) {
             return null;
         }
-        Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
-        for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+        DSLContext context = getJooq();
+        try {
+            boolean redirects = joinRedirects(context);
+            Map<Integer, Record> records = new HashMap<Integer, Record>();
+            List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(pageIds));
+            for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+                List<Integer> batch = ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE));
+                for (Record record : selectPages(context, language, redirects).and(Tables.LOCAL_PAGE.PAGE_ID.in(batch)).fetch()) {
+                    addRecord(records, record);
+                }
+            }
+            fetchRedirectDestinations(context, language, redirects, records);
+            Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
+            for (Integer pageId : pageIds) {
+                Record record = records.get(pageId);
+                map.put(pageId, record == null ? null : buildPage(followRedirects(record, redirects, records)));
+            }
+            return map;
+        } finally {
+            freeJooq(context);
         }
-        return map;
     }
 
+    /**
+     * Fetches pages in batches like {@link #getByIds(Language, Collection)}.
+     * All titles are looked up in the given language. Titles that do not exist map to null.
+     */
     @Override
     public Map<Title, LocalPage> getByTitles(Language language, Collection<Title> titles, NameSpace nameSpace) throws DaoException {
         if (titles == null || titles.isEmpty()) {
             return null;
         }
-        Map<Title, LocalPage> map = new HashMap<Title, LocalPage>();
-        for (Title title : titles){
-            map.put(title, getByTitle(title, nameSpace));
+        DSLContext context = getJooq();
+        try {
+            boolean redirects = joinRedirects(context);
+            Map<String, Record> byTitle = new HashMap<String, Record>();
+            Map<Integer, Record> records = new HashMap<Integer, Record>();
+            List<String> canonical = new ArrayList<String>();
+            for (Title title : new LinkedHashSet<Title>(titles)) {
+                canonical.add(title.getCanonicalTitle());
+            }
+            for (int i = 0; i < canonical.size(); i += MAX_BATCH_SIZE) {
+                List<String> batch = canonical.subList(i, Math.min(canonical.size(), i + MAX_BATCH_SIZE));
+                Result<Record> result = selectPages(context, language, redirects).
+                        and(Tables.LOCAL_PAGE.NAME_SPACE.eq(nameSpace.getArbitraryId())).
+                        and(Tables.LOCAL_PAGE.TITLE.in(batch)).
+                        fetch();
+                for (Record record : result) {
+                    String title = record.getValue(Tables.LOCAL_PAGE.TITLE);
+                    if (!byTitle.containsKey(title)) {
+                        byTitle.put(title, record);
+                    }
+                    addRecord(records, record);
+                }
+            }
+            fetchRedirectDestinations(context, language, redirects, records);
+            Map<Title, LocalPage> map = new HashMap<Title, LocalPage>();
+            for (Title title : titles) {
+                Record record = byTitle.get(title.getCanonicalTitle());
+                map.put(title, record == null ? null : buildPage(followRedirects(record, redirects, records)));
+            }
+            return map;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
+    /**
+     * Redirects are joined if they are followed and the redirect table has been loaded.
+     */
+    private boolean joinRedirects(DSLContext context) {
+        return redirectSqlDao != null && JooqUtils.tableExists(context, Tables.REDIRECT);
+    }
+
+    /**
+     * Selects the pages of a language, along with the destination of each redirect
+     * if redirects are joined.
+     */
+    private SelectConditionStep<Record> selectPages(DSLContext context, Language language, boolean redirects) {
+        if (!redirects) {
+            return context.select(Tables.LOCAL_PAGE.fields()).
+                    from(Tables.LOCAL_PAGE).
+                    where(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId()));
+        }
+        return context.select(Tables.LOCAL_PAGE.fields()).
+                select(Tables.REDIRECT.DEST_PAGE_ID).
+                from(Tables.LOCAL_PAGE).
+                leftOuterJoin(Tables.REDIRECT).
+                on(Tables.REDIRECT.LANG_ID.eq(Tables.LOCAL_PAGE.LANG_ID)).
+                and(Tables.REDIRECT.SRC_PAGE_ID.eq(Tables.LOCAL_PAGE.PAGE_ID)).
+                where(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId()));
+    }
+
+    private static void addRecord(Map<Integer, Record> records, Record record) {
+        Integer pageId = record.getValue(Tables.LOCAL_PAGE.PAGE_ID);
+        if (!records.containsKey(pageId)) {
+            records.put(pageId, record);
         }
-        return map;
+    }
+
+    /**
+     * Adds the pages that redirects point to, one batch query per hop along redirect chains.
+     */
+    private void fetchRedirectDestinations(DSLContext context, Language language, boolean redirects, Map<Integer, Record> records) {
+        if (!redirects) {
+            return;
+        }
+        Set<Integer> requested = new HashSet<Integer>(records.keySet());
+        for (int hop = 0; hop < MAX_REDIRECT_HOPS; hop++) {
+            List<Integer> missing = new ArrayList<Integer>();
+            for (Record record : records.values()) {
+                Integer dest = getRedirectDestination(record, redirects);
+                if (dest != null && requested.add(dest)) {
+                    missing.add(dest);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < missing.size(); i += MAX_BATCH_SIZE) {
+                List<Integer> batch = missing.subList(i, Math.min(missing.size(), i + MAX_BATCH_SIZE));
+                for (Record record : selectPages(context, language, redirects).and(Tables.LOCAL_PAGE.PAGE_ID.in(batch)).fetch()) {
+                    addRecord(records, record);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The record at the end of the redirect chain starting at the record,
+     * stopping at the last page that exists.
+     */
+    private Record followRedirects(Record record, boolean redirects, Map<Integer, Record> records) {
+        for (int hop = 0; hop < MAX_REDIRECT_HOPS; hop++) {
+            Integer dest = getRedirectDestination(record, redirects);
+            if (dest == null || !records.containsKey(dest)) {
+                break;
+            }
+            record = records.get(dest);
+        }
+        return record;
+    }
+
+    private static Integer getRedirectDestination(Record record, boolean redirects) {
+        if (!redirects || !record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)) {
+            return null;
+        }
+        Integer dest = record.getValue(Tables.REDIRECT.DEST_PAGE_ID);
+        return (dest == null || dest < 0) ? null : dest;   // -1 is an unresolved target
     }
 
     @Override
@@ -280,13 +436,24 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
                 // If true, we don't want to resolve redirects because they're all redirects
                 && (daoFilter.isRedirect() == null || !daoFilter.isRedirect())
                 && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)) {
-            LocalPage page = getById(lang, redirectSqlDao.resolveRedirect(
+            Integer dest = redirectSqlDao.resolveRedirect(
                     lang,
-                    record.getValue(Tables.LOCAL_PAGE.PAGE_ID)));
-            if (daoFilter.isValidLocalPage(page)) {
-                return page;
+                    record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+            if (dest != null && dest >= 0) {
+                LocalPage page = getById(lang, dest);
+                if (daoFilter.isValidLocalPage(page)) {
+                    return page;
+                }
             }
         }
+        return buildPage(record);
+    }
+
+    /**
+     * Builds a LocalPage from a record without following redirects.
+     */
+    private LocalPage buildPage(Record record) {
+        Language lang = Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID));
         Title title = new Title(
                 record.getValue(Tables.LOCAL_PAGE.TITLE), true,
                 LanguageInfo.getByLanguage(lang));
@@ -343,7 +510,7 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
                                 Integer dest = redirectSqlDao.resolveRedirect(
                                         Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
                                         record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                                if (dest != null) {
+                                if (dest != null && dest >= 0) {
                                     numResolved.incrementAndGet();
                                     synchronized (map) {
                                         map.put(hash, dest);
@@ -0,0 +1,143 @@
+package org.wikibrain.core.dao.sql;
+
+import gnu.trove.map.TIntIntMap;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The redirects of one language as a table from source page id to final destination id.
+ *
+ * Chains of redirects (A -&gt; B -&gt; C) are collapsed when the table is built, so each
+ * source maps directly to the page at the end of its chain. Redirects in a cycle keep
+ * their direct destination. Redirects whose target could not be resolved are stored with
+ * a destination of -1, and a chain ends at the last page before such a redirect.
+ * Sources are sorted, so resolving a redirect is a binary
+ * search. Tables written to a file are memory mapped when read, so they are shared
+ * through the OS page cache rather than copied onto the heap.
+ *
+ * The index is immutable, so lookups are lock-free.
+ *
+ * @author Shilad Sen
+ */
+public class RedirectIndex {
+    private static final int FILE_HEADER = 0x72646972;
+    private static final int MAX_CHAIN_LENGTH = 20;
+
+    private final IntBuffer sources;
+    private final IntBuffer dests;
+
+    private RedirectIndex(IntBuffer sources, IntBuffer dests) {
+        this.sources = sources;
+        this.dests = dests;
+    }
+
+    /**
+     * @param redirects Map from redirect source id to direct destination id.
+     */
+    public static RedirectIndex build(TIntIntMap redirects) {
+        int sources[] = redirects.keys();
+        Arrays.sort(sources);
+        int dests[] = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            dests[i] = collapse(redirects, sources[i]);
+        }
+        return new RedirectIndex(IntBuffer.wrap(sources), IntBuffer.wrap(dests));
+    }
+
+    private static int collapse(TIntIntMap redirects, int src) {
+        int direct = redirects.get(src);
+        int dest = direct;
+        for (int i = 0; i < MAX_CHAIN_LENGTH; i++) {
+            if (dest < 0 || !redirects.containsKey(dest)) {
+                return dest;
+            }
+            int next = redirects.get(dest);
+            if (next < 0) {
+                return dest;    // dest is a redirect with an unresolved target
+            }
+            dest = next;
+            if (dest == src) {
+                break;
+            }
+        }
+        return direct;  // a cycle, or an absurdly long chain
+    }
+
+    /**
+     * @return The final destination of a redirect, or -1 if the page is not a redirect
+     * or its target could not be resolved. Use {@link #isRedirect(int)} to tell these apart.
+     */
+    public int resolve(int src) {
+        int i = find(src);
+        return (i < 0) ? -1 : dests.get(i);
+    }
+
+    public boolean isRedirect(int src) {
+        return find(src) >= 0;
+    }
+
+    private int find(int src) {
+        int lo = 0;
+        int hi = sources.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midSrc = sources.get(mid);
+            if (src < midSrc) {
+                hi = mid - 1;
+            } else if (src > midSrc) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return sources.limit();
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(size());
+            for (IntBuffer buffer : new IntBuffer[] { sources, dests }) {
+                for (int i = 0; i < buffer.limit(); i++) {
+                    out.writeInt(buffer.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("renaming " + tmp + " to " + file + " failed");
+        }
+    }
+
+    public static RedirectIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            IntBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asIntBuffer();
+            if (buffer.get(0) != FILE_HEADER) {
+                throw new IOException("invalid redirect index file: " + file);
+            }
+            int n = buffer.get(1);
+            return new RedirectIndex(slice(buffer, 2, n), slice(buffer, 2 + n, n));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static IntBuffer slice(IntBuffer buffer, int position, int length) {
+        IntBuffer dup = buffer.duplicate();
+        dup.position(position);
+        dup.limit(position + length);
+        return dup.slice();
+    }
+}
@@ -17,9 +17,12 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.Redirect;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  */
@@ -32,6 +35,8 @@ public class
             Tables.REDIRECT.DEST_PAGE_ID,
     };
 
+    private final Map<Language, RedirectIndex> indexes = new ConcurrentHashMap<Language, RedirectIndex>();
+
     public RedirectSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/redirect");
     }
@@ -98,37 +103,81 @@ public class
         }
     }
 
+    /**
+     * Resolves the redirect with the language's redirect index, without database access.
+     * Chains of redirects are followed to their final destination.
+     *
+     * @return The destination, -1 if the page is a redirect whose target could not be
+     * resolved, or null if the page is not a redirect.
+     */
     @Override
     public Integer resolveRedirect(Language lang, int id) throws DaoException {
-        DSLContext context = getJooq();
-        try {
-            Record record = context.select().from(Tables.REDIRECT)
-                    .where(Tables.REDIRECT.SRC_PAGE_ID.equal(id))
-                    .and(Tables.REDIRECT.LANG_ID.equal(lang.getId()))
-                    .fetchOne();
-            if (record == null){
-                return null;
-            }
-            return record.getValue(Tables.REDIRECT.DEST_PAGE_ID);
-        } finally {
-            freeJooq(context);
-        }
+        RedirectIndex index = getIndex(lang);
+        return index.isRedirect(id) ? index.resolve(id) : null;
     }
 
     @Override
     public boolean isRedirect(Language lang, int id) throws DaoException {
-        DSLContext context = getJooq();
+        return getIndex(lang).isRedirect(id);
+    }
+
+    /**
+     * Returns the redirect index for a language, building it on first use from
+     * getAllRedirectIdsToDestIds. If the dao has a cache, the index is written to the
+     * cache directory and memory mapped, and reused until the redirects are reloaded.
+     */
+    public RedirectIndex getIndex(Language lang) throws DaoException {
+        RedirectIndex index = indexes.get(lang);
+        if (index != null) {
+            return index;
+        }
+        synchronized (indexes) {
+            index = indexes.get(lang);
+            if (index == null) {
+                index = buildIndex(lang);
+                indexes.put(lang, index);
+            }
+            return index;
+        }
+    }
+
+    private RedirectIndex buildIndex(Language lang) throws DaoException {
+        String name = "redirects-" + lang.getLangCode() + ".bin";
         try {
-            Record record = context.select().from(Tables.REDIRECT)
-                    .where(Tables.REDIRECT.SRC_PAGE_ID.equal(id))
-                    .and(Tables.REDIRECT.LANG_ID.equal(lang.getId()))
-                    .fetchOne();
-            return (record != null);
-        } finally {
-            freeJooq(context);
+            if (cache != null && cache.isFresh(name, Redirect.class)) {
+                return RedirectIndex.read(cache.getCacheFile(name));
+            }
+            LOG.info("building redirect index for {}", lang);
+            RedirectIndex index = RedirectIndex.build(getAllRedirectIdsToDestIds(lang));
+            if (cache == null) {
+                return index;
+            }
+            File file = cache.getCacheFile(name);
+            index.write(file);
+            return RedirectIndex.read(file);
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
     }
 
+    @Override
+    public void clear() throws DaoException {
+        super.clear();
+        indexes.clear();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        super.beginLoad();
+        indexes.clear();
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        super.endLoad();
+        indexes.clear();
+    }
+
     @Override
     public TIntSet getRedirects(LocalPage localPage) throws DaoException {
         DSLContext context = getJooq();
@@ -202,11 +251,17 @@ public class
                 return null;
             }
             try {
-                return new RedirectSqlDao(
+                RedirectSqlDao dao = new RedirectSqlDao(
                         getConfigurator().get(
                                 WpDataSource.class,
                                 config.getString("dataSource"))
                 );
+                File cacheDir = new File(getConfig().get().getString("dao.sqlCachePath"));
+                if (!cacheDir.isDirectory()) {
+                    cacheDir.mkdirs();
+                }
+                dao.useCache(cacheDir);
+                return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
             }
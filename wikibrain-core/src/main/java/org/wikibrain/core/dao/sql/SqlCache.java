@@ -47,25 +47,21 @@ public class SqlCache {
         FileUtils.deleteQuietly(getCacheFile(name));
     }
 
-    private File getCacheFile(String name) {
+    /**
+     * Returns the file for a named entry, for entries that are not serialized objects
+     * (e.g. memory mapped tables). Use isFresh() to check whether it is up to date.
+     */
+    public File getCacheFile(String name) {
         return new File(directory, name);
     }
 
     /**
-     * Returns the object if it exists and is up to date, otherwise returns null.
-     *
-     * @param name Name of the object as passed to "put"
-     * @param dependsOn List of classes the object depends on.
-     *                  The cache is up to date iff for each class k in dependsOn:
-     *                  - The MetaInfoDao knows about k
-     *                  - The cache entry was created after k was last updated.
-     * @return
-     * @throws DaoException
+     * @return True iff the named entry exists and is up to date, as described in get().
      */
-    public Object get(String name, Class ... dependsOn) throws DaoException {
+    public boolean isFresh(String name, Class ... dependsOn) throws DaoException {
         File cacheFile = getCacheFile(name);
         if (!cacheFile.isFile()) {
-            return null;
+            return false;
         }
         Date cacheTstamp = new Date(cacheFile.lastModified());
         for (Class klass : dependsOn) {
@@ -75,9 +71,27 @@ public class SqlCache {
             }
             Date tableTstamp = info.getLastUpdated();
             if (tableTstamp == null || tableTstamp.after(cacheTstamp)) {
-                return null;
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns the object if it exists and is up to date, otherwise returns null.
+     *
+     * @param name Name of the object as passed to "put"
+     * @param dependsOn List of classes the object depends on.
+     *                  The cache is up to date iff for each class k in dependsOn:
+     *                  - The MetaInfoDao knows about k
+     *                  - The cache entry was created after k was last updated.
+     * @return
+     * @throws DaoException
+     */
+    public Object get(String name, Class ... dependsOn) throws DaoException {
+        if (!isFresh(name, dependsOn)) {
+            return null;
+        }
         try {
             FileInputStream fis = new FileInputStream(getCacheFile(name));
             ObjectInputStream ois = new ObjectInputStream(fis);
@@ -0,0 +1,140 @@
+package org.wikibrain.core.dao.sql;
+
+import org.jooq.DSLContext;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A batch of SQL dao calls on one thread that share a single connection and DSLContext.
+ *
+ * While a unit of work is open, {@link WpDataSource#getJooq()} on its thread returns the
+ * shared context and {@link WpDataSource#freeJooq(DSLContext)} leaves it open, so dao calls
+ * skip the pool checkout, connection setup and context construction. Prepared statements
+ * are cached per connection by the pool (see the dataSource statementsCacheSize setting),
+ * so repeated queries in a unit of work also reuse their statements.
+ *
+ * Units of work nest: opening one on a thread that already has one returns a nested
+ * handle that shares its connection, and the connection is committed and released once
+ * every handle has been closed. Closing a handle more than once has no effect. A rollback
+ * by any dao rolls back all uncommitted work in the unit.
+ *
+ * The shared context's connection ignores close(), so code that closes the connection
+ * it got from a context (e.g. a {@link SqlDaoIterable} that finishes) cannot end the unit.
+ *
+ * Typical usage:
+ *
+ * <pre>
+ * UnitOfWork unit = wpDs.beginUnitOfWork();
+ * try {
+ *     for (int id : ids) { pageDao.getById(lang, id); ... }
+ * } finally {
+ *     unit.close();
+ * }
+ * </pre>
+ *
+ * @author Shilad Sen
+ */
+public class UnitOfWork implements Closeable {
+    private final WpDataSource ds;
+    private final DSLContext context;
+    private final Connection connection;    // the pooled connection behind the context
+    private final UnitOfWork outer;     // null for the outermost handle
+    private int openHandles = 1;        // only used by the outermost handle
+    private boolean closed = false;
+
+    /**
+     * @param connection A pooled connection. The unit's context wraps it, see {@link #unclosable(Connection)}.
+     */
+    UnitOfWork(WpDataSource ds, Connection connection, DSLContext context) {
+        this(ds, connection, context, null);
+    }
+
+    private UnitOfWork(WpDataSource ds, Connection connection, DSLContext context, UnitOfWork outer) {
+        this.ds = ds;
+        this.connection = connection;
+        this.context = context;
+        this.outer = outer;
+    }
+
+    /**
+     * @return A view of the connection whose close() does nothing.
+     */
+    static Connection unclosable(final Connection connection) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[] { Connection.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("close") && method.getParameterTypes().length == 0) {
+                            return null;    // released when the unit of work closes
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    public DSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Commits the work so far without ending the unit.
+     */
+    public void commit() throws DaoException {
+        JooqUtils.commit(context);
+    }
+
+    /**
+     * @return A new handle on this unit of work for a nested caller.
+     */
+    UnitOfWork nest() {
+        UnitOfWork root = (outer == null) ? this : outer;
+        root.openHandles++;
+        return new UnitOfWork(ds, connection, context, root);
+    }
+
+    /**
+     * Ends this (possibly nested) handle on the unit of work. Closing the last open
+     * handle commits and releases the connection. Later calls have no effect.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (outer != null) {
+            outer.release();
+        } else {
+            release();
+        }
+    }
+
+    private void release() {
+        if (--openHandles > 0) {
+            return;
+        }
+        ds.endUnitOfWork(this);
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            WpDataSource.closeQuietly(connection);
+        }
+    }
+}
@@ -37,6 +37,7 @@ public class WpDataSource implements Closeable {
     private DataSource dataSource;
     private Settings settings;
     private SQLDialect dialect;
+    private final ThreadLocal<UnitOfWork> units = new ThreadLocal<UnitOfWork>();
 
     public WpDataSource(DataSource dataSource) throws DaoException {
         this.settings = new Settings();
@@ -56,6 +57,10 @@ public class WpDataSource implements Closeable {
         }
     }
 
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
     public Connection getConnection() throws SQLException {
         Connection conn = dataSource.getConnection();
         if (conn.getAutoCommit()) {
@@ -92,7 +97,19 @@ public class WpDataSource implements Closeable {
         return JooqUtils.rollbackQuietly(context);
     }
 
+    /**
+     * Returns a context with its own connection, which must be released with freeJooq().
+     * If a unit of work is open on this thread, its shared context is returned instead.
+     */
     public DSLContext getJooq() throws DaoException {
+        UnitOfWork unit = units.get();
+        if (unit != null) {
+            return unit.getContext();
+        }
+        return newJooq();
+    }
+
+    private DSLContext newJooq() throws DaoException {
         try {
             return DSL.using(getConnection(), dialect, settings);
         } catch (SQLException e) {
@@ -101,6 +118,10 @@ public class WpDataSource implements Closeable {
     }
 
     public void freeJooq(DSLContext context) {
+        UnitOfWork unit = units.get();
+        if (unit != null && unit.getContext() == context) {
+            return;     // released when the unit of work closes
+        }
         Connection conn = JooqUtils.getConnection(context);
         if (conn != null) {
             try {
@@ -114,6 +135,33 @@ public class WpDataSource implements Closeable {
         }
     }
 
+    /**
+     * Opens a unit of work on the current thread, or returns a nested handle on the one
+     * that is already open. Dao calls on this thread share its connection until every
+     * handle is closed.
+     * @see UnitOfWork
+     */
+    public UnitOfWork beginUnitOfWork() throws DaoException {
+        UnitOfWork unit = units.get();
+        if (unit != null) {
+            return unit.nest();
+        }
+        try {
+            Connection conn = getConnection();
+            unit = new UnitOfWork(this, conn, DSL.using(UnitOfWork.unclosable(conn), dialect, settings));
+        } catch (SQLException e) {
+            throw new DaoException(e);
+        }
+        units.set(unit);
+        return unit;
+    }
+
+    void endUnitOfWork(UnitOfWork unit) {
+        if (units.get() == unit) {
+            units.remove();
+        }
+    }
+
     /**
      * Executes a sql resource on the classpath
      * @param name Resource path - e.g. "/db/local-page.schema.sql"
@@ -310,6 +358,9 @@ public class WpDataSource implements Closeable {
                     LOG.warn("Raised connections per partition to " + cnxPerPartition);
                 }
                 ds.setMaxConnectionsPerPartition(cnxPerPartition);
+                if (config.hasPath("statementsCacheSize")) {
+                    ds.setStatementsCacheSize(config.getInt("statementsCacheSize"));
+                }
 
                 return new WpDataSource(ds);
             } catch (ClassNotFoundException e) {
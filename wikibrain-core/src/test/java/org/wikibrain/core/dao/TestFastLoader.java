@@ -0,0 +1,117 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.sql.FastLoader;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the bulk load backends store exactly what the INSERT backend does.
+ */
+public class TestFastLoader {
+    private static final String FIELDS[] = new String[] {
+            "lang_id", "page_id", "big", "title", "body", "is_redirect", "score", "last_edit", "bytes"
+    };
+
+    private static final String SCHEMA =
+            " (lang_id SMALLINT NOT NULL, page_id INT NOT NULL, big BIGINT, title VARCHAR(256)," +
+            " body TEXT, is_redirect BOOLEAN NOT NULL, score DOUBLE, last_edit TIMESTAMP, bytes BINARY)";
+
+    private static final String TRICKY_STRINGS[] = new String[] {
+            "", "plain", "comma, separated", "\"quoted\"", "a \"\" b", "line\nbreak\r\n",
+            "tab\there", "back\\slash", "unicode é中Δ", "trailing space ", ",", "\"",
+            "'single'", "null", "NULL",
+    };
+
+    @Test
+    public void testCsvReadMatchesInsert() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+        List<Object[]> rows = createRows(20000);
+        load(ds, "fl_insert", FastLoader.Backend.INSERT, rows);
+        load(ds, "fl_csvread", FastLoader.Backend.CSVREAD, rows);
+
+        List<Object[]> inserted = read(ds, "fl_insert");
+        List<Object[]> csv = read(ds, "fl_csvread");
+        assertEquals(rows.size(), inserted.size());
+        assertEquals(inserted.size(), csv.size());
+        for (int i = 0; i < inserted.size(); i++) {
+            assertTrue("row " + i + " differs: " + Arrays.deepToString(inserted.get(i)) + " vs " + Arrays.deepToString(csv.get(i)),
+                    Arrays.deepEquals(inserted.get(i), csv.get(i)));
+        }
+        assertEquals(FastLoader.Backend.INSERT, FastLoader.Backend.forDialect(ds.getDialect()));
+    }
+
+    private static List<Object[]> createRows(int n) {
+        Random random = new Random(3);
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < n; i++) {
+            boolean nulls = (i % 7 == 3);
+            byte bytes[] = new byte[random.nextInt(4)];
+            random.nextBytes(bytes);
+            rows.add(new Object[] {
+                    (short) (i % 300),
+                    i,
+                    nulls ? null : random.nextLong(),
+                    nulls ? null : TRICKY_STRINGS[i % TRICKY_STRINGS.length] + i,
+                    nulls ? null : TRICKY_STRINGS[random.nextInt(TRICKY_STRINGS.length)],
+                    random.nextBoolean(),
+                    nulls ? null : random.nextDouble() * 1000,
+                    nulls ? null : new Date(1400000000000L + 1000L * random.nextInt(1000000)),
+                    nulls ? null : bytes,
+            });
+        }
+        return rows;
+    }
+
+    private static void load(WpDataSource ds, String table, FastLoader.Backend backend, List<Object[]> rows) throws SQLException, DaoException {
+        Connection cnx = ds.getConnection();
+        try {
+            Statement st = cnx.createStatement();
+            st.execute("DROP TABLE IF EXISTS " + table);
+            st.execute("CREATE TABLE " + table + SCHEMA);
+            st.close();
+            cnx.commit();
+        } finally {
+            WpDataSource.closeQuietly(cnx);
+        }
+        FastLoader loader = new FastLoader(ds, table, FIELDS, backend);
+        for (Object row[] : rows) {
+            loader.load(row.clone());
+        }
+        loader.endLoad();
+    }
+
+    private static List<Object[]> read(WpDataSource ds, String table) throws SQLException {
+        Connection cnx = ds.getConnection();
+        try {
+            Statement st = cnx.createStatement();
+            ResultSet rs = st.executeQuery("SELECT * FROM " + table + " ORDER BY page_id");
+            List<Object[]> rows = new ArrayList<Object[]>();
+            while (rs.next()) {
+                Object row[] = new Object[FIELDS.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rs.getObject(i + 1);
+                    if (row[i] instanceof Clob) {
+                        Clob clob = (Clob) row[i];
+                        row[i] = clob.getSubString(1, (int) clob.length());
+                    }
+                }
+                rows.add(row);
+            }
+            st.close();
+            return rows;
+        } finally {
+            WpDataSource.closeQuietly(cnx);
+        }
+    }
+}
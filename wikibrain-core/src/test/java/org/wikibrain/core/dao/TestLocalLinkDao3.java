@@ -4,6 +4,7 @@ import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.wikibrain.core.dao.matrix.LinkDegreeIndex;
 import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
 import org.wikibrain.core.dao.sql.LocalLinkSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
@@ -15,6 +16,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestLocalLinkDao3 {
 
@@ -65,6 +67,43 @@ public class TestLocalLinkDao3 {
         }
     }
 
+    @Test
+    public void testDegrees() throws ClassNotFoundException, IOException, DaoException {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+
+        File f = new File(".tmp/links-degrees");
+        FileUtils.deleteQuietly(f);
+        Language lang = Language.getByLangCode("simple");
+        LocalLinkSqlDao sqlDao = new LocalLinkSqlDao(ds);
+        MatrixLocalLinkDao matrixDao = new MatrixLocalLinkDao(sqlDao, f);
+        matrixDao.beginLoad();
+        for (int i = 1; i <= 50; i++) {
+            for (int j = i+1; j <= 50; j += i) {
+                matrixDao.save(new LocalLink(lang, "anchor", i + STARTING_ID, j + STARTING_ID,
+                        true, 0, true, LocalLink.LocationType.FIRST_PARA));
+            }
+        }
+        matrixDao.endLoad();
+        assertTrue(matrixDao.getDegreesFile().isFile());
+        checkDegrees(lang, matrixDao.getDegreeIndex(), matrixDao);
+
+        // the persisted degrees are reloaded
+        MatrixLocalLinkDao reopened = new MatrixLocalLinkDao(sqlDao, f);
+        checkDegrees(lang, reopened.getDegreeIndex(), matrixDao);
+        FileUtils.deleteQuietly(f);
+    }
+
+    private void checkDegrees(Language lang, LinkDegreeIndex degrees, MatrixLocalLinkDao dao) throws DaoException {
+        for (int i = 0; i <= 51; i++) {
+            int id = i + STARTING_ID;
+            assertEquals(dao.getCount(new DaoFilter().setLanguages(lang).setSourceIds(id)), degrees.getOutDegree(lang, id));
+            assertEquals(dao.getCount(new DaoFilter().setLanguages(lang).setDestIds(id)), degrees.getInDegree(lang, id));
+        }
+        assertEquals(49, degrees.getOutDegree(lang, 1 + STARTING_ID));
+        assertEquals(0, degrees.getOutDegree(lang, 50 + STARTING_ID));
+        assertEquals(-1, degrees.getInDegree(lang, Integer.MAX_VALUE));
+    }
+
     /**
      * returns a set containing the numbers in a range (inclusive)
      * @param from
@@ -3,6 +3,7 @@ package org.wikibrain.core.dao;
 
 import org.junit.Test;
 import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
@@ -63,6 +64,67 @@ public class TestLocalPageDao {
         assert (savedId==7);
     }
 
+    @Test
+    public void testBulkFetch() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        Language lang = Language.getByLangCode("simple");
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        LocalPageSqlDao dao = new LocalPageSqlDao(wpDs);
+        redirectDao.beginLoad();
+        dao.beginLoad();
+        // more pages than fit in one batch query
+        for (int i = 1; i <= 2500; i++) {
+            dao.save(new LocalPage(lang, i, new Title("page " + i, lang), NameSpace.ARTICLE));
+        }
+        // 3001 -> 3002 -> 5, and 3003 -> a missing page
+        dao.save(new LocalPage(lang, 3001, new Title("redirect 1", lang), NameSpace.ARTICLE, true, false));
+        dao.save(new LocalPage(lang, 3002, new Title("redirect 2", lang), NameSpace.ARTICLE, true, false));
+        dao.save(new LocalPage(lang, 3003, new Title("redirect 3", lang), NameSpace.ARTICLE, true, false));
+        redirectDao.save(lang, 3001, 3002);
+        redirectDao.save(lang, 3002, 5);
+        redirectDao.save(lang, 3003, 4000);
+        dao.endLoad();
+        redirectDao.endLoad();
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 1; i <= 2500; i++) {
+            ids.add(i);
+        }
+        ids.add(3001);
+        ids.add(3003);
+        ids.add(9999);
+        Map<Integer, LocalPage> pages = dao.getByIds(lang, ids);
+        assertEquals(ids.size(), pages.size());
+        for (int i = 1; i <= 2500; i++) {
+            assertEquals(dao.getById(lang, i), pages.get(i));
+        }
+        assertEquals(5, pages.get(3001).getLocalId());
+        assertEquals(dao.getById(lang, 3001), pages.get(3001));
+        assertEquals(3003, pages.get(3003).getLocalId());
+        assertTrue(pages.containsKey(9999));
+        assertNull(pages.get(9999));
+
+        List<Title> titles = new ArrayList<Title>();
+        for (int i = 1; i <= 2500; i += 7) {
+            titles.add(new Title("page " + i, lang));
+        }
+        titles.add(new Title("redirect 1", lang));
+        titles.add(new Title("no such page", lang));
+        Map<Title, LocalPage> byTitle = dao.getByTitles(lang, titles, NameSpace.ARTICLE);
+        assertEquals(titles.size(), byTitle.size());
+        for (int i = 1; i <= 2500; i += 7) {
+            assertEquals(i, byTitle.get(new Title("page " + i, lang)).getLocalId());
+        }
+        assertEquals(5, byTitle.get(new Title("redirect 1", lang)).getLocalId());
+        assertNull(byTitle.get(new Title("no such page", lang)));
+
+        // without following redirects
+        dao.setFollowRedirects(false);
+        pages = dao.getByIds(lang, ids);
+        assertEquals(3001, pages.get(3001).getLocalId());
+        assertTrue(pages.get(3001).isRedirect());
+    }
+
     @Test
     public void testURL() {
         LocalPage lp = new LocalPage(Language.EN, 3, "Barack Obama");
@@ -1,8 +1,12 @@
 package org.wikibrain.core.dao;
 
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.RedirectIndex;
 import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
@@ -11,9 +15,14 @@ import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.WpIOUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
 
 /**
  */
@@ -52,4 +61,85 @@ public class TestRedirectDao {
         assert (allRedirects.get(2)==6);
         assert (allRedirects.get(3)==-1);
     }
+
+    @Test
+    public void testIndex() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        // 10 -> 11 -> 12 is a chain, 20 <-> 21 is a cycle
+        TIntIntMap redirects = new TIntIntHashMap();
+        redirects.put(10, 11);
+        redirects.put(11, 12);
+        redirects.put(20, 21);
+        redirects.put(21, 20);
+        redirects.put(30, 12);
+        RedirectIndex index = RedirectIndex.build(redirects);
+        File dir = WpIOUtils.createTempDirectory("redirects");
+        try {
+            File file = new File(dir, "redirects.bin");
+            index.write(file);
+            for (RedirectIndex i : Arrays.asList(index, RedirectIndex.read(file))) {
+                assertEquals(5, i.size());
+                assertEquals(12, i.resolve(10));
+                assertEquals(12, i.resolve(11));
+                assertEquals(21, i.resolve(20));
+                assertEquals(20, i.resolve(21));
+                assertEquals(12, i.resolve(30));
+                assertEquals(-1, i.resolve(12));
+                assertFalse(i.isRedirect(0));
+            }
+
+            // the dao maps its index from the cache directory
+            WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+            Language lang = Language.getByLangCode("simple");
+            RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+            redirectDao.useCache(dir);
+            redirectDao.beginLoad();
+            redirectDao.save(lang, 10, 11);
+            redirectDao.save(lang, 11, 12);
+            redirectDao.endLoad();
+            assertEquals(12, (int) redirectDao.resolveRedirect(lang, 10));
+            assertNull(redirectDao.resolveRedirect(lang, 12));
+            assertTrue(new File(dir, "redirects-simple.bin").isFile());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testUnresolvedRedirects() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        // the loader saves redirects whose target is missing with a destination of -1
+        // 40 -> -1 is unresolved, 41 -> 42 -> -1 stops at 42
+        TIntIntMap redirects = new TIntIntHashMap();
+        redirects.put(40, -1);
+        redirects.put(41, 42);
+        redirects.put(42, -1);
+        RedirectIndex index = RedirectIndex.build(redirects);
+        assertTrue(index.isRedirect(40));
+        assertEquals(-1, index.resolve(40));
+        assertEquals(42, index.resolve(41));
+        assertEquals(-1, index.resolve(42));
+
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo langInfo = LanguageInfo.getByLangCode("simple");
+        Language lang = langInfo.getLanguage();
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        LocalPageSqlDao pageDao = new LocalPageSqlDao(wpDs);
+        redirectDao.beginLoad();
+        pageDao.beginLoad();
+        redirectDao.save(lang, 40, -1);
+        pageDao.save(new LocalPage(lang, 40, new Title("Broken redirect", langInfo), NameSpace.ARTICLE, true, false));
+        redirectDao.endLoad();
+        pageDao.endLoad();
+
+        assertTrue(redirectDao.isRedirect(lang, 40));
+        assertEquals(-1, (int) redirectDao.resolveRedirect(lang, 40));
+        assertNull(redirectDao.resolveRedirect(lang, 41));
+
+        // a broken redirect resolves to the redirect page itself
+        LocalPage page = pageDao.getById(lang, 40);
+        assertNotNull(page);
+        assertEquals(40, page.getLocalId());
+        assertTrue(page.isRedirect());
+        assertEquals(page, pageDao.getByTitle(new Title("Broken redirect", langInfo), NameSpace.ARTICLE));
+        assertEquals(page, pageDao.getByIds(lang, Arrays.asList(40)).get(40));
+    }
 }
@@ -2,10 +2,24 @@ package org.wikibrain.core.dao;
 
 import org.jooq.DSLContext;
 import org.junit.Test;
+import org.wikibrain.core.dao.sql.JooqUtils;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.UnitOfWork;
 import org.wikibrain.core.dao.sql.WpDataSource;
 
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
 
 /**
  * @author Shilad Sen
@@ -19,4 +33,110 @@ public class TestWpDataSource {
             wpDs.freeJooq(context);
         }
     }
+
+    @Test
+    public void testUnitOfWork() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        UnitOfWork unit = wpDs.beginUnitOfWork();
+        Connection conn;
+        try {
+            DSLContext context = wpDs.getJooq();
+            conn = JooqUtils.getConnection(context);
+            context.execute("CREATE TABLE uow_test (id INT)");
+            wpDs.freeJooq(context);
+            assertFalse(conn.isClosed());
+
+            UnitOfWork nested = wpDs.beginUnitOfWork();
+            try {
+                DSLContext context2 = wpDs.getJooq();
+                assertSame(context, context2);
+                context2.execute("INSERT INTO uow_test VALUES (1)");
+                wpDs.freeJooq(context2);
+            } finally {
+                nested.close();
+            }
+            assertSame(context, wpDs.getJooq());
+            assertFalse(conn.isClosed());
+        } finally {
+            unit.close();
+        }
+
+        // the connection went back to the pool, and the work was committed
+        DSLContext context = wpDs.getJooq();
+        try {
+            assertNotSame(unit.getContext(), context);
+            Statement st = JooqUtils.getConnection(context).createStatement();
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM uow_test");
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            st.close();
+        } finally {
+            wpDs.freeJooq(context);
+        }
+    }
+
+    @Test
+    public void testUnitOfWorkDoubleClose() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        UnitOfWork unit = wpDs.beginUnitOfWork();
+        DSLContext context = wpDs.getJooq();
+        Connection conn = JooqUtils.getConnection(context);
+
+        // closing a nested handle twice must not end the outer unit
+        UnitOfWork nested = wpDs.beginUnitOfWork();
+        assertNotSame(unit, nested);
+        nested.close();
+        nested.close();
+        assertFalse(conn.isClosed());
+        assertSame(context, wpDs.getJooq());
+
+        unit.close();
+        assertTrue(conn.isClosed());
+        unit.close();   // no effect
+
+        DSLContext context2 = wpDs.getJooq();
+        assertNotSame(context, context2);
+        wpDs.freeJooq(context2);
+    }
+
+    @Test
+    public void testIterateInUnitOfWork() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        Language lang = Language.getByLangCode("simple");
+        LocalPageSqlDao dao = new LocalPageSqlDao(wpDs, false);
+        dao.beginLoad();
+        for (int i = 1; i <= 10; i++) {
+            dao.save(new LocalPage(lang, i, new Title("Page " + i, lang), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+
+        UnitOfWork unit = wpDs.beginUnitOfWork();
+        Connection conn = JooqUtils.getConnection(unit.getContext());
+        try {
+            // a finished iterable closes its connection, which must not end the unit
+            int n = 0;
+            for (LocalPage page : dao.get(new DaoFilter())) {
+                n++;
+            }
+            assertEquals(10, n);
+            assertFalse(conn.isClosed());
+
+            // so does one that is abandoned after an exception
+            try {
+                for (LocalPage page : dao.get(new DaoFilter())) {
+                    throw new IllegalStateException();
+                }
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertFalse(conn.isClosed());
+
+            assertEquals("Page 3", dao.getById(lang, 3).getTitle().getCanonicalTitle());
+            assertSame(unit.getContext(), wpDs.getJooq());
+        } finally {
+            unit.close();
+        }
+        assertTrue(conn.isClosed());
+        assertEquals("Page 4", dao.getById(lang, 4).getTitle().getCanonicalTitle());
+    }
 }
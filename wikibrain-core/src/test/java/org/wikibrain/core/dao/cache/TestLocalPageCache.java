@@ -0,0 +1,119 @@
+package org.wikibrain.core.dao.cache;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLocalPageCache {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testGetAndPut() {
+        LocalPageCache cache = new LocalPageCache(1024 * 1024, 4);
+        LocalPage page = new LocalPage(SIMPLE, 12, new Title("Café au lait", SIMPLE), NameSpace.ARTICLE, false, true);
+        LocalPage target = new LocalPage(SIMPLE, 13, new Title("Coffee", SIMPLE), NameSpace.ARTICLE);
+        cache.put(SIMPLE, 12, page);
+        cache.put(SIMPLE, 14, target);      // a redirect resolved to another page
+        cache.put(SIMPLE, 15, null);
+
+        LocalPage cached = cache.get(SIMPLE, 12);
+        assertEquals(page, cached);
+        assertEquals(page.getTitle(), cached.getTitle());
+        assertEquals(NameSpace.ARTICLE, cached.getNameSpace());
+        assertFalse(cached.isRedirect());
+        assertTrue(cached.isDisambig());
+        assertEquals(target, cache.get(SIMPLE, 14));
+        assertSame(LocalPageCache.NOT_FOUND, cache.get(SIMPLE, 15));
+        assertNull(cache.get(SIMPLE, 16));
+        assertNull(cache.get(Language.EN, 12));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.invalidate(SIMPLE, 12);
+        assertNull(cache.get(SIMPLE, 12));
+        cache.clear();
+        assertNull(cache.get(SIMPLE, 14));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        LocalPageCache cache = new LocalPageCache(16 * 1024, 2);
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            cache.put(SIMPLE, i, new LocalPage(SIMPLE, i, new Title("Page number " + i, SIMPLE), NameSpace.ARTICLE));
+        }
+        // roughly 40 bytes per entry fit in 16K
+        assertTrue(cache.size() < 500);
+        assertTrue(cache.size() > 200);
+        for (int i = 0; i < n; i++) {
+            LocalPage page = cache.get(SIMPLE, i);
+            if (page != null) {
+                assertEquals(i, page.getLocalId());
+                assertEquals("Page number " + i, page.getTitle().getCanonicalTitle());
+            }
+        }
+        // the most recent pages survive
+        assertNotNull(cache.get(SIMPLE, n - 1));
+        assertNull(cache.get(SIMPLE, 0));
+
+        // overwriting keys in a full log keeps the latest value
+        for (int i = 0; i < n; i++) {
+            int id = i % 50;
+            cache.put(SIMPLE, id, new LocalPage(SIMPLE, id, new Title("Version " + i, SIMPLE), NameSpace.ARTICLE));
+        }
+        for (int id = 0; id < 50; id++) {
+            assertEquals("Version " + (n - 50 + id), cache.get(SIMPLE, id).getTitle().getCanonicalTitle());
+        }
+    }
+
+    @Test
+    public void testDao() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LocalPageSqlDao sqlDao = new LocalPageSqlDao(wpDs);
+        CachedLocalPageDao dao = new CachedLocalPageDao(sqlDao, null, new LocalPageCache(1024 * 1024, 4), 1000);
+        dao.beginLoad();
+        for (int i = 1; i <= 100; i++) {
+            dao.save(new LocalPage(SIMPLE, i, new Title("Page " + i, SIMPLE), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+
+        assertEquals(sqlDao.getById(SIMPLE, 7), dao.getById(SIMPLE, 7));
+        assertEquals(sqlDao.getById(SIMPLE, 7), dao.getById(SIMPLE, 7));
+        assertNull(dao.getById(SIMPLE, 1000));
+        assertNull(dao.getById(SIMPLE, 1000));
+        assertEquals(2, dao.getCache().getHits());
+
+        Map<Integer, LocalPage> pages = dao.getByIds(SIMPLE, Arrays.asList(6, 7, 8, 1000));
+        assertEquals(4, pages.size());
+        assertEquals(sqlDao.getById(SIMPLE, 6), pages.get(6));
+        assertEquals(sqlDao.getById(SIMPLE, 8), pages.get(8));
+        assertNull(pages.get(1000));
+        assertTrue(pages.containsKey(1000));
+        assertEquals(sqlDao.getById(SIMPLE, 8), dao.getCache().get(SIMPLE, 8));
+
+        // reloading clears the cache
+        dao.clear();
+        dao.beginLoad();
+        dao.save(new LocalPage(SIMPLE, 7, new Title("Renamed", SIMPLE), NameSpace.ARTICLE));
+        dao.endLoad();
+        assertEquals("Renamed", dao.getById(SIMPLE, 7).getTitle().getCanonicalTitle());
+        assertNull(dao.getById(SIMPLE, 6));
+    }
+}
@@ -0,0 +1,183 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageRankEngine {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final Language EN = Language.getByLangCode("en");
+
+    @Test
+    public void testSmallGraph() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("pagerank");
+        try {
+            int links[][] = randomLinks(new Random(1), 300, 4);
+            SparseMatrix matrix = writeMatrix(new File(dir, "links.matrix"), links);
+            PageRankEngine engine = PageRankEngine.build(matrix);
+            engine.setTolerance(1E-12);
+            PageRanks ranks = engine.compute();
+            double expected[] = naivePageRank(links, 0.85);
+            for (int i = 0; i < links.length; i++) {
+                assertEquals(expected[i], ranks.get(pack(i)), 1E-7);
+            }
+            checkSums(ranks, links.length);
+
+            // round trip through a file
+            File file = new File(dir, "ranks.bin");
+            ranks.write(file);
+            PageRanks read = PageRanks.read(file);
+            for (int i = 0; i < links.length; i++) {
+                assertEquals(ranks.get(pack(i)), read.get(pack(i)), 0.0);
+            }
+            assertEquals(0.0, read.get(SIMPLE, 1000000), 0.0);
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testParallelAndWarmStart() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("pagerank");
+        try {
+            Random random = new Random(2);
+            int links[][] = randomLinks(random, 60000, 8);
+            SparseMatrix matrix = writeMatrix(new File(dir, "links.matrix"), links);
+            PageRankEngine engine = PageRankEngine.build(matrix);
+            engine.setNumThreads(1);
+            PageRanks serial = engine.compute();
+            engine.setNumThreads(4);
+            PageRanks parallel = engine.compute();
+            for (int i = 0; i < links.length; i++) {
+                assertEquals(serial.get(pack(i)), parallel.get(pack(i)), 1E-12);
+            }
+            checkSums(parallel, links.length);
+            matrix.close();
+
+            // change some links, then compare warm and cold starts on the new graph
+            for (int i = 0; i < 100; i++) {
+                links[random.nextInt(links.length)] = new int[] { random.nextInt(links.length) };
+            }
+            matrix = writeMatrix(new File(dir, "links2.matrix"), links);
+            engine = PageRankEngine.build(matrix);
+            PageRanks cold = engine.compute();
+            PageRanks warm = engine.compute(parallel);
+            for (int i = 0; i < links.length; i++) {
+                assertEquals(cold.get(pack(i)), warm.get(pack(i)), 1E-9);
+            }
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Odd pages are in English and even pages are in simple English,
+     * so half of the random links cross languages and are ignored.
+     */
+    private static int pack(int page) {
+        return new LocalId(page % 2 == 0 ? SIMPLE : EN, page / 2 + 1).toInt();
+    }
+
+    private static void checkSums(PageRanks ranks, int numPages) {
+        double sums[] = new double[2];
+        for (int i = 0; i < numPages; i++) {
+            sums[i % 2] += ranks.get(pack(i));
+        }
+        assertEquals(1.0, sums[0], 1E-6);
+        assertEquals(1.0, sums[1], 1E-6);
+    }
+
+    private static int[][] randomLinks(Random random, int numPages, int maxLinks) {
+        int links[][] = new int[numPages][];
+        for (int i = 0; i < numPages; i++) {
+            TIntSet dests = new TIntHashSet();
+            int n = (i % 10 == 0) ? 0 : random.nextInt(maxLinks) + 1;     // some dangling pages
+            for (int j = 0; j < n; j++) {
+                dests.add(random.nextInt(numPages));
+            }
+            links[i] = dests.toArray();
+        }
+        return links;
+    }
+
+    private static SparseMatrix writeMatrix(File file, int links[][]) throws IOException {
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        for (int i = 0; i < links.length; i++) {
+            if (links[i].length > 0) {
+                int cols[] = new int[links[i].length];
+                for (int j = 0; j < cols.length; j++) {
+                    cols[j] = pack(links[i][j]);
+                }
+                writer.writeRow(new SparseMatrixRow(vconf, pack(i), cols, new short[cols.length]));
+            }
+        }
+        writer.finish();
+        return new SparseMatrix(file);
+    }
+
+    /**
+     * Textbook power iteration over each language, with dangling rank spread evenly.
+     * Like the matrix, the graph only contains pages with a row or a same-language in-link.
+     */
+    private static double[] naivePageRank(int links[][], double damping) {
+        int n = links.length;
+        boolean present[] = new boolean[n];
+        int sizes[] = new int[2];
+        for (int i = 0; i < n; i++) {
+            if (links[i].length > 0) present[i] = true;
+            for (int j : links[i]) {
+                if (j % 2 == i % 2) present[j] = true;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (present[i]) sizes[i % 2]++;
+        }
+        double ranks[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            ranks[i] = present[i] ? 1.0 / sizes[i % 2] : 0.0;
+        }
+        for (int it = 0; it < 500; it++) {
+            double next[] = new double[n];
+            double dangling[] = new double[2];
+            for (int i = 0; i < n; i++) {
+                int degree = 0;
+                for (int j : links[i]) {
+                    if (j % 2 == i % 2) degree++;
+                }
+                if (present[i] && degree == 0) {
+                    dangling[i % 2] += ranks[i];
+                }
+                for (int j : links[i]) {
+                    if (j % 2 == i % 2) next[j] += damping * ranks[i] / degree;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (present[i]) {
+                    next[i] += ((1 - damping) + damping * dangling[i % 2]) / sizes[i % 2];
+                }
+            }
+            ranks = next;
+        }
+        return ranks;
+    }
+}
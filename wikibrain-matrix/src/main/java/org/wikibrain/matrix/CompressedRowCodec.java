@@ -0,0 +1,153 @@
+package org.wikibrain.matrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes sparse matrix rows in the compressed on-disk format.
+ *
+ * A compressed row contains:
+ * - a header (int),
+ * - a row id (int),
+ * - the number of columns (varint),
+ * - the column ids, gap encoded as varints (the first id is zig-zag encoded, since it may be negative),
+ * - the column values, packed into two bytes each as in {@link SparseMatrixRow}.
+ *
+ * Since column ids are sorted, gaps are small and most ids take one or two bytes instead of four.
+ * Compressed rows are byte aligned, so they need no padding.
+ *
+ * @author Shilad Sen
+ */
+public class CompressedRowCodec {
+    public static final int HEADER = 0xfefefefd;
+
+    /**
+     * Encodes a row in the compressed format.
+     * @param row
+     * @return
+     */
+    public static byte[] encode(SparseMatrixRow row) {
+        int n = row.getNumCols();
+        byte buffer[] = new byte[4 + 4 + 5 + 5 * n + 2 * n];
+        int pos = putInt(buffer, 0, HEADER);
+        pos = putInt(buffer, pos, row.getRowIndex());
+        pos = putVarInt(buffer, pos, n);
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+            int id = row.getColIndex(i);
+            if (i == 0) {
+                pos = putVarInt(buffer, pos, (id << 1) ^ (id >> 31));
+            } else {
+                if (id < last) {
+                    throw new IllegalArgumentException("Column ids must be sorted");
+                }
+                pos = putVarInt(buffer, pos, id - last);
+            }
+            last = id;
+        }
+        for (int i = 0; i < n; i++) {
+            short s = row.getPackedColValue(i);
+            buffer[pos++] = (byte) (s >> 8);
+            buffer[pos++] = (byte) s;
+        }
+        byte result[] = new byte[pos];
+        System.arraycopy(buffer, 0, result, 0, pos);
+        return result;
+    }
+
+    /**
+     * @param buffer
+     * @param base Position of the row in the buffer.
+     * @return The row id of the compressed row at position base.
+     */
+    public static int getRowIndex(ByteBuffer buffer, int base) {
+        checkHeader(buffer, base);
+        return buffer.getInt(base + 4);
+    }
+
+    /**
+     * @param buffer
+     * @param base Position of the row in the buffer.
+     * @return The number of columns in the compressed row at position base.
+     */
+    public static int getNumCols(ByteBuffer buffer, int base) {
+        checkHeader(buffer, base);
+        return getVarInt(buffer, base + 8);
+    }
+
+    /**
+     * Decodes the columns of the compressed row at position base.
+     * The id and value arrays must have room for at least getNumCols() entries.
+     * @return The number of columns decoded.
+     */
+    public static int decode(ByteBuffer buffer, int base, int ids[], short vals[]) {
+        checkHeader(buffer, base);
+        int pos = base + 8;
+        int n = getVarInt(buffer, pos);
+        pos += sizeOfVarInt(n);
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+            int v = getVarInt(buffer, pos);
+            pos += sizeOfVarInt(v);
+            last = (i == 0) ? ((v >>> 1) ^ -(v & 1)) : last + v;
+            ids[i] = last;
+        }
+        for (int i = 0; i < n; i++) {
+            vals[i] = buffer.getShort(pos);
+            pos += 2;
+        }
+        return n;
+    }
+
+    /**
+     * Decodes the compressed row at position base into a new sparse matrix row.
+     */
+    public static SparseMatrixRow decode(ValueConf vconf, ByteBuffer buffer, int base) {
+        int n = getNumCols(buffer, base);
+        int ids[] = new int[n];
+        short vals[] = new short[n];
+        decode(buffer, base, ids, vals);
+        return new SparseMatrixRow(vconf, getRowIndex(buffer, base), ids, vals);
+    }
+
+    private static void checkHeader(ByteBuffer buffer, int base) {
+        if (buffer.getInt(base) != HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+    }
+
+    private static int putInt(byte buffer[], int pos, int i) {
+        buffer[pos++] = (byte) (i >> 24);
+        buffer[pos++] = (byte) (i >> 16);
+        buffer[pos++] = (byte) (i >> 8);
+        buffer[pos++] = (byte) i;
+        return pos;
+    }
+
+    private static int putVarInt(byte buffer[], int pos, int i) {
+        while ((i & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        buffer[pos++] = (byte) i;
+        return pos;
+    }
+
+    private static int getVarInt(ByteBuffer buffer, int pos) {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(pos++);
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static int sizeOfVarInt(int i) {
+        if ((i & (~0 << 7)) == 0) return 1;
+        if ((i & (~0 << 14)) == 0) return 2;
+        if ((i & (~0 << 21)) == 0) return 3;
+        if ((i & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+}
@@ -111,6 +111,16 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         }
     }
 
+    /**
+     * Creates a new cursor over the rows of this matrix.
+     * A cursor can be repeatedly moved to different rows without allocating,
+     * but must not be shared between threads.
+     * @return
+     */
+    public DenseMatrixCursor cursor() {
+        return new DenseMatrixCursor(this);
+    }
+
     @Override
     public int[] getRowIds() {
         return rowBuffers.getRowIdsInDiskOrder();
@@ -0,0 +1,77 @@
+package org.wikibrain.matrix;
+
+/**
+ * A cursor over the rows of a dense matrix.
+ * Reads the same row layout as {@link DenseMatrixRow} without wrapping it in a new object.
+ *
+ * @author Shilad Sen
+ */
+public final class DenseMatrixCursor extends MatrixCursor {
+    private final DenseMatrix matrix;
+    private final ValueConf vconf;
+    private final int[] colIds;
+    private final float c1;
+    private final float c2;
+
+    private int rowIndex;
+    private int valBase;
+
+    DenseMatrixCursor(DenseMatrix matrix) {
+        super(matrix.rowBuffers);
+        this.matrix = matrix;
+        this.vconf = matrix.getValueConf();
+        this.colIds = matrix.getColIds();
+        this.c1 = vconf.c1;
+        this.c2 = vconf.c2;
+    }
+
+    @Override
+    protected void readHeader() {
+        if (page.getInt(base) != DenseMatrixRow.HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        rowIndex = page.getInt(base + 4);
+        valBase = base + 8;
+    }
+
+    public double dot(float [] vector) {
+        if (vector.length != colIds.length) throw new IllegalArgumentException();
+        double sum = 0.0;
+        for (int i = 0; i < vector.length; i++) {
+            sum += vector[i] * (c1 * page.getShort(valBase + 2 * i) + c2);
+        }
+        return sum;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return colIds[i];
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return vconf.unpack(page.getShort(valBase + 2 * i));
+    }
+
+    public short getPackedColValue(int i) {
+        return page.getShort(valBase + 2 * i);
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return colIds.length;
+    }
+
+    public ValueConf getValueConf() {
+        return vconf;
+    }
+
+    public DenseMatrix getMatrix() {
+        return matrix;
+    }
+}
@@ -0,0 +1,148 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable index over the memory mapped pages of a matrix file.
+ *
+ * Page boundaries are stored in sorted arrays, so the page containing an offset
+ * is found by binary search. Pages are mapped lazily without locking; if two
+ * threads race to map the same page one of the mappings is simply discarded.
+ *
+ * Each thread reads through its own duplicates of the mapped pages, so readers
+ * never mutate shared buffer state and never contend on a monitor.
+ *
+ * @author Shilad Sen
+ */
+public class MappedPageIndex {
+    private final FileChannel channel;
+
+    /**
+     * Start (inclusive) and end (exclusive) file offsets of each page, sorted.
+     */
+    private final long[] starts;
+    private final long[] ends;
+
+    private final AtomicReferenceArray<MappedByteBuffer> pages;
+
+    private final ThreadLocal<ByteBuffer[]> views = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[starts.length];
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param channel The channel backing the matrix.
+     * @param starts Page start offsets in increasing order.
+     * @param ends Page end offsets. Page i covers [starts[i], ends[i]).
+     */
+    public MappedPageIndex(FileChannel channel, long starts[], long ends[]) {
+        if (starts.length != ends.length) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < starts.length; i++) {
+            if (ends[i] < starts[i] || (i > 0 && starts[i] < ends[i-1])) {
+                throw new IllegalArgumentException("Pages must be sorted and non-overlapping");
+            }
+        }
+        this.channel = channel;
+        this.starts = starts.clone();
+        this.ends = ends.clone();
+        this.pages = new AtomicReferenceArray<MappedByteBuffer>(starts.length);
+    }
+
+    /**
+     * Returns a buffer beginning at the specified file offset and extending to the end of its page.
+     * @param offset
+     * @return The buffer, or null if no page contains the offset.
+     * @throws IOException
+     */
+    public ByteBuffer slice(long offset) throws IOException {
+        int i = getPageIndex(offset);
+        if (i < 0) {
+            return null;
+        }
+        ByteBuffer[] local = views.get();
+        ByteBuffer view = local[i];
+        if (view == null) {
+            view = getPage(i).duplicate();
+            local[i] = view;
+        }
+        view.position((int) (offset - starts[i]));
+        return view.slice();
+    }
+
+    /**
+     * @param offset
+     * @return The index of the page containing the offset, or -1 if none does.
+     */
+    public int getPageIndex(long offset) {
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offset < starts[mid]) {
+                hi = mid - 1;
+            } else if (offset >= ends[mid]) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getNumPages() {
+        return starts.length;
+    }
+
+    /**
+     * @param i
+     * @return The file offset at which page i begins.
+     */
+    public long getPageStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * Returns the mapped buffer backing page i.
+     * The buffer is shared by all threads, so callers must only use absolute reads.
+     * @param i
+     * @return
+     * @throws IOException
+     */
+    public MappedByteBuffer getPage(int i) throws IOException {
+        if (closed) {
+            throw new IOException("page index has been closed");
+        }
+        MappedByteBuffer page = pages.get(i);
+        if (page == null) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, starts[i], ends[i] - starts[i]);
+            if (pages.compareAndSet(i, null, mapped)) {
+                page = mapped;
+            } else {
+                page = pages.get(i);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Releases references to all mapped pages.
+     * Thread local views held by other threads are released when this index is collected.
+     */
+    public void close() {
+        closed = true;
+        for (int i = 0; i < pages.length(); i++) {
+            pages.set(i, null);
+        }
+        views.remove();
+    }
+}
@@ -0,0 +1,61 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, re-pointable view of a single row in a memory mapped matrix.
+ *
+ * Unlike {@link Matrix#getRow(int)}, moving a cursor to a new row does not allocate.
+ * The cursor reads directly from the mapped page using absolute offsets, so it remains
+ * valid until it is moved again. A cursor must not be shared between threads, but any
+ * number of cursors may read the same matrix concurrently.
+ *
+ * @author Shilad Sen
+ */
+public abstract class MatrixCursor extends BaseMatrixRow {
+    private final MemoryMappedMatrix rowBuffers;
+
+    /**
+     * The page containing the current row, and the position of the row within the page.
+     */
+    protected ByteBuffer page;
+    protected int base;
+
+    protected MatrixCursor(MemoryMappedMatrix rowBuffers) {
+        this.rowBuffers = rowBuffers;
+    }
+
+    /**
+     * Points the cursor at a new row.
+     * @param rowId
+     * @return true if the row exists. If false, the cursor is not positioned at any row.
+     * @throws IOException
+     */
+    public final boolean moveTo(int rowId) throws IOException {
+        if (rowBuffers.seek(rowId, this)) {
+            readHeader();
+            return true;
+        } else {
+            page = null;
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the cursor currently points at a row.
+     */
+    public final boolean isPositioned() {
+        return page != null;
+    }
+
+    final void setPosition(ByteBuffer page, int base) {
+        this.page = page;
+        this.base = base;
+    }
+
+    /**
+     * Called after the cursor is moved to read any per-row header information.
+     */
+    protected abstract void readHeader();
+}
@@ -8,13 +8,10 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import gnu.trove.list.array.TLongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +19,9 @@ import org.slf4j.LoggerFactory;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * Row lookups are lock-free: pages are resolved through an immutable {@link MappedPageIndex},
+ * and each thread reads through its own duplicates of the mapped pages.
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = LoggerFactory.getLogger(MemoryMappedMatrix.class);
@@ -29,8 +29,9 @@ public class MemoryMappedMatrix {
     public static final int PAGE_SIZE = 1024 * 1024 * 1024;     // 1GB
 
     private FileChannel channel;
-    protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
+    protected MappedPageIndex pages;
     private File path;
+    private final long pageSize;
 
     private final IntBuffer rowIds;     // row ids in order of offsets on disk
     private final LongBuffer rowOffsets;      // row offsets associated with sorted ids
@@ -43,7 +44,15 @@ public class MemoryMappedMatrix {
     }
 
     public MemoryMappedMatrix(File path, FileChannel channel, IntBuffer rowIds, LongBuffer rowOffsets) throws IOException {
+        this(path, channel, rowIds, rowOffsets, PAGE_SIZE);
+    }
+
+    /**
+     * Package-private so that tests can exercise matrices that span many pages.
+     */
+    MemoryMappedMatrix(File path, FileChannel channel, IntBuffer rowIds, LongBuffer rowOffsets, long pageSize) throws IOException {
         this.path = path;
+        this.pageSize = pageSize;
         this.channel = channel;
         if (rowIds.capacity() != rowOffsets.capacity()) {
             throw new IllegalArgumentException();
@@ -62,8 +71,8 @@ public class MemoryMappedMatrix {
     }
 
     public void close() throws IOException {
-        for (MappedBufferWrapper buffer : buffers) {
-            buffer.close();
+        if (pages != null) {
+            pages.close();
         }
         // try to garbage collect any freed buffers
         System.gc();
@@ -74,6 +83,7 @@ public class MemoryMappedMatrix {
 
     private void pageInRows() throws IOException {
         if (numRows == 0) {
+            pages = new MappedPageIndex(channel, new long[0], new long[0]);
             return;
         }
         // tricky: pages must align with row boundaries
@@ -83,26 +93,31 @@ public class MemoryMappedMatrix {
         }
         Arrays.sort(sortedOffsets);
 
+        TLongArrayList starts = new TLongArrayList();
+        TLongArrayList ends = new TLongArrayList();
+
         long startPos = sortedOffsets[0];
         long lastPos = startPos;
 
         for (int i = 1; i < numRows; i++) {
             long pos = sortedOffsets[i];
-            if (pos - startPos > PAGE_SIZE) {
+            if (pos - startPos > pageSize) {
                 assert(lastPos != startPos);
-                addBuffer(startPos, lastPos);
+                addPage(starts, ends, startPos, lastPos);
                 startPos = lastPos;
             }
             lastPos = pos;
         }
-        addBuffer(startPos, channel.size());
+        addPage(starts, ends, startPos, channel.size());
+        pages = new MappedPageIndex(channel, starts.toArray(), ends.toArray());
     }
 
 
-    private void addBuffer(long startPos, long endPos) throws IOException {
+    private void addPage(TLongArrayList starts, TLongArrayList ends, long startPos, long endPos) {
         long length = endPos - startPos;
         debug("adding page at " + startPos + " of length " + length);
-        buffers.add(new MappedBufferWrapper(channel, startPos, endPos));
+        starts.add(startPos);
+        ends.add(endPos);
     }
 
     public ByteBuffer getRow(int rowId) throws IOException {
@@ -110,18 +125,32 @@ public class MemoryMappedMatrix {
         if (targetOffset < 0) {
             return null;
         }
-        MappedBufferWrapper row = null;
-        // TODO: binary search
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
-            }
-        }
+        ByteBuffer row = pages.slice(targetOffset);
         if (row == null) {
             throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
         }
-        return row.get(targetOffset);
+        return row;
+    }
+
+    /**
+     * Points a cursor at the page and position that holds a row.
+     * Unlike getRow, this does not allocate.
+     * @param rowId
+     * @param cursor
+     * @return true if the row exists, false otherwise.
+     * @throws IOException
+     */
+    boolean seek(int rowId, MatrixCursor cursor) throws IOException {
+        long targetOffset = getRowOffset(rowId);
+        if (targetOffset < 0) {
+            return false;
+        }
+        int i = pages.getPageIndex(targetOffset);
+        if (i < 0) {
+            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
+        }
+        cursor.setPosition(pages.getPage(i), (int) (targetOffset - pages.getPageStart(i)));
+        return true;
     }
 
     private long getRowOffset(int rowId) {
@@ -142,27 +171,8 @@ public class MemoryMappedMatrix {
         return -1;
     }
 
-    static class MappedBufferWrapper {
-        FileChannel channel;
-        MappedByteBuffer buffer;
-        long start;
-        long end;
-
-        public MappedBufferWrapper(FileChannel channel, long start, long end) {
-            this.channel = channel;
-            this.start = start;
-            this.end = end;
-        }
-        public synchronized ByteBuffer get(long position) throws IOException {
-            if (buffer == null) {
-                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
-            }
-            buffer.position((int) (position - start));
-            return buffer.slice();
-        }
-        public synchronized void close() {
-            buffer = null;
-        }
+    public int getNumPages() {
+        return pages.getNumPages();
     }
 
     public synchronized  int[] getRowIdsInDiskOrder() {
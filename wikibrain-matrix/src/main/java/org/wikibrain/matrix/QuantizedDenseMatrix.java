@@ -0,0 +1,199 @@
+package org.wikibrain.matrix;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dense matrix whose values are quantized to one signed byte each, with a scale factor per row.
+ *
+ * Compared to {@link DenseMatrix}, rows take half the space, so brute force scans read half as
+ * much memory. Scans should use a {@link QuantizedDenseMatrixCursor}, which computes dot products
+ * directly against the memory mapped bytes.
+ *
+ * Build one from an existing dense matrix with {@link QuantizedDenseMatrixWriter#write(DenseMatrix, File)}.
+ */
+public class QuantizedDenseMatrix implements Matrix<QuantizedDenseMatrixRow> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(QuantizedDenseMatrix.class);
+
+    public static final int FILE_HEADER = 0xabccbb;
+    public static final int ROW_HEADER = 0xfefefef9;
+
+    private int numRows;
+    private IntBuffer rowIds;
+    private LongBuffer rowOffsets;
+
+    private int colIds[];
+    private FileChannel channel;
+    private File path;
+
+    MemoryMappedMatrix rowBuffers;
+
+    /**
+     * Create a quantized dense matrix based on the data in a particular file.
+     * @param path Path to the matrix data file.
+     * @throws java.io.IOException
+     */
+    public QuantizedDenseMatrix(File path) throws IOException {
+        this(path, MemoryMappedMatrix.PAGE_SIZE);
+    }
+
+    /**
+     * Package-private so that tests can exercise matrices that span many pages.
+     */
+    QuantizedDenseMatrix(File path, long pageSize) throws IOException {
+        this.path = path;
+        info("initializing quantized dense matrix with file length " + FileUtils.sizeOf(path));
+        this.channel = (new FileInputStream(path)).getChannel();
+        readHeaders();
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets, pageSize);
+    }
+
+    private void readHeaders() throws IOException {
+        long size = Math.min(channel.size(), DenseMatrix.DEFAULT_HEADER_SIZE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        // read header
+        if (buffer.getInt(0) != FILE_HEADER) {
+            throw new IOException("invalid file header: " + buffer.getInt(0));
+        }
+        this.numRows = buffer.getInt(4);
+        int numCols = buffer.getInt(8);
+        int headerSize = 12 + 12 * numRows + 4 * numCols;
+        if (headerSize > DenseMatrix.DEFAULT_HEADER_SIZE) {
+            info("maxPageSize not large enough for entire header. Resizing to " + headerSize);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize);
+        }
+
+        buffer.position(12);
+        buffer.limit(buffer.position() + 4 * numRows);
+        rowIds = buffer.slice().asIntBuffer();
+        if (rowIds.capacity() != numRows) {
+            throw new IllegalStateException();
+        }
+        buffer.limit(headerSize);
+        buffer.position(12 + 4 * numRows);
+        buffer.limit(buffer.position() + 8 * numRows);
+        rowOffsets = buffer.slice().asLongBuffer();
+        if (rowOffsets.capacity() != numRows) {
+            throw new IllegalStateException();
+        }
+
+        // read column ids
+        buffer.limit(headerSize);
+        int pos = 12 + 12 * numRows;
+        colIds = new int[numCols];
+        for (int i = 0; i < numCols; i++) {
+            colIds[i] = buffer.getInt(pos);
+            pos += 4;
+        }
+        if (!SparseMatrixUtils.isIncreasing(colIds)) {
+            throw new IllegalArgumentException("Columns must be sorted by id");
+        }
+        info("read " + colIds.length + " column ids");
+    }
+
+    @Override
+    public QuantizedDenseMatrixRow getRow(int rowId) throws IOException {
+        ByteBuffer bb = rowBuffers.getRow(rowId);
+        if (bb == null) {
+            return null;
+        }
+        if (bb.getInt(0) != ROW_HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        byte vals[] = new byte[colIds.length];
+        bb.position(16);
+        bb.get(vals);
+        return new QuantizedDenseMatrixRow(bb.getInt(4), colIds, vals, bb.getFloat(8), bb.getFloat(12));
+    }
+
+    /**
+     * Creates a new cursor over the rows of this matrix.
+     * A cursor can be repeatedly moved to different rows without allocating,
+     * but must not be shared between threads.
+     * @return
+     */
+    public QuantizedDenseMatrixCursor cursor() {
+        return new QuantizedDenseMatrixCursor(this);
+    }
+
+    /**
+     * Quantizes a query vector so that it can be compared to rows of this matrix.
+     * @param vector One value per column of the matrix.
+     * @return
+     */
+    public QuantizedDenseMatrixRow quantize(float vector[]) {
+        if (vector.length != colIds.length) {
+            throw new IllegalArgumentException();
+        }
+        return new QuantizedDenseMatrixRow(-1, colIds, vector);
+    }
+
+    @Override
+    public int[] getRowIds() {
+        return rowBuffers.getRowIdsInDiskOrder();
+    }
+
+    public int[] getColIds() {
+        return colIds;
+    }
+
+    @Override
+    public int getNumRows() {
+        return numRows;
+    }
+
+    @Override
+    public Iterator<QuantizedDenseMatrixRow> iterator() {
+        return new QuantizedDenseMatrixIterator();
+    }
+
+    public class QuantizedDenseMatrixIterator implements Iterator<QuantizedDenseMatrixRow> {
+        private AtomicInteger i = new AtomicInteger();
+        private int[] rowIds = rowBuffers.getRowIdsInDiskOrder();
+        @Override
+        public boolean hasNext() {
+            return i.get() < numRows;
+        }
+        @Override
+        public QuantizedDenseMatrixRow next() {
+            try {
+                return getRow(rowIds[i.getAndIncrement()]);
+            } catch (IOException e) {
+                LOG.error("getRow failed", e);
+                return null;
+            }
+        }
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        rowBuffers.close();
+    }
+
+    private void info(String message) {
+        LOG.info("quantized dense matrix " + path + ": " + message);
+    }
+}
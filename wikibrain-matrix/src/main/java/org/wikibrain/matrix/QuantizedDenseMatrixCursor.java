@@ -0,0 +1,128 @@
+package org.wikibrain.matrix;
+
+/**
+ * A cursor over the rows of a quantized dense matrix.
+ *
+ * Dot products are computed in integer arithmetic directly against the mapped page.
+ * The kernel reads eight column values at a time as a single long and keeps four
+ * independent accumulators, so the inner loop has no per-byte bounds checks and
+ * few data dependencies.
+ *
+ * @author Shilad Sen
+ */
+public final class QuantizedDenseMatrixCursor extends MatrixCursor {
+    private final QuantizedDenseMatrix matrix;
+    private final int[] colIds;
+
+    private int rowIndex;
+    private float scale;
+    private float norm;
+    private int valBase;
+
+    QuantizedDenseMatrixCursor(QuantizedDenseMatrix matrix) {
+        super(matrix.rowBuffers);
+        this.matrix = matrix;
+        this.colIds = matrix.getColIds();
+    }
+
+    @Override
+    protected void readHeader() {
+        if (page.getInt(base) != QuantizedDenseMatrix.ROW_HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        rowIndex = page.getInt(base + 4);
+        scale = page.getFloat(base + 8);
+        norm = page.getFloat(base + 12);
+        valBase = base + 16;
+    }
+
+    /**
+     * @return The integer dot product of the quantized values of the current row and the query.
+     */
+    public long dotQuantized(QuantizedDenseMatrixRow query) {
+        byte q[] = query.getPackedValues();
+        if (q.length != colIds.length) throw new IllegalArgumentException();
+        int n = q.length;
+        long sum = 0;
+        int i = 0;
+        int pos = valBase;
+        // Each block of eight products fits easily in an int (8 * 127 * 127).
+        for (; i + 8 <= n; i += 8, pos += 8) {
+            long v = page.getLong(pos);
+            int s0 = ((byte) (v >>> 56)) * q[i] + ((byte) (v >>> 48)) * q[i + 1];
+            int s1 = ((byte) (v >>> 40)) * q[i + 2] + ((byte) (v >>> 32)) * q[i + 3];
+            int s2 = ((byte) (v >>> 24)) * q[i + 4] + ((byte) (v >>> 16)) * q[i + 5];
+            int s3 = ((byte) (v >>> 8)) * q[i + 6] + ((byte) v) * q[i + 7];
+            sum += (s0 + s1) + (s2 + s3);
+        }
+        for (; i < n; i++, pos++) {
+            sum += page.get(pos) * q[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return The approximate dot product of the current row and the query.
+     */
+    public double dot(QuantizedDenseMatrixRow query) {
+        return dotQuantized(query) * (double) scale * query.getScale();
+    }
+
+    /**
+     * @return The cosine similarity of the quantized values of the current row and the query,
+     * or 0 if either is all zeros.
+     */
+    public double cosine(QuantizedDenseMatrixRow query) {
+        double denom = norm * query.getNorm();
+        return (denom == 0.0) ? 0.0 : dot(query) / denom;
+    }
+
+    /**
+     * @return The approximate dot product of the current row and an unquantized vector.
+     */
+    public double dot(float [] vector) {
+        if (vector.length != colIds.length) throw new IllegalArgumentException();
+        double sum = 0.0;
+        for (int i = 0; i < vector.length; i++) {
+            sum += vector[i] * page.get(valBase + i);
+        }
+        return sum * scale;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return colIds[i];
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return scale * page.get(valBase + i);
+    }
+
+    public byte getPackedColValue(int i) {
+        return page.get(valBase + i);
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return colIds.length;
+    }
+
+    @Override
+    public double getNorm() {
+        return norm;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public QuantizedDenseMatrix getMatrix() {
+        return matrix;
+    }
+}
@@ -0,0 +1,125 @@
+package org.wikibrain.matrix;
+
+/**
+ * A dense matrix row whose values are quantized to signed bytes.
+ *
+ * Each row has its own scale factor: value i is approximately scale * getPackedColValue(i).
+ * Quantization is symmetric, so the largest absolute value in the row maps to 127.
+ * The row also records the norm of its quantized values, which makes cosine similarity
+ * a single integer dot product followed by one multiplication and one division.
+ *
+ * Rows are used both as the result of {@link QuantizedDenseMatrix#getRow(int)}
+ * and as query vectors for {@link QuantizedDenseMatrixCursor#cosine(QuantizedDenseMatrixRow)}.
+ *
+ * @author Shilad Sen
+ */
+public final class QuantizedDenseMatrixRow extends BaseMatrixRow {
+    private final int rowIndex;
+    private final int colIds[];
+    private final byte vals[];
+    private final float scale;
+    private final float norm;
+
+    /**
+     * Quantizes a vector of floats.
+     * @param rowIndex
+     * @param colIds Column ids, in increasing order.
+     * @param colVals
+     */
+    public QuantizedDenseMatrixRow(int rowIndex, int colIds[], float colVals[]) {
+        if (colIds.length != colVals.length) {
+            throw new IllegalArgumentException("Column ids and values must be the same length");
+        }
+        this.rowIndex = rowIndex;
+        this.colIds = colIds;
+        this.vals = new byte[colVals.length];
+
+        float max = 0.0f;
+        for (float v : colVals) {
+            max = Math.max(max, Math.abs(v));
+        }
+        this.scale = (max == 0.0f) ? 1.0f : max / 127.0f;
+        long sumSquares = 0;
+        for (int i = 0; i < colVals.length; i++) {
+            int q = Math.round(colVals[i] / scale);
+            vals[i] = (byte) Math.max(-127, Math.min(127, q));
+            sumSquares += vals[i] * vals[i];
+        }
+        this.norm = (float) (scale * Math.sqrt(sumSquares));
+    }
+
+    /**
+     * Wraps values that have already been quantized.
+     */
+    QuantizedDenseMatrixRow(int rowIndex, int colIds[], byte vals[], float scale, float norm) {
+        this.rowIndex = rowIndex;
+        this.colIds = colIds;
+        this.vals = vals;
+        this.scale = scale;
+        this.norm = norm;
+    }
+
+    /**
+     * @return The dot product of the quantized values of this row and another row.
+     */
+    public double dot(QuantizedDenseMatrixRow that) {
+        if (that.vals.length != vals.length) throw new IllegalArgumentException();
+        long sum = 0;
+        for (int i = 0; i < vals.length; i++) {
+            sum += vals[i] * that.vals[i];
+        }
+        return sum * scale * that.scale;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return colIds[i];
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return scale * vals[i];
+    }
+
+    public byte getPackedColValue(int i) {
+        return vals[i];
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return colIds.length;
+    }
+
+    /**
+     * @return The norm of the quantized values.
+     */
+    @Override
+    public double getNorm() {
+        return norm;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    int[] getColIds() {
+        return colIds;
+    }
+
+    byte[] getPackedValues() {
+        return vals;
+    }
+
+    public float[] getValues() {
+        float result[] = new float[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            result[i] = scale * vals[i];
+        }
+        return result;
+    }
+}
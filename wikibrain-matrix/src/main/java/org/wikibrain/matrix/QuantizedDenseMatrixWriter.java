@@ -0,0 +1,163 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntLongHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes matrices in the format read by {@link QuantizedDenseMatrix}.
+ *
+ * Each row contains:
+ * - a header (int),
+ * - a row id (int),
+ * - the scale of the row (float),
+ * - the norm of the quantized row (float),
+ * - one signed byte per column,
+ * and is padded to an 8 byte boundary.
+ */
+public class QuantizedDenseMatrixWriter {
+
+    public static final byte ROW_PADDING = 0;
+
+    private static final Logger LOG = LoggerFactory.getLogger(QuantizedDenseMatrixWriter.class);
+
+    private File path;
+    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
+    private TIntArrayList rowIndexes = new TIntArrayList();
+    private File bodyPath;
+    private BufferedOutputStream body;
+    private long bodyOffset = 0;
+    private int colIds[];
+
+    public QuantizedDenseMatrixWriter(File path) throws IOException {
+        this.path = path;
+        info("writing matrix to " + path);
+
+        // write tmp matrix file
+        this.bodyPath = File.createTempFile("matrix", null);
+        this.bodyPath.deleteOnExit();
+        this.body = new BufferedOutputStream(new FileOutputStream(bodyPath));
+
+        info("writing body to tmp file at " + bodyPath);
+    }
+
+    public synchronized void writeRow(QuantizedDenseMatrixRow row) throws IOException {
+        if (colIds == null) {
+            colIds = row.getColIds();
+        }
+        if (!Arrays.equals(colIds, row.getColIds())) {
+            throw new IllegalArgumentException("Column id mismatch for row " + row.getRowIndex());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(16 + row.getNumCols());
+        buffer.putInt(QuantizedDenseMatrix.ROW_HEADER);
+        buffer.putInt(row.getRowIndex());
+        buffer.putFloat(row.getScale());
+        buffer.putFloat((float) row.getNorm());
+        buffer.put(row.getPackedValues());
+
+        rowOffsets.put(row.getRowIndex(), bodyOffset);
+        rowIndexes.add(row.getRowIndex());
+
+        body.write(buffer.array());
+        bodyOffset += buffer.capacity();
+
+        // pad rows to 8 byte offsets so the dot product kernel can read whole longs.
+        while (bodyOffset % 8 != 0) {
+            bodyOffset++;
+            body.write(ROW_PADDING);
+        }
+    }
+
+    public void finish() throws IOException {
+        body.close();
+        info("wrote " + bodyOffset + " bytes in body of matrix");
+        if (colIds == null) {
+            colIds = new int[0];
+        }
+
+        // write offset file
+        info("generating header");
+        int sizeHeader = 12 + rowOffsets.size() * 12 + colIds.length * 4;
+        body = new BufferedOutputStream(new FileOutputStream(path));
+        body.write(intToBytes(QuantizedDenseMatrix.FILE_HEADER));
+        body.write(intToBytes(rowOffsets.size()));
+        body.write(intToBytes(colIds.length));
+
+        // Next write row indexes in sorted order (4 bytes per row)
+        int sortedIndexes[] = rowIndexes.toArray();
+        Arrays.sort(sortedIndexes);
+        for (int rowIndex : sortedIndexes) {
+            body.write(intToBytes(rowIndex));
+        }
+
+        // Next write offsets for sorted indexes. (8 bytes per row)
+        for (int rowIndex : sortedIndexes) {
+            long rowOffset = rowOffsets.get(rowIndex);
+            body.write(longToBytes(rowOffset + sizeHeader));
+        }
+
+        // Finally, write column ids
+        for (int c : colIds) {
+            body.write(intToBytes(c));
+        }
+
+        InputStream r = new FileInputStream(bodyPath);
+
+        // append other file
+        IOUtils.copyLarge(r, body);
+        r.close();
+        body.flush();
+        body.close();
+
+        info("wrote " + FileUtils.sizeOf(path) + " bytes to " + path);
+    }
+
+    private void info(String message) {
+        LOG.info("quantized dense matrix writer " + path + ": " + message);
+    }
+
+    public static void write(File file, Iterator<QuantizedDenseMatrixRow> rows) throws IOException {
+        QuantizedDenseMatrixWriter w = new QuantizedDenseMatrixWriter(file);
+        while (rows.hasNext()) {
+            w.writeRow(rows.next());
+        }
+        w.finish();
+    }
+
+    /**
+     * Quantizes an existing dense matrix.
+     * @param matrix
+     * @param output
+     * @throws IOException
+     */
+    public static void write(DenseMatrix matrix, File output) throws IOException {
+        QuantizedDenseMatrixWriter w = new QuantizedDenseMatrixWriter(output);
+        DenseMatrixCursor cursor = matrix.cursor();
+        int colIds[] = matrix.getColIds();
+        float vals[] = new float[colIds.length];
+        for (int rowId : matrix.getRowIds()) {
+            cursor.moveTo(rowId);
+            for (int i = 0; i < vals.length; i++) {
+                vals[i] = cursor.getColValue(i);
+            }
+            w.writeRow(new QuantizedDenseMatrixRow(rowId, colIds, vals));
+        }
+        w.finish();
+    }
+
+    private static byte[] intToBytes(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    private static byte[] longToBytes(long i) {
+        return ByteBuffer.allocate(8).putLong(i).array();
+    }
+}
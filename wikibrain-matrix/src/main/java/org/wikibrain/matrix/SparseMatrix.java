@@ -30,6 +30,11 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
 
     public static final int FILE_HEADER = 0xabcdef;
 
+    /**
+     * Header for matrices whose rows are gap encoded by {@link CompressedRowCodec}.
+     */
+    public static final int COMPRESSED_FILE_HEADER = 0xabcdf0;
+
     MemoryMappedMatrix rowBuffers;
 
     private int numRows = 0;
@@ -41,8 +46,16 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
 
 
     private ValueConf vconf;
+    private boolean compressed;
 
     public SparseMatrix(File path) throws IOException {
+        this(path, MemoryMappedMatrix.PAGE_SIZE);
+    }
+
+    /**
+     * Package-private so that tests can exercise matrices that span many pages.
+     */
+    SparseMatrix(File path, long pageSize) throws IOException {
         this.path = path;
         if (!path.isFile()) {
             throw new IOException("File does not exist: " + path);
@@ -50,7 +63,7 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets);
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets, pageSize);
     }
 
     public long lastModified() {
@@ -60,7 +73,11 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
     private void readHeaders() throws IOException {
         long size = Math.min(channel.size(), DEFAULT_HEADER_SIZE);
         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-        if (buffer.getInt(0) != FILE_HEADER) {
+        if (buffer.getInt(0) == FILE_HEADER) {
+            this.compressed = false;
+        } else if (buffer.getInt(0) == COMPRESSED_FILE_HEADER) {
+            this.compressed = true;
+        } else {
             throw new IOException("invalid file header: " + buffer.getInt(0));
         }
         this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
@@ -92,11 +109,23 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         ByteBuffer bb = rowBuffers.getRow(rowId);
         if (bb == null) {
             return null;
+        } else if (compressed) {
+            return CompressedRowCodec.decode(vconf, bb, 0);
         } else {
             return new SparseMatrixRow(vconf, bb);
         }
     }
 
+    /**
+     * Creates a new cursor over the rows of this matrix.
+     * A cursor can be repeatedly moved to different rows without allocating,
+     * but must not be shared between threads.
+     * @return
+     */
+    public SparseMatrixCursor cursor() {
+        return new SparseMatrixCursor(this);
+    }
+
     @Override
     public int[] getRowIds() {
         return rowBuffers.getRowIdsInDiskOrder();
@@ -111,6 +140,13 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         return vconf;
     }
 
+    /**
+     * @return true if rows are stored in the gap encoded format of {@link CompressedRowCodec}.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     @Override
     public Iterator<SparseMatrixRow> iterator() {
         return new SparseMatrixIterator();
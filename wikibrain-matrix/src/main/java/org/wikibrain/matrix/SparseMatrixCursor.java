@@ -0,0 +1,84 @@
+package org.wikibrain.matrix;
+
+/**
+ * A cursor over the rows of a sparse matrix.
+ * Reads the same row layout as {@link SparseMatrixRow} without wrapping it in a new object.
+ * Rows of compressed matrices are decoded into buffers owned by the cursor, which only
+ * grow when a row is longer than any seen before.
+ *
+ * @author Shilad Sen
+ */
+public final class SparseMatrixCursor extends MatrixCursor {
+    private final SparseMatrix matrix;
+    private final ValueConf vconf;
+    private final boolean compressed;
+
+    private int rowIndex;
+    private int numCols;
+    private int idBase;
+    private int valBase;
+
+    // decoded columns, only used for compressed matrices
+    private int ids[] = new int[0];
+    private short vals[] = new short[0];
+
+    SparseMatrixCursor(SparseMatrix matrix) {
+        super(matrix.rowBuffers);
+        this.matrix = matrix;
+        this.vconf = matrix.getValueConf();
+        this.compressed = matrix.isCompressed();
+    }
+
+    @Override
+    protected void readHeader() {
+        if (compressed) {
+            rowIndex = CompressedRowCodec.getRowIndex(page, base);
+            numCols = CompressedRowCodec.getNumCols(page, base);
+            if (numCols > ids.length) {
+                ids = new int[Math.max(numCols, ids.length * 2)];
+                vals = new short[ids.length];
+            }
+            CompressedRowCodec.decode(page, base, ids, vals);
+            return;
+        }
+        if (page.getInt(base) != SparseMatrixRow.HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        rowIndex = page.getInt(base + 4);
+        numCols = page.getInt(base + 8);
+        idBase = base + 12;
+        valBase = idBase + 4 * numCols;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return compressed ? ids[i] : page.getInt(idBase + 4 * i);
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return vconf.unpack(getPackedColValue(i));
+    }
+
+    public short getPackedColValue(int i) {
+        return compressed ? vals[i] : page.getShort(valBase + 2 * i);
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return numCols;
+    }
+
+    public ValueConf getValueConf() {
+        return vconf;
+    }
+
+    public SparseMatrix getMatrix() {
+        return matrix;
+    }
+}
@@ -1,29 +1,39 @@
 package org.wikibrain.matrix;
 
-import gnu.trove.impl.Constants;
-import gnu.trove.impl.hash.TIntHash;
-import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.array.TShortArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.set.hash.TIntHashSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Transposes a sparse matrix that may be larger than memory.
+ *
+ * The sorted column space is split into batches whose transposed rows fit in a
+ * bounded buffer. Each batch is filled by a single pass over the source matrix, with
+ * the rows split among the worker threads. Cells are placed in arbitrary order within
+ * their transposed row and sorted when the row is written (see {@link SparseMatrixRow}),
+ * so the output file is identical regardless of the number of threads.
+ */
 public class SparseMatrixTransposer {
     final static Logger LOG = LoggerFactory.getLogger(SparseMatrixTransposer.class);
 
+    // Column ids each worker collects before merging them into the shared counts.
+    private static final int COUNT_BUFFER_SIZE = 64 * 1024;
+
     private SparseMatrixWriter writer;
     private SparseMatrix matrix;
-    private int colIds[];
-    private TIntIntHashMap colCounts = new TIntIntHashMap();
+    private int colIds[];       // sorted
+    private int colCounts[];    // number of cells in each column, parallel to colIds
     private int bufferMb;
+    private int numThreads;
     private int numColsTransposed = 0;
 
 
@@ -32,112 +42,250 @@ public class SparseMatrixTransposer {
     }
 
     public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb) throws IOException {
+        this(m, f, bufferMb, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param m The matrix to transpose.
+     * @param f The output path.
+     * @param bufferMb The total buffer size for a batch of transposed rows.
+     * @param numThreads The number of worker threads.
+     * @throws IOException
+     */
+    public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb, int numThreads) throws IOException {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
         this.matrix = m;
-        this.writer = new SparseMatrixWriter(f, m.getValueConf());
+        this.writer = new SparseMatrixWriter(f, m.getValueConf(), m.isCompressed());
         this.bufferMb = bufferMb;
+        this.numThreads = numThreads;
         this.numColsTransposed = 0;
     }
 
     public void transpose() throws IOException {
-        countCellsPerColumn();
-        while (numColsTransposed < colIds.length) {
-            Map<Integer, RowAccumulator> batch = accumulateBatch();
-            writeBatch(batch.values());
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            countCellsPerColumn(exec);
+            while (numColsTransposed < colIds.length) {
+                Batch batch = nextBatch(bufferMb);
+                batch.accumulate(exec);
+                writeBatch(batch);
+            }
+        } finally {
+            exec.shutdownNow();
         }
         this.writer.finish();
     }
 
-    private void countCellsPerColumn() throws IOException {
-        for (int id : matrix.getRowIds()) {
-            MatrixRow row = matrix.getRow(id);
-            for (int i = 0; i < row.getNumCols(); i++) {
-                colCounts.adjustOrPutValue(row.getColIndex(i), 1, 1);
-            }
+    /**
+     * Counts the cells in each column. Workers scan disjoint ranges of rows and merge
+     * bounded buffers of column ids into a single shared map.
+     */
+    private void countCellsPerColumn(ExecutorService exec) throws IOException {
+        final int rowIds[] = matrix.getRowIds();
+        final TIntIntHashMap counts = new TIntIntHashMap();
+        List<Future<Object>> workers = new ArrayList<Future<Object>>();
+        for (final int range[] : splitRows(rowIds.length)) {
+            workers.add(exec.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    int buffer[] = new int[COUNT_BUFFER_SIZE];
+                    int n = 0;
+                    SparseMatrixCursor row = matrix.cursor();
+                    for (int j = range[0]; j < range[1]; j++) {
+                        row.moveTo(rowIds[j]);
+                        for (int k = 0; k < row.getNumCols(); k++) {
+                            if (n == buffer.length) {
+                                mergeCounts(counts, buffer, n);
+                                n = 0;
+                            }
+                            buffer[n++] = row.getColIndex(k);
+                        }
+                    }
+                    mergeCounts(counts, buffer, n);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> f : workers) {
+            get(f);
         }
 
-        colIds = colCounts.keys();
+        colIds = counts.keys();
         LOG.info("found " + colIds.length + " unique column ids in matrix");
         Arrays.sort(colIds);
+        colCounts = new int[colIds.length];
+        for (int i = 0; i < colIds.length; i++) {
+            colCounts[i] = counts.get(colIds[i]);
+        }
     }
 
-    protected Map<Integer, RowAccumulator> accumulateBatch() {
-        Map<Integer, RowAccumulator> transposedBatch = new LinkedHashMap<Integer, RowAccumulator>();
-
-        // figure out which columns we are tracking
-        double mbs = 0;
-        TIntHashSet colIdsInBatch = new TIntHashSet();
-        for (int i = numColsTransposed; i  < colIds.length; i++) {
-            int colId = colIds[i];
-            int colSize = colCounts.get(colId);
-            double rowMbs = getSizeInMbOfRowDataStructure(colSize);
-            if (mbs + rowMbs > bufferMb) {
-                break;
-            }
-            colIdsInBatch.add(colId);
-            mbs += rowMbs;
-        }
-        numColsTransposed += colIdsInBatch.size();
-        LOG.info("processing " + colIdsInBatch.size() + " columns in batch (total=" + numColsTransposed + " of " + colCounts.size() + ")");
-
-        for (SparseMatrixRow row : matrix) {
-            int rowId = row.getRowIndex();
-            for (int i = 0; i < row.getNumCols(); i++) {
-                int colId = row.getColIndex(i);
-                if (!colIdsInBatch.contains(colId)) {
-                    continue;
-                }
-                short colValue = row.getPackedColValue(i);
-                if (!transposedBatch.containsKey(colId)) {
-                    transposedBatch.put(colId, new RowAccumulator(colId));
+    /**
+     * Sorts the first n column ids and adds their run lengths to the shared counts.
+     */
+    private static void mergeCounts(TIntIntHashMap counts, int colIds[], int n) {
+        Arrays.sort(colIds, 0, n);
+        synchronized (counts) {
+            for (int i = 0; i < n; ) {
+                int j = i + 1;
+                while (j < n && colIds[j] == colIds[i]) {
+                    j++;
                 }
-                transposedBatch.get(colId).addCol(rowId, colValue);
+                counts.adjustOrPutValue(colIds[i], j - i, j - i);
+                i = j;
             }
         }
+    }
 
-        for (int id : transposedBatch.keySet()) {
-            if (colCounts.get(id) != transposedBatch.get(id).size()) {
-                throw new IllegalArgumentException("row size unexpected!");
-            }
+    /**
+     * Splits the row indexes [0, numRows) into one contiguous range per worker.
+     */
+    private List<int[]> splitRows(int numRows) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int chunk = (numRows + numThreads - 1) / numThreads;
+        for (int i = 0; i < numThreads; i++) {
+            int from = Math.min(numRows, i * chunk);
+            int to = Math.min(numRows, from + chunk);
+            ranges.add(new int[] { from, to });
         }
+        return ranges;
+    }
 
-        return transposedBatch;
+    /**
+     * Claims the next run of columns whose transposed rows fit in the given buffer.
+     * A batch always contains at least one column, even if that column alone is too large.
+     */
+    private Batch nextBatch(double mbs) {
+        int start = numColsTransposed;
+        int end = start;
+        double used = 0;
+        while (end < colIds.length) {
+            double colMbs = getSizeInMbOfColumn(colCounts[end]);
+            if (end > start && used + colMbs > mbs) {
+                break;
+            }
+            used += colMbs;
+            end++;
+        }
+        numColsTransposed = end;
+        LOG.info("processing " + (end - start) + " columns in batch (total=" + numColsTransposed + " of " + colIds.length + ")");
+        return new Batch(start, end);
     }
 
-    protected void writeBatch(Collection<RowAccumulator> batch) throws IOException {
-        for (RowAccumulator ra: batch) {
-            writer.writeRow(ra.toRow(matrix.getValueConf()));
+    private void writeBatch(Batch batch) throws IOException {
+        ValueConf vconf = matrix.getValueConf();
+        for (int i = batch.start; i < batch.end; i++) {
+            int from = batch.offsets[i - batch.start];
+            int to = batch.offsets[i - batch.start + 1];
+            writer.writeRow(new SparseMatrixRow(vconf, colIds[i],
+                    Arrays.copyOfRange(batch.ids, from, to),
+                    Arrays.copyOfRange(batch.vals, from, to)));
         }
     }
 
-    private static final int BYTES_PER_REF =
-            Integer.valueOf(System.getProperty("sun.arch.data.model")) / 8;
-    private static final int BYTES_PER_OBJECT = 40;     // an estimate at overhead
-    private static final double EXPANSION_FACTOR = 1.0 / Constants.DEFAULT_LOAD_FACTOR;
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
-    private double getSizeInMbOfRowDataStructure(int numEntries) {
+    private double getSizeInMbOfColumn(int numEntries) {
         return (
-            // row accumulator object itself
-            BYTES_PER_OBJECT + 4 + 2 * BYTES_PER_REF +
-            // ids and values in accumulator
-            EXPANSION_FACTOR * numEntries * (4 + 2)
+            // offsets and fill pointer for the column
+            4 + 4 +
+            // ids and values
+            numEntries * (4 + 2)
         ) / (1024.0 * 1024.0);
     }
 
-    private static class RowAccumulator {
-        int id;
-        TIntArrayList colIds = new TIntArrayList();
-        TShortArrayList colVals = new TShortArrayList();
-        RowAccumulator(int id) {
-            this.id = id;
+    /**
+     * The transposed rows for a contiguous run of columns [start, end) in colIds.
+     * Cells for column i are stored, unsorted, in ids and vals between offsets[i - start] and offsets[i - start + 1].
+     */
+    private class Batch {
+        final int start;
+        final int end;
+        int offsets[];
+        int ids[];
+        short vals[];
+
+        Batch(int start, int end) {
+            this.start = start;
+            this.end = end;
         }
-        SparseMatrixRow toRow(ValueConf vconf) {
-            return new SparseMatrixRow(vconf, id, colIds.toArray(), colVals.toArray());
+
+        void accumulate(ExecutorService exec) throws IOException {
+            offsets = new int[end - start + 1];
+            for (int i = start; i < end; i++) {
+                offsets[i - start + 1] = offsets[i - start] + colCounts[i];
+            }
+            final AtomicIntegerArray fill = new AtomicIntegerArray(Arrays.copyOf(offsets, end - start));
+            ids = new int[offsets[end - start]];
+            vals = new short[ids.length];
+
+            final int rowIds[] = matrix.getRowIds();
+            List<Future<Object>> workers = new ArrayList<Future<Object>>();
+            for (final int range[] : splitRows(rowIds.length)) {
+                workers.add(exec.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        int minCol = colIds[start];
+                        int maxCol = colIds[end - 1];
+                        SparseMatrixCursor row = matrix.cursor();
+                        for (int r = range[0]; r < range[1]; r++) {
+                            int rowId = rowIds[r];
+                            row.moveTo(rowId);
+                            int n = row.getNumCols();
+                            for (int j = firstColAtLeast(row, minCol); j < n; j++) {
+                                int colId = row.getColIndex(j);
+                                if (colId > maxCol) {
+                                    break;
+                                }
+                                int k = Arrays.binarySearch(colIds, start, end, colId) - start;
+                                int pos = fill.getAndIncrement(k);
+                                ids[pos] = rowId;
+                                vals[pos] = row.getPackedColValue(j);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> f : workers) {
+                get(f);
+            }
+
+            for (int k = 0; k < fill.length(); k++) {
+                if (fill.get(k) != offsets[k + 1]) {
+                    throw new IllegalArgumentException("row size unexpected!");
+                }
+            }
         }
-        void addCol(int id, short val) {
-            this.colIds.add(id);
-            this.colVals.add(val);
+    }
+
+    /**
+     * Returns the index of the first column in the row whose id is at least colId.
+     */
+    private static int firstColAtLeast(MatrixRow row, int colId) {
+        int lo = 0;
+        int hi = row.getNumCols();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (row.getColIndex(mid) < colId) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
-        int size() { return this.colIds.size(); }
+        return lo;
     }
 
     /**
@@ -160,16 +308,20 @@ public class SparseMatrixTransposer {
 
     public static void main(String args[]) throws IOException {
         int bufferMbs = 0;
+        int numThreads = Runtime.getRuntime().availableProcessors();
         if (args.length == 2) {
             bufferMbs = defaultBufferSizeInMbs();
-        } else if (args.length == 3) {
+        } else if (args.length == 3 || args.length == 4) {
             bufferMbs = Integer.valueOf(args[2]);
+            if (args.length == 4) {
+                numThreads = Integer.valueOf(args[3]);
+            }
         } else {
-            System.err.println("usage: java " + SparseMatrixTransposer.class + " input_path output_path {buffer_in_MBs}");
+            System.err.println("usage: java " + SparseMatrixTransposer.class + " input_path output_path {buffer_in_MBs {num_threads}}");
             System.exit(1);
         }
         SparseMatrix matrix = new SparseMatrix(new File(args[0]));
-        SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, new File(args[1]), bufferMbs);
+        SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, new File(args[1]), bufferMbs, numThreads);
         transposer.transpose();
     }
 }
@@ -28,10 +28,22 @@ public class SparseMatrixWriter {
     private BufferedOutputStream body;
     private long bodyOffset = 0;
     private ValueConf vconf;
+    private boolean compress;
 
     public SparseMatrixWriter(File path, ValueConf conf) throws IOException {
+        this(path, conf, false);
+    }
+
+    /**
+     * @param path
+     * @param conf
+     * @param compress If true, rows are written in the gap encoded format of {@link CompressedRowCodec}.
+     * @throws IOException
+     */
+    public SparseMatrixWriter(File path, ValueConf conf, boolean compress) throws IOException {
         this.path = path;
         this.vconf = conf;
+        this.compress = compress;
         info("writing matrix to " + path);
 
         // write tmp matrix file
@@ -46,9 +58,14 @@ public class SparseMatrixWriter {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        byte[] bytes;
+        if (compress) {
+            bytes = CompressedRowCodec.encode(row);
+        } else {
+            row.getBuffer().rewind();
+            bytes = new byte[row.getBuffer().remaining()];
+            row.getBuffer().get(bytes, 0, bytes.length);
+        }
 
         rowOffsets.put(row.getRowIndex(), bodyOffset);
         rowIndexes.add(row.getRowIndex());
@@ -56,8 +73,8 @@ public class SparseMatrixWriter {
         body.write(bytes);
         bodyOffset += bytes.length;
 
-        // pad rows to 8 byte offsets to speed things up.
-        while (bodyOffset % 8 != 0) {
+        // pad uncompressed rows to 8 byte offsets to speed things up.
+        while (!compress && bodyOffset % 8 != 0) {
             bodyOffset++;
             body.write(ROW_PADDING);
         }
@@ -71,7 +88,7 @@ public class SparseMatrixWriter {
         info("generating header");
         int sizeHeader = 16 + rowOffsets.size() * (4 + 8);
         body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(SparseMatrix.FILE_HEADER));
+        body.write(intToBytes(compress ? SparseMatrix.COMPRESSED_FILE_HEADER : SparseMatrix.FILE_HEADER));
         body.write(floatToBytes(vconf.minScore));
         body.write(floatToBytes(vconf.maxScore));
         body.write(intToBytes(rowOffsets.size()));
@@ -119,6 +136,10 @@ public class SparseMatrixWriter {
         return vconf;
     }
 
+    public boolean isCompressed() {
+        return compress;
+    }
+
     private static byte[] intToBytes(int i) {
         return ByteBuffer.allocate(4).putInt(i).array();
     }
@@ -139,6 +160,18 @@ public class SparseMatrixWriter {
      * @throws IOException
      */
     public static void write(Matrix<? extends MatrixRow> matrix, File output) throws IOException {
+        write(matrix, output, false);
+    }
+
+    /**
+     * Writes a matrix in sparse matrix format, optionally compressed.
+     *
+     * @param matrix
+     * @param output
+     * @param compress
+     * @throws IOException
+     */
+    public static void write(Matrix<? extends MatrixRow> matrix, File output, boolean compress) throws IOException {
         ValueConf vconf = null;
         if (matrix instanceof SparseMatrix) {
             vconf = ((SparseMatrix)matrix).getValueConf();
@@ -153,7 +186,7 @@ public class SparseMatrixWriter {
             }
             vconf = new ValueConf(min, max);
         }
-        SparseMatrixWriter writer = new SparseMatrixWriter(output, vconf);
+        SparseMatrixWriter writer = new SparseMatrixWriter(output, vconf, compress);
         for (MatrixRow r : matrix) {
             if (r instanceof SparseMatrixRow) {
                 writer.writeRow((SparseMatrixRow) r);
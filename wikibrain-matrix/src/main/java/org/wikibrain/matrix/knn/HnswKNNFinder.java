@@ -0,0 +1,578 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixCursor;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Nearest neighbors through a hierarchical navigable small world (HNSW) graph.
+ * See Malkov and Yashunin, "Efficient and robust approximate nearest neighbor search
+ * using Hierarchical Navigable Small World graphs".
+ *
+ * Each row is a node in a layered proximity graph. Every node appears in layer 0, and
+ * exponentially fewer nodes appear in each higher layer. A query greedily descends from
+ * the single entry point in the top layer, then runs a beam search of width maxTraversal
+ * in layer 0. Similarity is cosine similarity.
+ *
+ * Normalized copies of all rows are held in memory (4 bytes per value), since the graph
+ * walk reads rows in random order. The graph itself is saved by save(); the vectors are
+ * reread from the matrix by load().
+ *
+ * The graph can be built by several threads at once. Neighbor lists are replaced, never
+ * modified in place, and are published under striped locks while the graph is being built.
+ *
+ * @author Shilad Sen
+ */
+public class HnswKNNFinder implements KNNFinder {
+    private static final Logger LOG = LoggerFactory.getLogger(HnswKNNFinder.class);
+    private static final int NUM_LOCKS = 1024;
+
+    private final DenseMatrix matrix;
+    private final int [] ids;
+    private final int dimensions;
+
+    // Maximum neighbors per node in layers above 0. Layer 0 allows twice as many.
+    private int m = 16;
+    private int efConstruction = 100;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private long seed = 42;
+
+    private float [][] vectors;     // normalized rows, parallel to ids
+    private int [] levels;          // top layer of each node
+    private int [][][] links;       // links[node][layer] is the neighbor list of the node in the layer
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+    private volatile boolean building = false;
+
+    private final Object [] locks = new Object[NUM_LOCKS];
+    private final Object entryLock = new Object();
+    private final ThreadLocal<Visited> visited = new ThreadLocal<Visited>();
+    private TIntIntHashMap index = null;    // row id to node, built on demand
+
+    public HnswKNNFinder(DenseMatrix matrix) throws IOException {
+        this.matrix = matrix;
+        this.ids = matrix.getRowIds();
+        this.dimensions = matrix.getColIds().length;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public synchronized void build() throws IOException {
+        readVectors();
+        Random random = new Random(seed);
+        double mult = 1.0 / Math.log(m);
+        levels = new int[ids.length];
+        links = new int[ids.length][][];
+        for (int i = 0; i < ids.length; i++) {
+            levels[i] = (int) (-Math.log(1.0 - random.nextDouble()) * mult);
+            links[i] = new int[levels[i] + 1][];
+            for (int l = 0; l <= levels[i]; l++) {
+                links[i][l] = new int[0];
+            }
+        }
+        entryPoint = -1;
+        maxLevel = -1;
+        if (ids.length == 0) {
+            return;
+        }
+
+        building = true;
+        try {
+            insert(0);
+            final AtomicInteger next = new AtomicInteger(1);
+            ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (int t = 0; t < numThreads; t++) {
+                    futures.add(exec.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            for (int i = next.getAndIncrement(); i < ids.length; i = next.getAndIncrement()) {
+                                insert(i);
+                                if (i % 50000 == 0) {
+                                    LOG.info("inserted " + i + " of " + ids.length + " nodes into hnsw graph");
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                exec.shutdownNow();
+            }
+        } finally {
+            building = false;
+        }
+        LOG.info("built hnsw graph with " + ids.length + " nodes and " + (maxLevel + 1) + " layers");
+    }
+
+    private void readVectors() throws IOException {
+        vectors = new float[ids.length][];
+        DenseMatrixCursor cursor = matrix.cursor();
+        for (int i = 0; i < ids.length; i++) {
+            cursor.moveTo(ids[i]);
+            float v[] = new float[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                v[d] = cursor.getColValue(d);
+            }
+            vectors[i] = normalize(v);
+        }
+    }
+
+    private void insert(int node) {
+        int ep;
+        int top;
+        synchronized (entryLock) {
+            ep = entryPoint;
+            top = maxLevel;
+            if (ep < 0) {
+                entryPoint = node;
+                maxLevel = levels[node];
+                return;
+            }
+        }
+        float q[] = vectors[node];
+        int level = levels[node];
+
+        for (int l = top; l > level; l--) {
+            ep = greedy(q, ep, l);
+        }
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            Heap found = searchLayer(q, ep, efConstruction, l, null);
+            int [] candidates = found.idsBySimilarity();
+            ep = candidates[0];
+            int maxLinks = (l == 0) ? 2 * m : m;
+            int [] neighbors = selectNeighbors(q, candidates, m);
+            setNeighbors(node, l, neighbors);
+            for (int n : neighbors) {
+                addLink(n, node, l, maxLinks);
+            }
+        }
+
+        if (level > top) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = node;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a link from a node to a new neighbor, pruning the node's neighbors if it has too many.
+     */
+    private void addLink(int node, int neighbor, int level, int maxLinks) {
+        synchronized (locks[node % NUM_LOCKS]) {
+            int [] old = links[node][level];
+            int [] updated = Arrays.copyOf(old, old.length + 1);
+            updated[old.length] = neighbor;
+            if (updated.length > maxLinks) {
+                updated = selectNeighbors(vectors[node], sortBySimilarity(vectors[node], updated), maxLinks);
+            }
+            links[node][level] = updated;
+        }
+    }
+
+    private void setNeighbors(int node, int level, int [] neighbors) {
+        synchronized (locks[node % NUM_LOCKS]) {
+            links[node][level] = neighbors;
+        }
+    }
+
+    private int [] getNeighbors(int node, int level) {
+        if (!building) {
+            return links[node][level];
+        }
+        synchronized (locks[node % NUM_LOCKS]) {
+            return links[node][level];
+        }
+    }
+
+    /**
+     * Selects diverse neighbors: a candidate is kept only if it is closer to the query than to
+     * any neighbor already kept. Remaining slots are filled with the closest discarded candidates.
+     * @param q
+     * @param candidates Candidates in decreasing order of similarity to q.
+     * @param max
+     */
+    private int [] selectNeighbors(float [] q, int [] candidates, int max) {
+        if (candidates.length <= max) {
+            return candidates;
+        }
+        int [] selected = new int[max];
+        int n = 0;
+        boolean [] used = new boolean[candidates.length];
+        for (int i = 0; i < candidates.length && n < max; i++) {
+            int c = candidates[i];
+            double sim = dot(q, vectors[c]);
+            boolean keep = true;
+            for (int j = 0; j < n; j++) {
+                if (dot(vectors[c], vectors[selected[j]]) > sim) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[n++] = c;
+                used[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && n < max; i++) {
+            if (!used[i]) {
+                selected[n++] = candidates[i];
+            }
+        }
+        return selected;
+    }
+
+    private int [] sortBySimilarity(float [] q, int [] nodes) {
+        Heap heap = new Heap(nodes.length);
+        for (int n : nodes) {
+            heap.push(n, dot(q, vectors[n]));
+        }
+        return heap.idsBySimilarity();
+    }
+
+    private int greedy(float [] q, int ep, int level) {
+        double best = dot(q, vectors[ep]);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int n : getNeighbors(ep, level)) {
+                double sim = dot(q, vectors[n]);
+                if (sim > best) {
+                    best = sim;
+                    ep = n;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Beam search within a single layer.
+     * @param validIds If not null, only these row ids are returned, though others are traversed.
+     * @return The ef most similar nodes found.
+     */
+    private Heap searchLayer(float [] q, int ep, int ef, int level, TIntSet validIds) {
+        Visited seen = getVisited();
+        seen.clear();
+        Heap candidates = new Heap(ef * 2);     // max-heap on similarity
+        Heap results = new Heap(ef + 1);        // max-heap on negated similarity, so the worst result is on top
+        double sim = dot(q, vectors[ep]);
+        seen.add(ep);
+        candidates.push(ep, sim);
+        if (validIds == null || validIds.contains(ids[ep])) {
+            results.push(ep, -sim);
+        }
+        while (candidates.size() > 0) {
+            double cs = candidates.topScore();
+            if (results.size() >= ef && cs < -results.topScore()) {
+                break;
+            }
+            int c = candidates.pop();
+            for (int n : getNeighbors(c, level)) {
+                if (!seen.add(n)) {
+                    continue;
+                }
+                double s = dot(q, vectors[n]);
+                if (results.size() < ef || s > -results.topScore()) {
+                    candidates.push(n, s);
+                    if (validIds == null || validIds.contains(ids[n])) {
+                        results.push(n, -s);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        if (results.size() == 0) {
+            results.push(ep, -sim);
+        }
+        return results.negate();
+    }
+
+    @Override
+    public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, found " + vector.length);
+        }
+        float [] q = normalize(Arrays.copyOf(vector, vector.length));
+        int ef = Math.max(k, maxTraversal);
+        NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
+        if (validIds != null && validIds.size() <= ef) {
+            // Small filters are cheaper (and exact) to scan directly.
+            TIntIntHashMap index = getIndex();
+            TIntIterator iter = validIds.iterator();
+            while (iter.hasNext()) {
+                int id = iter.next();
+                if (index.containsKey(id)) {
+                    accum.visit(id, dot(q, vectors[index.get(id)]));
+                }
+            }
+            return accum.get();
+        }
+        int ep = entryPoint;
+        if (ep < 0) {
+            return accum.get();
+        }
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(q, ep, l);
+        }
+        Heap found = searchLayer(q, ep, ef, 0, validIds);
+        while (found.size() > 0) {
+            double sim = found.topScore();
+            int node = found.pop();
+            if (validIds == null || validIds.contains(ids[node])) {
+                accum.visit(ids[node], sim);
+            }
+        }
+        return accum.get();
+    }
+
+    private synchronized TIntIntHashMap getIndex() {
+        if (index == null) {
+            index = new TIntIntHashMap(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                index.put(ids[i], i);
+            }
+        }
+        return index;
+    }
+
+    private Visited getVisited() {
+        Visited v = visited.get();
+        if (v == null || v.marks.length != ids.length) {
+            v = new Visited(ids.length);
+            visited.set(v);
+        }
+        return v;
+    }
+
+    @Override
+    public void save(File path) throws IOException {
+        path.getAbsoluteFile().getParentFile().mkdirs();
+        ObjectOutputStream oop = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        oop.writeObject(new Object[] { ids, levels, links, entryPoint, maxLevel, m });
+        oop.close();
+    }
+
+    @Override
+    public synchronized boolean load(File path) throws IOException {
+        if (!path.isFile()) {
+            LOG.warn("Not loading knn model. File doesn't exist: " + path);
+            return false;
+        } else if (path.lastModified() < matrix.getPath().lastModified()) {
+            LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
+            return false;
+        }
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            Object [] obj = (Object[]) in.readObject();
+            int [] newIds = (int[]) obj[0];
+            if (!Arrays.equals(newIds, ids)) {
+                LOG.warn("Not loading knn model. Row ids do not match matrix " + matrix.getPath());
+                return false;
+            }
+            this.levels = (int[]) obj[1];
+            this.links = (int[][][]) obj[2];
+            this.entryPoint = (Integer) obj[3];
+            this.maxLevel = (Integer) obj[4];
+            this.m = (Integer) obj[5];
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+        readVectors();
+        return true;
+    }
+
+    /**
+     * @param m The maximum number of neighbors per node in upper layers (layer 0 allows 2m).
+     */
+    public void setM(int m) {
+        this.m = m;
+    }
+
+    /**
+     * @param efConstruction The beam width used while inserting nodes.
+     */
+    public void setEfConstruction(int efConstruction) {
+        this.efConstruction = efConstruction;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+        this.numThreads = numThreads;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    private static float [] normalize(float [] v) {
+        double norm = 0.0;
+        for (float x : v) {
+            norm += x * x;
+        }
+        if (norm > 0) {
+            float s = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < v.length; i++) {
+                v[i] *= s;
+            }
+        }
+        return v;
+    }
+
+    private static double dot(float [] v1, float [] v2) {
+        float sum = 0.0f;
+        for (int i = 0; i < v1.length; i++) {
+            sum += v1[i] * v2[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Tracks the nodes visited by a search without clearing an array for every search.
+     */
+    private static final class Visited {
+        final int [] marks;
+        int stamp = 0;
+
+        Visited(int n) {
+            marks = new int[n];
+        }
+
+        void clear() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+        }
+
+        boolean add(int node) {
+            if (marks[node] == stamp) {
+                return false;
+            }
+            marks[node] = stamp;
+            return true;
+        }
+    }
+
+    /**
+     * A growable binary max-heap of (node, score) pairs.
+     */
+    private static final class Heap {
+        private int [] nodes;
+        private double [] scores;
+        private int size = 0;
+
+        Heap(int capacity) {
+            nodes = new int[Math.max(capacity, 4)];
+            scores = new double[nodes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        double topScore() {
+            return scores[0];
+        }
+
+        void push(int node, double score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            double score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (scores[child] <= score) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        /**
+         * @return A new heap with the same nodes and negated scores.
+         */
+        Heap negate() {
+            Heap h = new Heap(size);
+            for (int i = 0; i < size; i++) {
+                h.push(nodes[i], -scores[i]);
+            }
+            return h;
+        }
+
+        /**
+         * Empties the heap.
+         * @return The nodes in decreasing order of score.
+         */
+        int [] idsBySimilarity() {
+            int [] result = new int[size];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = pop();
+            }
+            return result;
+        }
+    }
+}
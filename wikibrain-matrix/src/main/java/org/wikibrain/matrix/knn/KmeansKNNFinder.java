@@ -1,10 +1,13 @@
 package org.wikibrain.matrix.knn;
 
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.MatrixRow;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,6 +16,15 @@ import java.util.*;
 /**
  * A fast neighborhood finder for dense vectors.
  *
+ * Rows are clustered into a tree by recursive k-means, and queries visit leaves
+ * in order of the similarity of their parents' delegates to the query.
+ *
+ * Filtered queries (validIds) first post each valid id to its leaf and count the
+ * valid ids below every node. Subtrees without valid ids are skipped, and probing
+ * continues until maxTraversal valid rows have been compared, so the cost depends
+ * on the size of the filter rather than the size of the matrix. The per-node
+ * postings are kept per thread and only the nodes a query touched are cleared.
+ *
  * @author Shilad Sen
  */
 public class KmeansKNNFinder implements KNNFinder {
@@ -21,6 +33,9 @@ public class KmeansKNNFinder implements KNNFinder {
     private int maxLeaf = 20;
     private int branchingFactor = 5;
     private Node root;
+    private List<Node> nodes;           // all nodes, by index
+    private TIntIntHashMap leaves;      // row id to the index of its leaf
+    private final ThreadLocal<Postings> postingsScratch = new ThreadLocal<Postings>();
 
     public KmeansKNNFinder(DenseMatrix matrix) {
         this.matrix = matrix;
@@ -28,7 +43,9 @@ public class KmeansKNNFinder implements KNNFinder {
 
     @Override
     public void build() throws IOException {
-        root = new Node("R");
+        nodes = new ArrayList<Node>();
+        leaves = new TIntIntHashMap(matrix.getNumRows() * 2);
+        root = new Node("R", null);
         root.members.addAll(getSample());
         root.build();
         for (DenseMatrixRow row : matrix) {
@@ -47,44 +64,135 @@ public class KmeansKNNFinder implements KNNFinder {
 
         @Override
         public int compareTo(Candidate o) {
-            return Double.compare(score, o.score);
+            int r = Double.compare(score, o.score);
+            // Break ties so that the TreeSet does not drop nodes with equal scores.
+            return (r != 0) ? r : (n.index - o.n.index);
         }
     }
 
     @Override
     public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
-        if (validIds != null) {
-            throw new UnsupportedOperationException();
-        }
         NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
+        if (validIds != null && validIds.size() <= maxTraversal) {
+            // We would visit every valid row anyway, so skip the tree.
+            TIntIterator iter = validIds.iterator();
+            while (iter.hasNext()) {
+                visit(vector, iter.next(), accum);
+            }
+            return accum.get();
+        }
+        Postings postings = (validIds == null) ? null : getPostings();
+        try {
+            if (postings != null) {
+                postings.fill(validIds);
+            }
+            return query(vector, maxTraversal, postings, accum);
+        } finally {
+            if (postings != null) {
+                postings.clear();
+            }
+        }
+    }
+
+    private Neighborhood query(float[] vector, int maxTraversal, Postings postings, NeighborhoodAccumulator accum) {
         TreeSet<Candidate> work = new TreeSet<Candidate>();
         work.add(new Candidate(root, -1.0));
         int traversed = 0;
         while (!work.isEmpty()) {
             Node n = work.pollLast().n;
-            for (int rowId : n.memberIds.toArray()) {
-                DenseMatrixRow row = null;
-                try {
-                    row = matrix.getRow(rowId);
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+            TIntList members = (postings == null) ? n.memberIds : postings.members[n.index];
+            if (members != null) {
+                for (int i = 0; i < members.size(); i++) {
+                    visit(vector, members.get(i), accum);
+                    traversed++;
                 }
-                double sim = cosine(vector, row);
-                accum.visit(row.getRowIndex(), sim);
-                traversed++;
             }
             if (traversed >= maxTraversal) {
                 break;
             }
             if (n.children != null) {
                 for (Node c : n.children) {
-                    work.add(new Candidate(c, cosine(vector, c.delegate)));
+                    if (postings == null || postings.counts[c.index] > 0) {
+                        work.add(new Candidate(c, cosine(vector, c.delegate)));
+                    }
                 }
             }
         }
         return accum.get();
     }
 
+    private void visit(float [] vector, int rowId, NeighborhoodAccumulator accum) {
+        DenseMatrixRow row = null;
+        try {
+            row = matrix.getRow(rowId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (row != null) {
+            accum.visit(rowId, cosine(vector, row));
+        }
+    }
+
+    /**
+     * Returns the calling thread's postings, replacing them if the tree has been rebuilt.
+     */
+    private Postings getPostings() {
+        Postings postings = postingsScratch.get();
+        if (postings == null || postings.nodes != nodes) {
+            postings = new Postings(nodes);
+            postingsScratch.set(postings);
+        }
+        return postings;
+    }
+
+    /**
+     * The valid ids in each leaf, and the number of valid ids below each node.
+     * Reused across queries: clear() only resets the nodes that fill() touched.
+     */
+    private class Postings {
+        final List<Node> nodes;
+        final TIntArrayList [] members;
+        final int [] counts;
+        final TIntArrayList touched = new TIntArrayList();     // nodes with a non-zero count
+
+        Postings(List<Node> nodes) {
+            this.nodes = nodes;
+            this.members = new TIntArrayList[nodes.size()];
+            this.counts = new int[nodes.size()];
+        }
+
+        void fill(TIntSet validIds) {
+            TIntIterator iter = validIds.iterator();
+            while (iter.hasNext()) {
+                int id = iter.next();
+                if (!leaves.containsKey(id)) {
+                    continue;
+                }
+                int leaf = leaves.get(id);
+                if (members[leaf] == null) {
+                    members[leaf] = new TIntArrayList();
+                }
+                members[leaf].add(id);
+                for (Node n = nodes.get(leaf); n != null; n = n.parent) {
+                    if (counts[n.index]++ == 0) {
+                        touched.add(n.index);
+                    }
+                }
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < touched.size(); i++) {
+                int n = touched.get(i);
+                counts[n] = 0;
+                if (members[n] != null) {
+                    members[n].resetQuick();
+                }
+            }
+            touched.resetQuick();
+        }
+    }
+
     @Override
     public void save(File path) throws IOException {
         throw new UnsupportedOperationException();
@@ -124,13 +232,20 @@ public class KmeansKNNFinder implements KNNFinder {
     }
 
     class Node {
+        final int index;
+        final Node parent;
         String path;
         DenseMatrixRow delegate;
         Node[] children = null;
         TIntList memberIds;
         List<DenseMatrixRow> members = new ArrayList<DenseMatrixRow>();
 
-        Node(String path) { this.path = path; }
+        Node(String path, Node parent) {
+            this.path = path;
+            this.parent = parent;
+            this.index = nodes.size();
+            nodes.add(this);
+        }
 
         void build() {
 //            System.out.println("building node with " + members.size());
@@ -165,6 +280,7 @@ public class KmeansKNNFinder implements KNNFinder {
             // If we're a leaf
             if (children == null) {
                 memberIds.add(row.getRowIndex());
+                leaves.put(row.getRowIndex(), index);
                 return;
             }
 
@@ -180,7 +296,7 @@ public class KmeansKNNFinder implements KNNFinder {
         private void initializeRandomly() {
             children = new Node[branchingFactor];
             for (int i = 0; i < children.length; i++) {
-                children[i] = new Node(path + i);
+                children[i] = new Node(path + i, this);
             }
             Collections.shuffle(members);
             for (int i = 0; i < members.size(); i++) {
@@ -297,7 +413,7 @@ public class KmeansKNNFinder implements KNNFinder {
         return xDotY / Math.sqrt(xDotX * yDotY);
     }
 
-    static double cosine(float [] X, DenseMatrixRow Y) {
+    static double cosine(float [] X, MatrixRow Y) {
         if (X == null || Y == null) {
             return 0;
         }
@@ -1,5 +1,8 @@
 package org.wikibrain.matrix.knn;
 
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
@@ -29,6 +32,8 @@ public class LSHForestKNNFinder implements KNNFinder {
     private double [] means;
     private double[] devs;
 
+    private TIntIntHashMap index = null;    // row id to index in ids, built on demand
+
     public LSHForestKNNFinder(DenseMatrix matrix) throws IOException {
         this.matrix = matrix;
         this.ids = matrix.getRowIds();
@@ -137,12 +142,14 @@ public class LSHForestKNNFinder implements KNNFinder {
             P[i] = project(i, vector);
         }
 
-        Random rand = new Random();
-        byte [] idMatchLens = new byte[ids.length];
-        Arrays.fill(idMatchLens, (byte) -1);
+        // Only scan the rows that may be returned.
+        int [] rows = (validIds == null) ? null : getRowIndexes(validIds);
+        int numRows = (rows == null) ? ids.length : rows.length;
+
+        byte [] idMatchLens = new byte[numRows];
         int hist[] = new int[NUM_BITS+1];
-        for (int i = 0; i < ids.length; i++) {
-            if (validIds != null && !validIds.contains(ids[i])) continue;
+        for (int j = 0; j < numRows; j++) {
+            int i = (rows == null) ? j : rows[j];
             int maxMatch = -1; // max bitwise prefix match
             for (int t = 0; t < numTrees; t++) {
                 int m = Integer.numberOfLeadingZeros((P[t] ^ bits[t][i]) & 0xffff) - (32 - NUM_BITS);
@@ -155,7 +162,7 @@ public class LSHForestKNNFinder implements KNNFinder {
             }
 //            maxMatch = rand.nextInt(17);
             if (maxMatch < 0 || maxMatch > Byte.MAX_VALUE) throw new IllegalStateException();
-            idMatchLens[i] = (byte) maxMatch;
+            idMatchLens[j] = (byte) maxMatch;
             hist[maxMatch] += 1;
         }
 
@@ -168,12 +175,13 @@ public class LSHForestKNNFinder implements KNNFinder {
                 break;
             }
         }
-        System.out.println("threshold is " + threshold + " for " + Arrays.toString(hist));
+        LOG.debug("threshold is " + threshold + " for " + Arrays.toString(hist));
 
         // Find all candidates within the threshold
         NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
-        for (int i = 0; i < ids.length; i++) {
-            if (idMatchLens[i] >= threshold) {
+        for (int j = 0; j < numRows; j++) {
+            int i = (rows == null) ? j : rows[j];
+            if (idMatchLens[j] >= threshold) {
                 try {
                     DenseMatrixRow row = matrix.getRow(ids[i]);
                     double sim = KmeansKNNFinder.cosine(vector, row);
@@ -186,6 +194,33 @@ public class LSHForestKNNFinder implements KNNFinder {
         return accum.get();
     }
 
+    /**
+     * @return The sorted indexes into ids of the valid row ids that appear in the matrix.
+     */
+    private int[] getRowIndexes(TIntSet validIds) {
+        TIntIntHashMap index = getIndex();
+        TIntArrayList rows = new TIntArrayList(validIds.size());
+        TIntIterator iter = validIds.iterator();
+        while (iter.hasNext()) {
+            int id = iter.next();
+            if (index.containsKey(id)) {
+                rows.add(index.get(id));
+            }
+        }
+        rows.sort();
+        return rows.toArray();
+    }
+
+    private synchronized TIntIntHashMap getIndex() {
+        if (index == null) {
+            index = new TIntIntHashMap(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                index.put(ids[i], i);
+            }
+        }
+        return index;
+    }
+
     @Override
     public void save(File path) throws IOException {
         throw new UnsupportedOperationException();
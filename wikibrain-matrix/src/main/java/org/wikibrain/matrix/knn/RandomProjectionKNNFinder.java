@@ -1,13 +1,17 @@
 package org.wikibrain.matrix.knn;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.matrix.DenseMatrix;
-import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.DenseMatrixCursor;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,11 +23,15 @@ import org.slf4j.LoggerFactory;
  * dot product.
  *
  * To find neighbors, the algorithm counts how many of the 128 bits agree between
- * a query and a candidate.
+ * a query and a candidate. The signature scan is split into contiguous blocks that
+ * are counted in parallel. Surviving candidates are reranked by cosine similarity in
+ * the order their rows appear on disk, which turns random reads of the memory mapped
+ * matrix into a sequential sweep. The worker threads are started on demand and
+ * released by {@link #close()}.
  *
  * @author Shilad Sen
  */
-public class RandomProjectionKNNFinder implements KNNFinder {
+public class RandomProjectionKNNFinder implements KNNFinder, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(RandomProjectionKNNFinder.class);
     public static final int NUM_BITS = 128;
 
@@ -37,6 +45,11 @@ public class RandomProjectionKNNFinder implements KNNFinder {
     private double [] means;
     private double[] devs;
 
+    // Queries over fewer rows than this per thread run in the calling thread.
+    private int minRowsPerThread = 50000;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+
     public RandomProjectionKNNFinder(DenseMatrix matrix) throws IOException {
         this.matrix = matrix;
         this.ids = matrix.getRowIds();
@@ -137,7 +150,7 @@ public class RandomProjectionKNNFinder implements KNNFinder {
     }
 
     @Override
-    public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
+    public Neighborhood query(final float[] vector, int k, int maxTraversal, TIntSet validIds) {
         // Hack: Speed up query by reducing number of collisions
         if (validIds != null) {
             TIntSet tmp = validIds;
@@ -146,17 +159,23 @@ public class RandomProjectionKNNFinder implements KNNFinder {
         }
         long vbits[] = new  long[2];
         project(vector, vbits);
-        long p0 = vbits[0];
-        long p1 = vbits[1];
+        final long p0 = vbits[0];
+        final long p1 = vbits[1];
+        final TIntSet valid = validIds;
 
         // Pass 1: count how many things have each # of bits.
+        List<int[]> histograms = runBlocks(ids.length, new Block<int[]>() {
+            @Override
+            public int[] run(int from, int to) {
+                return countBitsInCommon(p0, p1, valid, from, to);
+            }
+        });
         int[] numHits = new int[NUM_BITS + 1];
-        for (int i = 0; i < ids.length; i++) {
-            if (validIds != null && !validIds.contains(ids[i])) continue;
-            int nSet = NUM_BITS - Long.bitCount(bits[2*i] ^ p0) - Long.bitCount(bits[2*i+1] ^ p1);
-            numHits[nSet]++;
+        for (int[] h : histograms) {
+            for (int i = 0; i < h.length; i++) {
+                numHits[i] += h[i];
+            }
         }
-//        System.out.println("distribution is " + Arrays.toString(numHits));
 
         // Pick the threshold we need to consider.
         int threshold;
@@ -167,23 +186,160 @@ public class RandomProjectionKNNFinder implements KNNFinder {
                 break;
             }
         }
-//        System.out.println("set threshold at at least " + threshold + " bits in common");
 
+        // Pass 2: collect candidates. Row ids are in disk order, so each block's
+        // candidates are too.
+        final int t = threshold;
+        List<int[]> blocks = runBlocks(ids.length, new Block<int[]>() {
+            @Override
+            public int[] run(int from, int to) {
+                return findCandidates(p0, p1, t, valid, from, to);
+            }
+        });
+        int n = 0;
+        for (int[] b : blocks) {
+            n += b.length;
+        }
+        final int candidates[] = new int[n];
+        n = 0;
+        for (int[] b : blocks) {
+            System.arraycopy(b, 0, candidates, n, b.length);
+            n += b.length;
+        }
+
+        // Pass 3: rerank candidates by cosine similarity, sequentially through the matrix.
+        final int kk = k;
+        List<Neighborhood> partial = runBlocks(candidates.length, new Block<Neighborhood>() {
+            @Override
+            public Neighborhood run(int from, int to) throws IOException {
+                NeighborhoodAccumulator accum = new NeighborhoodAccumulator(kk);
+                DenseMatrixCursor cursor = matrix.cursor();
+                for (int i = from; i < to; i++) {
+                    int id = ids[candidates[i]];
+                    cursor.moveTo(id);
+                    accum.visit(id, KmeansKNNFinder.cosine(vector, cursor));
+                }
+                return accum.get();
+            }
+        });
+        if (partial.size() == 1) {
+            return partial.get(0);
+        }
         NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
-        for (int i = 0; i < ids.length; i++) {
+        for (Neighborhood nhood : partial) {
+            for (int i = 0; i < nhood.size(); i++) {
+                accum.visit(nhood.getId(i), nhood.getScore(i));
+            }
+        }
+        return accum.get();
+    }
+
+    private int[] countBitsInCommon(long p0, long p1, TIntSet validIds, int from, int to) {
+        int[] numHits = new int[NUM_BITS + 1];
+        for (int i = from; i < to; i++) {
+            if (validIds != null && !validIds.contains(ids[i])) continue;
+            int nSet = NUM_BITS - Long.bitCount(bits[2*i] ^ p0) - Long.bitCount(bits[2*i+1] ^ p1);
+            numHits[nSet]++;
+        }
+        return numHits;
+    }
+
+    private int[] findCandidates(long p0, long p1, int threshold, TIntSet validIds, int from, int to) {
+        TIntArrayList candidates = new TIntArrayList();
+        for (int i = from; i < to; i++) {
             if (validIds != null && !validIds.contains(ids[i])) continue;
             int nSet = NUM_BITS - Long.bitCount(bits[2*i] ^ p0) - Long.bitCount(bits[2*i+1] ^ p1);
             if (nSet >= threshold) {
-                try {
-                    DenseMatrixRow row = matrix.getRow(ids[i]);
-                    double sim = KmeansKNNFinder.cosine(vector, row);
-                    accum.visit(ids[i], sim);
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
-                }
+                candidates.add(i);
             }
         }
-        return accum.get();
+        return candidates.toArray();
+    }
+
+    private interface Block<T> {
+        T run(int from, int to) throws IOException;
+    }
+
+    /**
+     * Splits [0, n) into contiguous blocks and runs them on the worker threads.
+     * Small inputs run in the calling thread. Results are returned in block order.
+     */
+    private <T> List<T> runBlocks(int n, final Block<T> block) {
+        int numBlocks = Math.max(1, Math.min(numThreads, n / minRowsPerThread));
+        List<T> results = new ArrayList<T>();
+        try {
+            if (numBlocks == 1) {
+                results.add(block.run(0, n));
+                return results;
+            }
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            int size = (n + numBlocks - 1) / numBlocks;
+            for (int i = 0; i < numBlocks; i++) {
+                final int from = Math.min(n, i * size);
+                final int to = Math.min(n, from + size);
+                futures.add(getExecutor().submit(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return block.run(from, to);
+                    }
+                }));
+            }
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "random-projection-knn");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the number of threads used to answer each query.
+     * @param numThreads
+     */
+    public synchronized void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+        this.numThreads = numThreads;
+        close();
+    }
+
+    /**
+     * Shuts down the worker threads. The finder can still be queried afterwards;
+     * a query that needs the workers starts them again.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Package-private so that tests can exercise the parallel scan on small matrices.
+     */
+    void setMinRowsPerThread(int minRowsPerThread) {
+        this.minRowsPerThread = minRowsPerThread;
     }
 
     @Override
@@ -0,0 +1,118 @@
+package org.wikibrain.matrix;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestMatrixCursor {
+    private List<SparseMatrixRow> sparseRows;
+    private List<DenseMatrixRow> denseRows;
+
+    private SparseMatrix sparse;
+    private DenseMatrix dense;
+
+    @Before
+    public void createTestData() throws IOException {
+        sparseRows = TestUtils.createSparseTestMatrixRows(1000, 200, false);
+        File tmp1 = File.createTempFile("matrix", null);
+        tmp1.deleteOnExit();
+        SparseMatrixWriter.write(tmp1, sparseRows.iterator());
+        sparse = new SparseMatrix(tmp1, 16 * 1024);
+
+        denseRows = TestUtils.createDenseTestMatrixRows(500, 100);
+        File tmp2 = File.createTempFile("matrix", null);
+        tmp2.deleteOnExit();
+        DenseMatrixWriter.write(tmp2, denseRows.iterator());
+        dense = new DenseMatrix(tmp2);
+    }
+
+    @Test
+    public void testSparseCursor() throws IOException {
+        SparseMatrixCursor cursor = sparse.cursor();
+        for (SparseMatrixRow src : sparseRows) {
+            assertTrue(cursor.moveTo(src.getRowIndex()));
+            assertEquals(src.getRowIndex(), cursor.getRowIndex());
+            assertEquals(src.getNumCols(), cursor.getNumCols());
+            for (int i = 0; i < src.getNumCols(); i++) {
+                assertEquals(src.getColIndex(i), cursor.getColIndex(i));
+                assertEquals(src.getColValue(i), cursor.getColValue(i), 0.01);
+            }
+        }
+        assertFalse(cursor.moveTo(-1));
+        assertFalse(cursor.isPositioned());
+    }
+
+    @Test
+    public void testDenseCursor() throws IOException {
+        DenseMatrixCursor cursor = dense.cursor();
+        float vector[] = new float[100];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = i / 100.0f;
+        }
+        for (DenseMatrixRow src : denseRows) {
+            assertTrue(cursor.moveTo(src.getRowIndex()));
+            assertEquals(src.getRowIndex(), cursor.getRowIndex());
+            assertEquals(src.getNumCols(), cursor.getNumCols());
+            for (int i = 0; i < src.getNumCols(); i++) {
+                assertEquals(src.getColIndex(i), cursor.getColIndex(i));
+                assertEquals(src.getColValue(i), cursor.getColValue(i), 0.01);
+            }
+            assertEquals(src.dot(vector), cursor.dot(vector), 0.01);
+        }
+    }
+
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        int sparseIds[] = sparse.getRowIds().clone();
+        int denseIds[] = dense.getRowIds().clone();
+        SparseMatrixCursor sparseCursor = sparse.cursor();
+        DenseMatrixCursor denseCursor = dense.cursor();
+
+        // warm up: maps pages and lets the JIT settle
+        double sum = scan(sparseCursor, sparseIds, denseCursor, denseIds, 20);
+
+        long tid = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(tid);
+        sum += scan(sparseCursor, sparseIds, denseCursor, denseIds, 20);
+        long after = threadBean.getThreadAllocatedBytes(tid);
+
+        // 20 passes visit 30,000 rows; allow a little slack for the measurement itself.
+        assertTrue("allocated " + (after - before) + " bytes", after - before < 1024);
+        assertTrue(sum != 0.0);
+    }
+
+    private double scan(SparseMatrixCursor sc, int[] sparseIds, DenseMatrixCursor dc, int[] denseIds, int passes) throws IOException {
+        double sum = 0.0;
+        for (int p = 0; p < passes; p++) {
+            for (int id : sparseIds) {
+                sc.moveTo(id);
+                for (int i = 0; i < sc.getNumCols(); i++) {
+                    sum += sc.getColIndex(i) * sc.getColValue(i);
+                }
+            }
+            for (int id : denseIds) {
+                dc.moveTo(id);
+                for (int i = 0; i < dc.getNumCols(); i++) {
+                    sum += dc.getColValue(i);
+                }
+            }
+        }
+        return sum;
+    }
+}
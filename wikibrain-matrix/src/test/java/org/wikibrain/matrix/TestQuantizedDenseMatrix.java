@@ -0,0 +1,177 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestQuantizedDenseMatrix {
+    private static final int NUM_ROWS = 2000;
+    private static final int NUM_COLS = 101;    // not a multiple of 8, to exercise the kernel's tail
+    private static final int NUM_CLUSTERS = 40;
+
+    private List<DenseMatrixRow> srcRows;
+    private DenseMatrix dense;
+    private QuantizedDenseMatrix quantized;
+
+    @Before
+    public void createTestData() throws IOException {
+        Random random = new Random(11);
+        int colIds[] = new int[NUM_COLS];
+        for (int i = 0; i < NUM_COLS; i++) {
+            colIds[i] = i * 3 + 1;
+        }
+
+        // clustered vectors, so that nearest neighbors are meaningful
+        float centers[][] = new float[NUM_CLUSTERS][NUM_COLS];
+        for (float[] c : centers) {
+            for (int i = 0; i < NUM_COLS; i++) {
+                c[i] = (float) (random.nextGaussian() * 0.3);
+            }
+        }
+        srcRows = new ArrayList<DenseMatrixRow>();
+        for (int id = 1; id <= NUM_ROWS; id++) {
+            float center[] = centers[random.nextInt(NUM_CLUSTERS)];
+            float vals[] = new float[NUM_COLS];
+            for (int i = 0; i < NUM_COLS; i++) {
+                vals[i] = clamp(center[i] + (float) (random.nextGaussian() * 0.1));
+            }
+            srcRows.add(new DenseMatrixRow(new ValueConf(), id * 7, colIds, vals));
+        }
+
+        File denseFile = File.createTempFile("matrix", null);
+        denseFile.deleteOnExit();
+        DenseMatrixWriter.write(denseFile, srcRows.iterator());
+        dense = new DenseMatrix(denseFile);
+
+        File quantizedFile = File.createTempFile("matrix", null);
+        quantizedFile.deleteOnExit();
+        QuantizedDenseMatrixWriter.write(dense, quantizedFile);
+        quantized = new QuantizedDenseMatrix(quantizedFile, 16 * 1024);
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        assertTrue(quantized.getPath().length() < dense.getPath().length() * 0.6);
+        assertTrue(quantized.rowBuffers.getNumPages() > 1);
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        assertEquals(NUM_ROWS, quantized.getNumRows());
+        assertTrue(Arrays.equals(dense.getColIds(), quantized.getColIds()));
+        QuantizedDenseMatrixCursor cursor = quantized.cursor();
+        for (DenseMatrixRow src : srcRows) {
+            QuantizedDenseMatrixRow row = quantized.getRow(src.getRowIndex());
+            assertTrue(cursor.moveTo(src.getRowIndex()));
+            assertEquals(src.getRowIndex(), row.getRowIndex());
+            assertEquals(src.getRowIndex(), cursor.getRowIndex());
+            assertEquals(src.getNumCols(), row.getNumCols());
+            // quantization error is at most half a step
+            float tolerance = row.getScale() * 0.5f + 0.0001f;
+            for (int i = 0; i < src.getNumCols(); i++) {
+                assertEquals(src.getColIndex(i), row.getColIndex(i));
+                assertEquals(src.getColValue(i), row.getColValue(i), tolerance);
+                assertEquals(row.getColValue(i), cursor.getColValue(i), 0.0);
+            }
+            assertEquals(row.getNorm(), cursor.getNorm(), 0.0001);
+        }
+        assertNull(quantized.getRow(3));
+        assertFalse(cursor.moveTo(3));
+    }
+
+    @Test
+    public void testKernel() throws IOException {
+        QuantizedDenseMatrixCursor cursor = quantized.cursor();
+        for (int i = 0; i < 50; i++) {
+            QuantizedDenseMatrixRow query = quantized.quantize(srcRows.get(i).getValues());
+            for (DenseMatrixRow src : srcRows.subList(100, 200)) {
+                QuantizedDenseMatrixRow row = quantized.getRow(src.getRowIndex());
+                cursor.moveTo(src.getRowIndex());
+                long expected = 0;
+                for (int j = 0; j < NUM_COLS; j++) {
+                    expected += row.getPackedColValue(j) * query.getPackedColValue(j);
+                }
+                assertEquals(expected, cursor.dotQuantized(query));
+                assertEquals(row.dot(query), cursor.dot(query), 0.0001);
+                assertEquals(src.dot(srcRows.get(i).getValues()), cursor.dot(query), 0.05);
+                assertEquals(src.dot(srcRows.get(i).getValues()), cursor.dot(srcRows.get(i).getValues()), 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void testRecall() throws IOException {
+        int k = 10;
+        Random random = new Random(3);
+        DenseMatrixCursor denseCursor = dense.cursor();
+        QuantizedDenseMatrixCursor cursor = quantized.cursor();
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < 50; q++) {
+            float vector[] = srcRows.get(random.nextInt(NUM_ROWS)).getValues();
+            double vectorNorm = norm(vector);
+            QuantizedDenseMatrixRow query = quantized.quantize(vector);
+
+            double exactScores[] = new double[NUM_ROWS];
+            double approxScores[] = new double[NUM_ROWS];
+            int ids[] = dense.getRowIds();
+            for (int i = 0; i < ids.length; i++) {
+                denseCursor.moveTo(ids[i]);
+                exactScores[i] = denseCursor.dot(vector) / (vectorNorm * denseCursor.getNorm());
+                cursor.moveTo(ids[i]);
+                approxScores[i] = cursor.cosine(query);
+                assertEquals(exactScores[i], approxScores[i], 0.02);
+            }
+            TIntSet expected = topK(ids, exactScores, k);
+            for (int id : topK(ids, approxScores, k).toArray()) {
+                if (expected.contains(id)) {
+                    hits++;
+                }
+            }
+            total += k;
+        }
+        double recall = 1.0 * hits / total;
+        assertTrue("recall was " + recall, recall >= 0.9);
+    }
+
+    private static TIntSet topK(int ids[], double scores[], int k) {
+        Integer order[] = new Integer[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = i;
+        }
+        final double s[] = scores;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(s[j], s[i]);
+            }
+        });
+        TIntSet result = new TIntHashSet();
+        for (int i = 0; i < k; i++) {
+            result.add(ids[order[i]]);
+        }
+        return result;
+    }
+
+    private static double norm(float v[]) {
+        double sum = 0.0;
+        for (float x : v) {
+            sum += x * x;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private static float clamp(float x) {
+        return Math.max(-1.0f, Math.min(1.0f, x));
+    }
+}
@@ -1,5 +1,6 @@
 package org.wikibrain.matrix;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -8,6 +9,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -62,6 +64,76 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testParallelTranspose() throws IOException {
+        File src = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(src, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(src);
+
+        File serial = File.createTempFile("matrix", null);
+        new SparseMatrixTransposer(m, serial, 1, 1).transpose();
+        for (int numThreads : new int[] { 2, 3, 8 }) {
+            File parallel = File.createTempFile("matrix", null);
+            new SparseMatrixTransposer(m, parallel, 1, numThreads).transpose();
+            assertTrue(FileUtils.contentEquals(serial, parallel));
+        }
+
+        File back = File.createTempFile("matrix", null);
+        new SparseMatrixTransposer(new SparseMatrix(serial), back, 1, 4).transpose();
+        verifyIsSourceMatrixUnordered(new SparseMatrix(back), .001);
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        File raw = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(raw, srcRows.iterator());
+        File compressed = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(compressed, new ValueConf(), true);
+        for (SparseMatrixRow row : srcRows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        assertTrue(compressed.length() < raw.length() * 0.7);
+
+        SparseMatrix m = new SparseMatrix(compressed, 64 * 1024);
+        assertTrue(m.isCompressed());
+        verifyIsSourceMatrix(m);
+
+        SparseMatrixCursor cursor = m.cursor();
+        for (SparseMatrixRow src : srcRows) {
+            assertTrue(cursor.moveTo(src.getRowIndex()));
+            assertEquals(src.getNumCols(), cursor.getNumCols());
+            for (int i = 0; i < src.getNumCols(); i++) {
+                assertEquals(src.getColIndex(i), cursor.getColIndex(i));
+                assertEquals(src.getPackedColValue(i), cursor.getPackedColValue(i));
+            }
+        }
+
+        // transposes stay compressed
+        File tmp2 = File.createTempFile("matrix", null);
+        File tmp3 = File.createTempFile("matrix", null);
+        new SparseMatrixTransposer(m, tmp2, 1).transpose();
+        SparseMatrix m2 = new SparseMatrix(tmp2);
+        assertTrue(m2.isCompressed());
+        new SparseMatrixTransposer(m2, tmp3, 1).transpose();
+        verifyIsSourceMatrixUnordered(new SparseMatrix(tmp3), .001);
+    }
+
+    @Test
+    public void testCompressedNegativeIds() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), true);
+        int ids[] = { Integer.MIN_VALUE, -5, 0, 3, Integer.MAX_VALUE };
+        float vals[] = { 0.1f, -0.2f, 0.3f, 0.4f, 1.0f };
+        writer.writeRow(new SparseMatrixRow(new ValueConf(), 7, ids, vals));
+        writer.finish();
+        SparseMatrixRow row = new SparseMatrix(tmp).getRow(7);
+        assertEquals(7, row.getRowIndex());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], row.getColIndex(i));
+            assertEquals(vals[i], row.getColValue(i), 0.001);
+        }
+    }
 
     @Test
     public void testRows() throws IOException {
@@ -73,10 +145,47 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testManyPages() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp, 64 * 1024);
+        assertTrue(m.rowBuffers.getNumPages() > 10);
+        verifyIsSourceMatrix(m);
+        assertNull(m.getRow(-1));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        final SparseMatrix m = new SparseMatrix(tmp, 64 * 1024);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread threads[] = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            verifyIsSourceMatrix(m);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+    }
 
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         assertEquals(srcRows.size(), m.getNumRows());
-        int [] ids1 = m.getRowIds();
+        int [] ids1 = m.getRowIds().clone();
         int [] ids2 = new int[srcRows.size()];
         for (int i = 0; i < srcRows.size(); i++) {
             ids2[i] = srcRows.get(i).getRowIndex();
@@ -0,0 +1,128 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.DenseMatrix;
+
+import java.io.File;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestHnswKNNFinder {
+    DenseMatrix matrix;
+    HnswKNNFinder finder;
+
+    private void makeSmall() throws IOException {
+        matrix = TestUtils.createMatrix(1000, 20);
+        finder = new HnswKNNFinder(matrix);
+        finder.build();
+    }
+
+    private void makeBig(int numThreads) throws IOException {
+        matrix = TestUtils.createMatrix(20000, 100);
+        finder = new HnswKNNFinder(matrix);
+        finder.setNumThreads(numThreads);
+        finder.build();
+    }
+
+    @Test
+    public void testQueryCoverage() throws IOException {
+        makeSmall();
+        int hits = 0;
+        int iters = 10;
+        for (int i = 0; i < iters; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood estimated = finder.query(v, 10, 1000, null);
+            Neighborhood actual = actualNeighbors(v, matrix, 10, null);
+            hits += overlap(estimated, actual);
+        }
+        assertEquals(iters * 10, hits);
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        for (int numThreads : new int[] { 1, 4 }) {
+            makeBig(numThreads);
+            int hits = 0;
+            int iters = 100;
+            for (int i = 0; i < iters; i++) {
+                float[] v = TestUtils.randomVector(100);
+                Neighborhood estimated = finder.query(v, 10, 300, null);
+                Neighborhood actual = actualNeighbors(v, matrix, 10, null);
+                hits += overlap(estimated, actual);
+            }
+            double recall = 1.0 * hits / (iters * 10);
+            assertTrue("recall@10 with " + numThreads + " build threads is " + recall, recall >= 0.9);
+        }
+    }
+
+    @Test
+    public void testValidIds() throws IOException {
+        makeSmall();
+        for (int size : new int[] { 50, 500 }) {
+            TIntSet validIds = new TIntHashSet();
+            for (int id : matrix.getRowIds()) {
+                if (id % (1000 / size) == 0) validIds.add(id);
+            }
+            int hits = 0;
+            for (int i = 0; i < 10; i++) {
+                float[] v = TestUtils.randomVector(20);
+                Neighborhood estimated = finder.query(v, 10, 200, validIds);
+                assertEquals(10, estimated.size());
+                for (int j = 0; j < estimated.size(); j++) {
+                    assertTrue(validIds.contains(estimated.getId(j)));
+                }
+                hits += overlap(estimated, actualNeighbors(v, matrix, 10, validIds));
+            }
+            assertTrue(hits >= 90);
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        makeSmall();
+        File path = File.createTempFile("hnsw", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+
+        HnswKNNFinder loaded = new HnswKNNFinder(matrix);
+        assertTrue(loaded.load(path));
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finder.query(v, 10, 50, null);
+            Neighborhood n2 = loaded.query(v, 10, 50, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+                assertEquals(n1.getScore(j), n2.getScore(j), 0.000001);
+            }
+        }
+    }
+
+    private int overlap(Neighborhood n1, Neighborhood n2) {
+        TIntSet ids = new TIntHashSet();
+        for (int i = 0; i < n1.size(); i++) {
+            ids.add(n1.getId(i));
+        }
+        int result = 0;
+        for (int i = 0; i < n2.size(); i++) {
+            if (ids.contains(n2.getId(i))) result++;
+        }
+        return result;
+    }
+
+    private static Neighborhood actualNeighbors(float [] v, DenseMatrix matrix, int n, TIntSet validIds) throws IOException {
+        // BruteForceKNNFinder only normalizes rows when filtering, so always pass a filter.
+        if (validIds == null) {
+            validIds = new TIntHashSet(matrix.getRowIds());
+        }
+        BruteForceKNNFinder f = new BruteForceKNNFinder(matrix);
+        return f.query(v, n, n, validIds);
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.Random;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -85,6 +86,54 @@ public class TestKMeansNNFinder {
         System.out.println("Mean optimized millis is " + (1.0 * elapsedTree / iters));
     }
 
+    @Test
+    public void testValidIds() throws IOException {
+        makeSmall();
+        for (int size : new int[] { 50, 250 }) {
+            TIntSet validIds = new TIntHashSet();
+            for (int id : matrix.getRowIds()) {
+                if (id % (1000 / size) == 0) validIds.add(id);
+            }
+            int hits = 0;
+            for (int i = 0; i < 10; i++) {
+                float[] v = randomVector(20);
+                Neighborhood estimated = finder.query(v, 10, 100, validIds);
+                assertEquals(10, estimated.size());
+                for (int j = 0; j < estimated.size(); j++) {
+                    assertTrue(validIds.contains(estimated.getId(j)));
+                }
+                hits += overlap(estimated, new BruteForceKNNFinder(matrix).query(v, 10, 10, validIds));
+            }
+            assertTrue(hits >= 50);
+        }
+    }
+
+    @Test
+    public void testAlternatingValidIds() throws IOException {
+        makeSmall();
+        TIntSet evens = new TIntHashSet();
+        TIntSet odds = new TIntHashSet();
+        for (int id : matrix.getRowIds()) {
+            (id % 2 == 0 ? evens : odds).add(id);
+        }
+        float[] v = randomVector(20);
+        Neighborhood first = finder.query(v, 10, 100, evens);
+        for (int i = 0; i < 5; i++) {
+            for (TIntSet validIds : new TIntSet[] { odds, evens }) {
+                Neighborhood estimated = finder.query(v, 10, 100, validIds);
+                assertEquals(10, estimated.size());
+                for (int j = 0; j < estimated.size(); j++) {
+                    assertTrue(validIds.contains(estimated.getId(j)));
+                }
+            }
+        }
+        // reused postings give the same results as the first query
+        Neighborhood last = finder.query(v, 10, 100, evens);
+        for (int j = 0; j < first.size(); j++) {
+            assertEquals(first.getId(j), last.getId(j));
+        }
+    }
+
     private int overlap(Neighborhood n1, Neighborhood n2) {
         TIntSet ids = new TIntHashSet();
         for (int i = 0; i < n1.size(); i++) {
@@ -9,6 +9,7 @@ import org.wikibrain.matrix.DenseMatrixRow;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -74,6 +75,28 @@ public class TestLSHForestNNFinder {
         System.out.println("Mean optimized millis is " + (1.0 * elapsedTree / iters));
     }
 
+    @Test
+    public void testValidIds() throws IOException {
+        makeSmall();
+        for (int size : new int[] { 50, 250 }) {
+            TIntSet validIds = new TIntHashSet();
+            for (int id : matrix.getRowIds()) {
+                if (id % (1000 / size) == 0) validIds.add(id);
+            }
+            int hits = 0;
+            for (int i = 0; i < 10; i++) {
+                float[] v = TestUtils.randomVector(20);
+                Neighborhood estimated = finder.query(v, 10, 100, validIds);
+                assertEquals(10, estimated.size());
+                for (int j = 0; j < estimated.size(); j++) {
+                    assertTrue(validIds.contains(estimated.getId(j)));
+                }
+                hits += overlap(estimated, new BruteForceKNNFinder(matrix).query(v, 10, 10, validIds));
+            }
+            assertTrue(hits >= 50);
+        }
+    }
+
     private int overlap(Neighborhood n1, Neighborhood n2) {
         TIntSet ids = new TIntHashSet();
         for (int i = 0; i < n1.size(); i++) {
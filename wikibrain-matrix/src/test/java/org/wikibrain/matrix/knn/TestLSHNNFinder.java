@@ -9,6 +9,7 @@ import org.wikibrain.matrix.DenseMatrixRow;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -75,6 +76,57 @@ public class TestLSHNNFinder {
         System.out.println("Mean optimized millis is " + (1.0 * elapsedTree / iters));
     }
 
+    @Test
+    public void testParallelQuery() throws IOException {
+        matrix = TestUtils.createMatrix(5000, 20);
+        RandomProjectionKNNFinder rp = new RandomProjectionKNNFinder(matrix);
+        rp.build();
+        TIntSet validIds = new TIntHashSet();
+        for (int id : matrix.getRowIds()) {
+            if (id % 3 == 0) validIds.add(id);
+        }
+        for (int i = 0; i < 20; i++) {
+            float[] v = TestUtils.randomVector(20);
+            for (TIntSet valid : new TIntSet[] { null, validIds }) {
+                rp.setNumThreads(1);
+                Neighborhood serial = rp.query(v, 10, 500, valid);
+                rp.setNumThreads(4);
+                rp.setMinRowsPerThread(100);
+                Neighborhood parallel = rp.query(v, 10, 500, valid);
+                rp.setMinRowsPerThread(50000);
+                assertEquals(serial.size(), parallel.size());
+                for (int j = 0; j < serial.size(); j++) {
+                    assertEquals(serial.getScore(j), parallel.getScore(j), 0.000001);
+                    if (valid != null) {
+                        assertTrue(valid.contains(parallel.getId(j)));
+                    }
+                }
+            }
+        }
+        rp.close();
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        matrix = TestUtils.createMatrix(5000, 20);
+        RandomProjectionKNNFinder rp = new RandomProjectionKNNFinder(matrix);
+        rp.build();
+        rp.setNumThreads(4);
+        rp.setMinRowsPerThread(100);
+        float[] v = TestUtils.randomVector(20);
+        Neighborhood before = rp.query(v, 10, 500, null);
+        rp.close();
+        rp.close();
+
+        // closed finders restart their workers when queried
+        Neighborhood after = rp.query(v, 10, 500, null);
+        assertEquals(before.size(), after.size());
+        for (int j = 0; j < before.size(); j++) {
+            assertEquals(before.getId(j), after.getId(j));
+        }
+        rp.close();
+    }
+
     private int overlap(Neighborhood n1, Neighborhood n2) {
         TIntSet ids = new TIntHashSet();
         for (int i = 0; i < n1.size(); i++) {
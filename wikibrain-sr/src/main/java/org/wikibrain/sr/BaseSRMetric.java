@@ -4,6 +4,7 @@ import com.typesafe.config.Config;
 
 import java.util.*;
 
+import gnu.trove.map.TIntLongMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
@@ -59,8 +60,11 @@ public abstract class BaseSRMetric implements SRMetric {
     private SrNormalizers normalizers;
 
     private boolean buildMostSimilarCache = false;
+    private boolean compressMatrices = false;
     private SparseMatrix mostSimilarCache = null;
     private TIntSet mostSimilarCacheRowIds = null;
+    private final ThreadLocal<SparseMatrixCursor> mostSimilarCursors = new ThreadLocal<SparseMatrixCursor>();
+    private final ThreadLocal<Leaderboard> mostSimilarLeaderboards = new ThreadLocal<Leaderboard>();
 
 
     // the number of senses to consider for each phrase
@@ -206,7 +210,7 @@ public abstract class BaseSRMetric implements SRMetric {
         normalizers.trainMostSimilar(this, disambiguator, dataset, validIds, numResults);
         try {
             if (buildMostSimilarCache) {
-                writeMostSimilarCache(numResults, mostSimilarCacheRowIds, validIds);
+                updateMostSimilarCache(numResults, mostSimilarCacheRowIds, validIds, null);
             }
         } catch (Exception e) {
             LOG.error("writing most similar cache failed:", e);
@@ -362,19 +366,27 @@ public abstract class BaseSRMetric implements SRMetric {
      * @throws DaoException
      */
     protected SRResultList getCachedMostSimilar(int wpId, int numResults, TIntSet validIds) throws DaoException {
-        if (mostSimilarCache == null) {
+        SparseMatrix cache = mostSimilarCache;
+        if (cache == null) {
             return null;
         }
-        MatrixRow row = null;
+        SparseMatrixCursor row = getMostSimilarCursor(cache);
         try {
-            row = mostSimilarCache.getRow(wpId);
+            if (!row.moveTo(wpId)) {
+                return null;
+            }
         } catch (IOException e) {
             throw new DaoException(e);
         }
-        if (row == null || row.getNumCols() < numResults ) {
+        if (row.getNumCols() < numResults ) {
             return null;
         }
-        Leaderboard leaderboard = new Leaderboard(numResults);
+        Leaderboard leaderboard = mostSimilarLeaderboards.get();
+        if (leaderboard == null) {
+            leaderboard = new Leaderboard(numResults);
+            mostSimilarLeaderboards.set(leaderboard);
+        }
+        leaderboard.reset(numResults);
         for (int i=0; i<row.getNumCols() ; i++){
             int wpId2 = row.getColIndex(i);
             if (validIds == null || validIds.contains(wpId2)){
@@ -388,6 +400,18 @@ public abstract class BaseSRMetric implements SRMetric {
         return results;
     }
 
+    /**
+     * Returns the calling thread's cursor over the most similar cache.
+     */
+    private SparseMatrixCursor getMostSimilarCursor(SparseMatrix matrix) {
+        SparseMatrixCursor cursor = mostSimilarCursors.get();
+        if (cursor == null || cursor.getMatrix() != matrix) {
+            cursor = matrix.cursor();
+            mostSimilarCursors.set(cursor);
+        }
+        return cursor;
+    }
+
     public void writeMostSimilarCache(int maxHits) throws IOException, DaoException, WikiBrainException {
         writeMostSimilarCache(maxHits, null, null);
     }
@@ -406,24 +430,15 @@ public abstract class BaseSRMetric implements SRMetric {
         TIntSet allPageIds = null;
         // Get all page ids
         if (rowIds == null || colIds == null) {
-            DaoFilter pageFilter = new DaoFilter()
-                    .setLanguages(getLanguage())
-                    .setNameSpaces(NameSpace.ARTICLE)
-                    .setDisambig(false)
-                    .setRedirect(false);
-            Iterable<LocalPage> localPages = localPageDao.get(pageFilter);
-            allPageIds = new TIntHashSet();
-            for (LocalPage page : localPages) {
-                if (page != null) {
-                    allPageIds.add(page.getLocalId());
-                }
-            }
+            allPageIds = getAllArticleIds();
         }
         if (rowIds == null) rowIds = allPageIds;
         if (colIds == null) colIds = allPageIds;
 
         getDataDir().mkdirs();
         IOUtils.closeQuietly(mostSimilarCache);
+        MostSimilarCacheUpdater updater = new MostSimilarCacheUpdater(this, getMostSimilarMatrixPath());
+        FileUtils.deleteQuietly(updater.getManifestPath());
 
 
         SRConfig config = getConfig();
@@ -431,7 +446,7 @@ public abstract class BaseSRMetric implements SRMetric {
         final AtomicLong cellCounter = new AtomicLong();
         ValueConf vconf = new ValueConf(config.minScore, config.maxScore);
 
-        final SparseMatrixWriter writer = new SparseMatrixWriter(getMostSimilarMatrixPath(), vconf);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(getMostSimilarMatrixPath(), vconf, compressMatrices);
         final TIntSet colIdSet = colIds == null ? null : new TIntHashSet(colIds);
 
 
@@ -456,6 +471,103 @@ public abstract class BaseSRMetric implements SRMetric {
         LOG.info("wrote " + cellCounter.get() + " non-zero similarity cells");
         writer.finish();
         mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
+        updater.writeManifest(createMostSimilarManifest(maxHits, colIds));
+    }
+
+    /**
+     * Brings the most similar cache up to date, recomputing only the rows that are stale.
+     * Refreshing a cache after a small change costs time proportional to the change rather
+     * than to the number of pages. An interrupted update resumes where it left off.
+     *
+     * Changed pages are detected from {@link #getVectorFingerprints()} if the metric supports
+     * it, or can be passed explicitly. If neither is available, the whole cache is rebuilt.
+     *
+     * @param maxHits Number of results per row.
+     * @param rowIds Rows of the cache, or null for all articles.
+     * @param colIds Valid result ids, or null for all articles.
+     * @param changedIds Pages whose vectors changed since the cache was written, or null if unknown.
+     * @return The number of rows that were recomputed.
+     */
+    public synchronized int updateMostSimilarCache(int maxHits, TIntSet rowIds, TIntSet colIds, TIntSet changedIds) throws IOException, DaoException {
+        TIntSet allPageIds = null;
+        if (rowIds == null || colIds == null) {
+            allPageIds = getAllArticleIds();
+        }
+        if (rowIds == null) rowIds = allPageIds;
+        if (colIds == null) colIds = allPageIds;
+
+        getDataDir().mkdirs();
+        MostSimilarCacheUpdater updater = new MostSimilarCacheUpdater(this, getMostSimilarMatrixPath());
+        MostSimilarCacheUpdater.Manifest target = createMostSimilarManifest(maxHits, colIds);
+
+        // Queries must bypass the cache and return raw scores while it is rebuilt.
+        SparseMatrix oldCache = mostSimilarCache;
+        mostSimilarCache = null;
+        Normalizer simNormalizer = getSimilarityNormalizer();
+        Normalizer mostSimNormalizer = getMostSimilarNormalizer();
+        setMostSimilarNormalizer(new IdentityNormalizer());
+        setSimilarityNormalizer(new IdentityNormalizer());
+        int numRecomputed;
+        try {
+            numRecomputed = updater.update(target, rowIds, changedIds, oldCache);
+        } catch (IOException e) {
+            mostSimilarCache = oldCache;
+            throw e;
+        } catch (DaoException e) {
+            mostSimilarCache = oldCache;
+            throw e;
+        } catch (RuntimeException e) {
+            mostSimilarCache = oldCache;
+            throw e;
+        } finally {
+            setSimilarityNormalizer(simNormalizer);
+            setMostSimilarNormalizer(mostSimNormalizer);
+        }
+        IOUtils.closeQuietly(oldCache);
+        mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
+        LOG.info("updated most similar cache, recomputing " + numRecomputed + " of " + rowIds.size() + " rows");
+        return numRecomputed;
+    }
+
+    /**
+     * Returns a fingerprint of each page's vector. The most similar cache uses them to detect
+     * which pages changed between updates, so fingerprints must change whenever the page's
+     * similarity scores might. Returns null (the default) if the metric can't provide them.
+     */
+    protected TIntLongMap getVectorFingerprints() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns true if cosimilarity() returns the same raw scores as mostSimilar(). If so,
+     * changed columns can be rescored for every row of the most similar cache instead of
+     * recomputing the rows.
+     */
+    protected boolean cosimilarityMatchesMostSimilar() {
+        return false;
+    }
+
+    private MostSimilarCacheUpdater.Manifest createMostSimilarManifest(int maxHits, TIntSet colIds) throws IOException {
+        SRConfig config = getConfig();
+        int cols[] = colIds.toArray();
+        Arrays.sort(cols);
+        return new MostSimilarCacheUpdater.Manifest(
+                maxHits, new ValueConf(config.minScore, config.maxScore), cols, getVectorFingerprints());
+    }
+
+    private TIntSet getAllArticleIds() throws DaoException {
+        DaoFilter pageFilter = new DaoFilter()
+                .setLanguages(getLanguage())
+                .setNameSpaces(NameSpace.ARTICLE)
+                .setDisambig(false)
+                .setRedirect(false);
+        TIntSet ids = new TIntHashSet();
+        for (LocalPage page : localPageDao.get(pageFilter)) {
+            if (page != null) {
+                ids.add(page.getLocalId());
+            }
+        }
+        return ids;
     }
 
     protected File getMostSimilarMatrixPath() {
@@ -511,6 +623,18 @@ public abstract class BaseSRMetric implements SRMetric {
         this.buildMostSimilarCache = buildMostSimilarCache;
     }
 
+    /**
+     * If true, matrices written by this metric use the gap encoded sparse matrix format.
+     * Compressed matrices are smaller on disk but slightly slower to read.
+     */
+    public void setCompressMatrices(boolean compressMatrices) {
+        this.compressMatrices = compressMatrices;
+    }
+
+    public boolean getCompressMatrices() {
+        return compressMatrices;
+    }
+
     public void setMostSimilarCacheRowIds(TIntSet rowIds) {
         this.mostSimilarCacheRowIds = rowIds;
     }
@@ -532,6 +656,9 @@ public abstract class BaseSRMetric implements SRMetric {
         if (config.hasPath("buildMostSimilarCache")) {
             sr.setBuildMostSimilarCache(config.getBoolean("buildMostSimilarCache"));
         }
+        if (config.hasPath("compressMatrices")) {
+            sr.setCompressMatrices(config.getBoolean("compressMatrices"));
+        }
 
         try {
             sr.read();
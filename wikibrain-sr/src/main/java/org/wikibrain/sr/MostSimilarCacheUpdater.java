@@ -0,0 +1,433 @@
+package org.wikibrain.sr;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Brings a metric's most similar cache up to date by recomputing only the rows that are stale.
+ *
+ * Each cache is written with a manifest that records the number of hits per row, the column
+ * ids, and a fingerprint of each page's vector (if the metric provides them). Pages whose
+ * fingerprints differ from the manifest's, or that the caller reports, have changed. A row is
+ * stale if it is missing from the cache, if its page changed, or if it held a full list that
+ * included a changed or removed column (its true results may then include pages that were cut
+ * off). Other rows keep their cached results, with fresh scores for added and changed columns
+ * merged in. If changes can't be detected, or too many columns changed, every row is stale.
+ *
+ * Stale rows are recomputed in batches, each of which is written to its own matrix in a work
+ * directory next to the cache. An interrupted update resumes from the last finished batch
+ * as long as its inputs have not changed. Finally all rows are merged into a new generation
+ * of the cache, which replaces the old file.
+ *
+ * @author Shilad Sen
+ */
+final class MostSimilarCacheUpdater {
+    private static final Logger LOG = LoggerFactory.getLogger(MostSimilarCacheUpdater.class);
+
+    // stale rows recomputed between checkpoints
+    static final int CHECKPOINT_ROWS = 20000;
+
+    // rows whose changed columns are rescored together
+    private static final int MERGE_ROWS = 1000;
+
+    // beyond this many changed columns, rescoring them for every row costs more than a rebuild
+    static final int MAX_MERGED_COLS = 1000;
+
+    /**
+     * Describes the contents of a most similar cache.
+     */
+    static class Manifest implements Serializable {
+        final int maxHits;
+        final float minScore;
+        final float maxScore;
+        final int colIds[];         // sorted
+        final int pageIds[];        // sorted, or null if the metric has no fingerprints
+        final long fingerprints[];  // fingerprint of each page's vector
+
+        Manifest(int maxHits, ValueConf vconf, int colIds[], TIntLongMap fingerprints) {
+            this.maxHits = maxHits;
+            this.minScore = vconf.minScore;
+            this.maxScore = vconf.maxScore;
+            this.colIds = colIds;
+            if (fingerprints == null) {
+                this.pageIds = null;
+                this.fingerprints = null;
+            } else {
+                this.pageIds = fingerprints.keys();
+                Arrays.sort(pageIds);
+                this.fingerprints = new long[pageIds.length];
+                for (int i = 0; i < pageIds.length; i++) {
+                    this.fingerprints[i] = fingerprints.get(pageIds[i]);
+                }
+            }
+        }
+
+        boolean hasFingerprints() {
+            return pageIds != null;
+        }
+
+        /**
+         * @return The pages whose fingerprints differ between the manifests, including pages
+         * that only appear in one of them.
+         */
+        TIntSet getChangedPages(Manifest that) {
+            TIntSet changed = new TIntHashSet();
+            int i = 0, j = 0;
+            while (i < pageIds.length || j < that.pageIds.length) {
+                if (j >= that.pageIds.length || (i < pageIds.length && pageIds[i] < that.pageIds[j])) {
+                    changed.add(pageIds[i++]);
+                } else if (i >= pageIds.length || pageIds[i] > that.pageIds[j]) {
+                    changed.add(that.pageIds[j++]);
+                } else {
+                    if (fingerprints[i] != that.fingerprints[j]) {
+                        changed.add(pageIds[i]);
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            return changed;
+        }
+
+        boolean sameAs(Manifest that) {
+            return maxHits == that.maxHits
+                    && minScore == that.minScore
+                    && maxScore == that.maxScore
+                    && Arrays.equals(colIds, that.colIds)
+                    && Arrays.equals(pageIds, that.pageIds)
+                    && Arrays.equals(fingerprints, that.fingerprints);
+        }
+    }
+
+    /**
+     * The rows an update recomputes. Saved so that an interrupted update can resume.
+     */
+    static class Plan implements Serializable {
+        final Manifest target;
+        final long baseModified;    // last modified time of the cache being updated, or -1
+        final boolean full;
+        final int staleRows[];
+        final int mergedCols[];     // columns rescored for rows that are not stale
+
+        Plan(Manifest target, long baseModified, boolean full, int staleRows[], int mergedCols[]) {
+            this.target = target;
+            this.baseModified = baseModified;
+            this.full = full;
+            this.staleRows = staleRows;
+            this.mergedCols = mergedCols;
+        }
+
+        boolean sameAs(Plan that) {
+            return target.sameAs(that.target)
+                    && baseModified == that.baseModified
+                    && full == that.full
+                    && Arrays.equals(staleRows, that.staleRows)
+                    && Arrays.equals(mergedCols, that.mergedCols);
+        }
+    }
+
+    private final BaseSRMetric metric;
+    private final File cachePath;
+
+    MostSimilarCacheUpdater(BaseSRMetric metric, File cachePath) {
+        this.metric = metric;
+        this.cachePath = cachePath;
+    }
+
+    File getManifestPath() {
+        return new File(cachePath.getParentFile(), cachePath.getName() + ".manifest");
+    }
+
+    File getWorkDir() {
+        return new File(cachePath.getParentFile(), cachePath.getName() + ".update");
+    }
+
+    Manifest readManifest() {
+        File path = getManifestPath();
+        if (!path.isFile() || !cachePath.isFile() || path.lastModified() < cachePath.lastModified()) {
+            return null;
+        }
+        try {
+            return (Manifest) WpIOUtils.readObjectFromFile(path);
+        } catch (Exception e) {
+            LOG.warn("reading most similar cache manifest " + path + " failed; ignoring it", e);
+            return null;
+        }
+    }
+
+    void writeManifest(Manifest manifest) throws IOException {
+        WpIOUtils.writeObjectToFile(getManifestPath(), manifest);
+    }
+
+    /**
+     * Updates the cache. The caller must make sure that mostSimilar() does not consult the
+     * cache being updated and returns raw (unnormalized) scores.
+     *
+     * @param target The manifest of the new cache.
+     * @param rowIds The rows of the new cache.
+     * @param changedIds Pages whose vectors changed since the old cache was built, in addition to
+     *                   those detected from fingerprints. Null if unknown.
+     * @param oldCache The current cache, or null.
+     * @return The number of rows that were recomputed.
+     */
+    int update(Manifest target, TIntSet rowIds, TIntSet changedIds, SparseMatrix oldCache) throws IOException, DaoException {
+        Manifest old = (oldCache == null) ? null : readManifest();
+        TIntSet cols = new TIntHashSet(target.colIds);
+        boolean changesKnown = changedIds != null
+                || (old != null && old.hasFingerprints() && target.hasFingerprints());
+        TIntSet changed = (changedIds == null) ? new TIntHashSet() : new TIntHashSet(changedIds);
+        if (old != null && old.hasFingerprints() && target.hasFingerprints()) {
+            changed.addAll(target.getChangedPages(old));
+        }
+
+        // columns that are new, or whose scores may have changed
+        TIntSet added = new TIntHashSet(target.colIds);
+        TIntSet removed = new TIntHashSet();
+        if (old != null) {
+            added.removeAll(old.colIds);
+            removed.addAll(old.colIds);
+            removed.removeAll(target.colIds);
+        }
+        TIntSet merged = new TIntHashSet(added);
+        for (int id : changed.toArray()) {
+            if (cols.contains(id)) {
+                merged.add(id);
+            }
+        }
+
+        String reason = null;
+        if (old == null) {
+            reason = "no readable cache and manifest";
+        } else if (!changesKnown) {
+            reason = "metric has no vector fingerprints and no changed pages were given";
+        } else if (merged.size() > MAX_MERGED_COLS) {
+            reason = merged.size() + " columns changed";
+        } else if (target.maxHits > old.maxHits) {
+            reason = "more hits per row requested";
+        } else if (target.minScore != old.minScore || target.maxScore != old.maxScore) {
+            reason = "score range changed";
+        } else if (!merged.isEmpty() && !metric.cosimilarityMatchesMostSimilar()) {
+            reason = "columns changed and metric cannot rescore them";
+        }
+
+        int rows[] = rowIds.toArray();
+        Arrays.sort(rows);
+        int staleRows[];
+        if (reason != null) {
+            LOG.info("rebuilding entire most similar cache: " + reason);
+            staleRows = rows;
+            merged.clear();
+        } else {
+            TIntSet invalidating = new TIntHashSet(removed);
+            invalidating.addAll(changed);
+            TIntArrayList stale = new TIntArrayList();
+            for (int id : rows) {
+                SparseMatrixRow row = oldCache.getRow(id);
+                if (row == null || changed.contains(id)
+                ||  (row.getNumCols() >= old.maxHits && containsAny(row, invalidating))) {
+                    stale.add(id);
+                }
+            }
+            staleRows = stale.toArray();
+            LOG.info("most similar cache has " + staleRows.length + " stale rows out of " + rows.length
+                    + "; rescoring " + merged.size() + " columns for the rest");
+        }
+        int mergedCols[] = merged.toArray();
+        Arrays.sort(mergedCols);
+
+        long baseModified = (oldCache == null) ? -1 : oldCache.lastModified();
+        Plan plan = preparePlan(new Plan(target, baseModified, reason != null, staleRows, mergedCols));
+
+        File batches[] = computeStaleRows(plan);
+        writeGeneration(plan, rows, batches, (reason == null) ? oldCache : null, old);
+        return staleRows.length;
+    }
+
+    /**
+     * Reuses the plan of an interrupted update if it did the same work, or starts a new one.
+     */
+    private Plan preparePlan(Plan plan) throws IOException {
+        File dir = getWorkDir();
+        File planPath = new File(dir, "plan.bin");
+        if (planPath.isFile()) {
+            try {
+                Plan existing = (Plan) WpIOUtils.readObjectFromFile(planPath);
+                if (existing.sameAs(plan)) {
+                    LOG.info("resuming interrupted most similar cache update in " + dir);
+                    return existing;
+                }
+            } catch (Exception e) {
+                LOG.warn("reading most similar cache update plan " + planPath + " failed; starting over", e);
+            }
+        }
+        FileUtils.deleteQuietly(dir);
+        WpIOUtils.mkdirsQuietly(dir);
+        WpIOUtils.writeObjectToFile(planPath, plan);
+        return plan;
+    }
+
+    /**
+     * Recomputes the stale rows of a plan in batches, skipping batches that were already written.
+     * @return The batch files, in order.
+     */
+    private File[] computeStaleRows(Plan plan) throws IOException {
+        final int maxHits = plan.target.maxHits;
+        final TIntSet validIds = new TIntHashSet(plan.target.colIds);
+        final ValueConf vconf = new ValueConf(plan.target.minScore, plan.target.maxScore);
+        int numBatches = (plan.staleRows.length + CHECKPOINT_ROWS - 1) / CHECKPOINT_ROWS;
+        File batches[] = new File[numBatches];
+        final AtomicInteger counter = new AtomicInteger();
+        for (int b = 0; b < numBatches; b++) {
+            batches[b] = new File(getWorkDir(), String.format("rows-%05d.matrix", b));
+            if (batches[b].isFile()) {
+                continue;
+            }
+            int from = b * CHECKPOINT_ROWS;
+            int to = Math.min(plan.staleRows.length, from + CHECKPOINT_ROWS);
+            LOG.info("recomputing most similar rows " + from + " to " + to + " of " + plan.staleRows.length);
+
+            File tmp = new File(getWorkDir(), batches[b].getName() + ".tmp");
+            final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, vconf, metric.getCompressMatrices());
+            ParallelForEach.loop(
+                    Arrays.asList(ArrayUtils.toObject(Arrays.copyOfRange(plan.staleRows, from, to))),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer wpId) throws IOException, DaoException {
+                            if (counter.incrementAndGet() % 10000 == 0) {
+                                LOG.info("finding matches for page " + counter.get());
+                            }
+                            SRResultList scores = metric.mostSimilar(wpId, maxHits, validIds);
+                            if (scores != null) {
+                                writer.writeRow(new SparseMatrixRow(vconf, wpId, scores.getIds(), scores.getScoresAsFloat()));
+                            }
+                        }
+                    }, Integer.MAX_VALUE);
+            writer.finish();
+            replace(tmp, batches[b]);
+        }
+        return batches;
+    }
+
+    /**
+     * Writes the new generation of the cache from the recomputed batches and the rows
+     * of the old cache that are still valid, then swaps it in.
+     */
+    private void writeGeneration(Plan plan, int rows[], File batches[], SparseMatrix oldCache, Manifest old) throws IOException, DaoException {
+        ValueConf vconf = new ValueConf(plan.target.minScore, plan.target.maxScore);
+        File next = new File(cachePath.getParentFile(), cachePath.getName() + ".next");
+        SparseMatrixWriter writer = new SparseMatrixWriter(next, vconf, metric.getCompressMatrices());
+
+        TIntSet stale = new TIntHashSet(plan.staleRows);
+        for (File batch : batches) {
+            SparseMatrix m = new SparseMatrix(batch);
+            try {
+                for (SparseMatrixRow row : m) {
+                    writer.writeRow(row);
+                }
+            } finally {
+                IOUtils.closeQuietly(m);
+            }
+        }
+
+        if (oldCache != null) {
+            TIntArrayList kept = new TIntArrayList();
+            for (int id : rows) {
+                if (!stale.contains(id)) {
+                    kept.add(id);
+                }
+            }
+            copyRows(plan, kept.toArray(), oldCache, old, writer);
+        }
+        writer.finish();
+
+        replace(next, cachePath);
+        writeManifest(plan.target);
+        FileUtils.deleteQuietly(getWorkDir());
+    }
+
+    /**
+     * Copies rows from the old cache, dropping removed and rescored columns, merging in
+     * fresh scores for the rescored columns, and truncating to the target number of hits.
+     */
+    private void copyRows(Plan plan, int rows[], SparseMatrix oldCache, Manifest old, SparseMatrixWriter writer) throws IOException, DaoException {
+        int maxHits = plan.target.maxHits;
+        ValueConf vconf = writer.getValueConf();
+        TIntSet cols = new TIntHashSet(plan.target.colIds);
+        TIntSet mergedCols = new TIntHashSet(plan.mergedCols);
+        boolean filter = !Arrays.equals(old.colIds, plan.target.colIds) || plan.mergedCols.length > 0;
+        Leaderboard top = new Leaderboard(maxHits);
+
+        for (int start = 0; start < rows.length; start += MERGE_ROWS) {
+            int chunk[] = Arrays.copyOfRange(rows, start, Math.min(rows.length, start + MERGE_ROWS));
+            double fresh[][] = (plan.mergedCols.length == 0) ? null : metric.cosimilarity(chunk, plan.mergedCols);
+            for (int i = 0; i < chunk.length; i++) {
+                SparseMatrixRow row = oldCache.getRow(chunk[i]);
+                if (!filter && row.getNumCols() <= maxHits) {
+                    writer.writeRow(row);
+                    continue;
+                }
+                top.reset(maxHits);
+                for (int j = 0; j < row.getNumCols(); j++) {
+                    int id = row.getColIndex(j);
+                    if (cols.contains(id) && !mergedCols.contains(id)) {
+                        top.tallyScore(id, row.getColValue(j));
+                    }
+                }
+                if (fresh != null) {
+                    for (int j = 0; j < plan.mergedCols.length; j++) {
+                        double score = fresh[i][j];
+                        if (score != 0.0 && !Double.isNaN(score) && !Double.isInfinite(score)) {
+                            top.tallyScore(plan.mergedCols[j], score);
+                        }
+                    }
+                }
+                SRResultList results = top.getTop();
+                writer.writeRow(new SparseMatrixRow(vconf, chunk[i], results.getIds(), results.getScoresAsFloat()));
+            }
+        }
+    }
+
+    private static boolean containsAny(SparseMatrixRow row, TIntSet ids) {
+        if (ids.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < row.getNumCols(); i++) {
+            if (ids.contains(row.getColIndex(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void replace(File src, File dest) throws IOException {
+        if (!src.renameTo(dest)) {
+            FileUtils.deleteQuietly(dest);
+            if (!src.renameTo(dest)) {
+                throw new IOException("could not move " + src + " to " + dest);
+            }
+        }
+    }
+}
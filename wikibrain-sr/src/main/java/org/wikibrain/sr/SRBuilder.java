@@ -322,6 +322,17 @@ public class SRBuilder {
             LOG.info("set window to " + config.getInt("maxWords"));
             trainer.setWindow(config.getInt("window"));
         }
+        if (config.hasPath("negative")) {
+            LOG.info("set negative samples to " + config.getInt("negative"));
+            trainer.setNegative(config.getInt("negative"));
+        }
+        if (config.hasPath("hierarchicalSoftmax")) {
+            trainer.setHierarchicalSoftmax(config.getBoolean("hierarchicalSoftmax"));
+        }
+        if (config.hasPath("sample")) {
+            LOG.info("set subsampling threshold to " + config.getDouble("sample"));
+            trainer.setSample(config.getDouble("sample"));
+        }
         trainer.setKeepAllArticles(true);
         trainer.train(corpus.getDirectory());
         trainer.save(model);
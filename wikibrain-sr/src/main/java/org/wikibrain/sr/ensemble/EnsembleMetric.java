@@ -19,12 +19,20 @@ import org.wikibrain.utils.*;
 
 import java.io.*;
 import java.util.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Combines the scores of several submetrics.
+ *
+ * Queries fan out to the submetrics concurrently on a bounded thread pool, so the
+ * latency of a query approaches that of its slowest submetric rather than the sum of all of them.
+ * If a deadline is set, submetrics that have not finished when it passes are left out, and the
+ * ensemble predicts from the ones that did (a missing submetric is passed to the
+ * {@link Ensemble} as a null result, the same as a failed one). Late submetrics are not
+ * interrupted, since they may be in the middle of database or file access; their results are ignored.
+ *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
@@ -39,6 +47,10 @@ public class EnsembleMetric extends BaseSRMetric {
     private boolean resolvePhrases = true;
     private boolean trainSubmetrics = true;
 
+    private int numThreads = -1;            // defaults to max(number of metrics, available processors)
+    private long deadlineMillis = 0;        // 0 means wait for all submetrics
+    private ExecutorService executor;
+
 
     public EnsembleMetric(String name, Language language, List<SRMetric> metrics, Ensemble ensemble, Disambiguator disambiguator, LocalPageDao pageHelper){
         super(name, language, pageHelper, disambiguator);
@@ -60,52 +72,161 @@ public class EnsembleMetric extends BaseSRMetric {
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(pageId1,pageId2,explanations));
-        }
+    public SRResult similarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> scores = fanOut(new MetricCall<SRResult>() {
+            @Override
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(pageId1, pageId2, explanations);
+            }
+        });
         return normalize(ensemble.predictSimilarity(scores));
     }
 
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    public SRResult similarity(final String phrase1, final String phrase2, final boolean explanations) throws DaoException {
         if (resolvePhrases) {
             return super.similarity(phrase1, phrase2, explanations);
         }
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(phrase1,phrase2,explanations));
-        }
+        List<SRResult> scores = fanOut(new MetricCall<SRResult>() {
+            @Override
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(phrase1, phrase2, explanations);
+            }
+        });
         return normalize(ensemble.predictSimilarity(scores));
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final int pageId, final int maxResults, final TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
         if (mostSimilar != null) {
             return mostSimilar;
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(pageId,getMaxResults(maxResults),validIds));
-        }
+        List<SRResultList> scores = fanOut(new MetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId, getMaxResults(maxResults), validIds);
+            }
+        });
         SRResultList result = normalize(ensemble.predictMostSimilar(scores, maxResults, validIds));
         return result;
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final String phrase, final int maxResults, final TIntSet validIds) throws DaoException {
         if (resolvePhrases) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(phrase, getMaxResults(maxResults),validIds));
-        }
+        List<SRResultList> scores = fanOut(new MetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(phrase, getMaxResults(maxResults), validIds);
+            }
+        });
         return normalize(ensemble.predictMostSimilar(scores,maxResults, validIds));
     }
 
+    /**
+     * A call to a single submetric.
+     */
+    private interface MetricCall<T> {
+        T call(SRMetric metric) throws DaoException;
+    }
+
+    /**
+     * Runs a call against every submetric concurrently and returns the results in the
+     * order of the submetrics. Submetrics that miss the deadline get a null result.
+     * Exceptions thrown by submetrics that finish are rethrown, as in a sequential loop.
+     */
+    private <T> List<T> fanOut(final MetricCall<T> call) throws DaoException {
+        List<T> results = new ArrayList<T>(metrics.size());
+        if (metrics.size() <= 1 || getNumThreads() <= 1) {
+            for (SRMetric metric : metrics) {
+                results.add(call.call(metric));
+            }
+            return results;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<Future<T>> futures = new ArrayList<Future<T>>(metrics.size());
+        for (final SRMetric metric : metrics) {
+            futures.add(getExecutor().submit(new Callable<T>() {
+                @Override
+                public T call() throws DaoException {
+                    return call.call(metric);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<T> future = futures.get(i);
+                if (deadlineMillis <= 0) {
+                    results.add(future.get());
+                    continue;
+                }
+                try {
+                    results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    LOG.debug("submetric " + metrics.get(i).getName() + " missed the " + deadlineMillis + "ms deadline");
+                    future.cancel(false);
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DaoException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DaoException) {
+                throw (DaoException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DaoException(e);
+        } finally {
+            for (int i = results.size(); i < futures.size(); i++) {
+                futures.get(i).cancel(false);
+            }
+        }
+        return results;
+    }
+
+    private int getNumThreads() {
+        return (numThreads > 0) ? numThreads : Math.max(metrics.size(), WpThreadUtils.getMaxThreads());
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(getNumThreads(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ensemble-" + getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the size of the thread pool that runs submetrics. One thread runs them sequentially
+     * in the calling thread. Must be called before the first query.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Sets the maximum time a query waits for its submetrics. Submetrics that have not
+     * finished by then are left out of the ensemble's prediction. 0 (the default) waits for all of them.
+     * Deadlines require more than one thread.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
     /**
      * Training cascades to base metrics.
      * @param dataset
@@ -268,6 +389,12 @@ public class EnsembleMetric extends BaseSRMetric {
             if (config.hasPath("resolvephrases")) {
                 sr.setResolvePhrases(config.getBoolean("resolvephrases"));
             }
+            if (config.hasPath("threads")) {
+                sr.setNumThreads(config.getInt("threads"));
+            }
+            if (config.hasPath("deadlinemillis")) {
+                sr.setDeadlineMillis(config.getLong("deadlinemillis"));
+            }
 
             BaseSRMetric.configureBase(getConfigurator(), sr, config);
             return sr;
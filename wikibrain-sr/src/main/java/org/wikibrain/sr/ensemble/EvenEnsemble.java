@@ -31,22 +31,37 @@ public class EvenEnsemble implements Ensemble{
     @Override
     public SRResult predictSimilarity(List<SRResult> scores) {
         double result=0.0;
+        int numMetrics = 0;
         List<Explanation> explanationList = new ArrayList<Explanation>();
         for (SRResult score : scores){
+            if (score == null) {
+                continue;   // submetric failed or missed its deadline
+            }
+            numMetrics++;
             result+=score.getScore();
             if (score.getExplanations()!=null&&!score.getExplanations().isEmpty()){
                 explanationList.addAll(score.getExplanations());
             }
         }
-        result/=scores.size();
+        if (numMetrics > 0) {
+            result/=numMetrics;
+        }
         return new SRResult(-2,result,explanationList);
     }
 
     @Override
     public SRResultList predictMostSimilar(List<SRResultList> scores, int maxResults, TIntSet validIds) {
-        int numMetrics = scores.size();
+        int numMetrics = 0;
+        for (SRResultList resultList : scores){
+            if (resultList != null) {
+                numMetrics++;
+            }
+        }
         TIntDoubleHashMap scoreMap = new TIntDoubleHashMap();
         for (SRResultList resultList : scores){
+            if (resultList == null) {
+                continue;
+            }
             for (SRResult result : resultList){
                 double value = result.getScore()/numMetrics;
                 scoreMap.adjustOrPutValue(result.getId(),value,value);
@@ -0,0 +1,139 @@
+package org.wikibrain.sr.normalize;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+
+import java.util.Arrays;
+
+/**
+ * An immutable piecewise linear function, compiled from a trained normalizer so that it
+ * can be evaluated concurrently without locks.
+ *
+ * The knots are indexed by a fixed number of equal width buckets over the x range. A lookup
+ * finds the bucket arithmetically and then binary searches only the knots inside it, so
+ * evaluation stays fast even when the knots are very unevenly spaced (as percentiles are).
+ *
+ * @author Shilad Sen
+ */
+public final class InterpolationTable {
+    private static final int MAX_BUCKETS = 1 << 16;
+
+    private final double xs[];
+    private final double ys[];
+    private final int bucketStarts[];   // index of the last knot at or before the bucket's left edge
+    private final double bucketScale;   // buckets per unit of x
+
+    /**
+     * @param xs Strictly increasing x coordinates of at least two knots.
+     * @param ys Function values at the knots.
+     */
+    public InterpolationTable(double xs[], double ys[]) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("knot sizes differ: " + xs.length + " and " + ys.length);
+        }
+        if (xs.length < 2) {
+            throw new IllegalArgumentException("at least two knots are required");
+        }
+        for (int i = 1; i < xs.length; i++) {
+            if (!(xs[i] > xs[i - 1])) {
+                throw new IllegalArgumentException("knots are not strictly increasing at " + i);
+            }
+        }
+        this.xs = Arrays.copyOf(xs, xs.length);
+        this.ys = Arrays.copyOf(ys, ys.length);
+
+        int numBuckets = Math.min(MAX_BUCKETS, xs.length);
+        double width = (xs[xs.length - 1] - xs[0]) / numBuckets;
+        this.bucketScale = 1.0 / width;
+        this.bucketStarts = new int[numBuckets];
+        int i = 0;
+        for (int b = 0; b < numBuckets; b++) {
+            double left = xs[0] + b * width;
+            while (i + 1 < xs.length && xs[i + 1] <= left) {
+                i++;
+            }
+            bucketStarts[b] = i;
+        }
+    }
+
+    /**
+     * Samples a function at its own knots (if it is a spline) and at numPoints evenly
+     * spaced points in [min, max].
+     */
+    public static InterpolationTable sample(UnivariateFunction f, double min, double max, int numPoints) {
+        if (!(max > min)) {
+            double y = f.value(min);
+            return new InterpolationTable(new double[] { min, min + 1.0 }, new double[] { y, y });
+        }
+        double grid[] = new double[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            grid[i] = min + (max - min) * i / (numPoints - 1);
+        }
+        double knots[] = grid;
+        if (f instanceof PolynomialSplineFunction) {
+            double splineKnots[] = ((PolynomialSplineFunction) f).getKnots();
+            knots = Arrays.copyOf(grid, grid.length + splineKnots.length);
+            System.arraycopy(splineKnots, 0, knots, grid.length, splineKnots.length);
+            Arrays.sort(knots);
+        }
+        double xs[] = new double[knots.length];
+        int n = 0;
+        for (double x : knots) {
+            if (min <= x && x <= max && (n == 0 || x > xs[n - 1])) {
+                xs[n++] = x;
+            }
+        }
+        xs = Arrays.copyOf(xs, n);
+        double ys[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            ys[i] = f.value(xs[i]);
+        }
+        return new InterpolationTable(xs, ys);
+    }
+
+    /**
+     * @return The interpolated value at x. Values outside the knots are clamped to the end knots.
+     */
+    public double value(double x) {
+        int n = xs.length;
+        if (x <= xs[0]) {
+            return ys[0];
+        } else if (x >= xs[n - 1]) {
+            return ys[n - 1];
+        }
+        int b = (int) ((x - xs[0]) * bucketScale);
+        if (b >= bucketStarts.length) {
+            b = bucketStarts.length - 1;
+        }
+        int lo = bucketStarts[b];
+        int hi = (b + 1 < bucketStarts.length) ? Math.min(n - 1, bucketStarts[b + 1] + 1) : n - 1;
+
+        // guard against rounding in the bucket arithmetic
+        while (lo > 0 && xs[lo] > x) lo--;
+        while (hi < n - 1 && xs[hi] <= x) hi++;
+
+        // invariant: xs[lo] <= x < xs[hi]
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[mid] <= x) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        double t = (x - xs[lo]) / (xs[hi] - xs[lo]);
+        return ys[lo] + t * (ys[hi] - ys[lo]);
+    }
+
+    public double getMinX() {
+        return xs[0];
+    }
+
+    public double getMaxX() {
+        return xs[xs.length - 1];
+    }
+
+    public int getNumKnots() {
+        return xs.length;
+    }
+}
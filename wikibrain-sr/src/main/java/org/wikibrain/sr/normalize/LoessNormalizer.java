@@ -22,6 +22,9 @@ import org.slf4j.LoggerFactory;
  * Normalizes in two steps:
  * 1. Create a smoothed weighted average defined over a sample of the observed points.
  * 2. Creates a local linear spline fitted to smoothed points.
+ *
+ * The spline is built lazily on first use and compiled into an immutable
+ * {@link InterpolationTable}, so that normalize() does not lock afterwards.
  */
 
 public class LoessNormalizer extends BaseNormalizer {
@@ -34,9 +37,12 @@ public class LoessNormalizer extends BaseNormalizer {
     private boolean logTransform = false;
     private boolean monotonic = false;
 
+    // number of evenly spaced points at which the spline is sampled, in addition to its knots
+    private static final int TABLE_POINTS = 2048;
+
     transient private double interpolatorMin;
     transient private double interpolatorMax;
-    transient private UnivariateFunction interpolator = null;
+    transient private volatile InterpolationTable table = null;
 
     @Override
     public void reset() {
@@ -45,7 +51,7 @@ public class LoessNormalizer extends BaseNormalizer {
         Y.clear();
         interpolatorMin = 0;
         interpolatorMax = 0;
-        interpolator = null;
+        table = null;
     }
 
     @Override
@@ -74,17 +80,20 @@ public class LoessNormalizer extends BaseNormalizer {
         if (Double.isNaN(x) || Double.isInfinite(x)) {
             return missingMean;
         }
-        init();
+        InterpolationTable table = this.table;
+        if (table == null) {
+            table = init();
+        }
         x = logIfNeeded(x);
         double sMin = interpolatorMin;
         double sMax = interpolatorMax;
 
         double x2;
         if (sMin <= x && x <= sMax) {
-            x2 = getInterpolationFunction().value(x);
+            x2 = table.value(x);
         } else {
-            double yMin = getInterpolationFunction().value(sMin);
-            double yMax = getInterpolationFunction().value(sMax);
+            double yMin = table.value(sMin);
+            double yMax = table.value(sMax);
             double halfLife = (sMax - sMin) / 4.0;
             double yDelta = 0.1 * (yMax - yMin);
             if (x < sMin) {
@@ -99,14 +108,9 @@ public class LoessNormalizer extends BaseNormalizer {
     }
 
 
-    private synchronized  UnivariateFunction getInterpolationFunction() {
-        init();
-        return interpolator;
-    }
-
-    private synchronized void init() {
-        if (interpolator != null) {
-            return;
+    private synchronized InterpolationTable init() {
+        if (table != null) {
+            return table;
         }
 
         // remove infinite or nan values
@@ -153,8 +157,10 @@ public class LoessNormalizer extends BaseNormalizer {
             WbMathUtils.makeMonotonicIncreasing(smoothedY, EPSILON);
         }
 
-        // create the interpolator
-        interpolator = new LoessInterpolator().interpolate(smoothedX, smoothedY);
+        // create the interpolator and compile it
+        UnivariateFunction interpolator = new LoessInterpolator().interpolate(smoothedX, smoothedY);
+        table = InterpolationTable.sample(interpolator, interpolatorMin, interpolatorMax, TABLE_POINTS);
+        return table;
     }
 
     private double logIfNeeded(double x) {
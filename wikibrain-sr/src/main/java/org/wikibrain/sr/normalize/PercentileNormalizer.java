@@ -2,8 +2,6 @@ package org.wikibrain.sr.normalize;
 
 import com.typesafe.config.Config;
 import gnu.trove.list.array.TDoubleArrayList;
-import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
-import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 import org.apache.commons.math3.distribution.BetaDistribution;
 import org.apache.commons.math3.util.FastMath;
 import org.wikibrain.conf.Configuration;
@@ -19,9 +17,12 @@ import java.util.Map;
 
 /**
  * This class is called percentile normalizer, but it returns normalized values in [0,1].
+ *
+ * After training, the percentiles are compiled into an immutable {@link InterpolationTable},
+ * so normalize() does not lock and can be called from any number of threads.
  */
 public class PercentileNormalizer extends BaseNormalizer {
-    protected transient PolynomialSplineFunction interpolator;
+    protected transient volatile InterpolationTable interpolator;
 
     /**
      * If the power variable has been set, the percentile is raised to this power.
@@ -51,7 +52,7 @@ public class PercentileNormalizer extends BaseNormalizer {
             Y.add((i + 1.0) / (sample.size() + 1));
         }
 
-        interpolator = new LinearInterpolator().interpolate(X.toArray(), Y.toArray());
+        interpolator = new InterpolationTable(X.toArray(), Y.toArray());
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -458,7 +458,7 @@ public class KnownPhraseSim implements SRMetric {
             colVectors.add(kp == null ? null : kp.getVector());
         }
         for (int i = 0; i < rows.length; i++) {
-            KnownPhrase kp = byId.get(columns[i]);
+            KnownPhrase kp = byId.get(rows[i]);
             if (kp == null) {
                 continue;   // leave sims as their default value of 0.0
             }
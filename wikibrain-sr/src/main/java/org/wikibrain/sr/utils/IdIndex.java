@@ -0,0 +1,80 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A compact, immutable mapping from a fixed set of ids (usually page ids) to the
+ * indexes 0 ... size - 1, so that per-id values can be kept in dense arrays.
+ *
+ * Ids that are dense enough are mapped through a direct lookup table; others through a hash map.
+ *
+ * @author Shilad Sen
+ */
+public final class IdIndex {
+    private final int ids[];
+
+    // exactly one of these is non-null
+    private final int table[];              // id - minId to index, or -1
+    private final TIntIntHashMap map;       // id to index
+
+    private final int minId;
+
+    /**
+     * @param ids The ids to index. Duplicates are ignored.
+     */
+    public IdIndex(int ids[]) {
+        int sorted[] = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        this.ids = Arrays.copyOf(sorted, n);
+        this.minId = (n == 0) ? 0 : this.ids[0];
+        long range = (n == 0) ? 0 : (long) this.ids[n - 1] - minId + 1;
+        if (range <= 4L * n + 1024) {
+            table = new int[(int) range];
+            Arrays.fill(table, -1);
+            for (int i = 0; i < n; i++) {
+                table[this.ids[i] - minId] = i;
+            }
+            map = null;
+        } else {
+            table = null;
+            map = new TIntIntHashMap(n * 2, 0.5f, Integer.MIN_VALUE, -1);
+            for (int i = 0; i < n; i++) {
+                map.put(this.ids[i], i);
+            }
+        }
+    }
+
+    /**
+     * @return The index of the id, or -1 if it is not in the index.
+     */
+    public int indexOf(int id) {
+        if (table != null) {
+            long i = (long) id - minId;
+            return (i < 0 || i >= table.length) ? -1 : table[(int) i];
+        } else {
+            return map.get(id);
+        }
+    }
+
+    /**
+     * @return The id at the specified index.
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @return The number of ids.
+     */
+    public int size() {
+        return ids.length;
+    }
+}
@@ -6,25 +6,57 @@ public class Leaderboard {
     private double[] values;
     private int[] keys;
     private int size;
+    private int capacity;
 
     public Leaderboard(int n) {
         values = new double[n+1];
         keys = new int[n+1];
         size = 0 ;
+        capacity = n;
         keys[0] = Integer.MIN_VALUE;
         values[0] = Double.NEGATIVE_INFINITY;
     }
 
+    /**
+     * Empties the leaderboard so that it can be reused to hold n scores.
+     * The underlying arrays are only reallocated if they are too small.
+     */
+    public void reset(int n) {
+        if (values.length < n + 1) {
+            values = new double[n+1];
+            keys = new int[n+1];
+            keys[0] = Integer.MIN_VALUE;
+            values[0] = Double.NEGATIVE_INFINITY;
+        }
+        size = 0;
+        capacity = n;
+    }
+
     public void tallyScore(int key, double value) {
-        if (size < values.length - 1) {
+        if (size < capacity) {
             insert(key, value);
-        } else if (value > values[1]) {
-            assert(size == values.length - 1);
+        } else if (size > 0 && value > values[1]) {
+            assert(size == capacity);
             removeMin();
             insert(key, value);
         }
     }
 
+    /**
+     * @return True if the leaderboard holds as many scores as it can.
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return The lowest score on the leaderboard, or negative infinity if it is empty.
+     * Once the leaderboard is full, only scores greater than this are kept.
+     */
+    public double getMinScore() {
+        return (size == 0) ? Double.NEGATIVE_INFINITY : values[1];
+    }
+
     public SRResultList getTop() {
         SRResultList scores = new SRResultList(size);
         for (int i = 1; i <= size; i++) {
@@ -71,7 +103,7 @@ public class Leaderboard {
     }
 
     private void insert(int key, double value) {
-        assert(size < values.length - 1);
+        assert(size < capacity);
         size++;
         keys[size] = key;
         values[size] = value;
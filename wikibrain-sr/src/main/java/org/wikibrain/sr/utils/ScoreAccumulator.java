@@ -0,0 +1,236 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.wikibrain.sr.SRResultList;
+
+/**
+ * Accumulates scores for the ids of an {@link IdIndex}.
+ *
+ * Only the ids that have been touched since the last reset are stored: a hash map takes
+ * each touched index to its position in a list of touched indexes and their scores. Memory
+ * is proportional to the number of touched ids rather than the size of the index, and
+ * storage that grew past {@link #MAX_RETAINED_SCORES} for a large query is dropped on release.
+ * This makes it cheap to keep one accumulator per thread for all queries, instead of
+ * allocating a new hash map for each one.
+ *
+ * Obtain accumulators with {@link #acquire(ThreadLocal, IdIndex)} and return them with
+ * {@link #release()}. An accumulator must only be used by the thread that acquired it.
+ *
+ * @author Shilad Sen
+ */
+public final class ScoreAccumulator {
+    /**
+     * The largest number of scores whose storage is kept between queries.
+     */
+    public static final int MAX_RETAINED_SCORES = 1 << 16;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final IdIndex index;
+    private TIntIntHashMap positions;       // index to position in touched lists, or -1
+    private int touchedIndexes[];
+    private double touchedScores[];
+    private int numTouched = 0;
+    private boolean inUse = false;
+    private final Leaderboard leaderboard = new Leaderboard(0);
+
+    public ScoreAccumulator(IdIndex index) {
+        this.index = index;
+        allocate();
+    }
+
+    /**
+     * Returns an empty accumulator over the index for the calling thread.
+     * The accumulator must be released when the caller is done with it. If the pooled
+     * accumulator belongs to another index it is replaced, and if it is still in use
+     * (for example, by a caller further up the stack) a new unpooled accumulator is returned.
+     *
+     * @param pool The calling thread's pooled accumulator.
+     */
+    public static ScoreAccumulator acquire(ThreadLocal<ScoreAccumulator> pool, IdIndex index) {
+        ScoreAccumulator acc = pool.get();
+        if (acc == null || acc.index != index) {
+            acc = new ScoreAccumulator(index);
+            pool.set(acc);
+        } else if (acc.inUse) {
+            acc = new ScoreAccumulator(index);
+        }
+        acc.inUse = true;
+        return acc;
+    }
+
+    /**
+     * Adds a value to the score of an id.
+     * @return False if the id is not in the index.
+     */
+    public boolean add(int id, double value) {
+        int i = index.indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        addAtIndex(i, value);
+        return true;
+    }
+
+    /**
+     * Adds a value to the score at an index of the id index.
+     */
+    public void addAtIndex(int i, double value) {
+        int p = positions.get(i);
+        if (p < 0) {
+            p = touch(i);
+        }
+        touchedScores[p] += value;
+    }
+
+    /**
+     * Adds a value to the score of an id only if it has already been touched.
+     * @return True if the score was updated.
+     */
+    public boolean addIfPresent(int id, double value) {
+        int i = index.indexOf(id);
+        int p = (i < 0) ? -1 : positions.get(i);
+        if (p < 0) {
+            return false;
+        }
+        touchedScores[p] += value;
+        return true;
+    }
+
+    /**
+     * @return True if the id has been touched since the last reset.
+     */
+    public boolean contains(int id) {
+        int i = index.indexOf(id);
+        return i >= 0 && positions.containsKey(i);
+    }
+
+    /**
+     * @return The score of an id, or 0 if it has not been touched.
+     */
+    public double get(int id) {
+        int i = index.indexOf(id);
+        int p = (i < 0) ? -1 : positions.get(i);
+        return (p < 0) ? 0.0 : touchedScores[p];
+    }
+
+    /**
+     * @return The number of ids touched since the last reset.
+     */
+    public int size() {
+        return numTouched;
+    }
+
+    /**
+     * @return The index (in the id index) of the i'th touched id.
+     */
+    public int getTouchedIndex(int i) {
+        return touchedIndexes[i];
+    }
+
+    /**
+     * @return The i'th touched id.
+     */
+    public int getTouchedId(int i) {
+        return index.getId(touchedIndexes[i]);
+    }
+
+    /**
+     * @return The score of the i'th touched id.
+     */
+    public double getTouchedScore(int i) {
+        return touchedScores[i];
+    }
+
+    /**
+     * Drops the touched ids whose score divided by their norm is less than minScore.
+     * @param norms Norms indexed like the id index.
+     */
+    public void retain(float norms[], double minScore) {
+        positions.clear();
+        int n = 0;
+        for (int i = 0; i < numTouched; i++) {
+            int j = touchedIndexes[i];
+            if (touchedScores[i] / norms[j] >= minScore) {
+                touchedIndexes[n] = j;
+                touchedScores[n] = touchedScores[i];
+                positions.put(j, n);
+                n++;
+            }
+        }
+        numTouched = n;
+    }
+
+    /**
+     * Clears all touched scores.
+     */
+    public void reset() {
+        if (numTouched > 0) {
+            positions.clear();
+            numTouched = 0;
+        }
+    }
+
+    /**
+     * Returns this accumulator's leaderboard, emptied and resized to hold n scores.
+     * The leaderboard is only valid until the accumulator is released.
+     */
+    public Leaderboard getLeaderboard(int n) {
+        leaderboard.reset(n);
+        return leaderboard;
+    }
+
+    /**
+     * @return The n highest touched scores, each transformed by dividing by the corresponding
+     * entry in norms (indexed like the id index) times the scalar norm. Pass null to skip the division.
+     */
+    public SRResultList top(int n, float norms[], double norm) {
+        Leaderboard top = getLeaderboard(n);
+        for (int i = 0; i < numTouched; i++) {
+            int j = touchedIndexes[i];
+            double score = (norms == null) ? touchedScores[i] : touchedScores[i] / (norms[j] * norm);
+            top.tallyScore(index.getId(j), score);
+        }
+        return top.getTop();
+    }
+
+    /**
+     * Resets the accumulator and returns it to its thread's pool.
+     */
+    public void release() {
+        if (touchedIndexes.length > MAX_RETAINED_SCORES) {
+            numTouched = 0;
+            allocate();
+        } else {
+            reset();
+        }
+        inUse = false;
+    }
+
+    public IdIndex getIndex() {
+        return index;
+    }
+
+    private void allocate() {
+        positions = new TIntIntHashMap(INITIAL_CAPACITY * 2, 0.5f, -1, -1);
+        touchedIndexes = new int[INITIAL_CAPACITY];
+        touchedScores = new double[INITIAL_CAPACITY];
+    }
+
+    private int touch(int i) {
+        if (numTouched == touchedIndexes.length) {
+            int n = Math.min(Math.max(index.size(), 1), touchedIndexes.length * 2);
+            int tmpIndexes[] = new int[n];
+            double tmpScores[] = new double[n];
+            System.arraycopy(touchedIndexes, 0, tmpIndexes, 0, numTouched);
+            System.arraycopy(touchedScores, 0, tmpScores, 0, numTouched);
+            touchedIndexes = tmpIndexes;
+            touchedScores = tmpScores;
+        }
+        int p = numTouched++;
+        positions.put(i, p);
+        touchedIndexes[p] = i;
+        touchedScores[p] = 0.0;
+        return p;
+    }
+}
@@ -0,0 +1,340 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.iterator.TIntFloatIterator;
+import org.wikibrain.matrix.MatrixRow;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Computes a block of pairwise similarities between two lists of sparse vectors.
+ *
+ * Comparing every pair with {@link VectorSimilarity#similarity} re-reads and re-measures
+ * both vectors m * n times. This kernel converts each distinct vector once, builds an inverted
+ * index over the column vectors, and computes all dot products for a row in a single pass over
+ * that row's features (a sparse matrix product). Large blocks are split across threads by row.
+ *
+ * The final score for each pair is computed by a {@link PairScorer} from the dot product and
+ * per-vector statistics, so any similarity that can be expressed that way can use the kernel.
+ *
+ * @author Shilad Sen
+ */
+public final class CosimilarityKernel {
+
+    /**
+     * A similarity that can be computed from the dot product of two vectors and their lengths.
+     */
+    public interface PairScorer {
+        /**
+         * @return True if all weights should be treated as 1, so dot products count shared features.
+         */
+        boolean usesBinaryWeights();
+
+        /**
+         * @param dot The dot product of the two vectors.
+         * @param sumSquares1 The sum of squared weights of the first vector.
+         * @param size1 The number of features in the first vector.
+         * @param sumSquares2 The sum of squared weights of the second vector.
+         * @param size2 The number of features in the second vector.
+         * @return The similarity of the two vectors.
+         */
+        double score(double dot, double sumSquares1, int size1, double sumSquares2, int size2);
+    }
+
+    // blocks with fewer cells than this are computed in the calling thread
+    private static final int MIN_PARALLEL_CELLS = 1 << 16;
+
+    private static ExecutorService executor;
+
+    private CosimilarityKernel() {}
+
+    /**
+     * Computes the similarity of every row vector with every column vector.
+     * Null vectors have similarity 0 with everything.
+     */
+    public static double[][] compute(PairScorer scorer, List<? extends MatrixRow> rows, List<? extends MatrixRow> cols) {
+        Map<Object, Vec> converted = new IdentityHashMap<Object, Vec>();
+        return compute(scorer, toVecs(scorer, rows, converted), toVecs(scorer, cols, converted));
+    }
+
+    /**
+     * Computes the similarity of every row vector with every column vector.
+     * Null vectors have similarity 0 with everything.
+     */
+    public static double[][] computeFromMaps(PairScorer scorer, List<TIntFloatMap> rows, List<TIntFloatMap> cols) {
+        Map<Object, Vec> converted = new IdentityHashMap<Object, Vec>();
+        return compute(scorer, mapsToVecs(scorer, rows, converted), mapsToVecs(scorer, cols, converted));
+    }
+
+    private static double[][] compute(final PairScorer scorer, Vec rows[], Vec cols[]) {
+        final double results[][] = new double[rows.length][cols.length];
+        if (rows.length == 0 || cols.length == 0) {
+            return results;
+        }
+
+        // Number the distinct column vectors, and index their features
+        final List<Vec> uniqueCols = new ArrayList<Vec>();
+        final int colSlots[] = number(cols, uniqueCols);
+        final PostingIndex index = new PostingIndex(uniqueCols);
+
+        // Group the rows by distinct vector, so each is multiplied once
+        final List<Vec> uniqueRows = new ArrayList<Vec>();
+        final int rowSlots[] = number(rows, uniqueRows);
+        final int rowsBySlot[][] = invert(rowSlots, uniqueRows.size());
+
+        final int numThreads = WpThreadUtils.getMaxThreads();
+        if (numThreads <= 1 || uniqueRows.size() <= 1
+        ||  (long) rows.length * cols.length < MIN_PARALLEL_CELLS) {
+            multiply(scorer, index, uniqueRows, 0, uniqueRows.size(), rowsBySlot, colSlots, results);
+            return results;
+        }
+
+        int blockSize = Math.max(1, uniqueRows.size() / (numThreads * 4));
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int start = 0; start < uniqueRows.size(); start += blockSize) {
+            final int from = start;
+            final int to = Math.min(uniqueRows.size(), start + blockSize);
+            futures.add(getExecutor().submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    multiply(scorer, index, uniqueRows, from, to, rowsBySlot, colSlots, results);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Object> f : futures) {
+                f.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Computes the scores for distinct rows [from, to) and copies them into every
+     * result row that holds the same vector.
+     */
+    private static void multiply(PairScorer scorer, PostingIndex index, List<Vec> uniqueRows, int from, int to,
+                                 int rowsBySlot[][], int colSlots[], double results[][]) {
+        List<Vec> uniqueCols = index.cols;
+        double dots[] = new double[uniqueCols.size()];
+        double scores[] = new double[uniqueCols.size()];
+        for (int r = from; r < to; r++) {
+            Vec row = uniqueRows.get(r);
+            Arrays.fill(dots, 0.0);
+            for (int i = 0; i < row.size; i++) {
+                int f = index.slots.get(row.ids[i]);
+                if (f < 0) {
+                    continue;
+                }
+                double v = row.vals[i];
+                for (int p = index.offsets[f]; p < index.offsets[f + 1]; p++) {
+                    dots[index.postingCols[p]] += v * index.postingVals[p];
+                }
+            }
+            for (int c = 0; c < scores.length; c++) {
+                Vec col = uniqueCols.get(c);
+                scores[c] = (row.size == 0 || col.size == 0)
+                        ? 0.0
+                        : scorer.score(dots[c], row.sumSquares, row.size, col.sumSquares, col.size);
+            }
+            for (int i : rowsBySlot[r]) {
+                double result[] = results[i];
+                for (int j = 0; j < colSlots.length; j++) {
+                    result[j] = scores[colSlots[j]];
+                }
+            }
+        }
+    }
+
+    /**
+     * An inverted index from features to the distinct column vectors that contain them, in CSR form.
+     */
+    private static class PostingIndex {
+        final List<Vec> cols;
+        final TIntIntHashMap slots;     // feature to slot, or -1
+        final int offsets[];            // slot to start of its postings
+        final int postingCols[];
+        final float postingVals[];
+
+        PostingIndex(List<Vec> cols) {
+            this.cols = cols;
+            int total = 0;
+            for (Vec v : cols) {
+                total += v.size;
+            }
+            slots = new TIntIntHashMap(Math.max(16, total * 2), 0.5f, Integer.MIN_VALUE, -1);
+            int counts[] = new int[total + 1];
+            int numSlots = 0;
+            for (Vec v : cols) {
+                for (int i = 0; i < v.size; i++) {
+                    int s = slots.get(v.ids[i]);
+                    if (s < 0) {
+                        s = numSlots++;
+                        slots.put(v.ids[i], s);
+                    }
+                    counts[s]++;
+                }
+            }
+            offsets = new int[numSlots + 1];
+            for (int s = 0; s < numSlots; s++) {
+                offsets[s + 1] = offsets[s] + counts[s];
+            }
+            int next[] = Arrays.copyOf(offsets, numSlots);
+            postingCols = new int[total];
+            postingVals = new float[total];
+            for (int c = 0; c < cols.size(); c++) {
+                Vec v = cols.get(c);
+                for (int i = 0; i < v.size; i++) {
+                    int p = next[slots.get(v.ids[i])]++;
+                    postingCols[p] = c;
+                    postingVals[p] = v.vals[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * A sparse vector converted once for the kernel.
+     */
+    private static class Vec {
+        static final Vec EMPTY = new Vec(new int[0], new float[0]);
+
+        final int ids[];
+        final float vals[];
+        final int size;
+        final double sumSquares;
+
+        Vec(int ids[], float vals[]) {
+            this.ids = ids;
+            this.vals = vals;
+            this.size = ids.length;
+            double ss = 0.0;
+            for (float v : vals) {
+                ss += v * v;
+            }
+            this.sumSquares = ss;
+        }
+    }
+
+    private static Vec[] toVecs(PairScorer scorer, List<? extends MatrixRow> rows, Map<Object, Vec> converted) {
+        Vec vecs[] = new Vec[rows.size()];
+        for (int i = 0; i < vecs.length; i++) {
+            MatrixRow row = rows.get(i);
+            if (row == null) {
+                vecs[i] = Vec.EMPTY;
+            } else if (converted.containsKey(row)) {
+                vecs[i] = converted.get(row);
+            } else {
+                int n = row.getNumCols();
+                int ids[] = new int[n];
+                float vals[] = new float[n];
+                for (int j = 0; j < n; j++) {
+                    ids[j] = row.getColIndex(j);
+                    vals[j] = scorer.usesBinaryWeights() ? 1.0f : row.getColValue(j);
+                }
+                vecs[i] = new Vec(ids, vals);
+                converted.put(row, vecs[i]);
+            }
+        }
+        return vecs;
+    }
+
+    private static Vec[] mapsToVecs(PairScorer scorer, List<TIntFloatMap> maps, Map<Object, Vec> converted) {
+        Vec vecs[] = new Vec[maps.size()];
+        for (int i = 0; i < vecs.length; i++) {
+            TIntFloatMap map = maps.get(i);
+            if (map == null) {
+                vecs[i] = Vec.EMPTY;
+            } else if (converted.containsKey(map)) {
+                vecs[i] = converted.get(map);
+            } else {
+                int ids[] = new int[map.size()];
+                float vals[] = new float[map.size()];
+                int j = 0;
+                TIntFloatIterator iter = map.iterator();
+                while (iter.hasNext()) {
+                    iter.advance();
+                    ids[j] = iter.key();
+                    vals[j] = scorer.usesBinaryWeights() ? 1.0f : iter.value();
+                    j++;
+                }
+                vecs[i] = new Vec(ids, vals);
+                converted.put(map, vecs[i]);
+            }
+        }
+        return vecs;
+    }
+
+    /**
+     * Assigns each distinct vector a slot, appending the distinct vectors to unique.
+     * @return The slot of each vector.
+     */
+    private static int[] number(Vec vecs[], List<Vec> unique) {
+        Map<Vec, Integer> slots = new IdentityHashMap<Vec, Integer>();
+        int result[] = new int[vecs.length];
+        for (int i = 0; i < vecs.length; i++) {
+            Integer s = slots.get(vecs[i]);
+            if (s == null) {
+                s = unique.size();
+                unique.add(vecs[i]);
+                slots.put(vecs[i], s);
+            }
+            result[i] = s;
+        }
+        return result;
+    }
+
+    /**
+     * @return For each slot, the positions that were assigned to it.
+     */
+    private static int[][] invert(int slots[], int numSlots) {
+        int counts[] = new int[numSlots];
+        for (int s : slots) {
+            counts[s]++;
+        }
+        int result[][] = new int[numSlots][];
+        for (int s = 0; s < numSlots; s++) {
+            result[s] = new int[counts[s]];
+            counts[s] = 0;
+        }
+        for (int i = 0; i < slots.length; i++) {
+            int s = slots[i];
+            result[s][counts[s]++] = i;
+        }
+        return result;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(WpThreadUtils.getMaxThreads(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cosimilarity-kernel");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+}
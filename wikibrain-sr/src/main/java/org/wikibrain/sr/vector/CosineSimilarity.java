@@ -3,7 +3,6 @@ package org.wikibrain.sr.vector;
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -12,31 +11,57 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.matrix.MatrixRow;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
 import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.IdIndex;
 import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.ScoreAccumulator;
 import org.wikibrain.sr.utils.SimUtils;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Cosine similarity between sparse feature vectors.
+ *
+ * Unfiltered mostSimilar queries (and those with large filters) accumulate dot products
+ * over the inverted index. When all weights involved are non-negative, the accumulation is
+ * pruned with max-score bounds so that rows which cannot reach the top results stop being
+ * scored part way through the query. See {@link #mostSimilarPruned}.
+ *
  * @author Shilad Sen
  */
-public class CosineSimilarity implements VectorSimilarity {
+public class CosineSimilarity implements VectorSimilarity, CosimilarityKernel.PairScorer {
     private static final Logger LOG = LoggerFactory.getLogger(CosineSimilarity.class);
 
     private TIntFloatHashMap lengths = new TIntFloatHashMap();   // lengths of each row
     private TIntSet idsInResults = new TIntHashSet();
     private int maxResults = -1;
 
+    // for each feature, the maximum of weight / row length over its postings, or NaN if it can't be pruned
+    private TIntFloatHashMap maxWeights = new TIntFloatHashMap();
+    private boolean usePruning = true;
+
+    // compact index of the feature rows, and their lengths by index
+    private IdIndex rowIndex = new IdIndex(new int[0]);
+    private float rowLengths[] = new float[0];
+
     private SparseMatrix features;
     private SparseMatrix transpose;
 
+    private final ThreadLocal<SparseMatrixCursor> featureCursors = new ThreadLocal<SparseMatrixCursor>();
+    private final ThreadLocal<SparseMatrixCursor> transposeCursors = new ThreadLocal<SparseMatrixCursor>();
+
+    // replaced along with the matrices, so threads don't hold on to accumulators over old indexes
+    private volatile ThreadLocal<ScoreAccumulator> accumulators = new ThreadLocal<ScoreAccumulator>();
+
     @Override
     public synchronized  void setMatrices(SparseMatrix features, SparseMatrix transpose, File dataDir) throws IOException {
         this.features = features;
@@ -45,13 +70,16 @@ public class CosineSimilarity implements VectorSimilarity {
         File idCacheFile = new File(dataDir, "cosineSimilarity-ids.bin");
         File lengthCacheFile = new File(dataDir, "cosineSimilarity-lengths.bin");
         File maxCacheFile = new File(dataDir, "cosineSimilarity-maxResults.bin");
+        File maxWeightCacheFile = new File(dataDir, "cosineSimilarity-maxWeights.bin");
 
         if (lengthCacheFile.exists() && lengthCacheFile.lastModified() >= features.lastModified()
-                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()) {
+                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()
+                &&  maxWeightCacheFile.exists() && maxWeightCacheFile.lastModified() >= transpose.lastModified()) {
             LOG.info("reading matrix information from cache");
             lengths = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(lengthCacheFile);
             idsInResults = (TIntSet) WpIOUtils.readObjectFromFile(idCacheFile);
             maxResults = (Integer) WpIOUtils.readObjectFromFile(maxCacheFile);
+            maxWeights = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(maxWeightCacheFile);
         } else {
             LOG.info("building cached matrix information");
             lengths.clear();
@@ -62,9 +90,50 @@ public class CosineSimilarity implements VectorSimilarity {
                 maxResults = Math.max(maxResults, row.getNumCols());
             }
             idsInResults.addAll(transpose.getRowIds());
+            buildMaxWeights();
             WpIOUtils.writeObjectToFile(lengthCacheFile, lengths);
             WpIOUtils.writeObjectToFile(idCacheFile, idsInResults);
             WpIOUtils.writeObjectToFile(maxCacheFile, maxResults);
+            WpIOUtils.writeObjectToFile(maxWeightCacheFile, maxWeights);
+        }
+        IdIndex index = new IdIndex(lengths.keys());
+        float indexLengths[] = new float[index.size()];
+        for (int i = 0; i < indexLengths.length; i++) {
+            indexLengths[i] = lengths.get(index.getId(i));
+        }
+        rowLengths = indexLengths;
+        rowIndex = index;
+        accumulators.remove();
+        accumulators = new ThreadLocal<ScoreAccumulator>();
+    }
+
+    /**
+     * Computes the bounds used by pruned queries. A feature gets a NaN bound if it has
+     * negative weights or its postings are not sorted by row id.
+     */
+    private void buildMaxWeights() throws IOException {
+        maxWeights = new TIntFloatHashMap();
+        SparseMatrixCursor postings = transpose.cursor();
+        for (int id : transpose.getRowIds()) {
+            if (!postings.moveTo(id)) {
+                continue;
+            }
+            float max = 0.0f;
+            int prev = Integer.MIN_VALUE;
+            for (int i = 0; i < postings.getNumCols(); i++) {
+                int rowId = postings.getColIndex(i);
+                float w = postings.getColValue(i);
+                if (w < 0 || rowId <= prev) {
+                    max = Float.NaN;
+                    break;
+                }
+                float l = lengths.get(rowId);
+                if (l > 0) {
+                    max = Math.max(max, w / l);
+                }
+                prev = rowId;
+            }
+            maxWeights.put(id, max);
         }
     }
 
@@ -78,6 +147,17 @@ public class CosineSimilarity implements VectorSimilarity {
         return SimUtils.cosineSimilarity(vector1, vector2);
     }
 
+    @Override
+    public boolean usesBinaryWeights() {
+        return false;
+    }
+
+    @Override
+    public double score(double dot, double sumSquares1, int size1, double sumSquares2, int size2) {
+        double denom = sumSquares1 * sumSquares2;
+        return denom != 0 ? dot / Math.sqrt(denom) : 0.0;
+    }
+
     @Override
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         if (validIds != null && validIds.size() < 10000) {
@@ -87,13 +167,43 @@ public class CosineSimilarity implements VectorSimilarity {
         }
     }
 
+    @Override
+    public SRResultList mostSimilar(MatrixRow query, int maxResults, TIntSet validIds) throws IOException {
+        if (validIds != null && validIds.size() < 10000) {
+            return mostSimilarWithRegularIndex(query.asTroveMap(), maxResults, validIds);
+        }
+        int n = query.getNumCols();
+        ScoreAccumulator dots = ScoreAccumulator.acquire(accumulators, rowIndex);
+        try {
+            if (usePruning) {
+                int ids[] = new int[n];
+                float vals[] = new float[n];
+                for (int i = 0; i < n; i++) {
+                    ids[i] = query.getColIndex(i);
+                    vals[i] = query.getColValue(i);
+                }
+                SRResultList result = mostSimilarPruned(dots, ids, vals, query.getNorm(), maxResults, validIds);
+                if (result != null) {
+                    return result;
+                }
+            }
+            SparseMatrixCursor postings = getCursor(transposeCursors, transpose);
+            for (int i = 0; i < n; i++) {
+                accumulate(dots, postings, query.getColIndex(i), query.getColValue(i), validIds);
+            }
+            return dots.top(maxResults, rowLengths, query.getNorm());
+        } finally {
+            dots.release();
+        }
+    }
+
     private SRResultList mostSimilarWithRegularIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         final Leaderboard leaderboard = new Leaderboard(maxResults);
         double rowNorm = norm(query);
+        SparseMatrixCursor row2 = getCursor(featureCursors, features);
 
         for (int id : validIds.toArray()) {
-            MatrixRow row2 = features.getRow(id);
-            if (row2 != null) {
+            if (row2.moveTo(id)) {
                 double dot = 0.0;
                 for (int i = 0; i < row2.getNumCols(); i++) {
                     int id2 = row2.getColIndex(i);
@@ -108,44 +218,188 @@ public class CosineSimilarity implements VectorSimilarity {
                 leaderboard.tallyScore(id, sim);
             }
         }
-
         return leaderboard.getTop();
     }
 
     private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
-        TIntDoubleHashMap dots = new TIntDoubleHashMap(Math.max(100000, maxResults * 5));
-
-        // Eschew a for-each loop here for performance reasons.
-        int keys[] = query.keys();
-        for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            float val1 = query.get(id);
-            MatrixRow row2 = transpose.getRow(id);
-            if (row2 != null) {
-                int n = row2.getNumCols();
-                for (int j = 0; j < n; j++) {
-                    int id2 = row2.getColIndex(j);
-                    if (validIds == null || validIds.contains(id2)) {
-                        float val2 = row2.getColValue(j);
-                        dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
+        ScoreAccumulator dots = ScoreAccumulator.acquire(accumulators, rowIndex);
+        try {
+            if (usePruning) {
+                SRResultList result = mostSimilarPruned(dots, query.keys(), query.values(), norm(query), maxResults, validIds);
+                if (result != null) {
+                    return result;
+                }
+            }
+            SparseMatrixCursor postings = getCursor(transposeCursors, transpose);
+
+            // Eschew a for-each loop here for performance reasons.
+            int keys[] = query.keys();
+            for (int i = 0; i < keys.length; i++) {
+                int id = keys[i];
+                accumulate(dots, postings, id, query.get(id), validIds);
+            }
+            return dots.top(maxResults, rowLengths, norm(query));
+        } finally {
+            dots.release();
+        }
+    }
+
+    /**
+     * Adds the contribution of a single query feature to the dot products of all rows containing it.
+     */
+    private void accumulate(ScoreAccumulator dots, SparseMatrixCursor postings, int id, float val1, TIntSet validIds) throws IOException {
+        if (postings.moveTo(id)) {
+            int n = postings.getNumCols();
+            for (int j = 0; j < n; j++) {
+                int id2 = postings.getColIndex(j);
+                if (validIds == null || validIds.contains(id2)) {
+                    float val2 = postings.getColValue(j);
+                    dots.add(id2, val1 * val2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Term-at-a-time max-score evaluation (Turtle and Flood, "Query evaluation: strategies and
+     * optimizations"). Features are accumulated in decreasing order of their largest possible
+     * contribution q * max(w / |d|). Once the remaining features can no longer lift an unseen
+     * row above the current k-th best partial score, no new rows are added, rows that can no
+     * longer make the results are dropped, and the remaining features only update the
+     * surviving rows. The results equal those of a full accumulation, except for the order of ties.
+     *
+     * @return The most similar rows, or null if the query involves negative weights and can't be pruned.
+     */
+    private SRResultList mostSimilarPruned(ScoreAccumulator dots, int ids[], float vals[], double queryNorm, int maxResults, TIntSet validIds) throws IOException {
+        int n = 0;
+        final int terms[] = new int[ids.length];
+        final double bounds[] = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (vals[i] == 0.0f || !maxWeights.containsKey(ids[i])) {
+                continue;
+            }
+            float maxWeight = maxWeights.get(ids[i]);
+            if (vals[i] < 0 || Float.isNaN(maxWeight)) {
+                return null;
+            }
+            terms[n] = i;
+            bounds[n] = vals[i] * maxWeight;
+            n++;
+        }
+        Integer order[] = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(bounds[j], bounds[i]);
+            }
+        });
+        double remaining = 0.0;
+        for (int i = 0; i < n; i++) {
+            remaining += bounds[i];
+        }
+
+        SparseMatrixCursor postings = getCursor(transposeCursors, transpose);
+        boolean adding = true;
+        int work = 0;
+        int patience = 1;
+        for (int i = 0; i < n; i++) {
+            int t = order[i];
+            int id = ids[terms[t]];
+            float val = vals[terms[t]];
+            remaining -= bounds[t];
+            if (adding) {
+                accumulate(dots, postings, id, val, validIds);
+            } else {
+                update(dots, postings, id, val);
+            }
+            work += postings.getNumCols();
+
+            // Partial scores never exceed |q|, so there is no point in a threshold before then.
+            // Computing it costs a pass over the rows, so only do so after reading about as many
+            // postings, and back off while the threshold is too low to prune anything.
+            if (remaining < queryNorm && work >= dots.size() * patience) {
+                double threshold = kthScore(dots, maxResults);
+                if (remaining + PRUNING_EPSILON <= threshold) {
+                    adding = false;
+                    dots.retain(rowLengths, threshold - remaining - PRUNING_EPSILON);
+                } else {
+                    patience *= 2;
+                }
+                work = 0;
+            }
+        }
+        return dots.top(maxResults, rowLengths, queryNorm);
+    }
+
+    // Allows for floating point error when comparing bounds to partial scores.
+    private static final double PRUNING_EPSILON = 1e-7;
+
+    /**
+     * Returns the k-th best partial score (dot / |d|), or negative infinity if there are fewer than k rows.
+     */
+    private double kthScore(ScoreAccumulator dots, int k) {
+        Leaderboard leaderboard = dots.getLeaderboard(k);
+        for (int i = 0; i < dots.size(); i++) {
+            int j = dots.getTouchedIndex(i);
+            leaderboard.tallyScore(j, dots.getTouchedScore(i) / rowLengths[j]);
+        }
+        return leaderboard.isFull() ? leaderboard.getMinScore() : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Adds the contribution of a single query feature to the rows already in dots.
+     * Depending on which is smaller, either walks the postings or binary searches them for each row.
+     */
+    private void update(ScoreAccumulator dots, SparseMatrixCursor postings, int id, float val1) throws IOException {
+        if (!postings.moveTo(id)) {
+            return;
+        }
+        int n = postings.getNumCols();
+        if (dots.size() * (32 - Integer.numberOfLeadingZeros(n)) < n) {
+            for (int i = 0; i < dots.size(); i++) {
+                int id1 = dots.getTouchedId(i);
+                int lo = 0, hi = n - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int id2 = postings.getColIndex(mid);
+                    if (id2 < id1) {
+                        lo = mid + 1;
+                    } else if (id2 > id1) {
+                        hi = mid - 1;
+                    } else {
+                        dots.addAtIndex(dots.getTouchedIndex(i), val1 * postings.getColValue(mid));
+                        break;
                     }
                 }
             }
+        } else {
+            for (int j = 0; j < n; j++) {
+                dots.addIfPresent(postings.getColIndex(j), val1 * postings.getColValue(j));
+            }
         }
+    }
 
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
-        double rowNorm = norm(query);
-        keys = dots.keys();
-        for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            double l1 = lengths.get(id);
-            double l2 = rowNorm;
-            double dot = dots.get(id);
-            double sim = dot / (l1 * l2);
-            leaderboard.tallyScore(id, sim);
+    /**
+     * Returns the calling thread's cursor for a matrix, replacing it if the matrix has changed.
+     */
+    private static SparseMatrixCursor getCursor(ThreadLocal<SparseMatrixCursor> cursors, SparseMatrix matrix) {
+        SparseMatrixCursor cursor = cursors.get();
+        if (cursor == null || cursor.getMatrix() != matrix) {
+            cursor = matrix.cursor();
+            cursors.set(cursor);
         }
+        return cursor;
+    }
 
-        return leaderboard.getTop();
+    /**
+     * Enables or disables max-score pruning of inverted index queries. Pruning is on by default
+     * and does not change results, except for the order of ties.
+     */
+    public void setUsePruning(boolean usePruning) {
+        this.usePruning = usePruning;
     }
 
     @Override
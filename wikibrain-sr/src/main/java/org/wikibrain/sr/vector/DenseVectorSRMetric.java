@@ -3,6 +3,7 @@ package org.wikibrain.sr.vector;
 import com.typesafe.config.Config;
 import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
+import org.apache.commons.io.IOUtils;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -11,6 +12,10 @@ import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.QuantizedDenseMatrix;
+import org.wikibrain.matrix.QuantizedDenseMatrixCursor;
+import org.wikibrain.matrix.QuantizedDenseMatrixRow;
+import org.wikibrain.matrix.QuantizedDenseMatrixWriter;
 import org.wikibrain.matrix.knn.KNNFinder;
 import org.wikibrain.matrix.knn.Neighborhood;
 import org.wikibrain.matrix.knn.RandomProjectionKNNFinder;
@@ -23,6 +28,7 @@ import org.wikibrain.sr.disambig.Disambiguator;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
@@ -51,6 +57,11 @@ public class DenseVectorSRMetric extends BaseSRMetric {
     private DenseMatrix articleFeatures;
     private KNNFinder accelerator;
 
+    // int8 copy of the article features used for brute force scans, if enabled.
+    private boolean quantizeFeatures = false;
+    private QuantizedDenseMatrix quantizedFeatures;
+    private final ThreadLocal<QuantizedDenseMatrixCursor> quantizedCursors = new ThreadLocal<QuantizedDenseMatrixCursor>();
+
     // Multiple of requested mostSimilar results that will be considered
     private double acceleratorMultiplier = 100.0;
     private int minAcceleratorCandidates = 500;
@@ -134,7 +145,9 @@ public class DenseVectorSRMetric extends BaseSRMetric {
             return new SRResultList(0);
         }
         SRResultList result;
-        if (accelerator != null) {
+        if (quantizeFeatures && quantizedFeatures != null) {
+            result = mostSimilarQuantized(vector, maxResults, validIds);
+        } else if (accelerator != null) {
             int n = (int) Math.max(minAcceleratorCandidates, maxResults * acceleratorMultiplier);
             Neighborhood nhood = accelerator.query(vector, maxResults, n, validIds);
             result = new SRResultList(nhood.size());
@@ -168,6 +181,57 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         return normalize(result);
     }
 
+    /**
+     * Brute force scan over the quantized article features.
+     * Scores are cosine similarities between the quantized vectors.
+     */
+    private SRResultList mostSimilarQuantized(float [] vector, int maxResults, TIntSet validIds) throws IOException {
+        final QuantizedDenseMatrixRow query = quantizedFeatures.quantize(vector);
+        final QuantizedDenseMatrixCursor cursor = getQuantizedCursor();
+        final Leaderboard board = new Leaderboard(maxResults);
+        if (validIds == null) {
+            for (int id : quantizedFeatures.getRowIds()) {
+                cursor.moveTo(id);
+                board.tallyScore(id, cursor.cosine(query));
+            }
+        } else {
+            for (int id : validIds.toArray()) {
+                if (cursor.moveTo(id)) {
+                    board.tallyScore(id, cursor.cosine(query));
+                }
+            }
+        }
+        return board.getTop();
+    }
+
+    private QuantizedDenseMatrixCursor getQuantizedCursor() {
+        QuantizedDenseMatrixCursor cursor = quantizedCursors.get();
+        if (cursor == null || cursor.getMatrix() != quantizedFeatures) {
+            cursor = quantizedFeatures.cursor();
+            quantizedCursors.set(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Writes an int8 quantized copy of the article features to the data directory
+     * and uses it for brute force mostSimilar scans.
+     */
+    public void buildQuantizedFeatures() throws IOException {
+        File path = getQuantizedFeaturesPath();
+        if (quantizedFeatures != null) {
+            quantizedFeatures.close();
+            quantizedFeatures = null;
+        }
+        path.getParentFile().mkdirs();
+        QuantizedDenseMatrixWriter.write(articleFeatures, path);
+        quantizedFeatures = new QuantizedDenseMatrix(path);
+    }
+
+    private File getQuantizedFeaturesPath() {
+        return new File(getDataDir(), "features.quantized.matrix");
+    }
+
     /**
      * Train the similarity() function.
      * The KnownSims may already be associated with Wikipedia ids (check wpId1 and wpId2).
@@ -185,9 +249,14 @@ public class DenseVectorSRMetric extends BaseSRMetric {
     @Override
     public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
         try {
-            RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
-            knn.build();
-            accelerator = knn;
+            if (quantizeFeatures) {
+                buildQuantizedFeatures();
+                replaceAccelerator(null);
+            } else {
+                RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
+                knn.build();
+                replaceAccelerator(knn);
+            }
         } catch (IOException e) {
             throw new IllegalStateException("Unexpected exception: " + e);
         }
@@ -276,9 +345,16 @@ public class DenseVectorSRMetric extends BaseSRMetric {
     @Override
     public void read() throws IOException {
         super.read();
-        RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
-        if (knn.load(new File(getDataDir(), "knn.bin"))) {
-            accelerator = knn;
+        if (quantizeFeatures) {
+            // a knn.bin left over from an unquantized configuration is ignored
+            if (getQuantizedFeaturesPath().isFile()) {
+                quantizedFeatures = new QuantizedDenseMatrix(getQuantizedFeaturesPath());
+            }
+        } else {
+            RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
+            if (knn.load(new File(getDataDir(), "knn.bin"))) {
+                replaceAccelerator(knn);
+            }
         }
     }
 
@@ -310,10 +386,34 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         return generator;
     }
 
+    /**
+     * Replaces the accelerator, releasing the resources (e.g. worker threads) held by the old one.
+     */
+    private void replaceAccelerator(KNNFinder knn) {
+        if (accelerator != knn && accelerator instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) accelerator);
+        }
+        accelerator = knn;
+    }
+
+    public KNNFinder getAccelerator() {
+        return accelerator;
+    }
+
     public void setAccelerator(KNNFinder accelerator) {
         this.accelerator = accelerator;
     }
 
+    /**
+     * If true, mostSimilar scans an int8 quantized copy of the article features instead of
+     * building a random projection accelerator. The copy is built when mostSimilar is trained.
+     * Once it exists, the quantized scan takes precedence over any accelerator, and read()
+     * does not load a previously saved accelerator.
+     */
+    public void setQuantizeFeatures(boolean quantizeFeatures) {
+        this.quantizeFeatures = quantizeFeatures;
+    }
+
     public void setAcceleratorMultiplier(double acceleratorMultiplier) {
         this.acceleratorMultiplier = acceleratorMultiplier;
     }
@@ -363,6 +463,9 @@ public class DenseVectorSRMetric extends BaseSRMetric {
                     getConfigurator().get(Disambiguator.class,config.getString("disambiguator"),"language", language.getLangCode()),
                     generator
             );
+            if (config.hasPath("quantizeFeatures")) {
+                sr.setQuantizeFeatures(config.getBoolean("quantizeFeatures"));
+            }
             configureBase(getConfigurator(), sr, config);
             return sr;
         }
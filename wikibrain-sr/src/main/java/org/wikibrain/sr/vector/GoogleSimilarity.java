@@ -16,6 +16,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.matrix.MatrixRow;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
 import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
@@ -35,7 +36,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Shilad Sen
  */
-public class GoogleSimilarity implements VectorSimilarity {
+public class GoogleSimilarity implements VectorSimilarity, CosimilarityKernel.PairScorer {
 
     private static final Logger LOG = LoggerFactory.getLogger(CosineSimilarity.class);
 
@@ -45,6 +46,7 @@ public class GoogleSimilarity implements VectorSimilarity {
 
     private SparseMatrix features;
     private SparseMatrix transpose;
+    private final ThreadLocal<SparseMatrixCursor> transposeCursors = new ThreadLocal<SparseMatrixCursor>();
 
     public GoogleSimilarity(int numPages) {
         this.numPages = numPages;
@@ -136,27 +138,72 @@ public class GoogleSimilarity implements VectorSimilarity {
         return SimUtils.googleSimilarity(na, nb, intersect, numPages);
     }
 
+    @Override
+    public boolean usesBinaryWeights() {
+        return true;
+    }
+
+    /**
+     * With binary weights the dot product is the number of shared features.
+     * Vectors with no features in common have similarity 0.
+     */
+    @Override
+    public double score(double dot, double sumSquares1, int size1, double sumSquares2, int size2) {
+        int intersect = (int) Math.round(dot);
+        return intersect == 0 ? 0.0 : SimUtils.googleSimilarity(size1, size2, intersect, numPages);
+    }
+
     @Override
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         TIntIntMap intersections = new TIntIntHashMap();
+        SparseMatrixCursor row = getTransposeCursor();
         for (int id1 : query.keys()){
-            SparseMatrixRow row = transpose.getRow(id1);
-            for (int i = 0; i < row.getNumCols(); i++) {
-                int id2 = row.getColIndex(i);
-                if (validIds == null || validIds.contains(id2)) {
-                    intersections.adjustOrPutValue(id2, 1, 1);
-                }
+            intersect(intersections, row, id1, validIds);
+        }
+        return rank(intersections, query.size(), maxResults);
+    }
+
+    @Override
+    public SRResultList mostSimilar(MatrixRow query, int maxResults, TIntSet validIds) throws IOException {
+        TIntIntMap intersections = new TIntIntHashMap();
+        SparseMatrixCursor row = getTransposeCursor();
+        for (int i = 0; i < query.getNumCols(); i++) {
+            intersect(intersections, row, query.getColIndex(i), validIds);
+        }
+        return rank(intersections, query.getNumCols(), maxResults);
+    }
+
+    private void intersect(TIntIntMap intersections, SparseMatrixCursor row, int id1, TIntSet validIds) throws IOException {
+        if (!row.moveTo(id1)) {
+            return;
+        }
+        for (int i = 0; i < row.getNumCols(); i++) {
+            int id2 = row.getColIndex(i);
+            if (validIds == null || validIds.contains(id2)) {
+                intersections.adjustOrPutValue(id2, 1, 1);
             }
         }
+    }
+
+    private SRResultList rank(TIntIntMap intersections, int querySize, int maxResults) {
         Leaderboard leaderboard = new Leaderboard(maxResults);
         for (int id: intersections.keys()) {
-            double sim = SimUtils.googleSimilarity(query.size(),  lengths.get(id),
+            double sim = SimUtils.googleSimilarity(querySize,  lengths.get(id),
                                                    intersections.get(id), numPages);
             leaderboard.tallyScore(id, sim);
         }
         return leaderboard.getTop();
     }
 
+    private SparseMatrixCursor getTransposeCursor() {
+        SparseMatrixCursor cursor = transposeCursors.get();
+        if (cursor == null || cursor.getMatrix() != transpose) {
+            cursor = transpose.cursor();
+            transposeCursors.set(cursor);
+        }
+        return cursor;
+    }
+
     @Override
     public double getMinValue() {
         return -1.0;
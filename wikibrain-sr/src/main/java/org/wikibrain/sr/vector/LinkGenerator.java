@@ -12,6 +12,8 @@ import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.dao.*;
+import org.wikibrain.core.dao.matrix.LinkDegreeIndex;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.core.model.LocalPage;
@@ -129,11 +131,23 @@ public class LinkGenerator implements SparseVectorGenerator {
     /**
      * If outLinks is true, returns the number of links to the specified destination.
      * Otherwise, returns number of links FROM the specified source.
+     *
+     * Degrees come from the link matrix's precomputed degree index when it is available,
+     * and are otherwise counted through the dao and cached.
      * @param wpId
      * @return
      * @throws DaoException
      */
     private int getNumLinks(int wpId) throws DaoException {
+        if (linkDao instanceof MatrixLocalLinkDao) {
+            LinkDegreeIndex degrees = ((MatrixLocalLinkDao) linkDao).getDegreeIndex();
+            if (degrees != null) {
+                int n = outLinks ? degrees.getInDegree(language, wpId) : degrees.getOutDegree(language, wpId);
+                if (n >= 0) {
+                    return n;
+                }
+            }
+        }
         synchronized (linkCounts) {
             if (linkCounts.containsKey(wpId)) {
                 return linkCounts.get(wpId);
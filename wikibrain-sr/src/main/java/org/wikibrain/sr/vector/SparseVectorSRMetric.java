@@ -2,8 +2,10 @@ package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntLongMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -69,6 +71,9 @@ public class SparseVectorSRMetric extends BaseSRMetric {
     private SparseMatrix featureMatrix;
     private SparseMatrix transposeMatrix;
 
+    // Each thread needs two cursors over the feature matrix to compare pairs of rows.
+    private final ThreadLocal<SparseMatrixCursor[]> featureCursors = new ThreadLocal<SparseMatrixCursor[]>();
+
 
     public SparseVectorSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, SparseVectorGenerator generator, VectorSimilarity similarity) {
         super(name, language, dao, disambig);
@@ -110,7 +115,14 @@ public class SparseVectorSRMetric extends BaseSRMetric {
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
         try {
-            if (hasFeatureMatrix()) {
+            if (hasFeatureMatrix() && featureFilter == null && !explanations) {
+                // Fast path: compare rows in place without allocating row wrappers.
+                SparseMatrixCursor cursors[] = getFeatureCursors();
+                if (!cursors[0].moveTo(pageId1) || !cursors[1].moveTo(pageId2)) {
+                    return null;
+                }
+                return normalize(new SRResult(similarity.similarity(cursors[0], cursors[1])));
+            } else if (hasFeatureMatrix()) {
                 // Optimization that matters: Avoid building page vectors if possible.
                 SparseMatrixRow row1 = featureMatrix.getRow(pageId1);
                 SparseMatrixRow row2 = featureMatrix.getRow(pageId2);
@@ -173,6 +185,11 @@ public class SparseVectorSRMetric extends BaseSRMetric {
             throw new UnsupportedOperationException();
         }
         try {
+            if (hasFeatureMatrix()) {
+                SparseMatrixCursor cursor = getFeatureCursors()[0];
+                if (!cursor.moveTo(pageId)) return null;
+                return normalize(similarity.mostSimilar(cursor, maxResults, validIds));
+            }
             TIntFloatMap vector = getPageVector(pageId);
             if (vector == null) return null;
             return normalize(similarity.mostSimilar(vector, maxResults, validIds));
@@ -287,6 +304,18 @@ public class SparseVectorSRMetric extends BaseSRMetric {
                     vectors.put(id, row);
                 }
             }
+            if (similarity instanceof CosimilarityKernel.PairScorer) {
+                List<SparseMatrixRow> rowVectors = new ArrayList<SparseMatrixRow>(rowIds.length);
+                for (int id : rowIds) {
+                    rowVectors.add(vectors.get(id));
+                }
+                List<SparseMatrixRow> colVectors = new ArrayList<SparseMatrixRow>(colIds.length);
+                for (int id : colIds) {
+                    colVectors.add(vectors.get(id));
+                }
+                return normalize(CosimilarityKernel.compute(
+                        (CosimilarityKernel.PairScorer) similarity, rowVectors, colVectors));
+            }
             double results[][] = new double[rowIds.length][colIds.length];
             for (int i = 0; i < rowIds.length; i++) {
                 SparseMatrixRow row1 = vectors.get(rowIds[i]);
@@ -334,6 +363,10 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (similarity instanceof CosimilarityKernel.PairScorer) {
+            return normalize(CosimilarityKernel.computeFromMaps(
+                    (CosimilarityKernel.PairScorer) similarity, rowVectors, colVectors));
+        }
         double results[][] = new double[rowVectors.size()][colVectors.size()];
         for (int i = 0; i < rowVectors.size(); i++) {
             for (int j = 0; j < colVectors.size(); j++) {
@@ -345,6 +378,49 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         return results;
     }
 
+    /**
+     * Fingerprints each row of the feature matrix, so that the most similar cache
+     * only recomputes rows affected by pages whose features changed.
+     */
+    @Override
+    protected TIntLongMap getVectorFingerprints() throws IOException {
+        if (!hasFeatureMatrix()) {
+            return null;
+        }
+        TIntLongMap fingerprints = new TIntLongHashMap(featureMatrix.getNumRows() * 2);
+        for (SparseMatrixRow row : featureMatrix) {
+            long h = row.getRowIndex();
+            for (int i = 0; i < row.getNumCols(); i++) {
+                h = (h ^ row.getColIndex(i)) * 0x9E3779B97F4A7C15L;
+                h = (h ^ Float.floatToIntBits(row.getColValue(i))) * 0x9E3779B97F4A7C15L;
+            }
+            fingerprints.put(row.getRowIndex(), h);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Only cosine similarity over unfiltered vectors scores cosimilarity() the way mostSimilar()
+     * does. mostSimilar() doesn't support feature filters, and other similarities may rank with
+     * a different function than they score pairs with.
+     */
+    @Override
+    protected boolean cosimilarityMatchesMostSimilar() {
+        return featureFilter == null && similarity instanceof CosineSimilarity;
+    }
+
+    /**
+     * Normalizes a block of raw similarity scores in place.
+     */
+    private double[][] normalize(double block[][]) {
+        for (double row[] : block) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = normalize(row[j]);
+            }
+        }
+        return block;
+    }
+
     /**
      * Rebuild the feature and transpose matrices.
      * If the matrices are available from the feature generator, they will be used.
@@ -366,7 +442,7 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         getDataDir().mkdirs();
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
-        final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf, getCompressMatrices());
         ParallelForEach.loop(
                 WbArrayUtils.toList(validIds.toArray()),
                 WpThreadUtils.getMaxThreads(),
@@ -456,6 +532,20 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * Returns the calling thread's pair of cursors over the feature matrix.
+     * The cursors are replaced whenever the feature matrix is rebuilt or reread.
+     */
+    private SparseMatrixCursor[] getFeatureCursors() {
+        SparseMatrix matrix = featureMatrix;
+        SparseMatrixCursor cursors[] = featureCursors.get();
+        if (cursors == null || cursors[0].getMatrix() != matrix) {
+            cursors = new SparseMatrixCursor[] { matrix.cursor(), matrix.cursor() };
+            featureCursors.set(cursors);
+        }
+        return cursors;
+    }
+
     protected boolean hasFeatureMatrix() {
         return featureMatrix != null && featureMatrix.getNumRows() > 0;
     }
@@ -52,6 +52,17 @@ public interface VectorSimilarity {
      */
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException;
 
+    /**
+     * Returns the most similar items for a particular matrix row.
+     * The row may be a reusable cursor, so implementations should read it directly
+     * rather than copying it, and must not retain it after returning.
+     * @param query
+     * @param maxResults
+     * @param validIds
+     * @return
+     */
+    public SRResultList mostSimilar(MatrixRow query, int maxResults, TIntSet validIds) throws IOException;
+
     /**
      * @return The minimum possible score for the metric.
      */
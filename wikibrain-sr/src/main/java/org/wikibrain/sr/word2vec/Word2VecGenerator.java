@@ -1,12 +1,6 @@
 package org.wikibrain.sr.word2vec;
 
 import com.typesafe.config.Config;
-import gnu.trove.list.TByteList;
-import gnu.trove.list.TCharList;
-import gnu.trove.list.array.TByteArrayList;
-import gnu.trove.list.array.TCharArrayList;
-import gnu.trove.map.TLongIntMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.wikibrain.conf.Configuration;
@@ -22,7 +16,6 @@ import org.wikibrain.matrix.ValueConf;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.vector.DenseVectorGenerator;
-import org.wikibrain.utils.WpIOUtils;
 
 import java.io.*;
 import java.util.List;
@@ -31,23 +24,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Reads in a word2vec model in the "standard" file format.
+ * Reads in a word2vec model in the "standard" binary file format.
  *
- * Builds a disk
+ * Phrase vectors are read directly from the memory mapped model (see {@link Word2VecModel}).
+ * Article vectors are also cached in a DenseMatrix keyed by page id, which serves as the
+ * feature matrix.
  *
  * This code is adapted from https://github.com/ansjsun/Word2VEC_java
  *
  * @author Shilad Sen
  */
-public class Word2VecGenerator implements DenseVectorGenerator {
+public class Word2VecGenerator implements DenseVectorGenerator, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(Word2VecGenerator.class);
 
     private final Language language;
     private final LocalPageDao localPageDao;
     private final File path;
 
-    private TLongIntMap phraseIds;
-    private DenseMatrix phraseMatrix;
+    private Word2VecModel model;
     private DenseMatrix articleMatrix;
 
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
@@ -57,179 +51,91 @@ public class Word2VecGenerator implements DenseVectorGenerator {
         this.read();
     }
 
+    /**
+     * (Re)opens the model and article matrix, releasing any that were open before.
+     */
     public void read() throws IOException {
-        if (getArticleMatrixPath().exists()
-        &&  getPhraseMatrixPath().exists()
-        &&  getPhraseIdPath().exists()
-        &&  getPhraseMatrixPath().lastModified() >= path.lastModified()
-        &&  getArticleMatrixPath().lastModified() >= path.lastModified()) {
-            LOG.info("phrase and article caches are up to date, loading them...");
-            phraseMatrix = new DenseMatrix(getPhraseMatrixPath());
-            articleMatrix = new DenseMatrix(getArticleMatrixPath());
-            readPhraseIds();
-        } else {
-            createWikiBrainModel();
-        }
-    }
-
-    private void readPhraseIds() throws IOException {
-        BufferedReader reader = WpIOUtils.openBufferedReader(getPhraseIdPath());
+        close();
+        boolean opened = false;
         try {
-            phraseIds = new TLongIntHashMap();
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                String tokens[] = line.split("\t", 2);
-                int wpId = Integer.parseInt(tokens[0]);
-                String phrase = tokens[1].trim();
-                phraseIds.put(hashWord(phrase), wpId);
+            model = new Word2VecModel(path);
+            if (getArticleMatrixPath().exists()
+            &&  getArticleMatrixPath().lastModified() >= path.lastModified()) {
+                LOG.info("article cache is up to date, loading it...");
+                articleMatrix = new DenseMatrix(getArticleMatrixPath());
+            } else {
+                createWikiBrainModel();
             }
+            opened = true;
         } finally {
-            IOUtils.closeQuietly(reader);
+            if (!opened) {
+                close();
+            }
         }
     }
 
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(model);
+        IOUtils.closeQuietly(articleMatrix);
+        model = null;
+        articleMatrix = null;
+    }
+
     private void createWikiBrainModel() throws IOException {
-        FileUtils.deleteQuietly(getPhraseIdPath());
-        FileUtils.deleteQuietly(getPhraseMatrixPath());
+        // phrase caches written by earlier versions are no longer used
+        FileUtils.deleteQuietly(new File(path.getAbsolutePath() + ".phrases.txt"));
+        FileUtils.deleteQuietly(new File(path.getAbsolutePath() + ".phrases.matrix"));
         FileUtils.deleteQuietly(getArticleMatrixPath());
 
         ValueConf vconf = new ValueConf();
-        BufferedWriter phraseIdWriter = WpIOUtils.openWriter(getPhraseIdPath());
-        DenseMatrixWriter phraseWriter = new DenseMatrixWriter(getPhraseMatrixPath(), vconf);
         DenseMatrixWriter articleWriter = new DenseMatrixWriter(getArticleMatrixPath(), vconf);
 
-        DataInputStream dis = null;
-        InputStream bis = null;
-        try {
-            bis = WpIOUtils.openInputStream(path);
-            dis = new DataInputStream(bis);
-
-            String header = "";
-            while (true) {
-                char c = (char) dis.read();
-                if (c == '\n') break;
-                header += c;
+        int numEntities = model.getNumWords();
+        int vlength = model.getDimensions();
+        LOG.info("preparing to read " + numEntities + " with length " + vlength + " vectors");
+        int [] colIds = new int[vlength];
+        for (int i = 0; i < vlength; i++) { colIds[i] = i; }
+        int numArticles = 0;
+
+        for (int i = 0; i < numEntities; i++) {
+            String word = model.getWord(i);
+            if (!word.startsWith("/w/")) {
+                continue;
             }
-
-            String tokens[] = header.split(" ");
-
-            int numEntities = Integer.parseInt(tokens[0]);
-            int vlength = Integer.parseInt(tokens[1]);
-            LOG.info("preparing to read " + numEntities + " with length " + vlength + " vectors");
-            int [] colIds = new int[vlength];
-            for (int i = 0; i < vlength; i++) { colIds[i] = i; }
-            int numPhrases = 0;
-            int numArticles = 0;
-
-            for (int i = 0; i < numEntities; i++) {
-                String word = readString(dis);
-                if (i % 5000 == 0) {
-                    LOG.info("Read word vector " + word + " (" + i + " of " + numEntities + ")");
-                }
-
-                float[] vector = new float[vlength];
-                double norm2 = 0.0;
-                for (int j = 0; j < vlength; j++) {
-                    float val = readFloat(dis);
-                    norm2 += val * val;
-                    vector[j] = val;
-                }
-                norm2 = Math.sqrt(norm2);
-
-                for (int j = 0; j < vlength; j++) {
-                    vector[j] /= norm2;
-                }
-                if (word.startsWith("/w/")) {
-                    String[] pieces = word.split("/", 5);
-                    int wpId = Integer.valueOf(pieces[3]);
-                    if (wpId >= 0) {
-                        DenseMatrixRow row = new DenseMatrixRow(vconf, wpId, colIds, vector);
-                        articleWriter.writeRow(row);
-                        numArticles++;
-                    }
-                } else {
-                    word = word.replace('\t', ' ').replace('\n', ' ');
-                    DenseMatrixRow row = new DenseMatrixRow(vconf, numPhrases, colIds, vector);
-                    phraseWriter.writeRow(row);
-                    phraseIdWriter.write(numPhrases + "\t" + word + "\n");
-                    numPhrases++;
-                }
+            String[] pieces = word.split("/", 5);
+            int wpId = Integer.valueOf(pieces[3]);
+            if (wpId >= 0) {
+                DenseMatrixRow row = new DenseMatrixRow(vconf, wpId, colIds, normalizeVector(model.getVector(i)));
+                articleWriter.writeRow(row);
+                numArticles++;
             }
-            if (numPhrases == 0) {
-                phraseWriter.writeRow(new DenseMatrixRow(vconf, 0, colIds, new float[vlength]));
-            }
-            if (numArticles == 0) {
-                articleWriter.writeRow(new DenseMatrixRow(vconf, 0, colIds, new float[vlength]));
-            }
-        } finally {
-            IOUtils.closeQuietly(bis);
-            IOUtils.closeQuietly(dis);
         }
-
-        IOUtils.closeQuietly(phraseIdWriter);
-        phraseWriter.finish();
+        if (numArticles == 0) {
+            articleWriter.writeRow(new DenseMatrixRow(vconf, 0, colIds, new float[vlength]));
+        }
         articleWriter.finish();
+        LOG.info("cached " + numArticles + " article vectors");
 
-        phraseMatrix = new DenseMatrix(getPhraseMatrixPath());
         articleMatrix = new DenseMatrix(getArticleMatrixPath());
-        readPhraseIds();
-    }
-
-    private File getPhraseMatrixPath() {
-        return new File(path.getAbsolutePath() + ".phrases.matrix");
     }
 
     private File getArticleMatrixPath() {
         return new File(path.getAbsolutePath() + ".articles.matrix");
     }
 
-
-    private File getPhraseIdPath() {
-        return new File(path.getAbsolutePath() + ".phrases.txt");
-    }
-
-
-
-    private static String readString(DataInputStream dis) throws IOException {
-        TByteList bytes = new TByteArrayList();
-        while (true) {
-            int i = dis.read();
-            if (i == -1) {
-                break;
-            }
-            if (i < 0 || i > 255) {
-                throw new IllegalStateException();
-            }
-            char c = (char)i;
-            if (c == ' ') {
-                break;
-            }
-            if (c != '\n') {
-                bytes.add((byte)i);
-            }
+    private static float[] normalizeVector(float vector[]) {
+        double norm2 = 0.0;
+        for (float val : vector) {
+            norm2 += val * val;
         }
-        return new String(bytes.toArray(), "UTF-8");
-    }
-
-    private static float readFloat(InputStream is) throws IOException {
-        byte[] bytes = new byte[4];
-        is.read(bytes);
-        return getFloat(bytes);
-    }
-
-    private static float getFloat(byte[] b) {
-        int accum = 0;
-        accum = accum | (b[0] & 0xff) << 0;
-        accum = accum | (b[1] & 0xff) << 8;
-        accum = accum | (b[2] & 0xff) << 16;
-        accum = accum | (b[3] & 0xff) << 24;
-        return Float.intBitsToFloat(accum);
+        norm2 = Math.sqrt(norm2);
+        for (int j = 0; j < vector.length; j++) {
+            vector[j] /= norm2;
+        }
+        return vector;
     }
 
-
     @Override
     public DenseMatrix getFeatureMatrix() {
         return articleMatrix;
@@ -248,23 +154,13 @@ public class Word2VecGenerator implements DenseVectorGenerator {
     @Override
     public float [] getVector(String phrase) {
         try {
-            long hash = hashWord(phrase);
-            if (phraseIds.containsKey(hash)) {
-                int phraseId = phraseIds.get(hash);
-                DenseMatrixRow row = phraseMatrix.getRow(phraseId);
-                return row == null ? null : row.getValues();
-            } else {
-                return null;
-            }
+            float vector[] = model.getVector(phrase);
+            return vector == null ? null : normalizeVector(vector);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static long hashWord(String word) {
-        return Word2VecUtils.hashWord(normalize(word));
-    }
-
     @Override
     public List<Explanation> getExplanations(String phrase1, String phrase2, float [] vector1, float [] vector2, SRResult result) throws DaoException {
         throw new UnsupportedOperationException();
@@ -275,11 +171,6 @@ public class Word2VecGenerator implements DenseVectorGenerator {
         return null;
     }
 
-    private static  String normalize(String s) {
-        return s.replace('_', ' ').trim();
-    }
-
-
     public static class Provider extends org.wikibrain.conf.Provider<DenseVectorGenerator> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
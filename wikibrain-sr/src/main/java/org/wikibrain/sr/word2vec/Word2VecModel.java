@@ -0,0 +1,339 @@
+package org.wikibrain.sr.word2vec;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.matrix.IntSorter;
+import org.wikibrain.matrix.MappedPageIndex;
+import org.wikibrain.matrix.MemoryMappedMatrix;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only, memory mapped word2vec model in the classic binary format:
+ * a "numWords dimensions\n" header followed, for each word, by the word,
+ * a space, and dimensions little endian floats (optionally followed by a newline).
+ *
+ * Vectors are read directly from the mapped model file. The vocabulary lives in a
+ * binary index file next to the model (model + ".index") holding sorted word hashes
+ * and entry offsets. The index is built on first use and afterwards is mapped rather
+ * than parsed, so opening even very large models is nearly instantaneous and keeps
+ * neither words nor vectors on the heap.
+ *
+ * Words are looked up after replacing underscores with spaces and trimming.
+ * Instances are safe to use from many threads.
+ *
+ * @author Shilad Sen
+ */
+public class Word2VecModel implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Word2VecModel.class);
+
+    private static final int INDEX_MAGIC = 0x77327669;   // "w2vi"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 40;
+
+    private final File path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedPageIndex pages;
+    private final int numWords;
+    private final int dimensions;
+
+    private final LongBuffer hashes;        // sorted hashes of normalized words
+    private final IntBuffer hashEntries;    // entry associated with each sorted hash
+    private final LongBuffer entryOffsets;  // file offset of each entry's word, in file order
+    private final IntBuffer wordLengths;    // length of each entry's word in bytes
+
+    public Word2VecModel(File path) throws IOException {
+        this.path = path;
+        if (!isIndexFresh()) {
+            buildIndex();
+        }
+
+        MappedByteBuffer index = mapIndex();
+        this.numWords = index.getInt(24);
+        this.dimensions = index.getInt(28);
+        int numHashes = index.getInt(32);
+        int pos = INDEX_HEADER_SIZE;
+        this.hashes = slice(index, pos, numHashes * 8).asLongBuffer();
+        pos += numHashes * 8;
+        this.entryOffsets = slice(index, pos, numWords * 8).asLongBuffer();
+        pos += numWords * 8;
+        this.hashEntries = slice(index, pos, numHashes * 4).asIntBuffer();
+        pos += numHashes * 4;
+        this.wordLengths = slice(index, pos, numWords * 4).asIntBuffer();
+
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        boolean opened = false;
+        try {
+            this.pages = createPages();
+            opened = true;
+        } finally {
+            if (!opened) {
+                IOUtils.closeQuietly(file);
+            }
+        }
+        LOG.info("opened word2vec model " + path + " with " + numWords + " words of " + dimensions + " dimensions");
+    }
+
+    public int getNumWords() {
+        return numWords;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return The index of the entry for the phrase, or -1 if it is not in the model.
+     */
+    public int getIndex(String phrase) {
+        long hash = hashPhrase(phrase);
+        int lo = 0;
+        int hi = hashes.capacity() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midHash = hashes.get(mid);
+            if (hash < midHash) {
+                hi = mid - 1;
+            } else if (hash > midHash) {
+                lo = mid + 1;
+            } else {
+                return hashEntries.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The word stored in the model for an entry, exactly as written.
+     */
+    public String getWord(int index) throws IOException {
+        ByteBuffer buffer = pages.slice(entryOffsets.get(index));
+        byte bytes[] = new byte[wordLengths.get(index)];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * @return A copy of the (unnormalized) vector for an entry.
+     */
+    public float[] getVector(int index) throws IOException {
+        long offset = entryOffsets.get(index) + wordLengths.get(index) + 1;
+        float vector[] = new float[dimensions];
+        ByteBuffer buffer = pages.slice(offset);
+        buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    /**
+     * @return A copy of the (unnormalized) vector for a phrase, or null if it is not in the model.
+     */
+    public float[] getVector(String phrase) throws IOException {
+        int index = getIndex(phrase);
+        return index < 0 ? null : getVector(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        pages.close();
+        channel.close();
+        file.close();
+    }
+
+    public static long hashPhrase(String phrase) {
+        return Word2VecUtils.hashWord(phrase.replace('_', ' ').trim());
+    }
+
+    public static File getIndexPath(File path) {
+        return new File(path.getAbsolutePath() + ".index");
+    }
+
+    /**
+     * Pages begin at entry boundaries so that no word or vector straddles two pages.
+     */
+    private MappedPageIndex createPages() throws IOException {
+        if (numWords == 0) {
+            return new MappedPageIndex(channel, new long[0], new long[0]);
+        }
+        TLongArrayList starts = new TLongArrayList();
+        TLongArrayList ends = new TLongArrayList();
+        long start = entryOffsets.get(0);
+        for (int i = 1; i < numWords; i++) {
+            long offset = entryOffsets.get(i);
+            if (offset - start > MemoryMappedMatrix.PAGE_SIZE) {
+                long end = entryOffsets.get(i - 1);
+                starts.add(start);
+                ends.add(end);
+                start = end;
+            }
+        }
+        starts.add(start);
+        ends.add(channel.size());
+        return new MappedPageIndex(channel, starts.toArray(), ends.toArray());
+    }
+
+    private MappedByteBuffer mapIndex() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(getIndexPath(path), "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(position);
+        dup.limit(position + length);
+        return dup.slice();
+    }
+
+    /**
+     * The index is fresh if it was built from a model with the same length and modification time.
+     */
+    private boolean isIndexFresh() throws IOException {
+        File indexPath = getIndexPath(path);
+        if (!indexPath.isFile() || indexPath.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath)));
+        try {
+            return in.readInt() == INDEX_MAGIC
+                    && in.readInt() == INDEX_VERSION
+                    && in.readLong() == path.length()
+                    && in.readLong() == path.lastModified();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Scans the model once, recording the offset of every entry and the hash of its word.
+     */
+    private void buildIndex() throws IOException {
+        LOG.info("building word index for word2vec model " + path);
+        File indexPath = getIndexPath(path);
+        FileUtils.deleteQuietly(indexPath);
+
+        final TLongArrayList offsets = new TLongArrayList();
+        final TIntArrayList lengths = new TIntArrayList();
+        final TLongArrayList entryHashes = new TLongArrayList();
+        int dims;
+        InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 20);
+        try {
+            ByteArrayOutputStream word = new ByteArrayOutputStream();
+            long pos = readToken(in, word, '\n');
+            String header[] = word.toString("UTF-8").trim().split(" ");
+            int n = Integer.parseInt(header[0]);
+            dims = Integer.parseInt(header[1]);
+
+            for (int i = 0; i < n; i++) {
+                // skip the newline that may end the previous vector
+                int c = in.read();
+                pos++;
+                while (c == '\n') {
+                    c = in.read();
+                    pos++;
+                }
+                if (c < 0) {
+                    throw new EOFException("model " + path + " ended after " + i + " of " + n + " words");
+                }
+                word.reset();
+                word.write(c);
+                long start = pos - 1;
+                pos += readToken(in, word, ' ');
+                offsets.add(start);
+                lengths.add(word.size());
+                entryHashes.add(hashPhrase(word.toString("UTF-8")));
+                IOUtils.skipFully(in, 4L * dims);
+                pos += 4L * dims;
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        // sort entries by hash, keeping the first entry for duplicate words
+        int order[] = new int[offsets.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        IntSorter.qsort(order, new IntSorter.CompareInt() {
+            @Override
+            public boolean lessThan(int a, int b) {
+                long ha = entryHashes.get(a);
+                long hb = entryHashes.get(b);
+                return ha < hb || (ha == hb && a < b);
+            }
+        });
+        TLongArrayList sortedHashes = new TLongArrayList(order.length);
+        TIntArrayList sortedEntries = new TIntArrayList(order.length);
+        for (int i : order) {
+            long h = entryHashes.get(i);
+            if (sortedHashes.isEmpty() || sortedHashes.get(sortedHashes.size() - 1) != h) {
+                sortedHashes.add(h);
+                sortedEntries.add(i);
+            }
+        }
+
+        File tmp = new File(indexPath.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(path.length());
+            out.writeLong(path.lastModified());
+            out.writeInt(offsets.size());
+            out.writeInt(dims);
+            out.writeInt(sortedHashes.size());
+            out.writeInt(0);    // padding so the arrays are aligned
+            for (int i = 0; i < sortedHashes.size(); i++) {
+                out.writeLong(sortedHashes.get(i));
+            }
+            for (int i = 0; i < offsets.size(); i++) {
+                out.writeLong(offsets.get(i));
+            }
+            for (int i = 0; i < sortedEntries.size(); i++) {
+                out.writeInt(sortedEntries.get(i));
+            }
+            for (int i = 0; i < lengths.size(); i++) {
+                out.writeInt(lengths.get(i));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(indexPath)) {
+            throw new IOException("renaming " + tmp + " to " + indexPath + " failed");
+        }
+        LOG.info("indexed " + offsets.size() + " words (" + sortedHashes.size() + " distinct)");
+    }
+
+    /**
+     * Appends bytes to the token until the delimiter or the end of the stream.
+     * @return The number of bytes consumed, including the delimiter.
+     */
+    private static long readToken(InputStream in, ByteArrayOutputStream token, char delimiter) throws IOException {
+        long n = 0;
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                return n;
+            }
+            n++;
+            if (c == delimiter) {
+                return n;
+            }
+            token.write(c);
+        }
+    }
+}
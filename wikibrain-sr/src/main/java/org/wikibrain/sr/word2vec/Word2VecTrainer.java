@@ -26,6 +26,8 @@ import org.wikibrain.sr.wikify.WbCorpusLineReader;
 import org.wikibrain.utils.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
@@ -36,12 +38,18 @@ import java.util.regex.Matcher;
  * @author Shilad Sen
  *
  * Heavily adapted from https://github.com/piskvorky/gensim/blob/develop/gensim/models/word2vec.py
+ *
+ * Trains skip-gram vectors with hierarchical softmax (the default), negative sampling, or both.
+ * Worker threads update syn0 and the output layers without locks ("Hogwild"), and each thread
+ * draws its random numbers from its own generator so the threads share no mutable state
+ * other than the weights themselves.
  */
 public class Word2VecTrainer {
     private static final Logger LOG = LoggerFactory.getLogger(Word2VecTrainer.class);
     private static final int ARTICLE_COUNT_BONUS = 10;
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
+    private static final int MAX_UNIGRAM_TABLE_SIZE = 10000000;
 
     private final Language language;
     private final LocalPageDao pageDao;
@@ -73,12 +81,34 @@ public class Word2VecTrainer {
 
 
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
+    private volatile double alpha = startingAlpha;
     private int window = 5;
 
+    /**
+     * Whether the output layer uses a hierarchical softmax over the huffman tree.
+     */
+    private boolean hierarchicalSoftmax = true;
+
+    /**
+     * Number of negative samples drawn per (word, context) pair. Zero disables negative sampling.
+     */
+    private int negative = 0;
+
+    /**
+     * Threshold for subsampling frequent words (1e-3 to 1e-5 are typical). Zero disables it.
+     */
+    private double sample = 0.0;
+
     private int layer1Size = 200;
     private float syn0[][];
     private float syn1[][];
+    private float syn1neg[][];
+
+    // Word indexes, repeated in proportion to count^0.75, from which negative samples are drawn.
+    private int unigramTable[];
+
+    // Probability that an occurrence of each word is kept when subsampling.
+    private float keepProbability[];
 
     /**
      * Fast sigmoid function table.
@@ -94,6 +124,15 @@ public class Word2VecTrainer {
     private AtomicLong wordsTrainedSoFar = new AtomicLong();
     private Random random = new Random();
 
+    // Seeds for the per-thread random number generators.
+    private final AtomicLong threadSeeds = new AtomicLong(1);
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState(threadSeeds.getAndIncrement(), layer1Size);
+        }
+    };
+
     private byte[][] wordCodes;
     private int[][] wordParents;
     private String[] words = null;
@@ -111,17 +150,7 @@ public class Word2VecTrainer {
     }
 
     public void train(File directory, boolean wikibrainFormat) throws IOException, DaoException {
-        LOG.info("counting word frequencies.");
-        readWords(new File(directory, "dictionary.txt"));
-        buildTree();
-
-        syn0 = new float[wordIndexes.size()][layer1Size];
-        for (float[] row :syn0) {
-            for (int i = 0; i < row.length; i++) {
-                row[i] = (random.nextFloat() - 0.5f) / layer1Size;
-            }
-        }
-        syn1 = new float[wordIndexes.size()][layer1Size];
+        initialize(new File(directory, "dictionary.txt"));
 
         for (int it = 0; it < iterations; it++) {
             if (wikibrainFormat) {
@@ -136,12 +165,7 @@ public class Word2VecTrainer {
                                 for (String line : doc.getLines()) {
                                     n += trainSentence(doc.getDoc().getId(), line);
                                 }
-                                wordsTrainedSoFar.addAndGet(n);
-
-                                // update the learning rate
-                                alpha = Math.max(
-                                        startingAlpha * (1 - wordsTrainedSoFar.get() / (iterations * totalWords + 1.0)),
-                                        startingAlpha * 0.0001);
+                                updateAlpha(n);
                             }
                         },
                         10000);
@@ -153,13 +177,7 @@ public class Word2VecTrainer {
                         new Procedure<String>() {
                             @Override
                             public void call(String sentence) throws Exception {
-                                int n = trainSentence(null, sentence);
-                                wordsTrainedSoFar.addAndGet(n);
-
-                                // update the learning rate
-                                alpha = Math.max(
-                                        startingAlpha * (1 - wordsTrainedSoFar.get() / (iterations * totalWords + 1.0)),
-                                        startingAlpha * 0.0001);
+                                updateAlpha(trainSentence(null, sentence));
                             }
                         },
                         10000);
@@ -168,6 +186,57 @@ public class Word2VecTrainer {
         }
     }
 
+    /**
+     * Reads the vocabulary, builds the output layer structures and randomly initializes the weights.
+     * Called by train(), or directly before training sentences one at a time.
+     */
+    public void initialize(File dictionary) throws IOException, DaoException {
+        if (!hierarchicalSoftmax && negative <= 0) {
+            throw new IllegalStateException("one of hierarchical softmax or negative sampling must be enabled");
+        }
+        LOG.info("counting word frequencies.");
+        readWords(dictionary);
+        buildSamplingTables();
+        if (hierarchicalSoftmax) {
+            buildTree();
+        }
+
+        syn0 = new float[wordIndexes.size()][layer1Size];
+        for (float[] row :syn0) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (random.nextFloat() - 0.5f) / layer1Size;
+            }
+        }
+        syn1 = hierarchicalSoftmax ? new float[wordIndexes.size()][layer1Size] : null;
+        syn1neg = (negative > 0) ? new float[wordIndexes.size()][layer1Size] : null;
+        wordsTrainedSoFar.set(0);
+        alpha = startingAlpha;
+    }
+
+    /**
+     * Trains a single sentence of space separated words and decays the learning rate.
+     * The trainer must already be initialized. Safe to call from many threads at once.
+     *
+     * @return The number of tokens read from the sentence, which is what the learning rate
+     * decay counts. Like word2vec's word_count, this includes tokens dropped by subsampling,
+     * so that the count reaches the dictionary's total count by the end of training.
+     */
+    public int trainSentence(String sentence) {
+        int n = trainSentence(null, sentence);
+        updateAlpha(n);
+        return n;
+    }
+
+    /**
+     * Linearly decays the learning rate as words are trained.
+     */
+    private void updateAlpha(int numWords) {
+        long trained = wordsTrainedSoFar.addAndGet(numWords);
+        alpha = Math.max(
+                startingAlpha * (1 - trained / (iterations * totalWords + 1.0)),
+                startingAlpha * 0.0001);
+    }
+
     public void readWords(File dictionary) throws IOException, DaoException {
         LOG.info("reading word counts");
         Dictionary dict = new Dictionary(language, Dictionary.WordStorage.IN_MEMORY);
@@ -211,7 +280,51 @@ public class Word2VecTrainer {
         LOG.info("retained " + dict.getNumUnigrams() + " words and " + articleIndexes.size() + " articles");
     }
 
+    /**
+     * Builds the unigram table for negative sampling and the keep probabilities for subsampling.
+     */
+    private void buildSamplingTables() {
+        int numWords = wordIndexes.size();
+        int counts[] = new int[numWords];
+        long total = 0;
+        for (long hash : wordIndexes.keys()) {
+            int c = wordCounts.get(hash);
+            counts[wordIndexes.get(hash)] = c;
+            total += c;
+        }
+
+        keepProbability = null;
+        if (sample > 0) {
+            keepProbability = new float[numWords];
+            double threshold = sample * total;
+            for (int i = 0; i < numWords; i++) {
+                double c = Math.max(1, counts[i]);
+                keepProbability[i] = (float) Math.min(1.0, (Math.sqrt(c / threshold) + 1) * threshold / c);
+            }
+        }
+
+        unigramTable = null;
+        if (negative > 0) {
+            unigramTable = new int[(int) Math.min(MAX_UNIGRAM_TABLE_SIZE, 1000L * numWords)];
+            double norm = 0.0;
+            for (int c : counts) {
+                norm += Math.pow(c, 0.75);
+            }
+            int w = 0;
+            double cumulative = Math.pow(counts[0], 0.75) / norm;
+            for (int i = 0; i < unigramTable.length; i++) {
+                unigramTable[i] = w;
+                if (i / (double) unigramTable.length > cumulative && w < numWords - 1) {
+                    w++;
+                    cumulative += Math.pow(counts[w], 0.75) / norm;
+                }
+            }
+        }
+    }
+
     private int trainSentence(Integer wpId, String sentence) {
+        ThreadState state = threadState.get();
+        double alpha = this.alpha;
         int wpIdIndex = (wpId != null && articleIndexes.containsKey(wpId)) ? articleIndexes.get(wpId) : -1;
         String words[] = sentence.trim().split(" +");
         TIntList indexList = new TIntArrayList(words.length * 3 / 2);
@@ -235,8 +348,20 @@ public class Word2VecTrainer {
                     wordIndex = wordIndexes.get(h);
                 }
             }
+            if (keepProbability != null) {
+                // randomly drop occurrences of frequent words
+                if (wordIndex >= 0 && keepProbability[wordIndex] < state.nextFloat()) {
+                    wordIndex = -1;
+                }
+                if (mentionIndex >= 0 && keepProbability[mentionIndex] < state.nextFloat()) {
+                    mentionIndex = -1;
+                }
+                if (wordIndex < 0 && mentionIndex < 0) {
+                    continue;
+                }
+            }
             if (mentionIndex >= 0) {
-                if (random.nextDouble() >= 0.5) {
+                if (state.nextFloat() >= 0.5f) {
                     indexList.add(wordIndex);
                     indexList.add(mentionIndex);
                 } else {
@@ -249,20 +374,23 @@ public class Word2VecTrainer {
         }
         int indexes[] = indexList.toArray();
 
-        float[] neu1e = new float[layer1Size];
+        if (state.neu1e.length != layer1Size) {
+            state.neu1e = new float[layer1Size];
+        }
+        float[] neu1e = state.neu1e;
         for (int i = 0; i < indexes.length; i++) {
             if (indexes[i] < 0) {
                 continue; // skip out of vocabulary words
             }
 
-            byte [] code = wordCodes[indexes[i]];
-            int [] parents = wordParents[indexes[i]];
-            if (code.length != parents.length) {
+            byte [] code = hierarchicalSoftmax ? wordCodes[indexes[i]] : null;
+            int [] parents = hierarchicalSoftmax ? wordParents[indexes[i]] : null;
+            if (hierarchicalSoftmax && code.length != parents.length) {
                 throw new IllegalStateException();
             }
 
             // now go over all words from the (reduced) window, predicting each one in turn
-            int reducedWindow = random.nextInt(window);
+            int reducedWindow = state.nextInt(window);
             int start = Math.max(0, i - window + reducedWindow);
             int end = Math.min(indexes.length, i + window + 1 - reducedWindow);
 
@@ -281,7 +409,7 @@ public class Word2VecTrainer {
                 Arrays.fill(neu1e, 0f);
                 float l1[] = syn0[q];
 
-                for (int k = 0; k < parents.length; k++) {
+                for (int k = 0; hierarchicalSoftmax && k < parents.length; k++) {
                     float l2[] = syn1[parents[k]];
                     double f = WbMathUtils.dot(l1, l2);
                     if (f <= -MAX_EXP || f >= MAX_EXP) {
@@ -295,13 +423,67 @@ public class Word2VecTrainer {
                         l2[c] += g * l1[c];
                     }
                 }
+
+                // the word itself is the positive example, followed by the negative samples
+                for (int d = 0; d <= negative && negative > 0; d++) {
+                    int target;
+                    int label;
+                    if (d == 0) {
+                        target = indexes[i];
+                        label = 1;
+                    } else {
+                        target = unigramTable[state.nextInt(unigramTable.length)];
+                        if (target == indexes[i]) {
+                            continue;
+                        }
+                        label = 0;
+                    }
+                    float l2[] = syn1neg[target];
+                    double f = WbMathUtils.dot(l1, l2);
+                    double g;
+                    if (f >= MAX_EXP) {
+                        g = (label - 1) * alpha;
+                    } else if (f <= -MAX_EXP) {
+                        g = label * alpha;
+                    } else {
+                        g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * alpha;
+                    }
+                    for (int c = 0; c < layer1Size; c++) {
+                        neu1e[c] += g * l2[c];
+                        l2[c] += g * l1[c];
+                    }
+                }
                 for (int c = 0; c < layer1Size; c++) {
                     l1[c] += neu1e[c];
                 }
             }
 
         }
-        return indexes.length;
+        return words.length;
+    }
+
+    /**
+     * Per-thread training state: a fast linear congruential generator (the one used by the
+     * original word2vec) and a scratch buffer for the hidden layer error.
+     */
+    private static final class ThreadState {
+        private long seed;
+        private float neu1e[];
+
+        private ThreadState(long seed, int layer1Size) {
+            this.seed = seed;
+            this.neu1e = new float[layer1Size];
+        }
+
+        private int nextInt(int n) {
+            seed = seed * 25214903917L + 11;
+            return (int) ((seed >>> 16) % n);
+        }
+
+        private float nextFloat() {
+            seed = seed * 25214903917L + 11;
+            return (seed >>> 40) / (float) (1 << 24);
+        }
     }
 
 
@@ -377,19 +559,26 @@ public class Word2VecTrainer {
     }
 
 
+    /**
+     * Saves the normalized vectors in the classic word2vec binary format,
+     * which can be memory mapped by {@link Word2VecModel}.
+     */
     public void save(File path) throws IOException {
         FileUtils.deleteQuietly(path);
+        FileUtils.deleteQuietly(Word2VecModel.getIndexPath(path));
         path.getParentFile().mkdirs();
         OutputStream stream = new BufferedOutputStream(new FileOutputStream(path));
         stream.write((words.length + " " + layer1Size + "\n").getBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(4 * layer1Size).order(ByteOrder.LITTLE_ENDIAN);
         for (String w : words) {
             stream.write(w.getBytes("UTF-8"));
             stream.write(' ');
             float[] vector = syn0[wordIndexes.get(Word2VecUtils.hashWord(w))];
             WbMathUtils.normalize(vector);
-            for (float f : vector) {
-                stream.write(floatToBytes(f));
-            }
+            buffer.clear();
+            buffer.asFloatBuffer().put(vector);
+            stream.write(buffer.array());
+            stream.write('\n');
         }
         stream.close();
     }
@@ -415,6 +604,21 @@ public class Word2VecTrainer {
         }
     }
 
+    /**
+     * @return The (unnormalized) vector for a word, or null if it is not in the vocabulary.
+     */
+    float[] getVector(String word) {
+        long h = hashWord(word);
+        return wordIndexes.containsKey(h) ? syn0[wordIndexes.get(h)] : null;
+    }
+
+    /**
+     * @return The current learning rate.
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+
     public void setMaxWords(int maxWords) {
         this.maxWords = maxWords;
     }
@@ -427,18 +631,28 @@ public class Word2VecTrainer {
         this.window = window;
     }
 
-    public void setKeepAllArticles(boolean keepAllArticles) {
-        this.keepAllArticles = keepAllArticles;
+    public void setHierarchicalSoftmax(boolean hierarchicalSoftmax) {
+        this.hierarchicalSoftmax = hierarchicalSoftmax;
+    }
+
+    public void setNegative(int negative) {
+        this.negative = negative;
+    }
+
+    public void setSample(double sample) {
+        this.sample = sample;
     }
 
-    private static byte[] floatToBytes(float value) {
-        int bits = Float.floatToIntBits(value);
-        byte[] bytes = new byte[4];
-        bytes[0] = (byte)(bits & 0xff);
-        bytes[1] = (byte)((bits >> 8) & 0xff);
-        bytes[2] = (byte)((bits >> 16) & 0xff);
-        bytes[3] = (byte)((bits >> 24) & 0xff);
-        return bytes;
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void setMinWordFrequency(int minWordFrequency) {
+        this.minWordFrequency = minWordFrequency;
+    }
+
+    public void setKeepAllArticles(boolean keepAllArticles) {
+        this.keepAllArticles = keepAllArticles;
     }
 
     private static long hashWord(String word) {
@@ -0,0 +1,186 @@
+package org.wikibrain.sr;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestMostSimilarCacheUpdater {
+    private static final int NUM_PAGES = 300;
+    private static final int NUM_FEATURES = 100;
+    private static final int MAX_HITS = 10;
+
+    @Test
+    public void testIncrementalUpdate() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("mostSimilar");
+        try {
+            Random random = new Random(42);
+            VectorMetric metric = new VectorMetric(random);
+            metric.setDataDir(dir);
+            TIntSet rows = metric.getIds();
+
+            // initial build computes everything
+            assertEquals(NUM_PAGES, metric.updateMostSimilarCache(MAX_HITS, rows, rows, null));
+            checkCache(metric, rows);
+
+            // nothing changed
+            assertEquals(0, metric.updateMostSimilarCache(MAX_HITS, rows, rows, null));
+            checkCache(metric, rows);
+
+            // change a few pages; only rows affected by them are recomputed
+            for (int id = 0; id < 3; id++) {
+                metric.vectors.put(id, randomVector(random));
+            }
+            int recomputed = metric.updateMostSimilarCache(MAX_HITS, rows, rows, null);
+            assertTrue(recomputed >= 3);
+            assertTrue("recomputed " + recomputed, recomputed < NUM_PAGES / 2);
+            checkCache(metric, rows);
+
+            // add pages and restrict the columns
+            for (int id = NUM_PAGES; id < NUM_PAGES + 5; id++) {
+                metric.vectors.put(id, randomVector(random));
+            }
+            TIntSet newRows = metric.getIds();
+            TIntSet newCols = metric.getIds();
+            newCols.remove(7);
+            recomputed = metric.updateMostSimilarCache(MAX_HITS, newRows, newCols, null);
+            assertTrue(recomputed >= 5);
+            assertTrue("recomputed " + recomputed, recomputed < NUM_PAGES / 2);
+            checkCache(metric, newRows, newCols);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testWithoutFingerprints() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("mostSimilar");
+        try {
+            Random random = new Random(7);
+            VectorMetric metric = new VectorMetric(random);
+            metric.fingerprints = false;
+            metric.setDataDir(dir);
+            TIntSet rows = metric.getIds();
+            assertEquals(NUM_PAGES, metric.updateMostSimilarCache(MAX_HITS, rows, rows, null));
+
+            // without fingerprints, unknown changes force a rebuild ...
+            assertEquals(NUM_PAGES, metric.updateMostSimilarCache(MAX_HITS, rows, rows, null));
+
+            // ... but changes reported by the caller do not
+            metric.vectors.put(5, randomVector(random));
+            int recomputed = metric.updateMostSimilarCache(MAX_HITS, rows, rows, new TIntHashSet(new int[] { 5 }));
+            assertTrue("recomputed " + recomputed, recomputed < NUM_PAGES / 2);
+            checkCache(metric, rows);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void checkCache(VectorMetric metric, TIntSet rows) throws IOException {
+        checkCache(metric, rows, rows);
+    }
+
+    private void checkCache(VectorMetric metric, TIntSet rows, TIntSet cols) throws IOException {
+        assertEquals(rows.size(), metric.getMostSimilarCache().getNumRows());
+        for (int id : rows.toArray()) {
+            SRResultList expected = metric.mostSimilar(id, MAX_HITS, cols);
+            SparseMatrixRow row = metric.getMostSimilarCache().getRow(id);
+            assertNotNull(row);
+            TIntFloatMap actual = row.asTroveMap();
+            assertEquals(expected.numDocs(), actual.size());
+            for (int i = 0; i < expected.numDocs(); i++) {
+                assertTrue(actual.containsKey(expected.getId(i)));
+                assertEquals(expected.getScore(i), actual.get(expected.getId(i)), 0.001);
+            }
+        }
+    }
+
+    private static TIntFloatMap randomVector(Random random) {
+        TIntFloatMap v = new TIntFloatHashMap();
+        for (int i = 0; i < 8; i++) {
+            v.put(random.nextInt(NUM_FEATURES), random.nextFloat());
+        }
+        return v;
+    }
+
+    /**
+     * A brute force metric over in-memory vectors.
+     */
+    private static class VectorMetric extends BaseSRMetric {
+        final TIntObjectHashMap<TIntFloatMap> vectors = new TIntObjectHashMap<TIntFloatMap>();
+        boolean fingerprints = true;
+
+        VectorMetric(Random random) {
+            super("vectors", Language.SIMPLE, null, null);
+            for (int id = 0; id < NUM_PAGES; id++) {
+                vectors.put(id, randomVector(random));
+            }
+        }
+
+        TIntSet getIds() {
+            return new TIntHashSet(vectors.keys());
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            return new SRResult(SimUtils.cosineSimilarity(vectors.get(pageId1), vectors.get(pageId2)));
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) {
+            Leaderboard top = new Leaderboard(maxResults);
+            TIntFloatMap v = vectors.get(pageId);
+            for (int id : vectors.keys()) {
+                if (validIds == null || validIds.contains(id)) {
+                    double sim = SimUtils.cosineSimilarity(v, vectors.get(id));
+                    if (sim != 0.0) {
+                        top.tallyScore(id, sim);
+                    }
+                }
+            }
+            return top.getTop();
+        }
+
+        @Override
+        protected TIntLongMap getVectorFingerprints() {
+            if (!fingerprints) {
+                return null;
+            }
+            TIntLongMap result = new TIntLongHashMap();
+            for (int id : vectors.keys()) {
+                result.put(id, vectors.get(id).hashCode());
+            }
+            return result;
+        }
+
+        @Override
+        protected boolean cosimilarityMatchesMostSimilar() {
+            return true;
+        }
+    }
+}
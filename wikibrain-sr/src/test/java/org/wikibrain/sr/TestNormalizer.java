@@ -1,7 +1,13 @@
 package org.wikibrain.sr;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 import org.junit.Test;
+import org.wikibrain.sr.normalize.InterpolationTable;
+import org.wikibrain.sr.normalize.LoessNormalizer;
+import org.wikibrain.sr.normalize.Normalizer;
 import org.wikibrain.sr.normalize.PercentileNormalizer;
 
 import java.io.ByteArrayInputStream;
@@ -9,6 +15,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -64,4 +72,110 @@ public class TestNormalizer {
         assertTrue(p.normalize(20) < 1.0);
         assertTrue(p.normalize(20) < p.normalize(200));
     }
+
+    @Test
+    public void testInterpolationTable() {
+        // very unevenly spaced knots, as in a skewed percentile distribution
+        Random random = new Random(3);
+        double xs[] = new double[5000];
+        double ys[] = new double[xs.length];
+        double x = 0.0;
+        for (int i = 0; i < xs.length; i++) {
+            x += (i % 100 == 0) ? random.nextDouble() : random.nextDouble() * 1E-6;
+            xs[i] = x;
+            ys[i] = random.nextDouble();
+        }
+        PolynomialSplineFunction linear = new LinearInterpolator().interpolate(xs, ys);
+        InterpolationTable table = new InterpolationTable(xs, ys);
+        for (int i = 0; i < 100000; i++) {
+            double x2 = xs[0] + random.nextDouble() * (xs[xs.length - 1] - xs[0]);
+            assertEquals(linear.value(x2), table.value(x2), 1E-9);
+        }
+        for (double x2 : xs) {
+            assertEquals(linear.value(x2), table.value(x2), 1E-9);
+        }
+        assertEquals(ys[0], table.value(xs[0] - 1.0), 0.0);
+        assertEquals(ys[ys.length - 1], table.value(xs[xs.length - 1] + 1.0), 0.0);
+
+        // smooth functions are sampled at their knots and a fine grid
+        double sx[] = { 0.0, 0.5, 1.0, 2.0, 4.0 };
+        double sy[] = { 0.0, 0.2, 0.3, 0.7, 0.8 };
+        PolynomialSplineFunction spline = new SplineInterpolator().interpolate(sx, sy);
+        table = InterpolationTable.sample(spline, 0.0, 4.0, 2048);
+        for (int i = 0; i <= 1000; i++) {
+            double x2 = 4.0 * i / 1000;
+            assertEquals(spline.value(x2), table.value(x2), 1E-4);
+        }
+        for (double x2 : sx) {
+            assertEquals(spline.value(x2), table.value(x2), 1E-12);
+        }
+    }
+
+    @Test
+    public void testLoess() {
+        LoessNormalizer n = new LoessNormalizer();
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble();
+            n.observe(x, x * x + 0.05 * random.nextGaussian());
+        }
+        n.observationsFinished();
+        for (double x = 0.1; x < 0.9; x += 0.1) {
+            assertEquals(x * x, n.normalize(x), 0.05);
+        }
+        assertTrue(n.normalize(0.8) > n.normalize(0.2));
+        assertTrue(n.normalize(1.5) > n.normalize(0.999));
+        assertTrue(n.normalize(-0.5) < n.normalize(0.001));
+    }
+
+    @Test
+    public void testConcurrentNormalize() throws InterruptedException {
+        final Random random = new Random(5);
+        PercentileNormalizer percentile = new PercentileNormalizer();
+        LoessNormalizer loess = new LoessNormalizer();
+        for (int i = 0; i < 5000; i++) {
+            double x = random.nextDouble();
+            percentile.observe(x);
+            loess.observe(x, Math.sqrt(x));
+        }
+        percentile.observationsFinished();
+        loess.observationsFinished();
+
+        for (final Normalizer n : new Normalizer[] { percentile, loess }) {
+            final double inputs[] = new double[10000];
+            final double expected[] = new double[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = random.nextDouble() * 1.2 - 0.1;
+            }
+            // first use of the loess normalizer happens concurrently
+            final AtomicInteger mismatches = new AtomicInteger();
+            Thread threads[] = new Thread[8];
+            final double results[][] = new double[threads.length][inputs.length];
+            for (int t = 0; t < threads.length; t++) {
+                final int tt = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < inputs.length; i++) {
+                            results[tt][i] = n.normalize(inputs[i]);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            for (int i = 0; i < inputs.length; i++) {
+                expected[i] = n.normalize(inputs[i]);
+            }
+            for (double r[] : results) {
+                for (int i = 0; i < inputs.length; i++) {
+                    if (r[i] != expected[i]) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+            }
+            assertEquals(0, mismatches.get());
+        }
+    }
 }
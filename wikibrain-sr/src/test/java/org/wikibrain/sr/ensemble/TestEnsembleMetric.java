@@ -0,0 +1,161 @@
+package org.wikibrain.sr.ensemble;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.BaseSRMetric;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.normalize.IdentityNormalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestEnsembleMetric {
+
+    @Test
+    public void testParallel() throws DaoException {
+        // each submetric waits until all three are running, so this only completes if they run concurrently
+        final CountDownLatch allRunning = new CountDownLatch(3);
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        for (int i = 0; i < 3; i++) {
+            metrics.add(new GatedMetric("m" + i, i + 1, allRunning, allRunning));
+        }
+        EnsembleMetric sr = createEnsemble(metrics);
+        SRResult result = sr.similarity(1, 2, false);
+        assertEquals(2.0, result.getScore(), 0.00001);
+        assertEquals(0, allRunning.getCount());
+
+        SRResultList top = sr.mostSimilar(1, 10, null);
+        assertEquals(103, top.getId(0));
+        assertEquals(1.0, top.getScore(0), 0.00001);
+        assertEquals(102, top.getId(1));
+        assertEquals(101, top.getId(2));
+    }
+
+    @Test
+    public void testDeadline() throws DaoException {
+        // the third submetric blocks until the end of the test
+        CountDownLatch release = new CountDownLatch(1);
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(new GatedMetric("m0", 1, null, null));
+        metrics.add(new GatedMetric("m1", 2, null, null));
+        GatedMetric blocked = new GatedMetric("m2", 3, null, release);
+        metrics.add(blocked);
+        EnsembleMetric sr = createEnsemble(metrics);
+        sr.setDeadlineMillis(300);
+        try {
+            SRResult result = sr.similarity(1, 2, false);
+            assertEquals(1.5, result.getScore(), 0.00001);
+
+            SRResultList top = sr.mostSimilar(1, 10, null);
+            assertEquals(102, top.getId(0));
+            assertEquals(1.0, top.getScore(0), 0.00001);
+            assertEquals(101, top.getId(1));
+        } finally {
+            release.countDown();
+        }
+        // the blocked submetric was called, but left out of the results
+        assertEquals(2, blocked.getCalls());
+    }
+
+    @Test
+    public void testSequential() throws DaoException {
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        for (int i = 0; i < 3; i++) {
+            metrics.add(new GatedMetric("m" + i, i + 1, null, null));
+        }
+        EnsembleMetric sr = createEnsemble(metrics);
+        sr.setNumThreads(1);
+        assertEquals(2.0, sr.similarity(1, 2, false).getScore(), 0.00001);
+    }
+
+    @Test(expected = DaoException.class)
+    public void testFailure() throws DaoException {
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(new GatedMetric("ok", 1.0, null, null));
+        metrics.add(new GatedMetric("fail", 2.0, null, null) {
+            @Override
+            public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+                throw new DaoException("failed");
+            }
+        });
+        createEnsemble(metrics).similarity(1, 2, false);
+    }
+
+    private static EnsembleMetric createEnsemble(List<SRMetric> metrics) {
+        EnsembleMetric sr = new EnsembleMetric("ensemble", Language.SIMPLE, metrics, new EvenEnsemble(), null, null);
+        sr.setSimilarityNormalizer(new IdentityNormalizer());
+        sr.setMostSimilarNormalizer(new IdentityNormalizer());
+        return sr;
+    }
+
+    /**
+     * A metric that returns a constant score. Each call counts down the arrival latch,
+     * if there is one, and then waits for the gate, if there is one, to open. Its most similar list contains only the page 100 + score.
+     */
+    private static class GatedMetric extends BaseSRMetric {
+        private final double score;
+        private final CountDownLatch arrival;
+        private final CountDownLatch gate;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        GatedMetric(String name, double score, CountDownLatch arrival, CountDownLatch gate) {
+            super(name, Language.SIMPLE, null, null);
+            this.score = score;
+            this.arrival = arrival;
+            this.gate = gate;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            pass();
+            return new SRResult(score);
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            pass();
+            SRResultList list = new SRResultList(1);
+            list.set(0, 100 + (int) score, score);
+            return list;
+        }
+
+        int getCalls() {
+            return calls.get();
+        }
+
+        private void pass() {
+            calls.incrementAndGet();
+            if (arrival != null) {
+                arrival.countDown();
+            }
+            if (gate == null) {
+                return;
+            }
+            try {
+                // only reached if the test is broken; avoids hanging the build
+                if (!gate.await(60, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("gate for " + getName() + " never opened");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikibrain.sr.utils;
+
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestScoreAccumulator {
+
+    @Test
+    public void testIndex() {
+        for (int ids[] : new int[][] { { 5, 3, 9, 3, 100 }, { 7, Integer.MAX_VALUE - 1, -40, 1000000 } }) {
+            IdIndex index = new IdIndex(ids);
+            for (int id : ids) {
+                int i = index.indexOf(id);
+                assertTrue(i >= 0);
+                assertEquals(id, index.getId(i));
+            }
+            assertEquals(-1, index.indexOf(4));
+            assertEquals(-1, index.indexOf(Integer.MIN_VALUE));
+            assertEquals(-1, index.indexOf(Integer.MAX_VALUE));
+        }
+        assertEquals(4, new IdIndex(new int[] { 5, 3, 9, 3, 100 }).size());
+    }
+
+    @Test
+    public void testAccumulate() {
+        IdIndex index = new IdIndex(new int[] { 10, 20, 30, 40, 50 });
+        ThreadLocal<ScoreAccumulator> pool = new ThreadLocal<ScoreAccumulator>();
+        ScoreAccumulator acc = ScoreAccumulator.acquire(pool, index);
+        assertTrue(acc.add(20, 1.0));
+        assertTrue(acc.add(40, 0.5));
+        assertTrue(acc.add(20, 2.0));
+        assertFalse(acc.add(25, 1.0));
+        assertFalse(acc.addIfPresent(30, 1.0));
+        assertTrue(acc.addIfPresent(40, 1.0));
+        assertEquals(2, acc.size());
+        assertEquals(3.0, acc.get(20), 0.0);
+        assertEquals(1.5, acc.get(40), 0.0);
+        assertTrue(acc.contains(40));
+        assertFalse(acc.contains(30));
+
+        SRResultList top = acc.top(1, null, 1.0);
+        assertEquals(1, top.numDocs());
+        assertEquals(20, top.getId(0));
+
+        float norms[] = { 1.0f, 10.0f, 1.0f, 1.0f, 1.0f };
+        acc.retain(norms, 1.0);
+        assertEquals(1, acc.size());
+        assertEquals(40, acc.getTouchedId(0));
+        assertFalse(acc.contains(20));
+        acc.release();
+
+        // released accumulators are reused and empty
+        ScoreAccumulator acc2 = ScoreAccumulator.acquire(pool, index);
+        assertSame(acc, acc2);
+        assertEquals(0, acc2.size());
+        assertEquals(0.0, acc2.get(40), 0.0);
+
+        // nested callers get their own accumulator
+        ScoreAccumulator acc3 = ScoreAccumulator.acquire(pool, index);
+        assertNotSame(acc2, acc3);
+        acc3.add(10, 1.0);
+        assertEquals(0, acc2.size());
+        acc3.release();
+        acc2.release();
+
+        // accumulators over another index are replaced
+        IdIndex index2 = new IdIndex(new int[] { 10, 20 });
+        ScoreAccumulator acc4 = ScoreAccumulator.acquire(pool, index2);
+        assertNotSame(acc, acc4);
+        assertSame(index2, acc4.getIndex());
+        acc4.release();
+    }
+
+    @Test
+    public void testLargeAccumulation() {
+        int n = ScoreAccumulator.MAX_RETAINED_SCORES * 2;
+        int ids[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i * 7;
+        }
+        IdIndex index = new IdIndex(ids);
+        ThreadLocal<ScoreAccumulator> pool = new ThreadLocal<ScoreAccumulator>();
+        for (int round = 0; round < 2; round++) {
+            ScoreAccumulator acc = ScoreAccumulator.acquire(pool, index);
+            for (int i = 0; i < n; i++) {
+                acc.add(ids[i], i);
+                acc.add(ids[n - 1 - i], 1.0);
+            }
+            assertEquals(n, acc.size());
+            assertEquals(6.0, acc.get(35), 0.0);
+            SRResultList top = acc.top(3, null, 1.0);
+            assertEquals(ids[n - 1], top.getId(0));
+            assertEquals(n, top.getScore(0), 0.0);
+            acc.release();
+            assertEquals(0, acc.size());
+            assertFalse(acc.contains(35));
+        }
+    }
+
+    @Test
+    public void testLeaderboardReset() {
+        Leaderboard leaderboard = new Leaderboard(2);
+        for (int i = 0; i < 10; i++) {
+            leaderboard.tallyScore(i, i);
+        }
+        assertTrue(leaderboard.isFull());
+        assertEquals(8.0, leaderboard.getMinScore(), 0.0);
+
+        leaderboard.reset(5);
+        assertFalse(leaderboard.isFull());
+        for (int i = 0; i < 10; i++) {
+            leaderboard.tallyScore(i, -i);
+        }
+        SRResultList top = leaderboard.getTop();
+        assertEquals(5, top.numDocs());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, top.getId(i));
+        }
+
+        leaderboard.reset(0);
+        leaderboard.tallyScore(3, 1.0);
+        assertEquals(0, leaderboard.getTop().numDocs());
+    }
+}
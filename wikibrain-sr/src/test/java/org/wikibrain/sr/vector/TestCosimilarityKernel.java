@@ -0,0 +1,105 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.junit.Test;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.ValueConf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestCosimilarityKernel {
+    private static final int NUM_FEATURES = 500;
+
+    @Test
+    public void testCosine() {
+        testKernel(new CosineSimilarity(), 30, 20);
+        testKernel(new CosineSimilarity(), 400, 300);   // large enough to run in parallel
+    }
+
+    @Test
+    public void testGoogle() {
+        testKernel(new GoogleSimilarity(NUM_FEATURES), 30, 20);
+        testKernel(new GoogleSimilarity(NUM_FEATURES), 400, 300);
+    }
+
+    @Test
+    public void testEmpty() {
+        CosineSimilarity sim = new CosineSimilarity();
+        assertEquals(0, CosimilarityKernel.computeFromMaps(sim, new ArrayList<TIntFloatMap>(), randomMaps(new Random(1), 3)).length);
+        double result[][] = CosimilarityKernel.computeFromMaps(sim, randomMaps(new Random(1), 3), new ArrayList<TIntFloatMap>());
+        assertEquals(3, result.length);
+        assertEquals(0, result[0].length);
+    }
+
+    private void testKernel(VectorSimilarity sim, int numRows, int numCols) {
+        Random random = new Random(numRows);
+        List<TIntFloatMap> rows = randomMaps(random, numRows);
+        List<TIntFloatMap> cols = randomMaps(random, numCols);
+
+        // repeated and missing vectors
+        cols.set(1, rows.get(0));
+        rows.set(2, rows.get(0));
+        rows.set(3, null);
+        cols.set(4, null);
+
+        double actual[][] = CosimilarityKernel.computeFromMaps((CosimilarityKernel.PairScorer) sim, rows, cols);
+        checkBlock(sim, rows, cols, actual);
+
+        ValueConf vconf = new ValueConf();
+        List<SparseMatrixRow> rowVectors = toRows(vconf, rows);
+        List<SparseMatrixRow> colVectors = toRows(vconf, cols);
+        actual = CosimilarityKernel.compute((CosimilarityKernel.PairScorer) sim, rowVectors, colVectors);
+        checkBlock(sim, toMaps(rowVectors), toMaps(colVectors), actual);
+    }
+
+    private void checkBlock(VectorSimilarity sim, List<TIntFloatMap> rows, List<TIntFloatMap> cols, double actual[][]) {
+        assertEquals(rows.size(), actual.length);
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(cols.size(), actual[i].length);
+            for (int j = 0; j < cols.size(); j++) {
+                TIntFloatMap r = rows.get(i);
+                TIntFloatMap c = cols.get(j);
+                double expected = (r == null || c == null) ? 0.0 : sim.similarity(r, c);
+                assertEquals(expected, actual[i][j], 0.0001);
+            }
+        }
+    }
+
+    private static List<TIntFloatMap> randomMaps(Random random, int n) {
+        List<TIntFloatMap> maps = new ArrayList<TIntFloatMap>();
+        for (int i = 0; i < n; i++) {
+            TIntFloatMap map = new TIntFloatHashMap();
+            int size = (i % 7 == 5) ? 0 : random.nextInt(40) + 1;
+            for (int j = 0; j < size; j++) {
+                map.put(random.nextInt(NUM_FEATURES), random.nextFloat());
+            }
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    private static List<TIntFloatMap> toMaps(List<SparseMatrixRow> rows) {
+        List<TIntFloatMap> maps = new ArrayList<TIntFloatMap>();
+        for (SparseMatrixRow row : rows) {
+            maps.add(row == null ? null : row.asTroveMap());
+        }
+        return maps;
+    }
+
+    private static List<SparseMatrixRow> toRows(ValueConf vconf, List<TIntFloatMap> maps) {
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        for (int i = 0; i < maps.size(); i++) {
+            TIntFloatMap map = maps.get(i);
+            rows.add(map == null ? null : new SparseMatrixRow(vconf, i, map));
+        }
+        return rows;
+    }
+}
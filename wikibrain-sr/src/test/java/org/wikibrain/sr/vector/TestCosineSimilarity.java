@@ -2,13 +2,22 @@ package org.wikibrain.sr.vector;
 
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.junit.Ignore;
 import org.junit.Test;
-import org.wikibrain.matrix.SparseMatrixRow;
-import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpIOUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -55,6 +64,188 @@ public class TestCosineSimilarity {
         assertEquals(expected, actual, 0.0001);
     }
 
+    @Test
+    public void testMostSimilarCursor() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("cosine");
+        File featurePath = new File(dir, "feature.matrix");
+        File transposePath = new File(dir, "featureTranspose.matrix");
+
+        Random random = new Random(42);
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        for (int i = 1; i <= 200; i++) {
+            TIntFloatMap map = new TIntFloatHashMap();
+            for (int j = 0; j < 20; j++) {
+                map.put(random.nextInt(300) + 1, random.nextFloat());
+            }
+            rows.add(new SparseMatrixRow(new ValueConf(), i, map));
+        }
+        SparseMatrixWriter.write(featurePath, rows.iterator());
+        SparseMatrix features = new SparseMatrix(featurePath);
+        new SparseMatrixTransposer(features, transposePath).transpose();
+        SparseMatrix transpose = new SparseMatrix(transposePath);
+
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, transpose, dir);
+
+        SparseMatrixCursor cursor = features.cursor();
+        for (int id = 1; id <= 200; id++) {
+            assertTrue(cursor.moveTo(id));
+            SRResultList expected = sim.mostSimilar(features.getRow(id).asTroveMap(), 10, null);
+            SRResultList actual = sim.mostSimilar(cursor, 10, null);
+            assertEquals(expected.numDocs(), actual.numDocs());
+            for (int i = 0; i < expected.numDocs(); i++) {
+                assertEquals(expected.getScore(i), actual.getScore(i), 0.0001);
+            }
+        }
+    }
+
+    /**
+     * Creates 3000 rows about one of several topics, with strong topical features and weak
+     * common features, so that the common features' postings get pruned.
+     * @return The feature matrix and its transpose.
+     */
+    private SparseMatrix[] createTopicalMatrices(File dir) throws IOException {
+        File featurePath = new File(dir, "feature.matrix");
+        File transposePath = new File(dir, "featureTranspose.matrix");
+        Random random = new Random(7);
+        List<SparseMatrixRow> rows = new ArrayList<SparseMatrixRow>();
+        for (int i = 1; i <= 3000; i++) {
+            TIntFloatMap map = new TIntFloatHashMap();
+            int topic = random.nextInt(100);
+            for (int j = 0; j < 10; j++) {
+                map.put(1000 + topic * 20 + random.nextInt(20), 0.5f + 0.5f * random.nextFloat());
+            }
+            for (int j = 0; j < 20; j++) {
+                map.put(random.nextInt(200) + 1, 0.1f * random.nextFloat());
+            }
+            rows.add(new SparseMatrixRow(new ValueConf(), i, map));
+        }
+        SparseMatrixWriter.write(featurePath, rows.iterator());
+        SparseMatrix features = new SparseMatrix(featurePath);
+        new SparseMatrixTransposer(features, transposePath).transpose();
+        return new SparseMatrix[] { features, new SparseMatrix(transposePath) };
+    }
+
+    @Test
+    public void testPruning() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("cosine");
+        SparseMatrix matrices[] = createTopicalMatrices(dir);
+        SparseMatrix features = matrices[0];
+        SparseMatrix transpose = matrices[1];
+
+        CosineSimilarity pruned = new CosineSimilarity();
+        pruned.setMatrices(features, transpose, dir);
+        CosineSimilarity exhaustive = new CosineSimilarity();
+        exhaustive.setMatrices(features, transpose, dir);
+        exhaustive.setUsePruning(false);
+
+        TIntSet validIds = new TIntHashSet();
+        for (int id = 0; id < 40000; id += 2) {
+            validIds.add(id);
+        }
+
+        SparseMatrixCursor cursor = features.cursor();
+        for (int id = 1; id <= 3000; id += 10) {
+            assertTrue(cursor.moveTo(id));
+            TIntFloatMap query = features.getRow(id).asTroveMap();
+            assertSameResults(exhaustive.mostSimilar(query, 20, null), pruned.mostSimilar(query, 20, null));
+            assertSameResults(exhaustive.mostSimilar(cursor, 20, null), pruned.mostSimilar(cursor, 20, null));
+            SRResultList filtered = pruned.mostSimilar(query, 20, validIds);
+            assertSameResults(exhaustive.mostSimilar(query, 20, validIds), filtered);
+            for (int i = 0; i < filtered.numDocs(); i++) {
+                assertTrue(validIds.contains(filtered.getId(i)));
+            }
+        }
+
+        // Negative weights can't be pruned, so these queries fall back to the full accumulation.
+        TIntFloatMap query = features.getRow(1).asTroveMap();
+        query.put(query.keys()[0], -0.5f);
+        assertSameResults(exhaustive.mostSimilar(query, 20, null), pruned.mostSimilar(query, 20, null));
+    }
+
+    @Test
+    public void testConcurrentMostSimilar() throws Exception {
+        File dir = WpIOUtils.createTempDirectory("cosine");
+        SparseMatrix matrices[] = createTopicalMatrices(dir);
+        final SparseMatrix features = matrices[0];
+        final CosineSimilarity pruned = new CosineSimilarity();
+        pruned.setMatrices(features, matrices[1], dir);
+        final CosineSimilarity exhaustive = new CosineSimilarity();
+        exhaustive.setMatrices(features, matrices[1], dir);
+        exhaustive.setUsePruning(false);
+
+        final int ids[] = features.getRowIds();
+        final SRResultList expected[][] = new SRResultList[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            expected[i] = mostSimilarAllWays(features, pruned, exhaustive, ids[i]);
+        }
+
+        // Many threads share both metrics, so their pooled accumulators and cursors are exercised concurrently.
+        final AtomicInteger numQueries = new AtomicInteger();
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int t = 0; t < 8; t++) {
+                final Random random = new Random(t);
+                futures.add(exec.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int q = 0; q < 300; q++) {
+                            int i = random.nextInt(ids.length);
+                            SRResultList actual[] = mostSimilarAllWays(features, pruned, exhaustive, ids[i]);
+                            for (int j = 0; j < actual.length; j++) {
+                                assertEquals(expected[i][j].numDocs(), actual[j].numDocs());
+                                for (int k = 0; k < actual[j].numDocs(); k++) {
+                                    assertEquals(expected[i][j].getId(k), actual[j].getId(k));
+                                    assertEquals(expected[i][j].getScore(k), actual[j].getScore(k), 0.0);
+                                }
+                            }
+                            numQueries.incrementAndGet();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(8 * 300, numQueries.get());
+    }
+
+    private SRResultList[] mostSimilarAllWays(SparseMatrix features, CosineSimilarity pruned, CosineSimilarity exhaustive, int id) throws IOException {
+        SparseMatrixRow row = features.getRow(id);
+        TIntFloatMap query = row.asTroveMap();
+        return new SRResultList[] {
+                pruned.mostSimilar(query, 20, null),
+                pruned.mostSimilar(row, 20, null),
+                exhaustive.mostSimilar(query, 20, null),
+                exhaustive.mostSimilar(row, 20, null),
+        };
+    }
+
+    private void assertSameResults(SRResultList expected, SRResultList actual) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+        for (int i = 0; i < expected.numDocs(); i++) {
+            assertEquals(expected.getScore(i), actual.getScore(i), 0.00001);
+            // ids may only differ between tied scores, which may also fall off the end of the list
+            if (expected.getId(i) != actual.getId(i)) {
+                int j = actual.getIndexForId(expected.getId(i));
+                double score = (j >= 0) ? actual.getScore(j) : actual.getScore(actual.numDocs() - 1);
+                assertEquals(expected.getScore(i), score, 0.00001);
+            }
+        }
+    }
+
     private double cosineSimilarity(TIntFloatMap row1, TIntFloatMap row2) {
         double adota = 0.0;
         double bdotb = 0.0;
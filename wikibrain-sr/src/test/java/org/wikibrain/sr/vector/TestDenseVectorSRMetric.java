@@ -0,0 +1,133 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.DenseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.matrix.knn.KNNFinder;
+import org.wikibrain.matrix.knn.Neighborhood;
+import org.wikibrain.matrix.knn.RandomProjectionKNNFinder;
+import org.wikibrain.sr.Explanation;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.normalize.IdentityNormalizer;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestDenseVectorSRMetric {
+    private static final int NUM_ROWS = 300;
+    private static final int NUM_COLS = 16;
+
+    @Test
+    public void testQuantizedIgnoresStaleAccelerator() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("densevector");
+        try {
+            DenseMatrix matrix = createMatrix(new File(dir, "features.matrix"));
+
+            // left behind by an earlier, unquantized configuration
+            RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(matrix);
+            knn.build();
+            knn.save(new File(dir, "knn.bin"));
+
+            DenseVectorSRMetric sr = createMetric(matrix, dir);
+            sr.buildQuantizedFeatures();
+            sr.read();
+            assertNull(sr.getAccelerator());
+            checkMostSimilar(sr, matrix);
+
+            // an explicitly set accelerator does not take precedence either
+            sr.setAccelerator(new KNNFinder() {
+                public void build() {}
+                public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
+                    throw new UnsupportedOperationException();
+                }
+                public void save(File path) {}
+                public boolean load(File path) { return false; }
+            });
+            checkMostSimilar(sr, matrix);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testUnquantizedReadsAccelerator() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("densevector");
+        try {
+            DenseMatrix matrix = createMatrix(new File(dir, "features.matrix"));
+            RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(matrix);
+            knn.build();
+            knn.save(new File(dir, "knn.bin"));
+
+            DenseVectorSRMetric sr = createMetric(matrix, dir);
+            sr.setQuantizeFeatures(false);
+            sr.read();
+            assertNotNull(sr.getAccelerator());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void checkMostSimilar(DenseVectorSRMetric sr, DenseMatrix matrix) throws IOException {
+        for (int id : new int[] { 0, 17, NUM_ROWS - 1 }) {
+            SRResultList results = sr.mostSimilar(matrix.getRow(id).getValues(), 5, null);
+            assertEquals(5, results.numDocs());
+            assertEquals(id, results.getId(0));
+        }
+    }
+
+    private static DenseVectorSRMetric createMetric(final DenseMatrix matrix, File dir) {
+        DenseVectorGenerator generator = new DenseVectorGenerator() {
+            public DenseMatrix getFeatureMatrix() { return matrix; }
+            public float[] getVector(int pageId) throws DaoException {
+                try {
+                    DenseMatrixRow row = matrix.getRow(pageId);
+                    return row == null ? null : row.getValues();
+                } catch (IOException e) {
+                    throw new DaoException(e);
+                }
+            }
+            public float[] getVector(String phrase) { throw new UnsupportedOperationException(); }
+            public List<Explanation> getExplanations(String phrase1, String phrase2, float[] vector1, float[] vector2, SRResult result) { return null; }
+            public List<Explanation> getExplanations(int pageID1, int pageID2, float[] vector1, float[] vector2, SRResult result) { return null; }
+        };
+        DenseVectorSRMetric sr = new DenseVectorSRMetric("test", Language.SIMPLE, null, null, generator);
+        sr.setDataDir(dir);
+        sr.setMostSimilarNormalizer(new IdentityNormalizer());
+        sr.setQuantizeFeatures(true);
+        return sr;
+    }
+
+    private static DenseMatrix createMatrix(File path) throws IOException {
+        Random random = new Random(42);
+        ValueConf vconf = new ValueConf();
+        int colIds[] = new int[NUM_COLS];
+        for (int i = 0; i < NUM_COLS; i++) {
+            colIds[i] = i;
+        }
+        DenseMatrixWriter writer = new DenseMatrixWriter(path, vconf);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            float vals[] = new float[NUM_COLS];
+            for (int j = 0; j < NUM_COLS; j++) {
+                vals[j] = (float) random.nextGaussian();
+            }
+            writer.writeRow(new DenseMatrixRow(vconf, i, colIds, vals));
+        }
+        writer.finish();
+        return new DenseMatrix(path);
+    }
+}
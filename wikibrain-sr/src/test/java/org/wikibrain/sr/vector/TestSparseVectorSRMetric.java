@@ -0,0 +1,38 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.SparseMatrixRow;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSparseVectorSRMetric {
+
+    @Test
+    public void testCosimilarityMatchesMostSimilar() {
+        SparseVectorSRMetric sr = new SparseVectorSRMetric("test", Language.SIMPLE, null, null, null, new CosineSimilarity());
+        assertTrue(sr.cosimilarityMatchesMostSimilar());
+
+        // filtered metrics fall back to recomputing rows
+        sr.setFeatureFilter(new FeatureFilter() {
+            @Override
+            public TIntFloatMap filter(int page, TIntFloatMap vector) {
+                return vector;
+            }
+
+            @Override
+            public SparseMatrixRow filter(int page, SparseMatrixRow vector) {
+                return vector;
+            }
+        });
+        assertFalse(sr.cosimilarityMatchesMostSimilar());
+
+        sr = new SparseVectorSRMetric("test", Language.SIMPLE, null, null, null, new GoogleSimilarity(1000));
+        assertFalse(sr.cosimilarityMatchesMostSimilar());
+    }
+}
@@ -0,0 +1,122 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.utils.WbMathUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWord2VecModel {
+    private static final String WORDS[] = {
+            "dog", "New_York", "/w/en/12/Hercule_Poirot", "café", "/w/en/7/Cat", "dog", "zürich_city"
+    };
+    private static final int DIMENSIONS = 5;
+
+    @Test
+    public void testModel() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("word2vec");
+        try {
+            for (boolean newlines : new boolean[] { true, false }) {
+                File path = new File(dir, "model" + newlines + ".bin");
+                float vectors[][] = writeModel(path, newlines);
+
+                Word2VecModel model = new Word2VecModel(path);
+                checkModel(model, vectors);
+                model.close();
+
+                // the second open maps the existing index
+                File index = Word2VecModel.getIndexPath(path);
+                assertTrue(index.isFile());
+                long modified = index.lastModified();
+                model = new Word2VecModel(path);
+                checkModel(model, vectors);
+                model.close();
+                assertEquals(modified, index.lastModified());
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testGenerator() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("word2vec");
+        try {
+            File path = new File(dir, "model.bin");
+            float vectors[][] = writeModel(path, true);
+            for (int i = 0; i < 2; i++) {   // the second time reads the cached article matrix
+                Word2VecGenerator generator = new Word2VecGenerator(null, null, path);
+                assertArrayEquals(normalized(vectors[1]), generator.getVector("New York"), 0.00001f);
+                assertArrayEquals(normalized(vectors[3]), generator.getVector("café"), 0.00001f);
+                // article vectors are quantized by the dense matrix
+                assertArrayEquals(normalized(vectors[2]), generator.getVector(12), 0.001f);
+                assertArrayEquals(normalized(vectors[4]), generator.getVector(7), 0.001f);
+                assertNull(generator.getVector("missing"));
+                assertNull(generator.getVector(8));
+
+                // re-reading releases the old model and opens it again
+                generator.read();
+                assertArrayEquals(normalized(vectors[1]), generator.getVector("New York"), 0.00001f);
+                generator.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void checkModel(Word2VecModel model, float vectors[][]) throws IOException {
+        assertEquals(WORDS.length, model.getNumWords());
+        assertEquals(DIMENSIONS, model.getDimensions());
+        for (int i = 0; i < WORDS.length; i++) {
+            assertEquals(WORDS[i], model.getWord(i));
+            assertArrayEquals(vectors[i], model.getVector(i), 0.0f);
+        }
+        // lookups normalize underscores, and the first of two duplicate words wins
+        assertEquals(0, model.getIndex("dog"));
+        assertEquals(1, model.getIndex("New York"));
+        assertEquals(1, model.getIndex(" New_York "));
+        assertEquals(6, model.getIndex("zürich city"));
+        assertEquals(-1, model.getIndex("new_york"));
+        assertArrayEquals(vectors[2], model.getVector("/w/en/12/Hercule Poirot"), 0.0f);
+        assertNull(model.getVector("missing"));
+    }
+
+    private static float[] normalized(float vector[]) {
+        float result[] = vector.clone();
+        WbMathUtils.normalize(result);
+        return result;
+    }
+
+    private static float[][] writeModel(File path, boolean newlines) throws IOException {
+        Random random = new Random(path.getName().hashCode());
+        float vectors[][] = new float[WORDS.length][DIMENSIONS];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        out.write((WORDS.length + " " + DIMENSIONS + "\n").getBytes("UTF-8"));
+        for (int i = 0; i < WORDS.length; i++) {
+            out.write(WORDS[i].getBytes("UTF-8"));
+            out.write(' ');
+            ByteBuffer buffer = ByteBuffer.allocate(4 * DIMENSIONS).order(ByteOrder.LITTLE_ENDIAN);
+            for (int j = 0; j < DIMENSIONS; j++) {
+                // include bytes that look like delimiters
+                vectors[i][j] = (j == 0) ? Float.intBitsToFloat(0x200a200a) : random.nextFloat() - 0.5f;
+                buffer.putFloat(vectors[i][j]);
+            }
+            out.write(buffer.array());
+            if (newlines) {
+                out.write('\n');
+            }
+        }
+        out.close();
+        return vectors;
+    }
+}
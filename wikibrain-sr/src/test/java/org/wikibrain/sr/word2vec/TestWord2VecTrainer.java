@@ -0,0 +1,151 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WbMathUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWord2VecTrainer {
+    private static final int NUM_TOPICS = 8;
+    private static final int WORDS_PER_TOPIC = 15;
+
+    @Test
+    public void testHierarchicalSoftmax() throws IOException, DaoException {
+        Word2VecTrainer trainer = createTrainer();
+        checkTopics(trainer, 0.2);
+    }
+
+    @Test
+    public void testNegativeSampling() throws IOException, DaoException {
+        Word2VecTrainer trainer = createTrainer();
+        trainer.setHierarchicalSoftmax(false);
+        trainer.setNegative(5);
+        trainer.setSample(1E-3);
+        checkTopics(trainer, 0.2);
+    }
+
+    /**
+     * Tokens dropped by subsampling still count towards the decay, so the
+     * learning rate should end at its floor.
+     */
+    @Test
+    public void testAlphaDecaysWithSubsampling() throws IOException, DaoException {
+        Word2VecTrainer trainer = createTrainer();
+        trainer.setSample(1E-3);
+        File dir = WpIOUtils.createTempDirectory("word2vec");
+        try {
+            writeCorpus(dir, new Random(17));
+            trainer.train(dir, false);
+            assertEquals(0.025 * 0.0001, trainer.getAlpha(), 1E-12);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Sentences are drawn from a single topic, so words should be closer to
+     * words in their own topic than to words in others.
+     */
+    private void checkTopics(Word2VecTrainer trainer, double margin) throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("word2vec");
+        try {
+            writeCorpus(dir, new Random(17));
+            trainer.train(dir, false);
+            double within = 0.0, between = 0.0;
+            int numWithin = 0, numBetween = 0;
+            for (int t1 = 0; t1 < NUM_TOPICS; t1++) {
+                for (int w1 = 0; w1 < WORDS_PER_TOPIC; w1++) {
+                    for (int t2 = 0; t2 < NUM_TOPICS; t2++) {
+                        for (int w2 = 0; w2 < WORDS_PER_TOPIC; w2++) {
+                            if (t1 == t2 && w1 == w2) {
+                                continue;
+                            }
+                            double sim = cosine(trainer.getVector(word(t1, w1)), trainer.getVector(word(t2, w2)));
+                            if (t1 == t2) {
+                                within += sim;
+                                numWithin++;
+                            } else {
+                                between += sim;
+                                numBetween++;
+                            }
+                        }
+                    }
+                }
+            }
+            within /= numWithin;
+            between /= numBetween;
+            assertTrue("within " + within + ", between " + between, within > between + margin);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static Word2VecTrainer createTrainer() {
+        Word2VecTrainer trainer = new Word2VecTrainer(null, Language.SIMPLE);
+        trainer.setLayer1Size(20);
+        trainer.setMinWordFrequency(1);
+        trainer.setIterations(3);
+        return trainer;
+    }
+
+    private static double cosine(float v1[], float v2[]) {
+        return WbMathUtils.dot(v1, v2) / Math.sqrt(WbMathUtils.dot(v1, v1) * WbMathUtils.dot(v2, v2));
+    }
+
+    private static String word(int topic, int i) {
+        return "t" + topic + "w" + i;
+    }
+
+    /**
+     * Writes a corpus of single topic sentences, each sprinkled with a very frequent stop word.
+     */
+    private static void writeCorpus(File dir, Random random) throws IOException {
+        int counts[][] = new int[NUM_TOPICS][WORDS_PER_TOPIC];
+        int stopCount = 0;
+        long total = 0;
+        BufferedWriter corpus = WpIOUtils.openWriter(new File(dir, "corpus.txt"));
+        for (int s = 0; s < 2000; s++) {
+            int topic = random.nextInt(NUM_TOPICS);
+            StringBuilder sentence = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                if (i > 0) {
+                    sentence.append(' ');
+                }
+                if (random.nextInt(4) == 0) {
+                    sentence.append("the");
+                    stopCount++;
+                } else {
+                    int w = random.nextInt(WORDS_PER_TOPIC);
+                    sentence.append(word(topic, w));
+                    counts[topic][w]++;
+                }
+                total++;
+            }
+            corpus.write(sentence.append('\n').toString());
+        }
+        corpus.close();
+
+        BufferedWriter dictionary = WpIOUtils.openWriter(new File(dir, "dictionary.txt"));
+        dictionary.write("t " + total + " _\n");
+        dictionary.write("w " + stopCount + " the\n");
+        for (int t = 0; t < NUM_TOPICS; t++) {
+            for (int w = 0; w < WORDS_PER_TOPIC; w++) {
+                dictionary.write("w " + counts[t][w] + " " + word(t, w) + "\n");
+            }
+        }
+        dictionary.close();
+    }
+}
@@ -0,0 +1,445 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An external sorter for (long, int) pairs that may not fit in memory.
+ *
+ * Pairs are stored as fixed-width 12 byte binary records, so nothing is parsed or
+ * formatted as text. Pairs are buffered in a fixed number of buffers that share a
+ * budget of pairs held in memory. Each adding thread writes to one buffer, chosen by
+ * its thread id, and sorts and spills it to a run file when it is full, so runs are
+ * generated in parallel by the threads producing the pairs. Buffers are not owned by
+ * threads, so memory stays bounded however many threads (or thread pools) add pairs.
+ * {@link #merge(PairHandler, boolean)} then does a k-way merge of the runs and hands
+ * the pairs, ordered by key and then value, to a callback.
+ *
+ * Adding pairs is threadsafe. All calls to add() must complete before merge() is called.
+ * Buffer memory is released by merge() and grows again if more pairs are added.
+ *
+ * @author Shilad Sen
+ */
+public class LongIntPairSorter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(LongIntPairSorter.class);
+
+    private static final int RECORD_BYTES = 12;
+    private static final int IO_BUFFER_RECORDS = 8192;
+    private static final int MAX_FAN_IN = 128;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int MIN_BUFFER_PAIRS = 1024;
+
+    /**
+     * Receives sorted pairs from merge().
+     */
+    public interface PairHandler {
+        public void handle(long key, int value) throws IOException;
+    }
+
+    private final File dir;
+    private final int bufferCapacity;
+    private final Buffer buffers[];
+    private final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+    private final AtomicInteger runCounter = new AtomicInteger();
+    private final AtomicLong numPairs = new AtomicLong();
+
+    /**
+     * @param maxPairsInMemory The maximum number of pairs buffered in memory, at 12 bytes each.
+     */
+    public LongIntPairSorter(int maxPairsInMemory) throws IOException {
+        this(WpIOUtils.createTempDirectory("pair-sorter"), maxPairsInMemory, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * @param dir Directory for run files. It is deleted when the sorter is closed.
+     * @param maxPairsInMemory The maximum number of pairs buffered in memory, at 12 bytes each.
+     * @param numBuffers The number of buffers the memory is split across. Threads that share
+     *                   a buffer contend for its lock, so this should be about the number
+     *                   of threads adding pairs at once.
+     */
+    public LongIntPairSorter(File dir, int maxPairsInMemory, int numBuffers) {
+        if (maxPairsInMemory <= 0 || numBuffers <= 0) {
+            throw new IllegalArgumentException("maxPairsInMemory and numBuffers must be positive");
+        }
+        this.dir = dir;
+        this.buffers = new Buffer[Math.min(numBuffers, maxPairsInMemory)];
+        this.bufferCapacity = maxPairsInMemory / buffers.length;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Buffer();
+        }
+        dir.mkdirs();
+    }
+
+    public void add(long key, int value) throws IOException {
+        Buffer buffer = buffers[(int) (Thread.currentThread().getId() % buffers.length)];
+        synchronized (buffer) {
+            if (buffer.size == buffer.keys.length) {
+                if (buffer.keys.length < bufferCapacity) {
+                    buffer.grow(bufferCapacity);
+                } else {
+                    spill(buffer);
+                }
+            }
+            buffer.keys[buffer.size] = key;
+            buffer.values[buffer.size] = value;
+            buffer.size++;
+        }
+    }
+
+    /**
+     * @return The number of pairs the buffers can currently hold without growing.
+     * This never exceeds the maxPairsInMemory passed to the constructor.
+     */
+    public long getBufferedCapacity() {
+        long n = 0;
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                n += buffer.keys.length;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of pairs added so far.
+     */
+    public long size() {
+        long n = numPairs.get();
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                n += buffer.size;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Merges all added pairs and passes them to the handler, ordered by key and then value.
+     * The sorter can be merged more than once, and more pairs can be added between merges.
+     *
+     * @param handler
+     * @param distinct If true, repeated pairs are only passed to the handler once.
+     */
+    public void merge(PairHandler handler, boolean distinct) throws IOException {
+        flush();
+        List<File> toMerge;
+        synchronized (runs) {
+            toMerge = new ArrayList<File>(runs);
+        }
+        // Merge runs in groups until a single pass can merge the rest.
+        while (toMerge.size() > MAX_FAN_IN) {
+            List<List<File>> groups = new ArrayList<List<File>>();
+            for (int i = 0; i < toMerge.size(); i += MAX_FAN_IN) {
+                groups.add(toMerge.subList(i, Math.min(toMerge.size(), i + MAX_FAN_IN)));
+            }
+            LOG.info("merging " + toMerge.size() + " sorted runs into " + groups.size());
+            toMerge = ParallelForEach.loop(groups, new Function<List<File>, File>() {
+                @Override
+                public File call(List<File> group) throws Exception {
+                    File merged = newRunFile();
+                    RunWriter writer = new RunWriter(merged);
+                    try {
+                        mergeRuns(group, writer, false);
+                    } finally {
+                        writer.close();
+                    }
+                    for (File f : group) {
+                        FileUtils.deleteQuietly(f);
+                    }
+                    return merged;
+                }
+            });
+            synchronized (runs) {
+                runs.clear();
+                runs.addAll(toMerge);
+            }
+        }
+        LOG.info("merging " + toMerge.size() + " sorted runs with " + numPairs.get() + " pairs");
+        mergeRuns(toMerge, handler, distinct);
+    }
+
+    /**
+     * Sorts and spills all partially filled buffers in parallel, and releases their memory.
+     */
+    private void flush() throws IOException {
+        ParallelForEach.loop(Arrays.asList(buffers), new Procedure<Buffer>() {
+            @Override
+            public void call(Buffer buffer) throws Exception {
+                synchronized (buffer) {
+                    if (buffer.size > 0) {
+                        spill(buffer);
+                    }
+                    buffer.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sorts a buffer and writes it to a new run. The caller must hold the buffer's lock.
+     */
+    private void spill(Buffer buffer) throws IOException {
+        sort(buffer.keys, buffer.values, 0, buffer.size);
+        File file = newRunFile();
+        RunWriter writer = new RunWriter(file);
+        try {
+            for (int i = 0; i < buffer.size; i++) {
+                writer.handle(buffer.keys[i], buffer.values[i]);
+            }
+        } finally {
+            writer.close();
+        }
+        numPairs.addAndGet(buffer.size);
+        buffer.size = 0;
+        runs.add(file);
+    }
+
+    private File newRunFile() {
+        return new File(dir, "run-" + runCounter.getAndIncrement() + ".bin");
+    }
+
+    /**
+     * A k-way merge of sorted runs using a binary heap of run readers.
+     */
+    private static void mergeRuns(List<File> files, PairHandler handler, boolean distinct) throws IOException {
+        RunReader heap[] = new RunReader[files.size()];
+        int n = 0;
+        try {
+            for (File file : files) {
+                RunReader reader = new RunReader(file);
+                if (reader.next()) {
+                    heap[n++] = reader;
+                } else {
+                    reader.close();
+                }
+            }
+            for (int i = n / 2 - 1; i >= 0; i--) {
+                siftDown(heap, i, n);
+            }
+
+            boolean first = true;
+            long lastKey = 0;
+            int lastValue = 0;
+            while (n > 0) {
+                RunReader top = heap[0];
+                long key = top.key;
+                int value = top.value;
+                if (first || !distinct || key != lastKey || value != lastValue) {
+                    handler.handle(key, value);
+                    first = false;
+                    lastKey = key;
+                    lastValue = value;
+                }
+                if (!top.next()) {
+                    top.close();
+                    heap[0] = heap[--n];
+                    heap[n] = null;
+                }
+                siftDown(heap, 0, n);
+            }
+        } finally {
+            for (int i = 0; i < n; i++) {
+                heap[i].close();
+            }
+        }
+    }
+
+    private static void siftDown(RunReader heap[], int i, int n) {
+        RunReader r = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && heap[child + 1].compareTo(heap[child]) < 0) {
+                child++;
+            }
+            if (heap[child].compareTo(r) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+
+    /**
+     * Sorts the pairs in [from, to) by key and then value.
+     * A quicksort with median of three pivots that recurses on the smaller partition.
+     */
+    static void sort(long keys[], int values[], int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int mid = (from + to) >>> 1;
+            int last = to - 1;
+            if (less(keys, values, mid, from)) swap(keys, values, mid, from);
+            if (less(keys, values, last, from)) swap(keys, values, last, from);
+            if (less(keys, values, last, mid)) swap(keys, values, last, mid);
+            long pivotKey = keys[mid];
+            int pivotValue = values[mid];
+
+            int i = from;
+            int j = last;
+            while (i <= j) {
+                while (compare(keys[i], values[i], pivotKey, pivotValue) < 0) i++;
+                while (compare(keys[j], values[j], pivotKey, pivotValue) > 0) j--;
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            if (j - from < to - i) {
+                sort(keys, values, from, j + 1);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            long key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= from && compare(keys[j], values[j], key, value) > 0) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static int compare(long key1, int value1, long key2, int value2) {
+        if (key1 != key2) {
+            return key1 < key2 ? -1 : 1;
+        }
+        return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+    }
+
+    private static boolean less(long keys[], int values[], int i, int j) {
+        return compare(keys[i], values[i], keys[j], values[j]) < 0;
+    }
+
+    private static void swap(long keys[], int values[], int i, int j) {
+        long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        int v = values[i]; values[i] = values[j]; values[j] = v;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                buffer.release();
+            }
+        }
+        runs.clear();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Buffers start empty and grow by doubling, so small sorts don't allocate the full budget.
+     */
+    private static class Buffer {
+        long keys[] = new long[0];
+        int values[] = new int[0];
+        int size = 0;
+
+        void grow(int capacity) {
+            int n = (int) Math.min(capacity, Math.max(MIN_BUFFER_PAIRS, 2L * keys.length));
+            keys = Arrays.copyOf(keys, n);
+            values = Arrays.copyOf(values, n);
+        }
+
+        void release() {
+            keys = new long[0];
+            values = new int[0];
+            size = 0;
+        }
+    }
+
+    private static class RunWriter implements PairHandler, Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_RECORDS * RECORD_BYTES);
+
+        RunWriter(File file) throws IOException {
+            channel = new FileOutputStream(file).getChannel();
+        }
+
+        @Override
+        public void handle(long key, int value) throws IOException {
+            if (buffer.remaining() < RECORD_BYTES) {
+                drain();
+            }
+            buffer.putLong(key);
+            buffer.putInt(value);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_RECORDS * RECORD_BYTES);
+        long key;
+        int value;
+
+        RunReader(File file) throws IOException {
+            channel = new FileInputStream(file).getChannel();
+            buffer.limit(0);
+        }
+
+        /**
+         * Advances to the next pair.
+         * @return false if the run is exhausted.
+         */
+        boolean next() throws IOException {
+            if (buffer.remaining() < RECORD_BYTES) {
+                buffer.compact();
+                while (buffer.position() < RECORD_BYTES) {
+                    if (channel.read(buffer) < 0) {
+                        if (buffer.position() > 0) {
+                            throw new EOFException("truncated run file");
+                        }
+                        buffer.flip();
+                        return false;
+                    }
+                }
+                buffer.flip();
+            }
+            key = buffer.getLong();
+            value = buffer.getInt();
+            return true;
+        }
+
+        int compareTo(RunReader that) {
+            return compare(key, value, that.key, that.value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
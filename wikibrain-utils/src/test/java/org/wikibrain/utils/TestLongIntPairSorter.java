@@ -0,0 +1,124 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLongIntPairSorter {
+    @Test
+    public void testInMemorySort() {
+        Random random = new Random(1);
+        for (int n : new int[] { 0, 1, 5, 17, 1000, 50000 }) {
+            long keys[] = new long[n];
+            int values[] = new int[n];
+            long expected[] = new long[n];
+            for (int i = 0; i < n; i++) {
+                // lots of duplicate keys and pairs
+                keys[i] = random.nextInt(n / 10 + 1) - n / 20;
+                values[i] = random.nextInt(100) - 50;
+                expected[i] = pack(keys[i], values[i]);
+            }
+            LongIntPairSorter.sort(keys, values, 0, n);
+            Arrays.sort(expected);
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected[i], pack(keys[i], values[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testExternalSort() throws IOException {
+        final Random random = new Random(2);
+        final int n = 300000;
+        final long keys[] = new long[n];
+        final int values[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt(50000) - 25000;
+            values[i] = random.nextInt(20);
+        }
+
+        // small buffers create more runs than a single merge pass accepts
+        final LongIntPairSorter sorter = new LongIntPairSorter(
+                WpIOUtils.createTempDirectory("pair-sorter"), 2000, 4);
+        ParallelForEach.range(0, n, 4, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                sorter.add(keys[i], values[i]);
+            }
+        });
+        assertEquals((long) n, sorter.size());
+
+        long expected[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            expected[i] = pack(keys[i], values[i]);
+        }
+        Arrays.sort(expected);
+
+        final List<Long> all = new ArrayList<Long>();
+        sorter.merge(new LongIntPairSorter.PairHandler() {
+            @Override
+            public void handle(long key, int value) {
+                all.add(pack(key, value));
+            }
+        }, false);
+        assertEquals(n, all.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected[i], (long) all.get(i));
+        }
+
+        final List<Long> distinct = new ArrayList<Long>();
+        sorter.merge(new LongIntPairSorter.PairHandler() {
+            @Override
+            public void handle(long key, int value) {
+                distinct.add(pack(key, value));
+            }
+        }, true);
+        List<Long> expectedDistinct = new ArrayList<Long>(new TreeSet<Long>(all));
+        assertEquals(expectedDistinct, distinct);
+        sorter.close();
+    }
+
+    @Test
+    public void testBoundedMemory() throws IOException {
+        final int maxPairs = 10000;
+        final LongIntPairSorter sorter = new LongIntPairSorter(
+                WpIOUtils.createTempDirectory("pair-sorter"), maxPairs, 4);
+        final int n = 50000;
+        // each pool has new threads, as in the link loaders
+        for (int pool = 0; pool < 5; pool++) {
+            ParallelForEach.range(0, n, 4, new Procedure<Integer>() {
+                @Override
+                public void call(Integer i) throws Exception {
+                    sorter.add(i % 777, i);
+                }
+            });
+            assertTrue(sorter.getBufferedCapacity() <= maxPairs);
+        }
+        assertEquals(5L * n, sorter.size());
+
+        final long count[] = new long[1];
+        sorter.merge(new LongIntPairSorter.PairHandler() {
+            long lastKey = Long.MIN_VALUE;
+            @Override
+            public void handle(long key, int value) {
+                assertTrue(key >= lastKey);
+                lastKey = key;
+                count[0]++;
+            }
+        }, false);
+        assertEquals(5L * n, count[0]);
+        assertEquals(0L, sorter.getBufferedCapacity());
+        sorter.close();
+    }
+
+    // Order preserving for the small keys and values used in these tests
+    private static long pack(long key, int value) {
+        return key * 1000 + value;
+    }
+}